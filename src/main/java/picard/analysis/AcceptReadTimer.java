@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Feeds records to the programs or shards run by one thread of a SinglePassSamProgram.makeItSo() call and times
+ * their acceptRead() calls.  Timing every call would cost about as much as the cheaper programs do, so only every
+ * sampleInterval-th record is timed and the total is extrapolated from the sample.  Every so often the timer logs
+ * the mean time per record of each program so far, so that a long run can be watched while it goes.
+ *
+ * A timer belongs to the one thread that calls acceptRead() and needs no synchronization; timers are only
+ * summarized once their threads are done.
+ */
+final class AcceptReadTimer {
+    private static final Log log = Log.getInstance(AcceptReadTimer.class);
+
+    /**
+     * Odd, so that when the two reads of each pair sit next to each other in the input, the samples alternate between
+     * first and second reads instead of always landing on the same one.
+     */
+    static final int DEFAULT_SAMPLE_INTERVAL = 101;
+
+    /** The number of records between the log lines of a timer. */
+    static final long LOG_INTERVAL = 1000000;
+
+    private final List<String> programs;
+    private final ProgramTimingMetrics.ThreadType threadType;
+    private final String threadName;
+    private final int sampleInterval;
+    private final long[] sampledNanos;
+
+    private long records = 0;
+    private long samples = 0;
+    private int untilNextSample = 0;
+
+    /**
+     * @param programs the names of the programs whose shards, or themselves, are passed to acceptRead(), in order
+     * @param threadType the kind of thread the timer is used on
+     * @param threadName the name of that thread, used in log lines and to count threads
+     * @param sampleInterval one record in this many is timed
+     */
+    AcceptReadTimer(final List<String> programs,
+                    final ProgramTimingMetrics.ThreadType threadType,
+                    final String threadName,
+                    final int sampleInterval) {
+        if (sampleInterval < 1) throw new IllegalArgumentException("sampleInterval must be at least 1 but was " + sampleInterval);
+        this.programs = programs;
+        this.threadType = threadType;
+        this.threadName = threadName;
+        this.sampleInterval = sampleInterval;
+        this.sampledNanos = new long[programs.size()];
+    }
+
+    /** Hands the record to each of the shards, which must be given in the same order as the program names. */
+    void acceptRead(final List<? extends SinglePassSamProgram.Shard> shards, final SAMRecord rec, final ReferenceSequence ref) {
+        if (--untilNextSample >= 0) {
+            for (final SinglePassSamProgram.Shard shard : shards) shard.acceptRead(rec, ref);
+        } else {
+            untilNextSample = sampleInterval - 1;
+            ++samples;
+            for (int i = 0; i < shards.size(); ++i) {
+                final long start = System.nanoTime();
+                shards.get(i).acceptRead(rec, ref);
+                sampledNanos[i] += System.nanoTime() - start;
+            }
+        }
+
+        if (++records % LOG_INTERVAL == 0) logProgress();
+    }
+
+    private void logProgress() {
+        final StringBuilder line = new StringBuilder(threadName).append(": ").append(records).append(" records;");
+        for (int i = 0; i < programs.size(); ++i) {
+            line.append(' ').append(programs.get(i)).append(' ').append(sampledNanos[i] / samples).append("ns/record");
+        }
+        log.info(line);
+    }
+
+    /**
+     * Adds up the timers by program and thread type into one line each, in the order the programs are first seen,
+     * followed by a line for the reader thread if it read any records.
+     *
+     * @param readerRecords the number of records read by the reader thread
+     * @param readerNanos the time the reader thread spent reading, excluding the time it waited for workers
+     */
+    static List<ProgramTimingMetrics> summarize(final List<AcceptReadTimer> timers, final long readerRecords, final long readerNanos) {
+        final Map<String, ProgramTimingMetrics> byProgram = new LinkedHashMap<>();
+        final Map<String, Set<String>> threadsByProgram = new LinkedHashMap<>();
+        final Map<String, Double> nanosByProgram = new LinkedHashMap<>();
+
+        for (final AcceptReadTimer timer : timers) {
+            if (timer.samples == 0) continue;
+            for (int i = 0; i < timer.programs.size(); ++i) {
+                final String key = timer.programs.get(i) + "\t" + timer.threadType;
+                ProgramTimingMetrics metrics = byProgram.get(key);
+                if (metrics == null) {
+                    metrics = new ProgramTimingMetrics();
+                    metrics.PROGRAM = timer.programs.get(i);
+                    metrics.THREAD_TYPE = timer.threadType;
+                    byProgram.put(key, metrics);
+                    threadsByProgram.put(key, new HashSet<>());
+                    nanosByProgram.put(key, 0.0);
+                }
+                metrics.RECORDS += timer.records;
+                metrics.SAMPLED_RECORDS += timer.samples;
+                threadsByProgram.get(key).add(timer.threadName);
+                nanosByProgram.put(key, nanosByProgram.get(key) + timer.sampledNanos[i] * (timer.records / (double) timer.samples));
+            }
+        }
+
+        final List<ProgramTimingMetrics> result = new ArrayList<>();
+        for (final Map.Entry<String, ProgramTimingMetrics> entry : byProgram.entrySet()) {
+            final ProgramTimingMetrics metrics = entry.getValue();
+            metrics.THREADS = threadsByProgram.get(entry.getKey()).size();
+            setTime(metrics, nanosByProgram.get(entry.getKey()));
+            result.add(metrics);
+        }
+
+        if (readerRecords > 0) {
+            final ProgramTimingMetrics reader = new ProgramTimingMetrics();
+            reader.PROGRAM = ProgramTimingMetrics.ThreadType.READER.name();
+            reader.THREAD_TYPE = ProgramTimingMetrics.ThreadType.READER;
+            reader.THREADS = 1;
+            reader.RECORDS = readerRecords;
+            reader.SAMPLED_RECORDS = readerRecords;
+            setTime(reader, readerNanos);
+            result.add(reader);
+        }
+
+        double totalSeconds = 0;
+        for (final ProgramTimingMetrics metrics : result) totalSeconds += metrics.SECONDS;
+        for (final ProgramTimingMetrics metrics : result) {
+            metrics.PCT_TIME = totalSeconds == 0 ? 0 : metrics.SECONDS / totalSeconds;
+        }
+        return result;
+    }
+
+    private static void setTime(final ProgramTimingMetrics metrics, final double nanos) {
+        metrics.MEAN_NANOS_PER_RECORD = metrics.RECORDS == 0 ? 0 : nanos / metrics.RECORDS;
+        metrics.SECONDS = nanos / 1e9;
+        metrics.RECORDS_PER_SECOND = nanos == 0 ? 0 : metrics.RECORDS / metrics.SECONDS;
+    }
+}
@@ -26,8 +26,6 @@ package picard.analysis;
 
 import picard.metrics.MultilevelMetrics;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * High level metrics about the alignment of reads within a SAM file, produced by
  * the CollectAlignmentSummaryMetrics program and usually stored in a file with
@@ -48,10 +46,10 @@ public class AlignmentSummaryMetrics extends MultilevelMetrics {
      * The total number of reads including all PF and non-PF reads. When CATEGORY equals PAIR
      * this value will be 2x the number of clusters.
      */
-    public AtomicLong TOTAL_READS = new AtomicLong(0);
+    public long TOTAL_READS;
 
     /** The number of PF reads where PF is defined as passing Illumina's filter. */
-    public AtomicLong PF_READS = new AtomicLong(0);
+    public long PF_READS;
 
     /** The percentage of reads that are PF (PF_READS / TOTAL_READS) */
     public double PCT_PF_READS;
@@ -61,13 +59,13 @@ public class AlignmentSummaryMetrics extends MultilevelMetrics {
      * entirely of A bases and/or N bases. These reads are marked as they are usually artifactual and
      * are of no use in downstream analysis.
      */
-    public AtomicLong PF_NOISE_READS = new AtomicLong(0);
+    public long PF_NOISE_READS;
 
     /**
      * The number of PF reads that were aligned to the reference sequence. This includes reads that
      * aligned with low quality (i.e. their alignments are ambiguous).
      */
-    public AtomicLong PF_READS_ALIGNED = new AtomicLong(0);
+    public long PF_READS_ALIGNED;
 
     /**
      * The percentage of PF reads that aligned to the reference sequence. PF_READS_ALIGNED / PF_READS
@@ -77,26 +75,26 @@ public class AlignmentSummaryMetrics extends MultilevelMetrics {
     /**
      * The total number of aligned bases, in all mapped PF reads, that are aligned to the reference sequence.
      */
-    public AtomicLong PF_ALIGNED_BASES = new AtomicLong(0);
+    public long PF_ALIGNED_BASES;
 
     /**
      * The number of PF reads that were aligned to the reference sequence with a mapping quality of
      * Q20 or higher signifying that the aligner estimates a 1/100 (or smaller) chance that the
      * alignment is wrong.
      */
-    public AtomicLong PF_HQ_ALIGNED_READS = new AtomicLong(0);
+    public long PF_HQ_ALIGNED_READS;
 
     /**
      * The number of bases aligned to the reference sequence in reads that were mapped at high
      * quality.  Will usually approximate PF_HQ_ALIGNED_READS * READ_LENGTH but may differ when
      * either mixed read lengths are present or many reads are aligned with gaps.
      */
-    public AtomicLong PF_HQ_ALIGNED_BASES = new AtomicLong(0);
+    public long PF_HQ_ALIGNED_BASES;
 
     /**
      * The subset of PF_HQ_ALIGNED_BASES where the base call quality was Q20 or higher.
      */
-    public AtomicLong PF_HQ_ALIGNED_Q20_BASES = new AtomicLong(0);
+    public long PF_HQ_ALIGNED_Q20_BASES;
 
     /**
      * The median number of mismatches versus the reference sequence in reads that were aligned
@@ -130,7 +128,7 @@ public class AlignmentSummaryMetrics extends MultilevelMetrics {
     /**
      * The number of aligned reads whose mate pair was also aligned to the reference.
      */
-    public AtomicLong READS_ALIGNED_IN_PAIRS = new AtomicLong(0);
+    public long READS_ALIGNED_IN_PAIRS;
 
     /**
      * The percentage of reads whose mate pair was also aligned to the reference.
@@ -35,12 +35,10 @@ import htsjdk.samtools.util.StringUtil;
 import picard.metrics.PerUnitMetricCollector;
 import picard.metrics.SAMRecordAndReference;
 import picard.metrics.SAMRecordAndReferenceMultiLevelCollector;
+import picard.util.LongArrayHistogram;
 
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMultiLevelCollector<AlignmentSummaryMetrics, Comparable<?>> {
     // If we have a reference sequence, collect metrics on how well we aligned to it
@@ -134,10 +132,18 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
             pairCollector.onComplete();
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<AlignmentSummaryMetrics, Comparable<?>, SAMRecordAndReference> other) {
+            final GroupAlignmentSummaryMetricsPerUnitMetricCollector that = (GroupAlignmentSummaryMetricsPerUnitMetricCollector) other;
+            unpairedCollector.merge(that.unpairedCollector);
+            firstOfPairCollector.merge(that.firstOfPairCollector);
+            secondOfPairCollector.merge(that.secondOfPairCollector);
+            pairCollector.merge(that.pairCollector);
+        }
+
         @Override
         public void addMetricsToFile(final MetricsFile<AlignmentSummaryMetrics, Comparable<?>> file) {
-            //if (firstOfPairCollector.getMetrics().TOTAL_READS > 0) {
-            if (firstOfPairCollector.getMetrics().TOTAL_READS.get() > 0) {
+            if (firstOfPairCollector.getMetrics().TOTAL_READS > 0) {
                 // override how bad cycle is determined for paired reads, it should be
                 // the sum of first and second reads
                 pairCollector.getMetrics().BAD_CYCLES = firstOfPairCollector.getMetrics().BAD_CYCLES +
@@ -149,8 +155,7 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
             }
 
             //if there are no reads in any category then we will returned an unpaired alignment summary metric with all zero values
-            //if (unpairedCollector.getMetrics().TOTAL_READS > 0 || firstOfPairCollector.getMetrics().TOTAL_READS == 0) {
-            if (unpairedCollector.getMetrics().TOTAL_READS.get() > 0 || firstOfPairCollector.getMetrics().TOTAL_READS.get() == 0) {
+            if (unpairedCollector.getMetrics().TOTAL_READS > 0 || firstOfPairCollector.getMetrics().TOTAL_READS == 0) {
                 file.addMetric(unpairedCollector.getMetrics());
             }
         }
@@ -159,24 +164,32 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
          * Class that counts reads that match various conditions
          */
         private class IndividualAlignmentSummaryMetricsCollector {
-            private AtomicLong numPositiveStrand = new AtomicLong(0);
-            private final Histogram<Integer> readLengthHistogram = new Histogram<Integer>();
+            private long numPositiveStrand = 0;
+            private final LongArrayHistogram readLengthHistogram = new LongArrayHistogram();
             private AlignmentSummaryMetrics metrics;
-            private AtomicLong chimeras = new AtomicLong(0);
-            private AtomicLong chimerasDenominator = new AtomicLong(0);
-            private AtomicLong adapterReads = new AtomicLong(0);
-            private AtomicLong indels = new AtomicLong(0);
-
-            private AtomicLong nonBisulfiteAlignedBases = new AtomicLong(0);
-            private AtomicLong hqNonBisulfiteAlignedBases = new AtomicLong(0);
-            private final Histogram<Long> mismatchHistogram = new Histogram<Long>();
-            private final Histogram<Long> hqMismatchHistogram = new Histogram<Long>();
-            private final Histogram<Integer> badCycleHistogram = new Histogram<Integer>();
-
-            private Lock readLengthHistLock = new ReentrantLock();
-            private Lock hqMismatchHistLock = new ReentrantLock();
-            private Lock mismatchHistLock = new ReentrantLock();
-            private Lock badCycleHistLock = new ReentrantLock();
+            private long chimeras = 0;
+            private long chimerasDenominator = 0;
+            private long adapterReads = 0;
+            private long indels = 0;
+
+            private long nonBisulfiteAlignedBases = 0;
+            private long hqNonBisulfiteAlignedBases = 0;
+
+            // The counts behind the metrics' count fields, which are only filled in by onComplete().  Each collector
+            // belongs to a single worker's shard, so these are plain longs rather than shared atomic counters.
+            private long totalReads = 0;
+            private long pfReads = 0;
+            private long pfNoiseReads = 0;
+            private long pfReadsAligned = 0;
+            private long pfAlignedBases = 0;
+            private long pfHqAlignedReads = 0;
+            private long pfHqAlignedBases = 0;
+            private long pfHqAlignedQ20Bases = 0;
+            private long readsAlignedInPairs = 0;
+
+            private final LongArrayHistogram mismatchHistogram = new LongArrayHistogram();
+            private final LongArrayHistogram hqMismatchHistogram = new LongArrayHistogram();
+            private final LongArrayHistogram badCycleHistogram = new LongArrayHistogram();
 
             public IndividualAlignmentSummaryMetricsCollector(final AlignmentSummaryMetrics.Category pairingCategory,
                                                               final String sample,
@@ -200,52 +213,85 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
             }
 
             public void onComplete() {
+                metrics.TOTAL_READS             = totalReads;
+                metrics.PF_READS                = pfReads;
+                metrics.PF_NOISE_READS          = pfNoiseReads;
+                metrics.PF_READS_ALIGNED        = pfReadsAligned;
+                metrics.PF_ALIGNED_BASES        = pfAlignedBases;
+                metrics.PF_HQ_ALIGNED_READS     = pfHqAlignedReads;
+                metrics.PF_HQ_ALIGNED_BASES     = pfHqAlignedBases;
+                metrics.PF_HQ_ALIGNED_Q20_BASES = pfHqAlignedQ20Bases;
+                metrics.READS_ALIGNED_IN_PAIRS  = readsAlignedInPairs;
+
                 //summarize read data
-                if (metrics.TOTAL_READS.get() > 0)
+                if (metrics.TOTAL_READS > 0)
                 {
-                    metrics.PCT_PF_READS = (double) metrics.PF_READS.get() / (double) metrics.TOTAL_READS.get();
-                    metrics.PCT_ADAPTER = this.adapterReads.get() / (double) metrics.PF_READS.get();
-                    metrics.MEAN_READ_LENGTH = readLengthHistogram.getMean();
+                    metrics.PCT_PF_READS = (double) metrics.PF_READS / (double) metrics.TOTAL_READS;
+                    metrics.PCT_ADAPTER = this.adapterReads / (double) metrics.PF_READS;
+                    metrics.MEAN_READ_LENGTH = readLengthHistogram.toHistogram().getMean();
 
                     //Calculate BAD_CYCLES
                     metrics.BAD_CYCLES = 0;
-                    for (final Histogram.Bin<Integer> cycleBin : badCycleHistogram.values()) {
-                        final double badCyclePercentage = cycleBin.getValue() / metrics.TOTAL_READS.get();
+                    for (final Histogram.Bin<Integer> cycleBin : badCycleHistogram.toHistogram().values()) {
+                        final double badCyclePercentage = cycleBin.getValue() / metrics.TOTAL_READS;
                         if (badCyclePercentage >= .8) {
                             metrics.BAD_CYCLES++;
                         }
                     }
 
                     if(doRefMetrics) {
-                        if (metrics.PF_READS.get() > 0)         metrics.PCT_PF_READS_ALIGNED = (double) metrics.PF_READS_ALIGNED.get() / (double) metrics.PF_READS.get();
-                        if (metrics.PF_READS_ALIGNED.get() > 0) metrics.PCT_READS_ALIGNED_IN_PAIRS = (double) metrics.READS_ALIGNED_IN_PAIRS.get()/ (double) metrics.PF_READS_ALIGNED.get();
-                        if (metrics.PF_READS_ALIGNED.get() > 0) metrics.STRAND_BALANCE = numPositiveStrand.get() / (double) metrics.PF_READS_ALIGNED.get();
-                        if (this.chimerasDenominator.get() > 0) metrics.PCT_CHIMERAS = this.chimeras.get() / (double) this.chimerasDenominator.get();
-
-                        if (nonBisulfiteAlignedBases.get() > 0) metrics.PF_MISMATCH_RATE = mismatchHistogram.getSum() / (double) nonBisulfiteAlignedBases.get();
-                        metrics.PF_HQ_MEDIAN_MISMATCHES = hqMismatchHistogram.getMedian();
-                        if (hqNonBisulfiteAlignedBases.get() > 0) metrics.PF_HQ_ERROR_RATE = hqMismatchHistogram.getSum() / (double) hqNonBisulfiteAlignedBases.get();
-                        if (metrics.PF_ALIGNED_BASES.get() > 0) metrics.PF_INDEL_RATE = this.indels.get() / (double) metrics.PF_ALIGNED_BASES.get();
+                        if (metrics.PF_READS > 0)         metrics.PCT_PF_READS_ALIGNED = (double) metrics.PF_READS_ALIGNED / (double) metrics.PF_READS;
+                        if (metrics.PF_READS_ALIGNED > 0) metrics.PCT_READS_ALIGNED_IN_PAIRS = (double) metrics.READS_ALIGNED_IN_PAIRS/ (double) metrics.PF_READS_ALIGNED;
+                        if (metrics.PF_READS_ALIGNED > 0) metrics.STRAND_BALANCE = numPositiveStrand / (double) metrics.PF_READS_ALIGNED;
+                        if (this.chimerasDenominator > 0) metrics.PCT_CHIMERAS = this.chimeras / (double) this.chimerasDenominator;
+
+                        final Histogram<Integer> mismatches = mismatchHistogram.toHistogram();
+                        final Histogram<Integer> hqMismatches = hqMismatchHistogram.toHistogram();
+                        if (nonBisulfiteAlignedBases > 0) metrics.PF_MISMATCH_RATE = mismatches.getSum() / (double) nonBisulfiteAlignedBases;
+                        metrics.PF_HQ_MEDIAN_MISMATCHES = hqMismatches.getMedian();
+                        if (hqNonBisulfiteAlignedBases > 0) metrics.PF_HQ_ERROR_RATE = hqMismatches.getSum() / (double) hqNonBisulfiteAlignedBases;
+                        if (metrics.PF_ALIGNED_BASES > 0) metrics.PF_INDEL_RATE = this.indels / (double) metrics.PF_ALIGNED_BASES;
                     }
                 }
             }
 
+            /** Adds the counts and histograms of another collector for the same category and unit to this one. */
+            public void merge(final IndividualAlignmentSummaryMetricsCollector other) {
+                numPositiveStrand += other.numPositiveStrand;
+                chimeras += other.chimeras;
+                chimerasDenominator += other.chimerasDenominator;
+                adapterReads += other.adapterReads;
+                indels += other.indels;
+                nonBisulfiteAlignedBases += other.nonBisulfiteAlignedBases;
+                hqNonBisulfiteAlignedBases += other.hqNonBisulfiteAlignedBases;
+
+                readLengthHistogram.addHistogram(other.readLengthHistogram);
+                mismatchHistogram.addHistogram(other.mismatchHistogram);
+                hqMismatchHistogram.addHistogram(other.hqMismatchHistogram);
+                badCycleHistogram.addHistogram(other.badCycleHistogram);
+
+                totalReads += other.totalReads;
+                pfReads += other.pfReads;
+                pfNoiseReads += other.pfNoiseReads;
+                pfReadsAligned += other.pfReadsAligned;
+                pfAlignedBases += other.pfAlignedBases;
+                pfHqAlignedReads += other.pfHqAlignedReads;
+                pfHqAlignedBases += other.pfHqAlignedBases;
+                pfHqAlignedQ20Bases += other.pfHqAlignedQ20Bases;
+                readsAlignedInPairs += other.readsAlignedInPairs;
+            }
+
             private void collectReadData(final SAMRecord record) {
                 // NB: for read count metrics, do not include supplementary records, but for base count metrics, do include supplementary records.
                 if (record.getSupplementaryAlignmentFlag()) return;
 
-                metrics.TOTAL_READS.incrementAndGet();
+                totalReads++;
 
-                readLengthHistLock.lock();
-                try {
-                    readLengthHistogram.increment(record.getReadBases().length);
-                }finally {
-                    readLengthHistLock.unlock();
-                }
+                readLengthHistogram.increment(record.getReadBases().length);
 
                 if (!record.getReadFailsVendorQualityCheckFlag()) {
-                    metrics.PF_READS.incrementAndGet();
-                    if (isNoiseRead(record)) metrics.PF_NOISE_READS.incrementAndGet();
+                    pfReads++;
+                    if (isNoiseRead(record)) pfNoiseReads++;
 
                     if (record.getReadUnmappedFlag()) {
                         // If the read is unmapped see if it's adapter sequence
@@ -253,31 +299,31 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                         if (!(record instanceof BAMRecord)) StringUtil.toUpperCase(readBases);
 
                         if (adapterUtility.isAdapterSequence(readBases)) {
-                            this.adapterReads.incrementAndGet();
+                            this.adapterReads++;
                         }
                     }
                     else if(doRefMetrics) {
-                        metrics.PF_READS_ALIGNED.incrementAndGet();
-                        if (!record.getReadNegativeStrandFlag()) numPositiveStrand.incrementAndGet();
+                        pfReadsAligned++;
+                        if (!record.getReadNegativeStrandFlag()) numPositiveStrand++;
                         if (record.getReadPairedFlag() && !record.getMateUnmappedFlag()) {
-                            metrics.READS_ALIGNED_IN_PAIRS.incrementAndGet();
+                            readsAlignedInPairs++;
 
                             // Check that both ends have mapq > minimum
                             final Integer mateMq = record.getIntegerAttribute("MQ");
                             if (mateMq == null || mateMq >= MAPPING_QUALITY_THRESOLD && record.getMappingQuality() >= MAPPING_QUALITY_THRESOLD) {
-                                this.chimerasDenominator.getAndIncrement();
+                                this.chimerasDenominator++;
 
                                 // With both reads mapped we can see if this pair is chimeric
                                 if (ChimeraUtil.isChimeric(record, maxInsertSize, expectedOrientations)) {
-                                    this.chimeras.getAndIncrement();
+                                    this.chimeras++;
                                 }
                             }
                         }
                         else { // fragment reads or read pairs with one end that maps
                             // Consider chimeras that occur *within* the read using the SA tag
                             if (record.getMappingQuality() >= MAPPING_QUALITY_THRESOLD) {
-                                this.chimerasDenominator.getAndIncrement();
-                                if (record.getAttribute("SA") != null) this.chimeras.getAndIncrement();
+                                this.chimerasDenominator++;
+                                if (record.getAttribute("SA") != null) this.chimeras++;
                             }
                         }
                     }
@@ -292,25 +338,20 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                     final byte[] readBases = record.getReadBases();
                     for (int i = 0; i < readBases.length; i++) {
                         if (SequenceUtil.isNoCall(readBases[i])) {
-                            badCycleHistLock.lock();
-                            try{
-                                badCycleHistogram.increment(CoordMath.getCycle(record.getReadNegativeStrandFlag(), readBases.length, i));
-                            }finally {
-                                badCycleHistLock.unlock();
-                            }
+                            badCycleHistogram.increment(CoordMath.getCycle(record.getReadNegativeStrandFlag(), readBases.length, i));
                         }
                     }
                 }
                 else if (!record.getReadFailsVendorQualityCheckFlag()) {
                     final boolean highQualityMapping = isHighQualityMapping(record);
-                    if (highQualityMapping && !record.getSupplementaryAlignmentFlag()) metrics.PF_HQ_ALIGNED_READS.incrementAndGet();
+                    if (highQualityMapping && !record.getSupplementaryAlignmentFlag()) pfHqAlignedReads++;
 
                     final byte[] readBases = record.getReadBases();
                     final byte[] refBases = reference.getBases();
                     final byte[] qualities  = record.getBaseQualities();
                     final int refLength = refBases.length;
-                    long mismatchCount   = 0;
-                    long hqMismatchCount = 0;
+                    int mismatchCount   = 0;
+                    int hqMismatchCount = 0;
 
                     for (final AlignmentBlock alignmentBlock : record.getAlignmentBlocks()) {
                         final int readIndex = alignmentBlock.getReadStart() - 1;
@@ -335,46 +376,31 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
 
                             if(mismatch) mismatchCount++;
 
-                            metrics.PF_ALIGNED_BASES.incrementAndGet();
-                            if(!bisulfiteBase) nonBisulfiteAlignedBases.incrementAndGet();
+                            pfAlignedBases++;
+                            if(!bisulfiteBase) nonBisulfiteAlignedBases++;
 
                             if (highQualityMapping) {
-                                metrics.PF_HQ_ALIGNED_BASES.incrementAndGet();
-                                if (!bisulfiteBase) hqNonBisulfiteAlignedBases.incrementAndGet();
-                                if (qualities[readBaseIndex] >= BASE_QUALITY_THRESHOLD) metrics.PF_HQ_ALIGNED_Q20_BASES.incrementAndGet();
+                                pfHqAlignedBases++;
+                                if (!bisulfiteBase) hqNonBisulfiteAlignedBases++;
+                                if (qualities[readBaseIndex] >= BASE_QUALITY_THRESHOLD) pfHqAlignedQ20Bases++;
                                 if (mismatch) hqMismatchCount++;
                             }
 
                             if (mismatch || SequenceUtil.isNoCall(readBases[readBaseIndex])) {
-                                badCycleHistLock.lock();
-                                try {
-                                    badCycleHistogram.increment(CoordMath.getCycle(record.getReadNegativeStrandFlag(), readBases.length, i));
-                                } finally {
-                                    badCycleHistLock.unlock();
-                                }
+                                badCycleHistogram.increment(CoordMath.getCycle(record.getReadNegativeStrandFlag(), readBases.length, i));
                             }
                         }
                     }
 
-                    mismatchHistLock.lock();
-                    try {
-                        mismatchHistogram.increment(mismatchCount);
-                    } finally {
-                        mismatchHistLock.unlock();
-                    }
-                    hqMismatchHistLock.lock();
-                    try {
-                        hqMismatchHistogram.increment(hqMismatchCount);
-                    } finally {
-                        hqMismatchHistLock.unlock();
-                    }
+                    mismatchHistogram.increment(mismatchCount);
+                    hqMismatchHistogram.increment(hqMismatchCount);
 
                     //hqMismatchHistogram.incrementAndGet(hqMismatchCount, 1d);
 
                     // Add any insertions and/or deletions to the global count
                     for (final CigarElement elem : record.getCigar().getCigarElements()) {
                         final CigarOperator op = elem.getOperator();
-                        if (op == CigarOperator.INSERTION || op == CigarOperator.DELETION) this.indels.getAndIncrement();
+                        if (op == CigarOperator.INSERTION || op == CigarOperator.DELETION) this.indels++;
                     }
                 }
             }
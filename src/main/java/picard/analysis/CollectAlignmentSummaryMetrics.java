@@ -122,6 +122,9 @@ public class CollectAlignmentSummaryMetrics extends SinglePassSamProgram {
 
     private AlignmentSummaryMetricsCollector collector;
 
+    // Kept to create the collectors of additional shards
+    private SAMFileHeader header;
+
     /** Required main method implementation. */
     public static void main(final String[] argv) {
         new CollectAlignmentSummaryMetrics().instanceMainWithExit(argv);
@@ -138,11 +141,26 @@ public class CollectAlignmentSummaryMetrics extends SinglePassSamProgram {
                     "in the file are aligned, then alignment summary metrics collection will fail.");
         }
 
+        this.header = header;
+        collector = makeCollector();
+    }
+
+    private AlignmentSummaryMetricsCollector makeCollector() {
         final boolean doRefMetrics = REFERENCE_SEQUENCE != null;
-        collector = new AlignmentSummaryMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), doRefMetrics,
+        return new AlignmentSummaryMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), doRefMetrics,
                 ADAPTER_SEQUENCE, MAX_INSERT_SIZE, EXPECTED_PAIR_ORIENTATIONS, IS_BISULFITE_SEQUENCED);
     }
 
+    @Override protected Shard makeShard() {
+        return new CollectorShard<AlignmentSummaryMetricsCollector>(makeCollector());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void mergeShard(final Shard shard) {
+        collector.merge(((CollectorShard<AlignmentSummaryMetricsCollector>) shard).getCollector());
+    }
+
     @Override protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
         collector.acceptRecord(rec, ref);
     }
@@ -112,16 +112,17 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
 
     @Override
     protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
-        if ((PF_READS_ONLY) && (rec.getReadFailsVendorQualityCheckFlag())) {
-            return;
-        }
-        if ((ALIGNED_READS_ONLY) && (rec.getReadUnmappedFlag())) {
-            return;
-        }
-        if (rec.isSecondaryOrSupplementary()) {
-            return;
-        }
-        hist.addRecord(rec);
+        hist.acceptRead(rec, ref);
+    }
+
+    @Override
+    protected Shard makeShard() {
+        return new HistogramGenerator();
+    }
+
+    @Override
+    protected void mergeShard(final Shard shard) {
+        hist.merge((HistogramGenerator) shard);
     }
 
     @Override
@@ -143,7 +144,7 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
         }
     }
 
-    private class HistogramGenerator {
+    private class HistogramGenerator implements Shard {
         private int maxLengthSoFar = 0;
         final private long[][] firstReadTotalsByCycle = new long[5][maxLengthSoFar];
         private long[] firstReadCountsByCycle = new long[maxLengthSoFar];
@@ -169,6 +170,20 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
             return 4;
         }
 
+        @Override
+        public void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
+            if ((PF_READS_ONLY) && (rec.getReadFailsVendorQualityCheckFlag())) {
+                return;
+            }
+            if ((ALIGNED_READS_ONLY) && (rec.getReadUnmappedFlag())) {
+                return;
+            }
+            if (rec.isSecondaryOrSupplementary()) {
+                return;
+            }
+            addRecord(rec);
+        }
+
         void addRecord(final SAMRecord rec) {
             final byte[] bases = rec.getReadBases();
             if (bases == null) {
@@ -209,6 +224,21 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
             return maxLengthSoFar == 0;
         }
 
+        void merge(final HistogramGenerator other) {
+            ensureArraysBigEnough(other.maxLengthSoFar);
+            for (int i = 0; i < 5; i++) {
+                for (int cycle = 0; cycle < other.maxLengthSoFar; cycle++) {
+                    firstReadTotalsByCycle[i][cycle] += other.firstReadTotalsByCycle[i][cycle];
+                    secondReadTotalsByCycle[i][cycle] += other.secondReadTotalsByCycle[i][cycle];
+                }
+            }
+            for (int cycle = 0; cycle < other.maxLengthSoFar; cycle++) {
+                firstReadCountsByCycle[cycle] += other.firstReadCountsByCycle[cycle];
+                secondReadCountsByCycle[cycle] += other.secondReadCountsByCycle[cycle];
+            }
+            seenSecondEnd = seenSecondEnd || other.seenSecondEnd;
+        }
+
         public void addToMetricsFile(final MetricsFile<BaseDistributionByCycleMetrics, ?> metrics) {
             int firstReadLength = 0;
             for (int i = 0; i < maxLengthSoFar; i++) {
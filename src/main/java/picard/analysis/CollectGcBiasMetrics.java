@@ -136,6 +136,11 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
     // Calculates GcBiasMetrics for all METRIC_ACCUMULATION_LEVELs provided
     private GcBiasMetricsCollector multiCollector;
 
+    // Kept to create the collectors of additional shards
+    private SAMFileHeader header;
+    private int[] windowsByGc;
+    private GcBiasMetricsCollector.ContigGcCache contigGcs;
+
     // Bins for the histograms to track the number of windows at each GC, and the number of read starts
     // at bins of each GC %. Need 101 to get from 0-100.
     private static final int BINS = 101;
@@ -159,10 +164,32 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
         IOUtil.assertFileIsReadable(REFERENCE_SEQUENCE);
 
         //Calculate windowsByGc for the reference sequence
-        final int[] windowsByGc = GcBiasUtils.calculateRefWindowsByGc(BINS, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE);
+        windowsByGc = GcBiasUtils.calculateRefWindowsByGc(BINS, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE);
 
         //Delegate actual collection to GcBiasMetricCollector
-        multiCollector = new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, header.getReadGroups(), SCAN_WINDOW_SIZE, IS_BISULFITE_SEQUENCED);
+        this.header = header;
+        contigGcs = new GcBiasMetricsCollector.ContigGcCache(SCAN_WINDOW_SIZE);
+        multiCollector = makeCollector();
+    }
+
+    private GcBiasMetricsCollector makeCollector() {
+        return new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, header.getReadGroups(), SCAN_WINDOW_SIZE,
+                IS_BISULFITE_SEQUENCED, contigGcs);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Each shard gets a collector of its own, merged back before finish().
+    // The collectors share the per-contig GC calculations.
+    ////////////////////////////////////////////////////////////////////////////
+    @Override
+    protected Shard makeShard() {
+        return new CollectorShard<GcBiasMetricsCollector>(makeCollector());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void mergeShard(final Shard shard) {
+        multiCollector.merge(((CollectorShard<GcBiasMetricsCollector>) shard).getCollector());
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -108,6 +108,9 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
     // Calculates InsertSizeMetrics for all METRIC_ACCUMULATION_LEVELs provided
     private InsertSizeMetricsCollector multiCollector;
 
+    // Kept to create the collectors of additional shards
+    private SAMFileHeader header;
+
     /** Required main method implementation. */
     public static void main(final String[] argv) {
         new CollectInsertSizeMetrics().instanceMainWithExit(argv);
@@ -137,8 +140,23 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
         IOUtil.assertFileIsWritable(Histogram_FILE);
 
         //Delegate actual collection to InsertSizeMetricCollector
-        multiCollector = new InsertSizeMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(),
-                                                        MINIMUM_PCT, HISTOGRAM_WIDTH, DEVIATIONS, INCLUDE_DUPLICATES);
+        this.header = header;
+        multiCollector = makeCollector();
+    }
+
+    private InsertSizeMetricsCollector makeCollector() {
+        return new InsertSizeMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(),
+                                              MINIMUM_PCT, HISTOGRAM_WIDTH, DEVIATIONS, INCLUDE_DUPLICATES);
+    }
+
+    @Override protected Shard makeShard() {
+        return new CollectorShard<InsertSizeMetricsCollector>(makeCollector());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void mergeShard(final Shard shard) {
+        multiCollector.merge(((CollectorShard<InsertSizeMetricsCollector>) shard).getCollector());
     }
 
     @Override protected void acceptRead(final SAMRecord record, final ReferenceSequence ref) {
@@ -359,6 +359,33 @@ public class CollectMultipleMetrics extends CommandLineProgram {
     @Option(shortName = "UNPAIRED", doc = "Include unpaired reads in CollectSequencingArtifactMetrics. If set to true then all paired reads will be included as well - " +
             "MINIMUM_INSERT_SIZE and MAXIMUM_INSERT_SIZE will be ignored in CollectSequencingArtifactMetrics.")
     public boolean INCLUDE_UNPAIRED = false;
+
+    @Option(doc = "Number of worker threads that feed reads to the programs. Programs that support it are split into " +
+            "one shard per worker; all others receive every read, in order, on a single worker. If 0, half of the " +
+            "available processors are used.")
+    public int NUM_THREADS = 0;
+
+    @Option(doc = "The number of records handed to a worker thread at a time.")
+    public int BATCH_SIZE = SinglePassSamProgram.MAX_PAIRES;
+
+    @Option(doc = "The maximum number of batches waiting to be processed by each worker thread. Once a worker's queue " +
+            "is full, reading the input pauses until the worker catches up, which bounds the number of records in memory " +
+            "to roughly (NUM_THREADS + 1) * QUEUE_DEPTH * BATCH_SIZE.")
+    public int QUEUE_DEPTH = SinglePassSamProgram.DEFAULT_QUEUE_DEPTH;
+
+    @Option(doc = "Number of threads used to inflate and decode a BAM input ahead of the workers. Records are still " +
+            "handed out in file order. If 0, the input is read on a single thread.")
+    public int DECODE_THREADS = 0;
+
+    @Option(doc = "If true and the input is an indexed, coordinate sorted file, programs that support it read the " +
+            "genome as separate regions, NUM_THREADS at a time, each with its own reader. Other programs then get a " +
+            "regular pass over the input. Ignored when STOP_AFTER is set.")
+    public boolean SHARD_BY_REGION = false;
+
+    @Option(doc = "If set, the time spent in each program's acceptRead(), the records per second of each program and the " +
+            "time spent reading the input are written to this file. The same figures are always logged.", optional = true)
+    public File TIMING_OUTPUT;
+
     /**
      * Contents of PROGRAM set is transferred to this set during command-line validation, so that an outside
      * developer can invoke this class programmatically and provide alternative Programs to run by calling
@@ -420,7 +447,8 @@ public class CollectMultipleMetrics extends CommandLineProgram {
 
             programs.add(instance);
         }
-        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs);
+        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs, NUM_THREADS, BATCH_SIZE, QUEUE_DEPTH,
+                DECODE_THREADS, SHARD_BY_REGION, TIMING_OUTPUT);
 
         return 0;
     }
@@ -93,7 +93,7 @@ public class CollectQualityYieldMetrics extends SinglePassSamProgram {
     public boolean INCLUDE_SUPPLEMENTAL_ALIGNMENTS = false;
 
     // The metrics to be accumulated
-    private final QualityYieldMetrics metrics = new QualityYieldMetrics();
+    private final QualityYieldMetricsCollector collector = new QualityYieldMetricsCollector();
 
     /** Ensure that we get all reads regardless of alignment status. */
     @Override protected boolean usesNoRefReads() { return true; }
@@ -105,45 +105,23 @@ public class CollectQualityYieldMetrics extends SinglePassSamProgram {
 
     @Override
     protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
-        if (!INCLUDE_SECONDARY_ALIGNMENTS    && rec.getNotPrimaryAlignmentFlag()) return;
-        if (!INCLUDE_SUPPLEMENTAL_ALIGNMENTS && rec.getSupplementaryAlignmentFlag()) return;
-
-        final int length = rec.getReadLength();
-        metrics.TOTAL_READS++;
-        metrics.TOTAL_BASES += length;
-
-        final boolean isPfRead = !rec.getReadFailsVendorQualityCheckFlag();
-        if (isPfRead) {
-            metrics.PF_READS++;
-            metrics.PF_BASES += length;
-        }
-
-        final byte[] quals;
-        if (USE_ORIGINAL_QUALITIES) {
-            byte[] tmp = rec.getOriginalBaseQualities();
-            if (tmp == null) tmp = rec.getBaseQualities();
-            quals = tmp;
-        } else {
-            quals = rec.getBaseQualities();
-        }
+        collector.acceptRead(rec, ref);
+    }
 
-        // add up quals, and quals >= 20
-        for (final int qual : quals) {
-            metrics.Q20_EQUIVALENT_YIELD += qual;
-            if (qual >= 20) metrics.Q20_BASES++;
-            if (qual >= 30) metrics.Q30_BASES++;
+    @Override
+    protected Shard makeShard() {
+        return new QualityYieldMetricsCollector();
+    }
 
-            if (isPfRead) {
-                metrics.PF_Q20_EQUIVALENT_YIELD += qual;
-                if (qual >= 20) metrics.PF_Q20_BASES++;
-                if (qual >= 30) metrics.PF_Q30_BASES++;
-            }
-        }
+    @Override
+    protected void mergeShard(final Shard shard) {
+        collector.merge((QualityYieldMetricsCollector) shard);
     }
 
     @Override
     protected void finish() {
         final MetricsFile<QualityYieldMetrics, Integer> metricsFile = getMetricsFile();
+        final QualityYieldMetrics metrics = collector.metrics;
         metrics.READ_LENGTH = metrics.TOTAL_READS == 0 ? 0 : (int) (metrics.TOTAL_BASES / metrics.TOTAL_READS);
         metrics.Q20_EQUIVALENT_YIELD = metrics.Q20_EQUIVALENT_YIELD / 20;
         metrics.PF_Q20_EQUIVALENT_YIELD = metrics.PF_Q20_EQUIVALENT_YIELD / 20;
@@ -152,6 +130,62 @@ public class CollectQualityYieldMetrics extends SinglePassSamProgram {
         metricsFile.write(OUTPUT);
     }
 
+    /** Accumulates the QualityYieldMetrics of the reads seen by one worker, or by the program itself. */
+    private class QualityYieldMetricsCollector implements Shard {
+        private final QualityYieldMetrics metrics = new QualityYieldMetrics();
+
+        @Override
+        public void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
+            if (!INCLUDE_SECONDARY_ALIGNMENTS    && rec.getNotPrimaryAlignmentFlag()) return;
+            if (!INCLUDE_SUPPLEMENTAL_ALIGNMENTS && rec.getSupplementaryAlignmentFlag()) return;
+
+            final int length = rec.getReadLength();
+            metrics.TOTAL_READS++;
+            metrics.TOTAL_BASES += length;
+
+            final boolean isPfRead = !rec.getReadFailsVendorQualityCheckFlag();
+            if (isPfRead) {
+                metrics.PF_READS++;
+                metrics.PF_BASES += length;
+            }
+
+            final byte[] quals;
+            if (USE_ORIGINAL_QUALITIES) {
+                byte[] tmp = rec.getOriginalBaseQualities();
+                if (tmp == null) tmp = rec.getBaseQualities();
+                quals = tmp;
+            } else {
+                quals = rec.getBaseQualities();
+            }
+
+            // add up quals, and quals >= 20
+            for (final int qual : quals) {
+                metrics.Q20_EQUIVALENT_YIELD += qual;
+                if (qual >= 20) metrics.Q20_BASES++;
+                if (qual >= 30) metrics.Q30_BASES++;
+
+                if (isPfRead) {
+                    metrics.PF_Q20_EQUIVALENT_YIELD += qual;
+                    if (qual >= 20) metrics.PF_Q20_BASES++;
+                    if (qual >= 30) metrics.PF_Q30_BASES++;
+                }
+            }
+        }
+
+        void merge(final QualityYieldMetricsCollector other) {
+            metrics.TOTAL_READS             += other.metrics.TOTAL_READS;
+            metrics.PF_READS                += other.metrics.PF_READS;
+            metrics.TOTAL_BASES             += other.metrics.TOTAL_BASES;
+            metrics.PF_BASES                += other.metrics.PF_BASES;
+            metrics.Q20_BASES               += other.metrics.Q20_BASES;
+            metrics.PF_Q20_BASES            += other.metrics.PF_Q20_BASES;
+            metrics.Q30_BASES               += other.metrics.Q30_BASES;
+            metrics.PF_Q30_BASES            += other.metrics.PF_Q30_BASES;
+            metrics.Q20_EQUIVALENT_YIELD    += other.metrics.Q20_EQUIVALENT_YIELD;
+            metrics.PF_Q20_EQUIVALENT_YIELD += other.metrics.PF_Q20_EQUIVALENT_YIELD;
+        }
+    }
+
     /** A set of metrics used to describe the general quality of a BAM file */
     public static class QualityYieldMetrics extends MetricBase {
 
@@ -124,6 +124,12 @@ static final String USAGE_DETAILS = "<p>This tool takes a SAM/BAM file containin
 
     private RnaSeqMetricsCollector collector;
 
+    // Kept to create the collectors of additional shards, which share the read-only annotations
+    private SAMFileHeader header;
+    private OverlapDetector<Gene> geneOverlapDetector;
+    private OverlapDetector<Interval> ribosomalSequenceOverlapDetector;
+    private HashSet<Integer> ignoredSequenceIndices;
+
     /**
      * A subtitle for the plot, usually corresponding to a library.
      */
@@ -139,17 +145,15 @@ static final String USAGE_DETAILS = "<p>This tool takes a SAM/BAM file containin
 
         if (CHART_OUTPUT != null) IOUtil.assertFileIsWritable(CHART_OUTPUT);
 
-        final OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadRefFlat(REF_FLAT, header.getSequenceDictionary());
+        this.header = header;
+        geneOverlapDetector = GeneAnnotationReader.loadRefFlat(REF_FLAT, header.getSequenceDictionary());
         LOG.info("Loaded " + geneOverlapDetector.getAll().size() + " genes.");
 
-        final Long ribosomalBasesInitialValue = RIBOSOMAL_INTERVALS != null ? 0L : null;
-        final OverlapDetector<Interval> ribosomalSequenceOverlapDetector = RnaSeqMetricsCollector.makeOverlapDetector(samFile, header, RIBOSOMAL_INTERVALS);
+        ribosomalSequenceOverlapDetector = RnaSeqMetricsCollector.makeOverlapDetector(samFile, header, RIBOSOMAL_INTERVALS);
 
-        final HashSet<Integer> ignoredSequenceIndices = RnaSeqMetricsCollector.makeIgnoredSequenceIndicesSet(header, IGNORE_SEQUENCE);
+        ignoredSequenceIndices = RnaSeqMetricsCollector.makeIgnoredSequenceIndicesSet(header, IGNORE_SEQUENCE);
 
-        collector = new RnaSeqMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), ribosomalBasesInitialValue,
-                geneOverlapDetector, ribosomalSequenceOverlapDetector, ignoredSequenceIndices, MINIMUM_LENGTH, STRAND_SPECIFICITY, RRNA_FRAGMENT_PERCENTAGE,
-                true);
+        collector = makeCollector();
 
         // If we're working with a single library, assign that library's name as a suffix to the plot title
         final List<SAMReadGroupRecord> readGroups = header.getReadGroups();
@@ -159,6 +163,24 @@ static final String USAGE_DETAILS = "<p>This tool takes a SAM/BAM file containin
         }
     }
 
+    private RnaSeqMetricsCollector makeCollector() {
+        final Long ribosomalBasesInitialValue = RIBOSOMAL_INTERVALS != null ? 0L : null;
+        return new RnaSeqMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), ribosomalBasesInitialValue,
+                geneOverlapDetector, ribosomalSequenceOverlapDetector, ignoredSequenceIndices, MINIMUM_LENGTH, STRAND_SPECIFICITY, RRNA_FRAGMENT_PERCENTAGE,
+                true);
+    }
+
+    @Override
+    protected Shard makeShard() {
+        return new CollectorShard<RnaSeqMetricsCollector>(makeCollector());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void mergeShard(final Shard shard) {
+        collector.merge(((CollectorShard<RnaSeqMetricsCollector>) shard).getCollector());
+    }
+
     @Override
     protected void acceptRead(final SAMRecord rec, final ReferenceSequence refSeq) {
         collector.acceptRecord(rec, refSeq);
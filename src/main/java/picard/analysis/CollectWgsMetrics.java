@@ -24,9 +24,12 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.FilteringSamIterator;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -45,10 +48,27 @@ import picard.filter.CountingMapQFilter;
 import picard.filter.CountingPairedFilter;
 import picard.util.MathUtil;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static picard.cmdline.StandardOptionDefinitions.MINIMUM_MAPPING_QUALITY_SHORT_NAME;
 
@@ -123,6 +143,39 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             optional = true, overridable = true)
     public File INTERVALS = null;
 
+    @Option(doc = "If true, compute depth by adding the bases of each read into a window of counters that slides along the " +
+            "genome, instead of building the pileup of every locus. This is much faster and gives the same metrics. " +
+            "If the loci are restricted to intervals and the input is indexed, only the parts of the input holding reads " +
+            "that overlap them are read, and the loci in between are skipped. Ignored if STOP_AFTER is set.")
+    public boolean USE_FAST_ALGORITHM = false;
+
+    @Option(doc = "Number of threads used to collect the metrics. If more than 1 and the input is indexed, the contigs to " +
+            "examine are split into this many shards of about the same territory, each read with its own reader and " +
+            "reference, and the counts of the shards are added up at the end. Ignored if STOP_AFTER is set.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If set, a bedGraph coverage track is written to this file in the same pass over the input, holding the " +
+            "depth of every locus examined after all filters and exclusions but before the coverage cap. Adjacent loci " +
+            "with the same depth are written as a single line. NUM_THREADS is ignored if this is set.", optional = true)
+    public File COVERAGE_TRACK = null;
+
+    @Option(doc = "If more than 1, COVERAGE_TRACK holds the mean depth, to two decimal places, of bins of this many bases " +
+            "from the start of each contig instead of the depth of every locus.")
+    public int COVERAGE_TRACK_BIN_SIZE = 1;
+
+    @Option(doc = "If set, the counts collected so far are saved to this file as each contig is finished, at most every " +
+            "CHECKPOINT_INTERVAL seconds, and if the file exists when the program starts, collection resumes after the " +
+            "last contig it holds. The file is deleted once the metrics have been written. Contigs are then read one at a " +
+            "time through the index, so the input must be indexed; NUM_THREADS is ignored, and this is ignored if " +
+            "STOP_AFTER or COVERAGE_TRACK is set.", optional = true)
+    public File CHECKPOINT = null;
+
+    @Option(doc = "The minimum number of seconds between two writes of the CHECKPOINT file.")
+    public int CHECKPOINT_INTERVAL = 300;
+
+    private static final int CHECKPOINT_MAGIC = 0x57475343; // "WGSC"
+    private static final int CHECKPOINT_VERSION = 1;
+
     private SAMFileHeader header = null;
 
     private final Log log = Log.getInstance(CollectWgsMetrics.class);
@@ -401,6 +454,9 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         if (INTERVALS != null) {
             IOUtil.assertFileIsReadable(INTERVALS);
         }
+        if (COVERAGE_TRACK != null) {
+            IOUtil.assertFileIsWritable(COVERAGE_TRACK);
+        }
 
         // it doesn't make sense for the locus accumulation cap to be lower than the coverage cap
         if (LOCUS_ACCUMULATION_CAP < COVERAGE_CAP) {
@@ -409,23 +465,324 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         }
 
         // Setup all the inputs
-        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
         final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
         final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
         this.header = in.getFileHeader();
-        final SamLocusIterator iterator = getLocusIterator(in);
-
-        final List<SamRecordFilter> filters = new ArrayList<>();
-        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
-        final CountingFilter dupeFilter = new CountingDuplicateFilter();
-        final CountingPairedFilter pairFilter = new CountingPairedFilter();
-        // The order in which filters are added matters!
-        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
-        filters.add(mapqFilter);
-        filters.add(dupeFilter);
-        if (!COUNT_UNPAIRED) {
-            filters.add(pairFilter);
+
+        final ReadFilters filters = new ReadFilters();
+        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP, getIntervalsToExamine());
+        final CoverageTrackWriter coverageTrack = (COVERAGE_TRACK == null) ? null :
+                new CoverageTrackWriter(COVERAGE_TRACK, COVERAGE_TRACK_BIN_SIZE, this.header.getSequenceDictionary());
+        collector.setCoverageTrack(coverageTrack);
+
+        if (coverageTrack != null && NUM_THREADS > 1) {
+            log.warn("NUM_THREADS is ignored because the coverage track has to be written in order.");
+        }
+        final boolean checkpointing = CHECKPOINT != null && canCheckpoint(in, coverageTrack);
+        if (checkpointing && NUM_THREADS > 1) {
+            log.warn("NUM_THREADS is ignored because contigs are collected one at a time when checkpointing.");
+        }
+        final List<IntervalList> shards = (NUM_THREADS > 1 && STOP_AFTER <= 0 && coverageTrack == null && !checkpointing) ? getShards(in) : null;
+        if (checkpointing) {
+            accumulateWithCheckpoints(in, refWalker, filters, collector);
+        } else if (shards == null) {
+            accumulate(in, refWalker, getLocusIntervals(), filters.filters, collector);
+        } else {
+            accumulateInParallel(shards, filters, collector);
+        }
+        CloserUtil.close(in);
+        CloserUtil.close(refWalker);
+        if (coverageTrack != null) coverageTrack.close();
+
+        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
+        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, filters.dupeFilter, filters.mapqFilter, filters.pairFilter);
+        out.write(OUTPUT);
+
+        if (checkpointing && !CHECKPOINT.delete()) {
+            log.warn("Could not delete the checkpoint " + CHECKPOINT.getAbsolutePath());
+        }
+        return 0;
+    }
+
+    /** The filters applied to the reads of one pass over the input, and the counting ones among them. */
+    private class ReadFilters {
+        private final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        private final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        private final CountingPairedFilter pairFilter = new CountingPairedFilter();
+        private final List<SamRecordFilter> filters = new ArrayList<>();
+
+        private ReadFilters() {
+            // The order in which filters are added matters!
+            filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
+            filters.add(mapqFilter);
+            filters.add(dupeFilter);
+            if (!COUNT_UNPAIRED) {
+                filters.add(pairFilter);
+            }
+        }
+
+        private void merge(final ReadFilters other) {
+            mapqFilter.merge(other.mapqFilter);
+            dupeFilter.merge(other.dupeFilter);
+            pairFilter.merge(other.pairFilter);
+        }
+
+        private void writeTo(final DataOutputStream out) throws IOException {
+            for (final CountingFilter filter : new CountingFilter[] {mapqFilter, dupeFilter, pairFilter}) {
+                out.writeLong(filter.getFilteredRecords());
+                out.writeLong(filter.getFilteredBases());
+            }
+        }
+
+        private void readFrom(final DataInputStream in) throws IOException {
+            for (final CountingFilter filter : new CountingFilter[] {mapqFilter, dupeFilter, pairFilter}) {
+                filter.addFiltered(in.readLong(), in.readLong());
+            }
+        }
+    }
+
+    /** Passes the loci within the given intervals, or the whole genome if null, to the collector. */
+    private void accumulate(final SamReader in,
+                            final ReferenceSequenceFileWalker refWalker,
+                            final IntervalList intervals,
+                            final List<SamRecordFilter> filters,
+                            final WgsMetricsCollector collector) {
+        if (USE_FAST_ALGORITHM && STOP_AFTER <= 0) {
+            accumulateReads(in, refWalker, intervals, filters, collector);
+        } else {
+            accumulateLoci(in, refWalker, intervals, filters, collector);
+        }
+    }
+
+    /**
+     * Splits the loci to examine into NUM_THREADS shards of whole contigs with about the same territory, or returns
+     * null if the input cannot be read a shard at a time.  Contigs are not split so that no read is seen by two
+     * shards, which would count its filtered bases twice and could hide an overlapping mate.
+     */
+    private List<IntervalList> getShards(final SamReader in) {
+        if (!in.hasIndex()) {
+            log.warn("NUM_THREADS is ignored because the input is not indexed.");
+            return null;
+        }
+
+        final Map<String, IntervalList> contigs = getIntervalsByContig();
+        if (contigs.isEmpty()) return null;
+
+        // Hand out the largest contigs first, each to the shard with the least territory so far
+        final List<IntervalList> bySize = new ArrayList<>(contigs.values());
+        Collections.sort(bySize, (a, b) -> Long.compare(b.getBaseCount(), a.getBaseCount()));
+        final List<IntervalList> shards = new ArrayList<>();
+        final long[] territories = new long[Math.min(NUM_THREADS, bySize.size())];
+        for (int i = 0; i < territories.length; ++i) shards.add(new IntervalList(this.header));
+        for (final IntervalList contig : bySize) {
+            int smallest = 0;
+            for (int i = 1; i < territories.length; ++i) {
+                if (territories[i] < territories[smallest]) smallest = i;
+            }
+            shards.get(smallest).addall(contig.getIntervals());
+            territories[smallest] += contig.getBaseCount();
+        }
+
+        final List<IntervalList> sorted = new ArrayList<>(shards.size());
+        for (final IntervalList shard : shards) sorted.add(shard.sorted());
+        return sorted;
+    }
+
+    /** Gets the loci to examine, or every locus if they are not restricted, grouped by contig in dictionary order. */
+    private Map<String, IntervalList> getIntervalsByContig() {
+        IntervalList intervals = getLocusIntervals();
+        if (intervals == null) {
+            intervals = new IntervalList(this.header);
+            for (final SAMSequenceRecord rec : this.header.getSequenceDictionary().getSequences()) {
+                intervals.add(new Interval(rec.getSequenceName(), 1, rec.getSequenceLength()));
+            }
+        }
+
+        final Map<String, IntervalList> contigs = new LinkedHashMap<>();
+        for (final Interval interval : intervals.uniqued().getIntervals()) {
+            IntervalList contig = contigs.get(interval.getContig());
+            if (contig == null) {
+                contig = new IntervalList(intervals.getHeader());
+                contigs.put(interval.getContig(), contig);
+            }
+            contig.add(interval);
+        }
+        return contigs;
+    }
+
+    /** Whether the counts can be checkpointed, warning about why not if they cannot. */
+    private boolean canCheckpoint(final SamReader in, final CoverageTrackWriter coverageTrack) {
+        if (STOP_AFTER > 0) {
+            log.warn("CHECKPOINT is ignored because STOP_AFTER is set.");
+            return false;
+        }
+        if (coverageTrack != null) {
+            log.warn("CHECKPOINT is ignored because a coverage track cannot be resumed.");
+            return false;
+        }
+        if (!in.hasIndex()) {
+            log.warn("CHECKPOINT is ignored because the input is not indexed.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Collects one contig at a time, querying the index for each, and saves the counts to the CHECKPOINT file between
+     * contigs.  If the file already exists, the counts in it are loaded first and the contigs it covers are skipped.
+     * A contig holds every read that can touch its loci and no other, so the counts are the same as those of a
+     * single pass, however many times the run is resumed.
+     */
+    private void accumulateWithCheckpoints(final SamReader in,
+                                           final ReferenceSequenceFileWalker refWalker,
+                                           final ReadFilters filters,
+                                           final WgsMetricsCollector collector) {
+        final String settings = getCheckpointSettings();
+        int lastContig = -1;
+        if (CHECKPOINT.exists()) {
+            lastContig = readCheckpoint(settings, filters, collector);
+            log.info("Resuming from the checkpoint " + CHECKPOINT.getAbsolutePath() +
+                    (lastContig < 0 ? "" : ", after contig " + this.header.getSequence(lastContig).getSequenceName()));
+        }
+
+        long lastWrite = System.nanoTime();
+        for (final IntervalList contig : getIntervalsByContig().values()) {
+            final int contigIndex = this.header.getSequenceIndex(contig.getIntervals().get(0).getContig());
+            if (contigIndex <= lastContig) continue;
+
+            accumulate(in, refWalker, contig, filters.filters, collector);
+            lastContig = contigIndex;
+            if (System.nanoTime() - lastWrite >= CHECKPOINT_INTERVAL * 1000000000L) {
+                writeCheckpoint(settings, lastContig, filters, collector);
+                lastWrite = System.nanoTime();
+            }
         }
+        if (lastContig >= 0) writeCheckpoint(settings, lastContig, filters, collector);
+    }
+
+    /**
+     * Describes everything a checkpoint's counts depend on, so that a checkpoint is never resumed by a run that
+     * would have counted differently.
+     */
+    private String getCheckpointSettings() {
+        final IntervalList intervals = getLocusIntervals();
+        return "INPUT=" + INPUT.getAbsolutePath() + " (" + INPUT.length() + " bytes, modified " + INPUT.lastModified() + ")" +
+                " REFERENCE_SEQUENCE=" + REFERENCE_SEQUENCE.getAbsolutePath() +
+                " MINIMUM_MAPPING_QUALITY=" + MINIMUM_MAPPING_QUALITY +
+                " MINIMUM_BASE_QUALITY=" + MINIMUM_BASE_QUALITY +
+                " COVERAGE_CAP=" + COVERAGE_CAP +
+                " LOCUS_ACCUMULATION_CAP=" + LOCUS_ACCUMULATION_CAP +
+                " COUNT_UNPAIRED=" + COUNT_UNPAIRED +
+                " USE_FAST_ALGORITHM=" + USE_FAST_ALGORITHM +
+                " loci=" + (intervals == null ? "all" : intervals.uniqued().getBaseCount() + " in " + intervals.uniqued().size() + " interval(s)");
+    }
+
+    /** Adds the counts in the CHECKPOINT file to the filters and collector, returning the last contig they cover. */
+    private int readCheckpoint(final String settings, final ReadFilters filters, final WgsMetricsCollector collector) {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(CHECKPOINT)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                throw new PicardException(CHECKPOINT.getAbsolutePath() + " is not a checkpoint of this version of CollectWgsMetrics.");
+            }
+            final String checkpointSettings = in.readUTF();
+            if (!checkpointSettings.equals(settings)) {
+                throw new PicardException("The checkpoint " + CHECKPOINT.getAbsolutePath() + " was written by a run with other " +
+                        "inputs or options, so it cannot be resumed. Delete it to start over.\nCheckpoint: " +
+                        checkpointSettings + "\nThis run: " + settings);
+            }
+            final int lastContig = in.readInt();
+            filters.readFrom(in);
+            collector.readFrom(in);
+            return lastContig;
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not read the checkpoint " + CHECKPOINT.getAbsolutePath(), ioe);
+        }
+    }
+
+    /**
+     * Saves the counts to the CHECKPOINT file.  They are written to a file next to it, which is synced and then
+     * renamed over it, so that a run stopped at any point leaves either the old checkpoint or the new one.
+     */
+    private void writeCheckpoint(final String settings, final int lastContig, final ReadFilters filters, final WgsMetricsCollector collector) {
+        final File checkpoint = CHECKPOINT.getAbsoluteFile();
+        final File temp = new File(checkpoint.getParentFile(), checkpoint.getName() + ".tmp");
+        try {
+            try (final FileOutputStream stream = new FileOutputStream(temp);
+                 final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeUTF(settings);
+                out.writeInt(lastContig);
+                filters.writeTo(out);
+                collector.writeTo(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not write the checkpoint " + checkpoint.getAbsolutePath(), ioe);
+        }
+        log.info("Saved the counts through contig " + this.header.getSequence(lastContig).getSequenceName() + " to " + checkpoint.getAbsolutePath());
+    }
+
+    /**
+     * Collects each shard on its own thread, with its own reader, reference, filters and collector, and adds their
+     * counts to the given filters and collector.
+     */
+    private void accumulateInParallel(final List<IntervalList> shards, final ReadFilters filters, final WgsMetricsCollector collector) {
+        log.info("Collecting " + shards.size() + " shard(s) on " + shards.size() + " thread(s).");
+        final ExecutorService executor = Executors.newFixedThreadPool(shards.size(), r -> {
+            final Thread thread = new Thread(r, "CollectWgsMetrics-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final List<ReadFilters> shardFilters = new ArrayList<>(shards.size());
+            final List<WgsMetricsCollector> shardCollectors = new ArrayList<>(shards.size());
+            final List<Future<?>> results = new ArrayList<>(shards.size());
+            for (final IntervalList shard : shards) {
+                final ReadFilters readFilters = new ReadFilters();
+                final WgsMetricsCollector shardCollector = new WgsMetricsCollector(COVERAGE_CAP, shard);
+                shardFilters.add(readFilters);
+                shardCollectors.add(shardCollector);
+                results.add(executor.submit(() -> {
+                    final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+                    final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+                    try {
+                        accumulate(in, refWalker, shard, readFilters.filters, shardCollector);
+                    } finally {
+                        CloserUtil.close(in);
+                        CloserUtil.close(refWalker);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < shards.size(); ++i) {
+                try {
+                    results.get(i).get();
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted waiting for a shard to be collected.", ie);
+                } catch (final ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                    if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+                    throw new PicardException("Failed to collect shard.", ee.getCause());
+                }
+                filters.merge(shardFilters.get(i));
+                collector.merge(shardCollectors.get(i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Passes the pileup of every locus to the collector, as returned by a SamLocusIterator. */
+    private void accumulateLoci(final SamReader in,
+                                final ReferenceSequenceFileWalker refWalker,
+                                final IntervalList intervals,
+                                final List<SamRecordFilter> filters,
+                                final WgsMetricsCollector collector) {
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
+        final SamLocusIterator iterator = getLocusIterator(in, intervals);
         iterator.setSamFilters(filters);
         iterator.setEmitUncoveredLoci(true);
         iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
@@ -433,8 +790,6 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         iterator.setIncludeNonPfReads(false);
         iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
 
-        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP, getIntervalsToExamine());
-
         final boolean usingStopAfter = STOP_AFTER > 0;
         final long stopAfter = STOP_AFTER - 1;
         long counter = 0;
@@ -455,13 +810,38 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             progress.record(info.getSequenceName(), info.getPosition());
             if (usingStopAfter && ++counter > stopAfter) break;
         }
+        iterator.close();
+    }
 
-
-        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
-        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
-        out.write(OUTPUT);
-
-        return 0;
+    /**
+     * Reads the same records, with the same filters, as accumulateLoci() would, but adds their bases into a
+     * WgsReadDepthAccumulator instead of building the pileup of every locus.
+     */
+    private void accumulateReads(final SamReader in,
+                                 final ReferenceSequenceFileWalker refWalker,
+                                 final IntervalList intervals,
+                                 final List<SamRecordFilter> filters,
+                                 final WgsMetricsCollector collector) {
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "records");
+        if (intervals != null && !in.hasIndex()) {
+            log.warn("The input is not indexed, so all of it is read even though only the reads overlapping the intervals are used.");
+        }
+        // With an index, the intervals are queried all at once so that only the BAM blocks overlapping them are decoded
+        final Iterator<SAMRecord> records = new FilteringSamIterator(intervals == null ? in.iterator() :
+                new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, intervals.uniqued().getIntervals(), in.hasIndex()),
+                new AggregateFilter(filters));
+        final ReferenceSequenceMask mask = intervals == null ? new WholeGenomeReferenceSequenceMask(in.getFileHeader()) :
+                new IntervalListReferenceSequenceMask(intervals);
+
+        final WgsReadDepthAccumulator accumulator = new WgsReadDepthAccumulator(in.getFileHeader(), mask, refWalker,
+                collector, MINIMUM_BASE_QUALITY, LOCUS_ACCUMULATION_CAP);
+        while (records.hasNext()) {
+            final SAMRecord rec = records.next();
+            if (!accumulator.addRecord(rec)) break;
+            progress.record(rec);
+        }
+        CloserUtil.close(records);
+        accumulator.finish();
     }
 
     /** Gets the intervals over which we will calculate metrics. */
@@ -558,8 +938,13 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         return filter.getFilteredBases();
     }
 
-    protected SamLocusIterator getLocusIterator(final SamReader in) {
-        return (INTERVALS != null) ? new SamLocusIterator(in, IntervalList.fromFile(INTERVALS)) : new SamLocusIterator(in);
+    protected SamLocusIterator getLocusIterator(final SamReader in, final IntervalList intervals) {
+        return (intervals != null) ? new SamLocusIterator(in, intervals) : new SamLocusIterator(in);
+    }
+
+    /** Gets the intervals that loci are restricted to, or null for the whole genome. */
+    protected IntervalList getLocusIntervals() {
+        return (INTERVALS != null) ? IntervalList.fromFile(INTERVALS) : null;
     }
 
     /**
@@ -581,6 +966,7 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         private long basesExcludedByCapping = 0;
         protected final IntervalList intervals;
         protected final int coverageCap;
+        private CoverageTrackWriter coverageTrack = null;
 
         public WgsMetricsCollector(final int coverageCap, final IntervalList intervals) {
             depthHistogramArray = new long[coverageCap + 1];
@@ -606,11 +992,80 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
                 }
             }
 
+            addLocus(info.getSequenceIndex(), info.getPosition(), pileupSize);
+        }
+
+        /** Sets the track that the depth of every locus is also written to, or null for none. */
+        void setCoverageTrack(final CoverageTrackWriter coverageTrack) {
+            this.coverageTrack = coverageTrack;
+        }
+
+        /** Counts a locus with the given number of bases left after excluding low quality and overlapping ones. */
+        public void addLocus(final int sequenceIndex, final int position, final int pileupSize) {
+            if (coverageTrack != null) coverageTrack.addLocus(sequenceIndex, position, pileupSize);
             final int depth = Math.min(pileupSize, coverageCap);
             if (depth < pileupSize) basesExcludedByCapping += pileupSize - coverageCap;
             depthHistogramArray[depth]++;
         }
 
+        /** Adds the counts of another collector with the same coverage cap, e.g. one that saw other contigs. */
+        public void merge(final WgsMetricsCollector other) {
+            if (other.coverageCap != coverageCap) {
+                throw new PicardException("Cannot merge collectors with coverage caps " + coverageCap + " and " + other.coverageCap);
+            }
+            for (int i = 0; i < depthHistogramArray.length; ++i) depthHistogramArray[i] += other.depthHistogramArray[i];
+            for (int i = 0; i < baseQHistogramArray.length; ++i) baseQHistogramArray[i] += other.baseQHistogramArray[i];
+            basesExcludedByBaseq   += other.basesExcludedByBaseq;
+            basesExcludedByOverlap += other.basesExcludedByOverlap;
+            basesExcludedByCapping += other.basesExcludedByCapping;
+        }
+
+        /** Writes the counts, for readFrom() to add to those of a collector with the same coverage cap. */
+        void writeTo(final DataOutputStream out) throws IOException {
+            writeArray(out, depthHistogramArray);
+            writeArray(out, baseQHistogramArray);
+            out.writeLong(basesExcludedByBaseq);
+            out.writeLong(basesExcludedByOverlap);
+            out.writeLong(basesExcludedByCapping);
+        }
+
+        /** Adds the counts written by writeTo(). */
+        void readFrom(final DataInputStream in) throws IOException {
+            readArray(in, depthHistogramArray);
+            readArray(in, baseQHistogramArray);
+            basesExcludedByBaseq   += in.readLong();
+            basesExcludedByOverlap += in.readLong();
+            basesExcludedByCapping += in.readLong();
+        }
+
+        private void writeArray(final DataOutputStream out, final long[] array) throws IOException {
+            out.writeInt(array.length);
+            for (final long value : array) out.writeLong(value);
+        }
+
+        private void readArray(final DataInputStream in, final long[] array) throws IOException {
+            final int length = in.readInt();
+            if (length != array.length) {
+                throw new PicardException("Expected " + array.length + " counts but found " + length);
+            }
+            for (int i = 0; i < length; ++i) array[i] += in.readLong();
+        }
+
+        /** Counts the quality of a base that contributes to the depth of a locus below the coverage cap. */
+        public void addBaseQuality(final int quality) {
+            baseQHistogramArray[quality]++;
+        }
+
+        /** Counts a base excluded for its low quality, or because it is an N. */
+        public void addBaseQualityExclusion() {
+            ++basesExcludedByBaseq;
+        }
+
+        /** Counts a base excluded because another read of the same insert already covered its locus. */
+        public void addOverlapExclusion() {
+            ++basesExcludedByOverlap;
+        }
+
         public void addToMetricsFile(final MetricsFile<WgsMetrics, Integer> file,
                                      final boolean includeBQHistogram,
                                      final CountingFilter dupeFilter,
@@ -27,6 +27,7 @@ package picard.analysis;
 import htsjdk.samtools.*;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.*;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -35,7 +36,13 @@ import picard.cmdline.programgroups.Metrics;
 import picard.util.QuerySortedReadPairIteratorUtil;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Computes a number of metrics that are useful for evaluating coverage and performance of sequencing experiments.
@@ -74,6 +81,17 @@ public class CollectWgsMetricsFromQuerySorted extends CommandLineProgram {
     @Option(doc = "The number of bases in the genome build of the input file to be used for calculating MEAN_COVERAGE. If not provided, we will assume that ALL bases in the genome should be used (including e.g. Ns)", overridable = true, optional = true)
     public Long GENOME_TERRITORY = null;
 
+    @Option(doc = "Number of threads evaluating read pairs. If more than 1, pairs are read on one thread and handed out in " +
+            "batches to this many worker threads, each keeping its own counts, which are added up at the end. The " +
+            "metrics are the same whatever the number of threads.", optional = true)
+    public int NUM_THREADS = 1;
+
+    /** The number of read pairs handed to a worker thread at a time. */
+    private static final int PAIRS_PER_BATCH = 1000;
+
+    /** The number of batches that may wait for a worker thread, per worker thread. */
+    private static final int BATCHES_PER_WORKER = 4;
+
     private final Log log = Log.getInstance(CollectWgsMetricsFromQuerySorted.class);
 
     //the adapter utility class
@@ -134,6 +152,30 @@ public class CollectWgsMetricsFromQuerySorted extends CommandLineProgram {
         long basesExcludedByBaseq = 0;
         long basesExcludedByOverlap = 0;
         double insertSizeSum = 0.0;
+
+        IntermediateMetrics(final FILTERING_STRINGENCY type) {
+            metrics.TYPE = type;
+        }
+
+        /** Adds the counts of another instance, e.g. one that saw other read pairs. */
+        void merge(final IntermediateMetrics other) {
+            metrics.PF_BASES += other.metrics.PF_BASES;
+            metrics.PF_PASSING_BASES += other.metrics.PF_PASSING_BASES;
+            metrics.PF_READ_PAIRS += other.metrics.PF_READ_PAIRS;
+            metrics.PF_DUPE_PAIRS += other.metrics.PF_DUPE_PAIRS;
+            metrics.PF_READS_ALIGNED += other.metrics.PF_READS_ALIGNED;
+            metrics.PF_NOISE_READS += other.metrics.PF_NOISE_READS;
+            metrics.PF_CHIMERIC_PAIRS += other.metrics.PF_CHIMERIC_PAIRS;
+            metrics.PF_ADAPTER_READS += other.metrics.PF_ADAPTER_READS;
+            metrics.PF_ORIENTED_PAIRS += other.metrics.PF_ORIENTED_PAIRS;
+            basesExcludedByDupes += other.basesExcludedByDupes;
+            basesExcludedByMapq += other.basesExcludedByMapq;
+            basesExcludedByPairing += other.basesExcludedByPairing;
+            basesExcludedByBaseq += other.basesExcludedByBaseq;
+            basesExcludedByOverlap += other.basesExcludedByOverlap;
+            // a sum of whole numbers, so exact whatever order it is added up in
+            insertSizeSum += other.insertSizeSum;
+        }
     }
 
     public static void main(final String[] args) {
@@ -153,25 +195,27 @@ public class CollectWgsMetricsFromQuerySorted extends CommandLineProgram {
         final PeekableIterator<SAMRecord> iterator = new PeekableIterator<>(reader.iterator());
 
         // the metrics to keep track of
-        final IntermediateMetrics usableMetrics = new IntermediateMetrics();
-        usableMetrics.metrics.TYPE = FILTERING_STRINGENCY.USABLE;
-        final IntermediateMetrics rawMetrics = new IntermediateMetrics();
-        rawMetrics.metrics.TYPE = FILTERING_STRINGENCY.RAW;
+        final IntermediateMetrics usableMetrics = new IntermediateMetrics(FILTERING_STRINGENCY.USABLE);
+        final IntermediateMetrics rawMetrics = new IntermediateMetrics(FILTERING_STRINGENCY.RAW);
 
         adapterUtility = new AdapterUtility(AdapterUtility.DEFAULT_ADAPTER_SEQUENCE);
 
-        // Loop through all the loci by read pairs
-        QuerySortedReadPairIteratorUtil.ReadPair pairToAnalyze = QuerySortedReadPairIteratorUtil.getNextReadPair(iterator);
-        while (pairToAnalyze != null) {
-            // calculate intermediate metrics
-            calculateMetricsForRead(pairToAnalyze, usableMetrics, MINIMUM_USABLE_MAPPING_QUALITY, MINIMUM_USABLE_BASE_QUALITY);
-            calculateMetricsForRead(pairToAnalyze, rawMetrics, MINIMUM_RAW_MAPPING_QUALITY, MINIMUM_RAW_BASE_QUALITY);
-
-            // record progress
-            progress.record(pairToAnalyze.read1);
-
-            // iterate
-            pairToAnalyze = QuerySortedReadPairIteratorUtil.getNextReadPair(iterator);
+        if (NUM_THREADS > 1) {
+            calculateMetricsInParallel(iterator, usableMetrics, rawMetrics, progress);
+        } else {
+            // Loop through all the loci by read pairs
+            QuerySortedReadPairIteratorUtil.ReadPair pairToAnalyze = QuerySortedReadPairIteratorUtil.getNextReadPair(iterator);
+            while (pairToAnalyze != null) {
+                // calculate intermediate metrics
+                calculateMetricsForRead(pairToAnalyze, usableMetrics, MINIMUM_USABLE_MAPPING_QUALITY, MINIMUM_USABLE_BASE_QUALITY);
+                calculateMetricsForRead(pairToAnalyze, rawMetrics, MINIMUM_RAW_MAPPING_QUALITY, MINIMUM_RAW_BASE_QUALITY);
+
+                // record progress
+                progress.record(pairToAnalyze.read1);
+
+                // iterate
+                pairToAnalyze = QuerySortedReadPairIteratorUtil.getNextReadPair(iterator);
+            }
         }
 
         // finalize and write the metrics
@@ -188,6 +232,101 @@ public class CollectWgsMetricsFromQuerySorted extends CommandLineProgram {
         return 0;
     }
 
+    /**
+     * Reads the pairs on this thread and evaluates them in batches on NUM_THREADS worker threads, each with its own
+     * intermediate metrics, which are then added to the given ones.  The workers share one bounded queue, so the
+     * reader blocks when they fall behind instead of piling pairs up on the heap.
+     */
+    private void calculateMetricsInParallel(final PeekableIterator<SAMRecord> iterator,
+                                            final IntermediateMetrics usableMetrics,
+                                            final IntermediateMetrics rawMetrics,
+                                            final ProgressLogger progress) {
+        final List<QuerySortedReadPairIteratorUtil.ReadPair> endOfInput = Collections.emptyList();
+        final BlockingQueue<List<QuerySortedReadPairIteratorUtil.ReadPair>> queue = new ArrayBlockingQueue<>(NUM_THREADS * BATCHES_PER_WORKER);
+        final AtomicReference<Throwable> failure = new AtomicReference<>(null);
+
+        final List<IntermediateMetrics> workerMetrics = new ArrayList<>(2 * NUM_THREADS);
+        final List<Thread> workers = new ArrayList<>(NUM_THREADS);
+        for (int i = 0; i < NUM_THREADS; ++i) {
+            final IntermediateMetrics usable = new IntermediateMetrics(FILTERING_STRINGENCY.USABLE);
+            final IntermediateMetrics raw = new IntermediateMetrics(FILTERING_STRINGENCY.RAW);
+            workerMetrics.add(usable);
+            workerMetrics.add(raw);
+            final Thread worker = new Thread(() -> {
+                try {
+                    while (true) {
+                        final List<QuerySortedReadPairIteratorUtil.ReadPair> batch = queue.take();
+                        if (batch == endOfInput) return;
+                        // Once anything has failed keep draining the queue so that the reader never blocks
+                        if (failure.get() != null) continue;
+                        try {
+                            for (final QuerySortedReadPairIteratorUtil.ReadPair pair : batch) {
+                                calculateMetricsForRead(pair, usable, MINIMUM_USABLE_MAPPING_QUALITY, MINIMUM_USABLE_BASE_QUALITY);
+                                calculateMetricsForRead(pair, raw, MINIMUM_RAW_MAPPING_QUALITY, MINIMUM_RAW_BASE_QUALITY);
+                            }
+                        } catch (final Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                } catch (final InterruptedException ie) {
+                    failure.compareAndSet(null, ie);
+                }
+            }, "CollectWgsMetricsFromQuerySorted-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        List<QuerySortedReadPairIteratorUtil.ReadPair> batch = new ArrayList<>(PAIRS_PER_BATCH);
+        QuerySortedReadPairIteratorUtil.ReadPair pairToAnalyze = QuerySortedReadPairIteratorUtil.getNextReadPair(iterator);
+        while (pairToAnalyze != null && failure.get() == null) {
+            batch.add(pairToAnalyze);
+            progress.record(pairToAnalyze.read1);
+            if (batch.size() == PAIRS_PER_BATCH) {
+                put(queue, batch, workers);
+                batch = new ArrayList<>(PAIRS_PER_BATCH);
+            }
+            pairToAnalyze = QuerySortedReadPairIteratorUtil.getNextReadPair(iterator);
+        }
+        if (!batch.isEmpty()) put(queue, batch, workers);
+        for (int i = 0; i < workers.size(); ++i) put(queue, endOfInput, workers);
+
+        for (final Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for worker thread " + worker.getName(), ie);
+            }
+        }
+
+        final Throwable t = failure.get();
+        if (t != null) {
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new PicardException("Failure in worker thread.", t);
+        }
+
+        for (int i = 0; i < workerMetrics.size(); i += 2) {
+            usableMetrics.merge(workerMetrics.get(i));
+            rawMetrics.merge(workerMetrics.get(i + 1));
+        }
+    }
+
+    /** Queues a batch for the workers, waking up regularly so that dead workers do not block the reader forever. */
+    private static void put(final BlockingQueue<List<QuerySortedReadPairIteratorUtil.ReadPair>> queue,
+                            final List<QuerySortedReadPairIteratorUtil.ReadPair> batch,
+                            final List<Thread> workers) {
+        try {
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                boolean anyAlive = false;
+                for (final Thread worker : workers) anyAlive = anyAlive || worker.isAlive();
+                if (!anyAlive) throw new PicardException("All worker threads died unexpectedly.");
+            }
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted queueing a batch of read pairs.", ie);
+        }
+    }
+
     /**
      * Calculate the contribution to the intermediate metrics for a given read pair
      *
@@ -24,7 +24,6 @@
 
 package picard.analysis;
 
-import htsjdk.samtools.SamReader;
 import htsjdk.samtools.util.*;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -39,6 +38,9 @@ import java.io.File;
  * It is important that the sampled positions be chosen so that they are spread out at least further than a read's length apart;
  * otherwise, you run the risk of double-counting reads in the metrics.
  *
+ * With USE_FAST_ALGORITHM and an indexed input, only the reads overlapping the sampled positions are decoded and only
+ * the sampled positions are visited, so that a sparse set of sites costs a small fraction of a pass over the input.
+ *
  * This tool is deprecated; please use CollectWgsMetrics instead.
  *
  * @author ebanks
@@ -49,7 +51,8 @@ import java.io.File;
                 "whole genome sequencing experiments, but only at a set of sampled positions.  " +
                 "It is important that the sampled positions be chosen so that they are spread out " +
                 "at least further than a read's length apart; otherwise, you run the risk of double-counting " +
-                "reads in the metrics. If contig-sized intervals are needed, use INTERVALS argument in CollectWgsMetrics.",
+                "reads in the metrics. If contig-sized intervals are needed, use INTERVALS argument in CollectWgsMetrics.  " +
+                "With USE_FAST_ALGORITHM=true and an indexed input, only the reads overlapping the positions are read.",
         usageShort = "Writes whole genome sequencing-related metrics for a SAM or BAM file",
         programGroup = Metrics.class
 )
@@ -64,9 +67,9 @@ public class CollectWgsMetricsFromSampledSites extends CollectWgsMetrics {
     }
 
     @Override
-    protected SamLocusIterator getLocusIterator(final SamReader in) {
+    protected IntervalList getLocusIntervals() {
         IOUtil.assertFileIsReadable(INTERVALS);
-        return new SamLocusIterator(in, IntervalList.fromFile(INTERVALS));
+        return IntervalList.fromFile(INTERVALS);
     }
 
     /**
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.AbstractAsyncWriter;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the depth of the loci passed to addLocus() as a bedGraph coverage track.  Loci must be passed in order
+ * within each contig.  Adjacent loci, or bins of loci, with the same value are written as a single line, so flat
+ * regions take up almost no space, and loci that are never passed, e.g. Ns in the reference, are left out.
+ *
+ * Lines are collected into chunks on the calling thread and the chunks are written to the file on a separate thread,
+ * so that the caller does not wait on the disk.
+ */
+final class CoverageTrackWriter implements Closeable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int QUEUE_SIZE = 64;
+
+    private final SAMSequenceDictionary dictionary;
+    private final int binSize;
+    private final ChunkWriter writer;
+    private StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 256);
+
+    // The bin being added up, when binning: its contig, index within the contig, and the sum and number of its loci
+    private int binContig = -1;
+    private int binIndex = -1;
+    private long binSum = 0;
+    private int binLoci = 0;
+
+    // The line being extended: its contig, 1-based first and last locus, and value
+    private int runContig = -1;
+    private int runStart = 0;
+    private int runEnd = 0;
+    private double runValue = 0;
+
+    /**
+     * @param output the bedGraph file to write
+     * @param binSize if 1, the depth of each locus is written; otherwise the mean depth of the loci in each bin of
+     *                this many bases, counting from the start of the contig
+     * @param dictionary the sequences that loci are given on
+     */
+    CoverageTrackWriter(final File output, final int binSize, final SAMSequenceDictionary dictionary) {
+        if (binSize < 1) throw new IllegalArgumentException("binSize must be at least 1 but was " + binSize);
+        IOUtil.assertFileIsWritable(output);
+        this.dictionary = dictionary;
+        this.binSize = binSize;
+        this.writer = new ChunkWriter(IOUtil.openFileForBufferedWriting(output));
+        chunk.append("track type=bedGraph\n");
+    }
+
+    /** Adds the depth of a locus, given by the index of its sequence and its 1-based position. */
+    void addLocus(final int sequenceIndex, final int position, final int depth) {
+        if (binSize == 1) {
+            extendRun(sequenceIndex, position, position, depth);
+            return;
+        }
+
+        final int index = (position - 1) / binSize;
+        if (sequenceIndex != binContig || index != binIndex) {
+            finishBin();
+            binContig = sequenceIndex;
+            binIndex = index;
+        }
+        binSum += depth;
+        ++binLoci;
+    }
+
+    private void finishBin() {
+        if (binLoci == 0) return;
+        final int start = binIndex * binSize + 1;
+        final int end = Math.min(start + binSize - 1, dictionary.getSequence(binContig).getSequenceLength());
+        extendRun(binContig, start, end, Math.round(100.0 * binSum / binLoci) / 100.0);
+        binSum = 0;
+        binLoci = 0;
+    }
+
+    private void extendRun(final int sequenceIndex, final int start, final int end, final double value) {
+        if (sequenceIndex == runContig && start == runEnd + 1 && value == runValue) {
+            runEnd = end;
+            return;
+        }
+        finishRun();
+        runContig = sequenceIndex;
+        runStart = start;
+        runEnd = end;
+        runValue = value;
+    }
+
+    private void finishRun() {
+        if (runContig == -1) return;
+        chunk.append(dictionary.getSequence(runContig).getSequenceName())
+                .append('\t').append(runStart - 1)
+                .append('\t').append(runEnd)
+                .append('\t');
+        if (binSize == 1) chunk.append((long) runValue);
+        else chunk.append(runValue);
+        chunk.append('\n');
+
+        if (chunk.length() >= CHUNK_SIZE) {
+            writer.write(chunk.toString());
+            chunk = new StringBuilder(CHUNK_SIZE + 256);
+        }
+    }
+
+    /** Writes out the last line and waits for everything to be written. */
+    @Override
+    public void close() {
+        finishBin();
+        finishRun();
+        runContig = -1;
+        if (chunk.length() > 0) writer.write(chunk.toString());
+        writer.close();
+    }
+
+    /** Writes chunks of lines on the writer thread. */
+    private static final class ChunkWriter extends AbstractAsyncWriter<String> {
+        private final BufferedWriter out;
+
+        ChunkWriter(final BufferedWriter out) {
+            super(QUEUE_SIZE);
+            this.out = out;
+        }
+
+        @Override
+        protected String getThreadNamePrefix() {
+            return "CoverageTrackWriter";
+        }
+
+        @Override
+        protected void synchronouslyWrite(final String lines) {
+            try {
+                out.write(lines);
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not write coverage track", ioe);
+            }
+        }
+
+        @Override
+        protected void synchronouslyClose() {
+            try {
+                out.close();
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not close coverage track", ioe);
+            }
+        }
+    }
+}
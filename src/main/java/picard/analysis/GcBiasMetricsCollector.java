@@ -35,6 +35,8 @@ import picard.metrics.GcBiasMetrics;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -53,15 +55,25 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     private static final int BINS = 101;
 
     //will hold the relevant gc information per contig
-    private byte [] gc = null;
-    private int referenceIndex = -1;
-    private byte [] refBases = null;
+    private final ContigGcCache contigGcs;
+    private ContigGc contigGc = null;
 
     public GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
                                   final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite) {
+        this(accumulationLevels, windowsByGc, samRgRecords, scanWindowSize, bisulfite, new ContigGcCache(scanWindowSize));
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Collectors that read the same reference, e.g. the shards of one program,
+    // can share a ContigGcCache so that each contig's GC is calculated once
+    /////////////////////////////////////////////////////////////////////////////
+    GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
+                           final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite,
+                           final ContigGcCache contigGcs) {
         this.scanWindowSize = scanWindowSize;
         this.bisulfite = bisulfite;
         this.windowsByGc = windowsByGc;
+        this.contigGcs = contigGcs;
         setup(accumulationLevels, samRgRecords);
     }
     /////////////////////////////////////////////////////////////////////////////
@@ -72,6 +84,12 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
         return new GcBiasCollectorArgs(rec, ref);
     }
 
+    @Override
+    protected GcBiasCollectorArgs reuseArg(final GcBiasCollectorArgs previous, final SAMRecord rec, final ReferenceSequence ref) {
+        previous.set(rec, ref);
+        return previous;
+    }
+
     /////////////////////////////////////////////////////////////////////////////
     //Make a GcBiasCollector with the given arguments
     /////////////////////////////////////////////////////////////////////////////
@@ -126,15 +144,11 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
             final SAMRecord rec = args.getRec();
             final String type;
             if (!rec.getReadUnmappedFlag()) {
-                if(referenceIndex != rec.getReferenceIndex() || gc == null){
-                    final ReferenceSequence ref = args.getRef();
-                    refBases = ref.getBases();
-                    StringUtil.toUpperCase(refBases);
-                    final int refLength = refBases.length;
-                    final int lastWindowStart = refLength - scanWindowSize;
-                    gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize);
-                    referenceIndex=rec.getReferenceIndex();
+                if (contigGc == null || contigGc.referenceIndex != rec.getReferenceIndex()) {
+                    contigGc = contigGcs.get(args.getRef());
                 }
+                final byte[] gc = contigGc.gc;
+                final byte[] refBases = contigGc.refBases;
 
                 final String group;
                 if (this.readGroup != null) {
@@ -165,6 +179,21 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
 
         public void finish() {}
 
+        /////////////////////////////////////////////////////////////////////////////
+        // Adds the counts of another collector for the same accumulation unit
+        /////////////////////////////////////////////////////////////////////////////
+        @Override
+        public void merge(final PerUnitMetricCollector<GcBiasMetrics, Integer, GcBiasCollectorArgs> other) {
+            for (final Map.Entry<String, GcObject> entry : ((PerUnitGcBiasMetricsCollector) other).gcData.entrySet()) {
+                final GcObject gcCur = gcData.get(entry.getKey());
+                if (gcCur == null) {
+                    gcData.put(entry.getKey(), entry.getValue());
+                } else {
+                    gcCur.merge(entry.getValue());
+                }
+            }
+        }
+
         /////////////////////////////////////////////////////////////////////////////
         // Sums the values in an int[].
         /////////////////////////////////////////////////////////////////////////////
@@ -314,6 +343,19 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
         long[] basesByGc = new long[BINS];
         long[] errorsByGc = new long[BINS];
         String group = null;
+
+        void merge(final GcObject other) {
+            totalClusters += other.totalClusters;
+            totalAlignedReads += other.totalAlignedReads;
+            for (int i = 0; i < BINS; ++i) {
+                readsByGc[i] += other.readsByGc[i];
+                basesByGc[i] += other.basesByGc[i];
+                errorsByGc[i] += other.errorsByGc[i];
+            }
+            if (group == null) {
+                group = other.group;
+            }
+        }
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -338,6 +380,57 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
             gcObj.group = group;
         }
     }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // The upper-cased bases of a contig and the GC of every window along it
+    /////////////////////////////////////////////////////////////////////////////
+    static class ContigGc {
+        final int referenceIndex;
+        byte[] refBases = null;
+        byte[] gc = null;
+
+        ContigGc(final int referenceIndex) {
+            this.referenceIndex = referenceIndex;
+        }
+
+        synchronized void load(final ReferenceSequence ref, final int scanWindowSize) {
+            if (gc != null) return;
+            // The reference sequence may be shared with other threads, so upper-case a copy of its bases
+            refBases = Arrays.copyOf(ref.getBases(), ref.getBases().length);
+            StringUtil.toUpperCase(refBases);
+            final int lastWindowStart = refBases.length - scanWindowSize;
+            gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Hands out one ContigGc per contig to every collector that asks for it.
+    // Contigs are only weakly held, so a contig's GC is dropped once no
+    // collector is still reading it.  The map is only locked for the lookup,
+    // so different contigs can be calculated at the same time.
+    /////////////////////////////////////////////////////////////////////////////
+    static class ContigGcCache {
+        private final int scanWindowSize;
+        private final Map<Integer, WeakReference<ContigGc>> contigs = new HashMap<Integer, WeakReference<ContigGc>>();
+
+        ContigGcCache(final int scanWindowSize) {
+            this.scanWindowSize = scanWindowSize;
+        }
+
+        ContigGc get(final ReferenceSequence ref) {
+            ContigGc contig;
+            synchronized (contigs) {
+                final WeakReference<ContigGc> cached = contigs.get(ref.getContigIndex());
+                contig = (cached == null) ? null : cached.get();
+                if (contig == null) {
+                    contig = new ContigGc(ref.getContigIndex());
+                    contigs.put(ref.getContigIndex(), new WeakReference<ContigGc>(contig));
+                }
+            }
+            contig.load(ref, scanWindowSize);
+            return contig;
+        }
+    }
 }
 
 /////////////////////////////////////////////////////////////////////////////
@@ -345,11 +438,14 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
 // for the given record
 /////////////////////////////////////////////////////////////////////////////
 class GcBiasCollectorArgs {
-    private final SAMRecord rec;
-    private final ReferenceSequence ref;
+    private SAMRecord rec;
+    private ReferenceSequence ref;
     public SAMRecord getRec() {return rec;}
     public ReferenceSequence getRef() {return ref;}
     public GcBiasCollectorArgs(final SAMRecord rec, final ReferenceSequence ref) {
+        set(rec, ref);
+    }
+    void set(final SAMRecord rec, final ReferenceSequence ref) {
         this.rec = rec;
         this.ref = ref;
     }
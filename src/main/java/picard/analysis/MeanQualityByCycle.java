@@ -83,8 +83,7 @@ public class MeanQualityByCycle extends SinglePassSamProgram {
     @Option(doc="If set to true calculate mean quality over PF reads only.")
     public boolean PF_READS_ONLY = false;
 
-    private final HistogramGenerator q  = new HistogramGenerator(false);
-    private final HistogramGenerator oq = new HistogramGenerator(true);
+    private final CycleQualities qualities = new CycleQualities();
 
     /**
      * A subtitle for the plot, usually corresponding to a library.
@@ -168,6 +167,38 @@ public class MeanQualityByCycle extends SinglePassSamProgram {
         boolean isEmpty() {
             return maxLengthSoFar == 0;
         }
+
+        void merge(final HistogramGenerator other) {
+            ensureArraysBigEnough(other.maxLengthSoFar);
+            for (int cycle=0; cycle < other.maxLengthSoFar; ++cycle) {
+                firstReadTotalsByCycle[cycle]  += other.firstReadTotalsByCycle[cycle];
+                firstReadCountsByCycle[cycle]  += other.firstReadCountsByCycle[cycle];
+                secondReadTotalsByCycle[cycle] += other.secondReadTotalsByCycle[cycle];
+                secondReadCountsByCycle[cycle] += other.secondReadCountsByCycle[cycle];
+            }
+        }
+    }
+
+    /** The quality and original quality histograms of the reads seen by one worker, or by the program itself. */
+    private class CycleQualities implements Shard {
+        private final HistogramGenerator q  = new HistogramGenerator(false);
+        private final HistogramGenerator oq = new HistogramGenerator(true);
+
+        @Override
+        public void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
+            // Skip unwanted records
+            if (PF_READS_ONLY && rec.getReadFailsVendorQualityCheckFlag()) return;
+            if (ALIGNED_READS_ONLY && rec.getReadUnmappedFlag()) return;
+            if (rec.isSecondaryOrSupplementary()) return;
+
+            q.addRecord(rec);
+            oq.addRecord(rec);
+        }
+
+        void merge(final CycleQualities other) {
+            q.merge(other.q);
+            oq.merge(other.oq);
+        }
     }
 
     @Override
@@ -183,19 +214,25 @@ public class MeanQualityByCycle extends SinglePassSamProgram {
 
     @Override
     protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
-        // Skip unwanted records
-        if (PF_READS_ONLY && rec.getReadFailsVendorQualityCheckFlag()) return;
-        if (ALIGNED_READS_ONLY && rec.getReadUnmappedFlag()) return;
-        if (rec.isSecondaryOrSupplementary()) return;
+        qualities.acceptRead(rec, ref);
+    }
 
-        q.addRecord(rec);
-        oq.addRecord(rec);
+    @Override
+    protected Shard makeShard() {
+        return new CycleQualities();
+    }
+
+    @Override
+    protected void mergeShard(final Shard shard) {
+        qualities.merge((CycleQualities) shard);
     }
 
     @Override
     protected void finish() {
         // Generate a "Histogram" of mean quality and write it to the file
         final MetricsFile<?,Integer> metrics = getMetricsFile();
+        final HistogramGenerator q  = qualities.q;
+        final HistogramGenerator oq = qualities.oq;
         metrics.addHistogram(q.getMeanQualityHistogram());
         if (!oq.isEmpty()) metrics.addHistogram(oq.getMeanQualityHistogram());
         metrics.write(OUTPUT);
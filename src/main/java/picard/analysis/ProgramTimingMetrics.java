@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.metrics.MetricBase;
+
+/**
+ * Where the time of a SinglePassSamProgram.makeItSo() call went: one line per program and kind of thread running it,
+ * plus one line for the thread that reads the input.  The time spent in a program is extrapolated from a sample of
+ * its acceptRead() calls, so it is CPU time in the program itself and does not include waiting for records.
+ */
+public class ProgramTimingMetrics extends MetricBase {
+    /** The kinds of thread that records are processed on. */
+    public enum ThreadType {
+        /** The thread reading and decoding the input, handing records to the workers. */
+        READER,
+        /** A worker feeding one shard of each sharded program. */
+        SHARD_WORKER,
+        /** The worker feeding every record, in order, to the programs that cannot be sharded. */
+        SERIAL_WORKER,
+        /** A thread reading regions of the input into shards when sharding by region. */
+        REGION_WORKER
+    }
+
+    /** The name of the program, or READER for the thread reading the input. */
+    public String PROGRAM;
+    /** The kind of thread the program ran on. */
+    public ThreadType THREAD_TYPE;
+    /** The number of threads the program ran on. */
+    public int THREADS;
+    /** The number of records the program accepted, summed over its threads. */
+    public long RECORDS;
+    /** The number of those records whose acceptRead() call was timed. */
+    public long SAMPLED_RECORDS;
+    /** The mean time spent per record, in nanoseconds. */
+    public double MEAN_NANOS_PER_RECORD;
+    /** The total time spent on all records, summed over threads. */
+    public double SECONDS;
+    /** The number of records processed per second of SECONDS, i.e. per thread. */
+    public double RECORDS_PER_SECOND;
+    /** SECONDS as a fraction of the SECONDS of all lines. */
+    public double PCT_TIME;
+}
@@ -86,8 +86,7 @@ public class QualityScoreDistribution extends SinglePassSamProgram {
     @Option(doc="If set to true, include quality for no-call bases in the distribution.")
     public boolean INCLUDE_NO_CALLS = false;
 
-    private final long[] qCounts  = new long[128];
-    private final long[] oqCounts = new long[128];
+    private final QualityCounts counts = new QualityCounts();
 
     /**
      * A subtitle for the plot, usually corresponding to a library.
@@ -117,21 +116,49 @@ public class QualityScoreDistribution extends SinglePassSamProgram {
 
     @Override
     protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
-        // Skip unwanted records
-        if (PF_READS_ONLY && rec.getReadFailsVendorQualityCheckFlag()) return;
-        if (ALIGNED_READS_ONLY && rec.getReadUnmappedFlag()) return;
-        if (rec.isSecondaryOrSupplementary()) return;
+        counts.acceptRead(rec, ref);
+    }
+
+    @Override
+    protected Shard makeShard() {
+        return new QualityCounts();
+    }
 
-        final byte[] bases = rec.getReadBases();
-        final byte[] quals = rec.getBaseQualities();
-        final byte[] oq    = rec.getOriginalBaseQualities();
+    @Override
+    protected void mergeShard(final Shard shard) {
+        counts.merge((QualityCounts) shard);
+    }
 
-        final int length = quals.length;
+    /** Per-quality counts of the bases seen by one worker, or by the program itself. */
+    private class QualityCounts implements Shard {
+        private final long[] qCounts  = new long[128];
+        private final long[] oqCounts = new long[128];
+
+        @Override
+        public void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
+            // Skip unwanted records
+            if (PF_READS_ONLY && rec.getReadFailsVendorQualityCheckFlag()) return;
+            if (ALIGNED_READS_ONLY && rec.getReadUnmappedFlag()) return;
+            if (rec.isSecondaryOrSupplementary()) return;
+
+            final byte[] bases = rec.getReadBases();
+            final byte[] quals = rec.getBaseQualities();
+            final byte[] oq    = rec.getOriginalBaseQualities();
+
+            final int length = quals.length;
+
+            for (int i=0; i<length; ++i) {
+                if (INCLUDE_NO_CALLS || !SequenceUtil.isNoCall(bases[i])) {
+                    qCounts[quals[i]]++;
+                    if (oq != null) oqCounts[oq[i]]++;
+                }
+            }
+        }
 
-        for (int i=0; i<length; ++i) {
-            if (INCLUDE_NO_CALLS || !SequenceUtil.isNoCall(bases[i])) {
-                qCounts[quals[i]]++;
-                if (oq != null) oqCounts[oq[i]]++;
+        void merge(final QualityCounts other) {
+            for (int i=0; i<qCounts.length; ++i) {
+                qCounts[i]  += other.qCounts[i];
+                oqCounts[i] += other.oqCounts[i];
             }
         }
     }
@@ -142,9 +169,9 @@ public class QualityScoreDistribution extends SinglePassSamProgram {
         final Histogram<Byte> qHisto  = new Histogram<Byte>("QUALITY", "COUNT_OF_Q");
         final Histogram<Byte> oqHisto = new Histogram<Byte>("QUALITY", "COUNT_OF_OQ");
 
-        for (int i=0; i< qCounts.length; ++i) {
-            if (qCounts[i]  > 0) qHisto.increment( (byte) i, (double) qCounts[i]);
-            if (oqCounts[i] > 0) oqHisto.increment((byte) i, (double) oqCounts[i]);
+        for (int i=0; i< counts.qCounts.length; ++i) {
+            if (counts.qCounts[i]  > 0) qHisto.increment( (byte) i, (double) counts.qCounts[i]);
+            if (counts.oqCounts[i] > 0) oqHisto.increment((byte) i, (double) counts.oqCounts[i]);
         }
 
         final MetricsFile<?,Byte> metrics = getMetricsFile();
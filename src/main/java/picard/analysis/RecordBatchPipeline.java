@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+import picard.metrics.SAMRecordAndReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves batches of records from the thread that reads the input to the threads that run the programs of a
+ * SinglePassSamProgram.makeItSo() call.  There is one worker per shard of the sharded programs, plus one worker
+ * that feeds every batch, in order, to the programs that cannot be sharded.  Each worker has its own bounded
+ * queue, so when the workers fall behind the reader blocks instead of piling records up on the heap.
+ *
+ * The pipeline also keeps track of how full the queues are and of how long the reader and the workers spent
+ * waiting on each other, which is what is needed to pick the batch size and queue depth for a given host, and each
+ * worker times the programs it runs with an AcceptReadTimer.
+ */
+final class RecordBatchPipeline {
+    private static final Log log = Log.getInstance(RecordBatchPipeline.class);
+
+    /** Put on every queue to tell the worker that no more batches will follow. */
+    private static final List<SAMRecordAndReference> END_OF_INPUT = Collections.emptyList();
+
+    private final List<Worker> shardWorkers = new ArrayList<>();
+    private final Worker serialWorker;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>(null);
+    private long batchesSubmitted = 0;
+
+    /**
+     * @param shardsByWorker the shards to be fed by each shard worker, or an empty list if no program can be sharded
+     * @param shardedPrograms the programs the shards of each worker belong to, in the same order
+     * @param serialPrograms the programs that must see every record in order, possibly empty
+     * @param queueDepth the maximum number of batches waiting in each worker's queue
+     */
+    RecordBatchPipeline(final List<List<SinglePassSamProgram.Shard>> shardsByWorker,
+                        final List<SinglePassSamProgram> shardedPrograms,
+                        final List<SinglePassSamProgram> serialPrograms,
+                        final int queueDepth) {
+        if (queueDepth < 1) throw new PicardException("The queue depth must be at least 1 but was " + queueDepth);
+
+        for (int i = 0; i < shardsByWorker.size(); ++i) {
+            shardWorkers.add(new Worker("SinglePassSamProgram-shard-" + i, queueDepth, shardsByWorker.get(i),
+                    SinglePassSamProgram.namesOf(shardedPrograms), ProgramTimingMetrics.ThreadType.SHARD_WORKER));
+        }
+
+        if (serialPrograms.isEmpty()) {
+            serialWorker = null;
+        } else {
+            final List<SinglePassSamProgram.Shard> programs = new ArrayList<>(serialPrograms.size());
+            for (final SinglePassSamProgram program : serialPrograms) programs.add(program::acceptRead);
+            serialWorker = new Worker("SinglePassSamProgram-serial", queueDepth, programs,
+                    SinglePassSamProgram.namesOf(serialPrograms), ProgramTimingMetrics.ThreadType.SERIAL_WORKER);
+        }
+    }
+
+    /** The number of worker threads used by this pipeline. */
+    int getThreadCount() {
+        return shardWorkers.size() + (serialWorker == null ? 0 : 1);
+    }
+
+    /**
+     * Hands a batch to the shard worker whose turn it is and to the serial worker, blocking while their
+     * queues are full.  The batch must not be modified afterwards, and when there are both shard workers and a serial
+     * worker, its records must be fully decoded, since the two read them at the same time.
+     */
+    void submit(final List<SAMRecordAndReference> batch) {
+        checkAndRethrow();
+        if (!shardWorkers.isEmpty()) {
+            shardWorkers.get((int) (batchesSubmitted % shardWorkers.size())).put(batch);
+        }
+        if (serialWorker != null) serialWorker.put(batch);
+        ++batchesSubmitted;
+    }
+
+    /** Signals the end of the input, waits for all submitted batches to be processed and rethrows any failure. */
+    void awaitCompletion() {
+        for (final Worker worker : allWorkers()) worker.put(END_OF_INPUT);
+        for (final Worker worker : allWorkers()) {
+            try {
+                worker.thread.join();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for worker thread " + worker.thread.getName(), ie);
+            }
+        }
+        checkAndRethrow();
+    }
+
+    /** Logs the queue occupancy and stall time counters of every worker.  Only meaningful after awaitCompletion(). */
+    void logStatistics() {
+        long readerStallNanos = 0;
+        for (final Worker worker : allWorkers()) {
+            readerStallNanos += worker.producerStallNanos;
+            log.info(String.format("%s: %d batches, mean queue occupancy %.2f, peak %d of %d, reader stalled %dms, worker idle %dms",
+                    worker.thread.getName(), worker.batches, worker.getMeanOccupancy(), worker.peakOccupancy,
+                    worker.capacity, TimeUnit.NANOSECONDS.toMillis(worker.producerStallNanos),
+                    TimeUnit.NANOSECONDS.toMillis(worker.idleNanos)));
+        }
+        log.info("Reader thread stalled on full queues for " + TimeUnit.NANOSECONDS.toMillis(readerStallNanos) + "ms in total.");
+    }
+
+    /** The time the reader has spent so far waiting for a worker's queue to have room.  Only call on the reader. */
+    long getReaderStallNanos() {
+        long readerStallNanos = 0;
+        for (final Worker worker : allWorkers()) readerStallNanos += worker.producerStallNanos;
+        return readerStallNanos;
+    }
+
+    /** The timers of all workers.  Only meaningful after awaitCompletion(). */
+    List<AcceptReadTimer> getTimers() {
+        final List<AcceptReadTimer> timers = new ArrayList<>();
+        for (final Worker worker : allWorkers()) timers.add(worker.timer);
+        return timers;
+    }
+
+    private List<Worker> allWorkers() {
+        final List<Worker> workers = new ArrayList<>(shardWorkers);
+        if (serialWorker != null) workers.add(serialWorker);
+        return workers;
+    }
+
+    private void checkAndRethrow() {
+        final Throwable t = failure.get();
+        if (t != null) {
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new PicardException("Failure in worker thread.", t);
+        }
+    }
+
+    /**
+     * A thread draining one bounded queue of batches.  The counters without a lock are each only written by one
+     * thread: the producer counters by the reader, the idle time and the timer by the worker, and all of them are only
+     * read by other threads once the worker thread has been joined.
+     */
+    private final class Worker implements Runnable {
+        private final BlockingQueue<List<SAMRecordAndReference>> queue;
+        private final List<SinglePassSamProgram.Shard> shards;
+        private final AcceptReadTimer timer;
+        private final Thread thread;
+        private final int capacity;
+
+        // Written by the reader thread
+        private long batches = 0;
+        private long occupancySum = 0;
+        private int peakOccupancy = 0;
+        private long producerStallNanos = 0;
+
+        // Written by the worker thread
+        private long idleNanos = 0;
+
+        Worker(final String name,
+               final int capacity,
+               final List<SinglePassSamProgram.Shard> shards,
+               final List<String> programs,
+               final ProgramTimingMetrics.ThreadType threadType) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+            this.shards = shards;
+            this.timer = new AcceptReadTimer(programs, threadType, name, AcceptReadTimer.DEFAULT_SAMPLE_INTERVAL);
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        void put(final List<SAMRecordAndReference> batch) {
+            final int occupancy = queue.size();
+            if (batch != END_OF_INPUT) {
+                ++batches;
+                occupancySum += occupancy;
+                peakOccupancy = Math.max(peakOccupancy, occupancy);
+            }
+
+            if (queue.offer(batch)) return;
+
+            final long start = System.nanoTime();
+            try {
+                // Wake up regularly so that a dead worker does not block the reader forever
+                while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                    if (!thread.isAlive()) throw new PicardException("Worker thread " + thread.getName() + " died unexpectedly.");
+                }
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted queueing a batch for " + thread.getName(), ie);
+            } finally {
+                producerStallNanos += System.nanoTime() - start;
+            }
+        }
+
+        double getMeanOccupancy() {
+            return batches == 0 ? 0 : occupancySum / (double) batches;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<SAMRecordAndReference> batch = queue.poll();
+                    if (batch == null) {
+                        final long start = System.nanoTime();
+                        batch = queue.take();
+                        idleNanos += System.nanoTime() - start;
+                    }
+                    if (batch == END_OF_INPUT) return;
+
+                    // Once anything has failed keep draining the queue so that the reader never blocks
+                    if (failure.get() != null) continue;
+                    try {
+                        for (final SAMRecordAndReference pair : batch) {
+                            timer.acceptRead(shards, pair.getSamRecord(), pair.getReferenceSequence());
+                        }
+                    } catch (final Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            } catch (final InterruptedException ie) {
+                failure.compareAndSet(null, ie);
+            }
+        }
+    }
+}
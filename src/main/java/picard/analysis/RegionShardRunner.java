@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+import picard.util.IntervalListScatterer;
+import picard.util.PrefetchingReferenceCache;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the sharded programs of a SinglePassSamProgram.makeItSo() call over genomic regions of an indexed,
+ * coordinate sorted input instead of over a single stream of records.  The genome is scattered into a number of
+ * regions with IntervalListScatterer, and each region is read by one thread with its own SamReader into a fresh set
+ * of shards.  The threads share one PrefetchingReferenceCache, so a contig is loaded once however many regions it is
+ * split into.  A read belongs to the region that contains its alignment
+ * start, so reads spanning a region boundary are counted once.  The unplaced unmapped reads at the end of the file
+ * form one more region.
+ *
+ * Since a region's shards are only merged once the region has been read completely, a region that fails is simply
+ * read again into new shards.  The shards are merged in region order, so the result does not depend on timing, and
+ * no more than twice as many regions as threads are read or waiting to be merged at a time, bounding the shards held.
+ */
+final class RegionShardRunner {
+    private static final Log log = Log.getInstance(RegionShardRunner.class);
+
+    /** The number of regions per thread, so that threads that get small regions can pick up more of them. */
+    static final int REGIONS_PER_THREAD = 4;
+
+    /** How many times a region is read before its failure is considered final. */
+    static final int MAX_ATTEMPTS = 2;
+
+    private final File input;
+    private final File referenceSequence;
+    private final PrefetchingReferenceCache reference;
+    private final List<SinglePassSamProgram> programs;
+    private final int numThreads;
+    private final List<IntervalList> regions;
+    private final boolean includeUnmapped;
+    private final AtomicLong recordsRead = new AtomicLong(0);
+    private final List<AcceptReadTimer> timers = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param input an indexed, coordinate sorted SAM or BAM file
+     * @param referenceSequence the reference, or null if the programs do not need one
+     * @param reference a cache of referenceSequence holding at least numThreads + 1 contigs, or null if it is null
+     * @param header the header of the input
+     * @param programs programs that have already been set up and all return shards from makeShard()
+     * @param numThreads the number of regions read at the same time
+     * @param includeUnmapped whether the unplaced unmapped reads should be read as well
+     */
+    RegionShardRunner(final File input,
+                      final File referenceSequence,
+                      final PrefetchingReferenceCache reference,
+                      final SAMFileHeader header,
+                      final List<SinglePassSamProgram> programs,
+                      final int numThreads,
+                      final boolean includeUnmapped) {
+        this.input = input;
+        this.referenceSequence = referenceSequence;
+        this.reference = reference;
+        this.programs = programs;
+        this.numThreads = numThreads;
+        this.includeUnmapped = includeUnmapped;
+
+        final IntervalList genome = new IntervalList(header);
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            genome.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+        }
+        this.regions = genome.getIntervals().isEmpty() ? new ArrayList<>() :
+                new IntervalListScatterer(IntervalListScatterer.Mode.INTERVAL_SUBDIVISION)
+                        .scatter(genome, numThreads * REGIONS_PER_THREAD, false);
+    }
+
+    /** Reads every region and merges the resulting shards into their programs.  Returns the number of records read. */
+    long run() {
+        final int regionCount = regions.size() + (includeUnmapped ? 1 : 0);
+        final AtomicInteger threadsCreated = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread thread = new Thread(r, "SinglePassSamProgram-region-" + threadsCreated.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final Deque<Future<List<SinglePassSamProgram.Shard>>> inFlight = new ArrayDeque<>();
+            for (int i = 0; i < regionCount; ++i) {
+                final int region = i;
+                inFlight.add(executor.submit(() -> readRegionWithRetry(region)));
+                if (inFlight.size() >= 2 * numThreads) merge(inFlight.poll());
+            }
+            while (!inFlight.isEmpty()) merge(inFlight.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info("Read " + recordsRead.get() + " records from " + regionCount + " regions using " + numThreads + " thread(s).");
+        return recordsRead.get();
+    }
+
+    /** Waits for a region to be read and merges its shards into their programs, rethrowing any failure. */
+    private void merge(final Future<List<SinglePassSamProgram.Shard>> result) {
+        final List<SinglePassSamProgram.Shard> shards;
+        try {
+            shards = result.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted waiting for a region to be read.", ie);
+        } catch (final ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+            throw new PicardException("Failed to read region.", ee.getCause());
+        }
+        for (int p = 0; p < programs.size(); ++p) {
+            programs.get(p).mergeShard(shards.get(p));
+        }
+    }
+
+    /** The timers of the regions that were read successfully.  Only meaningful after run(). */
+    List<AcceptReadTimer> getTimers() {
+        return new ArrayList<>(timers);
+    }
+
+    private List<SinglePassSamProgram.Shard> readRegionWithRetry(final int region) {
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                return readRegion(region);
+            } catch (final RuntimeException e) {
+                if (attempt >= MAX_ATTEMPTS) throw e;
+                log.warn(e, "Failed to read " + describe(region) + ", trying again.");
+            }
+        }
+    }
+
+    /** Reads one region into a new set of shards, one per program. */
+    private List<SinglePassSamProgram.Shard> readRegion(final int region) {
+        final List<SinglePassSamProgram.Shard> shards = new ArrayList<>(programs.size());
+        for (final SinglePassSamProgram program : programs) shards.add(program.makeShard());
+        final AcceptReadTimer timer = new AcceptReadTimer(SinglePassSamProgram.namesOf(programs),
+                ProgramTimingMetrics.ThreadType.REGION_WORKER, Thread.currentThread().getName(),
+                AcceptReadTimer.DEFAULT_SAMPLE_INTERVAL);
+
+        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(referenceSequence).open(input);
+        long count = 0;
+        try {
+            if (region == regions.size()) {
+                final SAMRecordIterator iterator = in.queryUnmapped();
+                while (iterator.hasNext()) {
+                    timer.acceptRead(shards, iterator.next(), null);
+                    ++count;
+                }
+                iterator.close();
+            } else {
+                for (final Interval interval : regions.get(region).getIntervals()) {
+                    final SAMRecordIterator iterator =
+                            in.queryOverlapping(interval.getContig(), interval.getStart(), interval.getEnd());
+                    while (iterator.hasNext()) {
+                        final SAMRecord rec = iterator.next();
+                        // Reads that start in an earlier region were already counted there
+                        if (rec.getAlignmentStart() < interval.getStart() || rec.getAlignmentStart() > interval.getEnd()) {
+                            continue;
+                        }
+                        final ReferenceSequence ref = reference == null ? null : reference.get(rec.getReferenceIndex());
+                        timer.acceptRead(shards, rec, ref);
+                        ++count;
+                    }
+                    iterator.close();
+                }
+            }
+        } finally {
+            CloserUtil.close(in);
+        }
+
+        recordsRead.addAndGet(count);
+        timers.add(timer);
+        return shards;
+    }
+
+    private String describe(final int region) {
+        if (region == regions.size()) return "the unmapped reads";
+        final List<Interval> intervals = regions.get(region).getIntervals();
+        return "region " + intervals.get(0).getContig() + ":" + intervals.get(0).getStart() + "-" +
+                intervals.get(intervals.size() - 1).getContig() + ":" + intervals.get(intervals.size() - 1).getEnd();
+    }
+}
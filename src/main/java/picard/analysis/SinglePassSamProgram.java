@@ -29,20 +29,24 @@ import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
-import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
 import htsjdk.samtools.util.*;
 import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.metrics.MultiLevelCollector;
+import picard.metrics.SAMRecordAndReference;
+import picard.sam.util.ParallelBamRecordIterator;
+import picard.util.PrefetchingReferenceCache;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
 
 /**
  * Super class that is designed to provide some consistent structure between subclasses that
@@ -65,11 +69,70 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
     @Option(doc = "Stop after processing N reads, mainly for debugging.")
     public long STOP_AFTER = 0;
 
+    @Option(doc = "Number of worker threads that feed reads to the programs. Programs that support it are split into " +
+            "one shard per worker; all others receive every read, in order, on a single worker. If 0, half of the " +
+            "available processors are used.")
+    public int NUM_THREADS = 0;
+
+    @Option(doc = "The number of records handed to a worker thread at a time.")
+    public int BATCH_SIZE = MAX_PAIRES;
+
+    @Option(doc = "The maximum number of batches waiting to be processed by each worker thread. Once a worker's queue " +
+            "is full, reading the input pauses until the worker catches up, which bounds the number of records in memory " +
+            "to roughly (NUM_THREADS + 1) * QUEUE_DEPTH * BATCH_SIZE.")
+    public int QUEUE_DEPTH = DEFAULT_QUEUE_DEPTH;
+
+    @Option(doc = "Number of threads used to inflate and decode a BAM input ahead of the workers. Records are still " +
+            "handed out in file order. If 0, the input is read on a single thread.")
+    public int DECODE_THREADS = 0;
+
+    @Option(doc = "If true and the input is an indexed, coordinate sorted file, programs that support it read the " +
+            "genome as separate regions, NUM_THREADS at a time, each with its own reader. Other programs then get a " +
+            "regular pass over the input. Ignored when STOP_AFTER is set.")
+    public boolean SHARD_BY_REGION = false;
+
+    @Option(doc = "If set, the time spent in each program's acceptRead(), the records per second of each program and the " +
+            "time spent reading the input are written to this file. The same figures are always logged.", optional = true)
+    public File TIMING_OUTPUT;
+
     private static final Log log = Log.getInstance(SinglePassSamProgram.class);
 
+    /** The default number of records handed to a worker thread at a time. */
     public static int MAX_PAIRES = 500;
 
-    private static Semaphore semLock = new Semaphore(0);
+    /** The default number of batches that may wait in each worker's queue. */
+    public static final int DEFAULT_QUEUE_DEPTH = 16;
+
+    /**
+     * Holds one worker thread's share of a program's per-read state.  A shard only ever sees the reads handed to its
+     * own worker, so implementations need no synchronization.  Shards are folded back into the program that created
+     * them, in a fixed order, before finish() is called.
+     */
+    public interface Shard {
+        /** Accepts a read exactly as {@link SinglePassSamProgram#acceptRead(SAMRecord, ReferenceSequence)} would. */
+        void acceptRead(final SAMRecord rec, final ReferenceSequence ref);
+    }
+
+    /**
+     * A Shard for programs that hand every read to a MultiLevelCollector: each shard feeds a collector of its own,
+     * which mergeShard() then folds into the program's collector with MultiLevelCollector.merge().
+     */
+    public static class CollectorShard<COLLECTOR extends MultiLevelCollector<?, ?, ?>> implements Shard {
+        private final COLLECTOR collector;
+
+        public CollectorShard(final COLLECTOR collector) {
+            this.collector = collector;
+        }
+
+        public COLLECTOR getCollector() {
+            return collector;
+        }
+
+        @Override
+        public void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
+            collector.acceptRecord(rec, ref);
+        }
+    }
 
     /**
      * Final implementation of doWork() that checks and loads the input and optionally reference
@@ -77,7 +140,8 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
      */
     @Override
     protected final int doWork() {
-        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this));
+        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this), NUM_THREADS, BATCH_SIZE, QUEUE_DEPTH,
+                DECODE_THREADS, SHARD_BY_REGION, TIMING_OUTPUT);
         return 0;
     }
 
@@ -86,22 +150,55 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
                                 final boolean assumeSorted,
                                 final long stopAfter,
                                 final Collection<SinglePassSamProgram> programs) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, 0, MAX_PAIRES, DEFAULT_QUEUE_DEPTH, 0, false, null);
+    }
+
+    /**
+     * Reads the input once and feeds every record to the given programs.  Records are handed out in batches of
+     * batchSize: programs that provide shards get one shard per worker and batch i always goes to worker
+     * (i % numThreads), while programs without shards see every batch, in file order, on a single extra worker.
+     * Because the assignment of batches to shards does not depend on timing and the shards are merged in worker
+     * order, the output is the same as that of a single-threaded run.
+     *
+     * @param numThreads the number of shard workers to use, or 0 to use half of the available processors
+     * @param batchSize the number of records handed to a worker at a time
+     * @param queueDepth the number of batches that may wait for each worker before reading blocks
+     * @param decodeThreads the number of threads used to inflate and decode a BAM input, or 0 to read it on one thread
+     * @param shardByRegion whether programs that provide shards should read an indexed input region by region, on
+     *                      numThreads threads, instead of being fed from the single stream of records
+     * @param timingOutput a file to write the ProgramTimingMetrics of the run to, or null
+     */
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int numThreads,
+                                final int batchSize,
+                                final int queueDepth,
+                                final int decodeThreads,
+                                final boolean shardByRegion,
+                                final File timingOutput) {
+        if (batchSize < 1) throw new PicardException("The batch size must be at least 1 but was " + batchSize);
+        if (timingOutput != null) IOUtil.assertFileIsWritable(timingOutput);
 
         // Setup the standard inputs
         IOUtil.assertFileIsReadable(input);
         final SamReader in = SamReaderFactory.makeDefault().referenceSequence(referenceSequence).open(input);
 
+        // Every worker may be reading a different contig, plus the one being prefetched for the main pass
+        final int workerCount = numThreads > 0 ? numThreads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
         // Optionally load up the reference sequence and double check sequence dictionaries
-        final ReferenceSequenceFileWalker walker;
+        final PrefetchingReferenceCache reference;
         if (referenceSequence == null) {
-            walker = null;
+            reference = null;
         } else {
-            IOUtil.assertFileIsReadable(referenceSequence);
-            walker = new ReferenceSequenceFileWalker(referenceSequence);
+            reference = new PrefetchingReferenceCache(referenceSequence, Math.max(2, workerCount + 1));
 
             if (!in.getFileHeader().getSequenceDictionary().isEmpty()) {
                 SequenceUtil.assertSequenceDictionariesEqual(in.getFileHeader().getSequenceDictionary(),
-                        walker.getSequenceDictionary());
+                        reference.getSequenceDictionary());
             }
         }
 
@@ -126,45 +223,86 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             anyUseNoRefReads = anyUseNoRefReads || program.usesNoRefReads();
         }
 
+        // Split the programs into those that can be sharded across workers and those that need to see every read
+        final List<SinglePassSamProgram> shardedPrograms = new ArrayList<>();
+        final List<SinglePassSamProgram> serialPrograms = new ArrayList<>();
+        final List<List<Shard>> shardsByWorker = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; ++i) shardsByWorker.add(new ArrayList<>());
 
-        final ProgressLogger progress = new ProgressLogger(log);
+        for (final SinglePassSamProgram program : programs) {
+            final Shard first = program.makeShard();
+            if (first == null) {
+                serialPrograms.add(program);
+            } else {
+                shardedPrograms.add(program);
+                shardsByWorker.get(0).add(first);
+                for (int i = 1; i < workerCount; ++i) shardsByWorker.get(i).add(program.makeShard());
+            }
+        }
+
+        final long start = System.nanoTime();
+
+        // Read the sharded programs region by region if possible, leaving only the serial programs for the main pass
+        long regionRecords = 0;
+        final List<AcceptReadTimer> timers = new ArrayList<>();
+        if (shardByRegion && !shardedPrograms.isEmpty()) {
+            if (stopAfter > 0 || !in.hasIndex() || in.getFileHeader().getSortOrder() != SortOrder.coordinate) {
+                log.warn("Cannot shard by region unless the input is indexed and coordinate sorted and STOP_AFTER is " +
+                        "not set, reading it as a single stream instead.");
+            } else {
+                boolean shardsUseNoRefReads = false;
+                for (final SinglePassSamProgram program : shardedPrograms) {
+                    shardsUseNoRefReads = shardsUseNoRefReads || program.usesNoRefReads();
+                }
+                final RegionShardRunner runner = new RegionShardRunner(input, referenceSequence, reference,
+                        in.getFileHeader(), shardedPrograms, workerCount, shardsUseNoRefReads);
+                regionRecords = runner.run();
+                timers.addAll(runner.getTimers());
+
+                shardedPrograms.clear();
+                anyUseNoRefReads = false;
+                for (final SinglePassSamProgram program : serialPrograms) {
+                    anyUseNoRefReads = anyUseNoRefReads || program.usesNoRefReads();
+                }
+            }
+        }
 
-        long start = System.nanoTime();
+        final ProgressLogger progress = new ProgressLogger(log);
 
-        int availableProcessors = 0;
-        if (Runtime.getRuntime().availableProcessors() < 2)
-            availableProcessors = 2;
-        else
-            availableProcessors = Runtime.getRuntime().availableProcessors();
-        ExecutorService service = Executors.newFixedThreadPool(availableProcessors / 2);
-        List<Object[]> paires = new ArrayList<>(MAX_PAIRES);
+        final RecordBatchPipeline pipeline = new RecordBatchPipeline(
+                shardedPrograms.isEmpty() ? Collections.<List<Shard>>emptyList() : shardsByWorker, shardedPrograms,
+                serialPrograms, queueDepth);
+        List<SAMRecordAndReference> batch = new ArrayList<>(batchSize);
+
+        // A shard worker and the serial worker read each record at the same time, and a BAM record decoding itself
+        // lazily on two threads can be seen half decoded, so decode them here unless the parallel iterator already has
+        final CloseableIterator<SAMRecord> records;
+        final boolean decodeOnReader;
+        if (decodeThreads > 0 && in.type() == SamReader.Type.BAM_TYPE) {
+            records = new ParallelBamRecordIterator(input, in.getFileHeader(), decodeThreads,
+                    SamReaderFactory.makeDefault().validationStringency());
+            decodeOnReader = false;
+        } else {
+            records = in.iterator();
+            decodeOnReader = !shardedPrograms.isEmpty() && !serialPrograms.isEmpty();
+        }
 
-        for (final SAMRecord rec : in) {
+        final long readStart = System.nanoTime();
+        while ((!shardedPrograms.isEmpty() || !serialPrograms.isEmpty()) && records.hasNext()) {
+            final SAMRecord rec = records.next();
+            if (decodeOnReader) ParallelBamRecordIterator.decodeFully(rec);
             final ReferenceSequence ref;
-            if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+            if (reference == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
                 ref = null;
             } else {
-                ref = walker.get(rec.getReferenceIndex());
+                ref = reference.get(rec.getReferenceIndex());
             }
 
-            paires.add(new Object[] {rec, ref});
-
-            if(paires.size() >= MAX_PAIRES) {
-                final List<Object[]> tmpPaires = paires;
-                paires = new ArrayList<>(MAX_PAIRES);
-
-                service.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (Object[] Objects : tmpPaires) {
-                            SAMRecord rec = (SAMRecord) Objects[0];
-                            ReferenceSequence ref = (ReferenceSequence) Objects[1];
-                            for (final SinglePassSamProgram program : programs) {
-                                program.acceptRead(rec, ref);
-                            }
-                        }
-                    }
-                });
+            batch.add(new SAMRecordAndReference(rec, ref));
+
+            if (batch.size() >= batchSize) {
+                pipeline.submit(batch);
+                batch = new ArrayList<>(batchSize);
             }
 
             progress.record(rec);
@@ -180,48 +318,74 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             }
         }
 
-        final List<Object[]> tmpPaires = paires;
-        service.submit(new Runnable() {
-            @Override
-            public void run() {
-                for (Object[] Objects : tmpPaires) {
-                    SAMRecord rec = (SAMRecord) Objects[0];
-                    ReferenceSequence ref = (ReferenceSequence) Objects[1];
-                    for (final SinglePassSamProgram program : programs) {
-                        program.acceptRead(rec, ref);
-                    }
-                }
-                semLock.release();
-            }
-        });
+        if (!batch.isEmpty()) pipeline.submit(batch);
+        final long readNanos = System.nanoTime() - readStart - pipeline.getReaderStallNanos();
+        pipeline.awaitCompletion();
 
-        try {
-            semLock.acquire();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        service.shutdown();
+        records.close();
+        CloserUtil.close(in);
+        if (reference != null) reference.close();
 
-        try{
-            service.awaitTermination(1, TimeUnit.DAYS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // Fold the shards back into their programs, always in worker order so that the result is deterministic
+        for (int p = 0; p < shardedPrograms.size(); ++p) {
+            final SinglePassSamProgram program = shardedPrograms.get(p);
+            for (final List<Shard> shards : shardsByWorker) {
+                program.mergeShard(shards.get(p));
+            }
         }
 
-        long stop = System.nanoTime();
-        long time = stop - start;
+        log.info("Read " + Math.max(progress.getCount(), regionRecords) + " records in " + (System.nanoTime() - start) / 1000000 + "ms using " +
+                pipeline.getThreadCount() + " worker thread(s).");
+        pipeline.logStatistics();
 
-        CloserUtil.close(in);
+        timers.addAll(pipeline.getTimers());
+        reportTiming(AcceptReadTimer.summarize(timers, progress.getCount(), readNanos), timingOutput);
 
         for (final SinglePassSamProgram program : programs) {
             program.finish();
         }
-        log.warn("  ElapsedTime: " + time);
+    }
+
+    /** Logs the timing of each program and, if timingOutput is not null, writes it there. */
+    private static void reportTiming(final List<ProgramTimingMetrics> timing, final File timingOutput) {
+        for (final ProgramTimingMetrics metrics : timing) {
+            log.info(String.format("%s on %d %s thread(s): %d records, %.0fns/record, %.1fs, %.0f records/s, %.1f%% of the time",
+                    metrics.PROGRAM, metrics.THREADS, metrics.THREAD_TYPE, metrics.RECORDS, metrics.MEAN_NANOS_PER_RECORD,
+                    metrics.SECONDS, metrics.RECORDS_PER_SECOND, 100 * metrics.PCT_TIME));
+        }
+
+        if (timingOutput != null) {
+            final MetricsFile<ProgramTimingMetrics, Integer> file = new MetricsFile<>();
+            for (final ProgramTimingMetrics metrics : timing) file.addMetric(metrics);
+            file.write(timingOutput);
+        }
+    }
+
+    /** The names programs are reported under in log lines and timing metrics. */
+    static List<String> namesOf(final List<SinglePassSamProgram> programs) {
+        final List<String> names = new ArrayList<>(programs.size());
+        for (final SinglePassSamProgram program : programs) names.add(program.getClass().getSimpleName());
+        return names;
     }
 
     /** Can be overriden and set to false if the section of unmapped reads at the end of the file isn't needed. */
     protected boolean usesNoRefReads() { return true; }
 
+    /**
+     * Can be overridden by programs whose per-read state can be split across worker threads.  Called after setup(),
+     * once per worker, and must return a new, empty Shard each time.  Programs that return null (the default)
+     * receive every read, in file order, on a single thread via acceptRead().
+     */
+    protected Shard makeShard() { return null; }
+
+    /**
+     * Folds a Shard previously returned by makeShard() into this program's own state.  Called once per shard, in a
+     * fixed order, after all reads have been accepted and before finish().
+     */
+    protected void mergeShard(final Shard shard) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support shards.");
+    }
+
     /** Should be implemented by subclasses to do one-time initialization work. */
     protected abstract void setup(final SAMFileHeader header, final File samFile);
 
@@ -30,9 +30,14 @@ import picard.PicardException;
 import picard.util.MathUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Created by David Benjamin on 5/13/15.
@@ -42,6 +47,13 @@ public class TheoreticalSensitivity {
     private static final Log log = Log.getInstance(TheoreticalSensitivity.class);
     private static final int SAMPLING_MAX = 600; //prevent 'infinite' loops
     private static final int MAX_CONSIDERED_DEPTH = 1000; //no point in looking any deeper than this, otherwise GC overhead is too high.
+    private static final long SAMPLING_SEED = 51;
+    //samples are drawn in chunks of this many, each with its own random generator split off in order from one seeded
+    //generator, so that the result does not depend on the number of threads drawing them
+    private static final int SAMPLES_PER_CHUNK = 250;
+
+    //rows 0, 1. . . of the binomial table returned by hetAltDepthDistribution, grown as needed and shared by all calls
+    private static double[][] hetAltDepthTable = new double[0][];
 
     /**
      * @param depthDistribution the probability of depth n is depthDistribution[n] for n = 0, 1. . . N - 1
@@ -70,28 +82,68 @@ public class TheoreticalSensitivity {
         if (withLogging) log.info("Creating Roulette Wheel");
         final RouletteWheel qualitySampler = new RouletteWheel(qualityDistribution);
 
+        //the common pool, so that each call doesn't start and stop threads of its own
+        final ForkJoinPool executor = ForkJoinPool.commonPool();
+
         //qualitySums[m] is a random sample of sums of m quality scores, for m = 0, 1, N - 1
-        if (withLogging) log.info("Calculating quality sums from quality sampler");
-        final List<ArrayList<Integer>> qualitySums = qualitySampler.sampleCumulativeSums(N, sampleSize, withLogging);
+        if (withLogging) log.info("Calculating quality sums from quality sampler using " + ForkJoinPool.getCommonPoolParallelism() + " thread(s)");
+        final int[][] qualitySums = new int[N][sampleSize];
+        final SplittableRandom seeds = new SplittableRandom(SAMPLING_SEED);
+        final List<Future<?>> chunks = new ArrayList<>();
+        for (int start = 0; start < sampleSize; start += SAMPLES_PER_CHUNK) {
+            final int from = start;
+            final int to = Math.min(start + SAMPLES_PER_CHUNK, sampleSize);
+            final SplittableRandom rng = seeds.split();
+            chunks.add(executor.submit(() -> qualitySampler.sampleCumulativeSums(qualitySums, from, to, rng)));
+        }
+        waitFor(chunks);
 
         //if a quality sum of m qualities exceeds the quality sum threshold for n total reads, a SNP is called
-        final ArrayList<Double> qualitySumThresholds = new ArrayList<>(N);
+        final double[] qualitySumThresholds = new double[N];
         final double LOG_10 = Math.log10(2);
+        for (int n = 0; n < N; n++) qualitySumThresholds[n] = 10 * (n * LOG_10 + logOddsThreshold);
 
-        for (int n = 0; n < N; n++) qualitySumThresholds.add(10 * (n * LOG_10 + logOddsThreshold));
-
-        //probabilityToExceedThreshold[m][n] is the probability that the sum of m quality score
-        //exceeds the nth quality sum threshold
+        //the terms of the sum over n >= m of depthDistribution[n] * altDepthDistribution[n][m] * the probability that
+        //the sum of m quality scores exceeds the nth quality sum threshold, for each m
         if (withLogging) log.info("Calculating theoretical het sensitivity");
-        final List<ArrayList<Double>> probabilityToExceedThreshold = proportionsAboveThresholds(qualitySums, qualitySumThresholds);
-        final List<ArrayList<Double>> altDepthDistribution = hetAltDepthDistribution(N);
+        final double[][] altDepthDistribution = getHetAltDepthTable(N);
+        final double[] terms = new double[N];
+        final List<Future<?>> rows = new ArrayList<>(N);
+        for (int m = 0; m < N; m++) {
+            final int summands = m;
+            rows.add(executor.submit(() -> {
+                final int[] sums = qualitySums[summands];
+                Arrays.sort(sums);
+                double term = 0.0;
+                int j = 0;  //index within the ordered sample of the first sum that reaches the threshold
+                for (int n = summands; n < N; n++) {
+                    while (j < sums.length && sums[j] < qualitySumThresholds[n]) j++;
+                    if (j == sums.length) break;
+                    term += depthDistribution[n] * altDepthDistribution[n][summands] * (sums.length - j) / sums.length;
+                }
+                terms[summands] = term;
+            }));
+        }
+        waitFor(rows);
+
+        //add up in a fixed order so that the result is the same whatever order the terms were computed in
         double result = 0.0;
-        for (int n = 0; n < N; n++) {
-            for (int m = 0; m <= n; m++) {
-                result += depthDistribution[n] * altDepthDistribution.get(n).get(m) * probabilityToExceedThreshold.get(m).get(n);
+        for (final double term : terms) result += term;
+        return result;
+    }
+
+    private static void waitFor(final List<Future<?>> futures) {
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted computing theoretical sensitivity.", ie);
+            } catch (final ExecutionException ee) {
+                if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+                throw new PicardException("Failed to compute theoretical sensitivity.", ee.getCause());
             }
         }
-        return result;
     }
 
     //given L lists of lists and N thresholds, count the proportion of each list above each threshold
@@ -115,18 +167,33 @@ public class TheoreticalSensitivity {
     //Utility function for making table of binomial distribution probabilities nCm * (0.5)^n
     //for n = 0, 1 . . . N - 1 and m = 0, 1. . . n
     public static List<ArrayList<Double>> hetAltDepthDistribution(final int N) {
-        final List<ArrayList<Double>> table = new ArrayList<>();
+        final double[][] rows = getHetAltDepthTable(N);
+        final List<ArrayList<Double>> table = new ArrayList<>(N);
         for (int n = 0; n < N; n++) {
-            final ArrayList<Double> nthRow = new ArrayList<>();
+            final ArrayList<Double> nthRow = new ArrayList<>(n + 1);
+            for (final double probability : rows[n]) nthRow.add(probability);
+            table.add(nthRow);
+        }
+        return table;
+    }
+
+    //the rows of the same table, for at least n = 0, 1 . . . N - 1; computed once and shared, so not to be modified
+    static synchronized double[][] getHetAltDepthTable(final int N) {
+        if (hetAltDepthTable.length >= N) return hetAltDepthTable;
+
+        final double[][] table = Arrays.copyOf(hetAltDepthTable, N);
+        for (int n = hetAltDepthTable.length; n < N; n++) {
+            final double[] nthRow = new double[n + 1];
 
-            //add the 0th element, then elements 1 through n - 1, then the nth.
+            //set the 0th element, then elements 1 through n - 1, then the nth.
             //Note that nCm = (n-1)C(m-1) * (n/m)
-            nthRow.add(Math.pow(0.5, n));
-            for (int m = 1; m < n; m++) nthRow.add((n * 0.5 / m) * table.get(n - 1).get(m - 1));
-            if (n > 0) nthRow.add(nthRow.get(0));
+            nthRow[0] = Math.pow(0.5, n);
+            for (int m = 1; m < n; m++) nthRow[m] = (n * 0.5 / m) * table[n - 1][m - 1];
+            if (n > 0) nthRow[n] = nthRow[0];
 
-            table.add(nthRow);
+            table[n] = nthRow;
         }
+        hetAltDepthTable = table;
         return table;
     }
 
@@ -137,7 +204,7 @@ public class TheoreticalSensitivity {
     which works well when the ratio of maximum weight to average weight is not large.
      */
     public static class RouletteWheel {
-        final private List<Double> probabilities;
+        final private double[] probabilities;
         final private int N;
         private int count = 0;
         private Random rng;
@@ -146,15 +213,15 @@ public class TheoreticalSensitivity {
             rng = new Random(51);
             N = weights.length;
 
-            probabilities = new ArrayList<>();
+            probabilities = new double[N];
             final double wMax = MathUtil.max(weights);
 
             if (wMax == 0) {
                 throw new PicardException("Quality score distribution is empty.");
             }
 
-            for (final double w : weights) {
-                probabilities.add(w / wMax);
+            for (int i = 0; i < N; i++) {
+                probabilities[i] = weights[i] / wMax;
             }
         }
 
@@ -162,7 +229,7 @@ public class TheoreticalSensitivity {
             while (true) {
                 final int n = (int) (N * rng.nextDouble());
                 count++;
-                if (rng.nextDouble() < probabilities.get(n)) {
+                if (rng.nextDouble() < probabilities[n]) {
                     count = 0;
                     return n;
                 } else if (count >= SAMPLING_MAX) {
@@ -172,6 +239,26 @@ public class TheoreticalSensitivity {
             }
         }
 
+        //the same as draw(), but with the given random generator, so that any number of threads can draw at once
+        int draw(final SplittableRandom rng) {
+            for (int count = 1; ; count++) {
+                final int n = (int) (N * rng.nextDouble());
+                if (rng.nextDouble() < probabilities[n]) return n;
+                else if (count >= SAMPLING_MAX) return 0;
+            }
+        }
+
+        //fill in sums[m][from] through sums[m][to - 1] with samples of sums of m draws, for m = 0, 1, . . . sums.length - 1
+        void sampleCumulativeSums(final int[][] sums, final int from, final int to, final SplittableRandom rng) {
+            for (int iteration = from; iteration < to; iteration++) {
+                int cumulativeSum = 0;
+                for (int m = 0; m < sums.length; m++) {
+                    sums[m][iteration] = cumulativeSum;
+                    cumulativeSum += draw(rng);
+                }
+            }
+        }
+
         //get samples of sums of 0, 1, 2,. . .  N - 1 draws
         public List<ArrayList<Integer>> sampleCumulativeSums(final int maxNumberOfSummands, final int sampleSize, final boolean withLogging) {
             final List<ArrayList<Integer>> result = new ArrayList<>();
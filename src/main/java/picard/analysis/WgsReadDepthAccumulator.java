@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.ReferenceSequenceMask;
+import htsjdk.samtools.util.SequenceUtil;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the pileup depth that CollectWgsMetrics gets from a SamLocusIterator by adding each read's bases into
+ * counters over a sliding window of the genome, instead of building a LocusInfo with one RecordAndOffset per base
+ * for every locus.  Reads must be passed to addRecord() in the order a SamLocusIterator would read them, with the
+ * same filters already applied; the result in the collector is then the same as if every LocusInfo had been passed
+ * to WgsMetricsCollector.addInfo():
+ *
+ * - only loci in the mask whose reference base is not N are counted, uncovered ones included;
+ * - reads are skipped if they start at a locus that already holds locusAccumulationCap bases;
+ * - at each locus a base is excluded if its quality is below minimumBaseQuality or it is an N, and otherwise if an
+ *   earlier read of the same name had a good base there, with the first coverageCap good bases contributing to the
+ *   base quality histogram.
+ *
+ * Rather than keep the names of the reads at every locus, each read is remembered by name, with the loci where it
+ * had a good base, until the reads being added start after its end.  Names are matched the way the pileup does,
+ * without relying on mate positions, so that reads whose mate fields are inconsistent are still counted the same.
+ */
+final class WgsReadDepthAccumulator {
+    private static final Log log = Log.getInstance(WgsReadDepthAccumulator.class);
+
+    private static final int INITIAL_WINDOW_SIZE = 1024;
+
+    private final SAMFileHeader header;
+    private final ReferenceSequenceMask mask;
+    private final ReferenceSequenceFileWalker refWalker;
+    private final CollectWgsMetrics.WgsMetricsCollector collector;
+    private final int minimumBaseQuality;
+    private final int locusAccumulationCap;
+
+    // The contig being read, its reference bases and the first locus whose depth has not been passed on yet
+    private int contig = -1;
+    private byte[] refBases = null;
+    private int nextLocus = 1;
+
+    // Circular buffers holding the good bases and all bases at loci nextLocus..lastLocus, indexed by locus & windowMask
+    private int[] depth = new int[INITIAL_WINDOW_SIZE];
+    private int[] accumulated = new int[INITIAL_WINDOW_SIZE];
+    private int windowMask = INITIAL_WINDOW_SIZE - 1;
+    private int lastLocus = 0;
+
+    // Reads that a later read of the same name may still overlap, by name and in the order they were added
+    private final Map<String, GoodBases> pending = new HashMap<>();
+    private final ArrayDeque<GoodBases> pendingByStart = new ArrayDeque<>();
+
+    private boolean warnedAboutAccumulationCap = false;
+
+    WgsReadDepthAccumulator(final SAMFileHeader header,
+                            final ReferenceSequenceMask mask,
+                            final ReferenceSequenceFileWalker refWalker,
+                            final CollectWgsMetrics.WgsMetricsCollector collector,
+                            final int minimumBaseQuality,
+                            final int locusAccumulationCap) {
+        this.header = header;
+        this.mask = mask;
+        this.refWalker = refWalker;
+        this.collector = collector;
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.locusAccumulationCap = locusAccumulationCap;
+    }
+
+    /**
+     * Adds the bases of a read.  Returns false once the reads without a reference are reached, after which the
+     * caller should stop reading and call finish().
+     */
+    boolean addRecord(final SAMRecord rec) {
+        if (rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) return false;
+        if (rec.getReadUnmappedFlag() || rec.getReadFailsVendorQualityCheckFlag()) return true;
+
+        final int start = rec.getAlignmentStart();
+        advanceTo(rec.getReferenceIndex(), start);
+
+        if (locusAccumulationCap > 0 && start <= lastLocus && accumulated[start & windowMask] >= locusAccumulationCap) {
+            if (!warnedAboutAccumulationCap) {
+                log.warn("Reached LOCUS_ACCUMULATION_CAP of " + locusAccumulationCap + " at " +
+                        header.getSequence(contig).getSequenceName() + ":" + start + ", ignoring further reads starting there.");
+                warnedAboutAccumulationCap = true;
+            }
+            return true;
+        }
+
+        final int end = rec.getAlignmentEnd();
+        ensureWindow(end);
+
+        final GoodBases earlier = pending.isEmpty() ? null : findEarlier(rec.getReadName(), start);
+        final GoodBases good = new GoodBases(rec.getReadName(), start, end);
+
+        final byte[] bases = rec.getReadBases();
+        final byte[] qualities = rec.getBaseQualities();
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            final int readStart = block.getReadStart() - 1;
+            final int refStart = block.getReferenceStart();
+            for (int i = 0; i < block.getLength(); ++i) {
+                final int locus = refStart + i;
+                final int index = locus & windowMask;
+                ++accumulated[index];
+                if (!isCounted(locus)) continue;
+
+                final int offset = readStart + i;
+                if (qualities[offset] < minimumBaseQuality || SequenceUtil.isNoCall(bases[offset])) {
+                    collector.addBaseQualityExclusion();
+                    continue;
+                }
+                if (earlier != null && earlier.contains(locus)) {
+                    collector.addOverlapExclusion();
+                    continue;
+                }
+                good.add(locus);
+
+                if (depth[index] < collector.coverageCap) collector.addBaseQuality(qualities[offset]);
+                ++depth[index];
+            }
+        }
+        lastLocus = Math.max(lastLocus, end);
+
+        good.next = pending.put(good.name, good);
+        pendingByStart.add(good);
+        return true;
+    }
+
+    /** Passes on the depth of every remaining locus in the mask, including those on contigs without reads. */
+    void finish() {
+        if (contig >= 0) flushThrough(header.getSequence(contig).getSequenceLength());
+        for (int i = contig + 1; i <= mask.getMaxSequenceIndex(); ++i) {
+            startContig(i);
+            flushThrough(header.getSequence(i).getSequenceLength());
+        }
+    }
+
+    /** Whether the locus on the current contig is one the SamLocusIterator would return and that is not an N. */
+    private boolean isCounted(final int locus) {
+        return locus <= refBases.length && mask.get(contig, locus) && !SequenceUtil.isNoCall(refBases[locus - 1]);
+    }
+
+    /** Passes on the depth of every locus before the given one, moving to its contig first if need be. */
+    private void advanceTo(final int contigIndex, final int locus) {
+        if (contigIndex != contig) {
+            finishContigsBefore(contigIndex);
+            startContig(contigIndex);
+        }
+        flushThrough(locus - 1);
+
+        // A read of the same name starting after the end of these reads can no longer overlap them
+        while (!pendingByStart.isEmpty() && pendingByStart.peekFirst().end < locus) {
+            removePending(pendingByStart.pollFirst().name, locus);
+        }
+    }
+
+    private void finishContigsBefore(final int contigIndex) {
+        if (contig >= 0) flushThrough(header.getSequence(contig).getSequenceLength());
+        for (int i = contig + 1; i < contigIndex; ++i) {
+            startContig(i);
+            flushThrough(header.getSequence(i).getSequenceLength());
+        }
+    }
+
+    private void startContig(final int contigIndex) {
+        contig = contigIndex;
+        nextLocus = 1;
+        lastLocus = 0;
+        pending.clear();
+        pendingByStart.clear();
+        // Contigs without a locus in the mask need neither their reference nor a pass over their loci
+        refBases = mask.nextPosition(contigIndex, 0) == -1 ? new byte[0] : refWalker.get(contigIndex).getBases();
+    }
+
+    private void flushThrough(final int locus) {
+        while (nextLocus <= locus) {
+            int pileupSize = 0;
+            if (nextLocus <= lastLocus) {
+                final int index = nextLocus & windowMask;
+                pileupSize = depth[index];
+                depth[index] = 0;
+                accumulated[index] = 0;
+            } else {
+                // Nothing left to clear, so go straight to the next locus in the mask, which for sampled sites may
+                // well be past all the loci asked for
+                final int next = nextLocus > refBases.length ? -1 : mask.nextPosition(contig, nextLocus - 1);
+                if (next == -1 || next > locus) {
+                    nextLocus = locus + 1;
+                    break;
+                }
+                nextLocus = next;
+            }
+            if (isCounted(nextLocus)) collector.addLocus(contig, nextLocus, pileupSize);
+            ++nextLocus;
+        }
+    }
+
+    /** Grows the buffers so that they can hold every locus from nextLocus to the given one. */
+    private void ensureWindow(final int locus) {
+        final int needed = Math.max(locus, lastLocus) - nextLocus + 1;
+        if (needed <= depth.length) return;
+
+        int size = depth.length;
+        while (size < needed) size *= 2;
+        final int[] newDepth = new int[size];
+        final int[] newAccumulated = new int[size];
+        final int newMask = size - 1;
+        for (int i = nextLocus; i <= lastLocus; ++i) {
+            newDepth[i & newMask] = depth[i & windowMask];
+            newAccumulated[i & newMask] = accumulated[i & windowMask];
+        }
+        depth = newDepth;
+        accumulated = newAccumulated;
+        windowMask = newMask;
+    }
+
+    /** Returns the earlier reads of the given name that reach the given locus, dropping those that end before it. */
+    private GoodBases findEarlier(final String name, final int locus) {
+        removePending(name, locus);
+        return pending.get(name);
+    }
+
+    private void removePending(final String name, final int locus) {
+        GoodBases head = pending.get(name);
+        while (head != null && head.end < locus) head = head.next;
+        if (head == null) {
+            pending.remove(name);
+            return;
+        }
+        for (GoodBases previous = head; previous.next != null; ) {
+            if (previous.next.end < locus) previous.next = previous.next.next;
+            else previous = previous.next;
+        }
+        pending.put(name, head);
+    }
+
+    /** The loci at which a read had a good base, linked to the other pending reads of the same name. */
+    private static final class GoodBases {
+        private final String name;
+        private final int start;
+        private final int end;
+        private final long[] loci;
+        private GoodBases next = null;
+
+        GoodBases(final String name, final int start, final int end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.loci = new long[((end - start) >> 6) + 1];
+        }
+
+        void add(final int locus) {
+            final int offset = locus - start;
+            loci[offset >> 6] |= 1L << offset;
+        }
+
+        /** Whether this read, or another pending read of the same name, had a good base at the locus. */
+        boolean contains(final int locus) {
+            for (GoodBases read = this; read != null; read = read.next) {
+                final int offset = locus - read.start;
+                if (offset >= 0 && locus <= read.end && (read.loci[offset >> 6] & (1L << offset)) != 0) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -103,6 +103,15 @@ class ArtifactCounter {
         }
     }
 
+    /**
+     * Adds the counts of another counter for the same library to this one.  Must be called before finish().
+     */
+    public void merge(final ArtifactCounter other) {
+        this.fullContextAccumulator.merge(other.fullContextAccumulator);
+        this.halfContextAccumulator.merge(other.halfContextAccumulator);
+        this.zeroContextAccumulator.merge(other.zeroContextAccumulator);
+    }
+
     /**
      * Stop counting, tally things up, and extract metrics.
      */
@@ -154,12 +154,10 @@ static final String USAGE_DETAILS = "<p>This tool examines two sources of sequen
     private DbSnpBitSetUtil dbSnpMask;
     private SamRecordFilter recordFilter;
 
-    private String currentRefString = null;
-    private int currentRefIndex = -1;
-
     private final Set<String> samples = new HashSet<String>();
     private final Set<String> libraries = new HashSet<String>();
-    private final Map<String, ArtifactCounter> artifactCounters = new HashMap<String, ArtifactCounter>();
+    private String sampleAlias;
+    private ArtifactCounts counts;
 
     @Override
     protected String[] customCommandLineValidation() {
@@ -226,85 +224,29 @@ static final String USAGE_DETAILS = "<p>This tool examines two sources of sequen
         recordFilter = new AggregateFilter(filters);
 
         // set up the artifact counters
-        final String sampleAlias = StringUtil.join(",", new ArrayList<String>(samples));
-        for (final String library : libraries) {
-            artifactCounters.put(library, new ArtifactCounter(sampleAlias, library, CONTEXT_SIZE, TANDEM_READS));
-        }
+        sampleAlias = StringUtil.join(",", new ArrayList<String>(samples));
+        counts = new ArtifactCounts();
     }
 
     @Override
     protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
-        // see if the whole read should be skipped
-        if (recordFilter.filterOut(rec)) return;
-
-        // check read group + library
-        final String library = (rec.getReadGroup() == null) ? UNKNOWN_LIBRARY : getOrElse(rec.getReadGroup().getLibrary(), UNKNOWN_LIBRARY);
-        if (!libraries.contains(library)) {
-            // should never happen if SAM is valid
-            throw new PicardException("Record contains library that is missing from header: " + library);
-        }
-
-        // set up some constants that don't change in the loop below
-        final int contextFullLength = 2 * CONTEXT_SIZE + 1;
-        final ArtifactCounter counter = artifactCounters.get(library);
-        final byte[] readBases = rec.getReadBases();
-        final byte[] readQuals;
-        if (USE_OQ) {
-            final byte[] tmp = rec.getOriginalBaseQualities();
-            readQuals = tmp == null ? rec.getBaseQualities() : tmp;
-        } else {
-            readQuals = rec.getBaseQualities();
-        }
+        counts.acceptRead(rec, ref);
+    }
 
-        // iterate over aligned positions
-        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
-            for (int offset = 0; offset < block.getLength(); offset++) {
-                // remember, these are 1-based!
-                final int readPos = block.getReadStart() + offset;
-                final int refPos = block.getReferenceStart() + offset;
-
-                // skip low BQ sites
-                final byte qual = readQuals[readPos - 1];
-                if (qual < MINIMUM_QUALITY_SCORE) continue;
-
-                // skip N bases in read
-                final char readBase = Character.toUpperCase((char)readBases[readPos - 1]);
-                if (readBase == 'N') continue;
-
-                /**
-                 * Skip regions outside of intervals.
-                 *
-                 * NB: IntervalListReferenceSequenceMask.get() has side-effects which assume
-                 * that successive ReferenceSequence's passed to this method will be in-order
-                 * (e.g. it will break if you call acceptRead() with chr1, then chr2, then chr1
-                 * again). So this only works if the underlying iteration is coordinate-sorted.
-                 */
-                if (intervalMask != null && !intervalMask.get(ref.getContigIndex(), refPos)) continue;
-
-                // skip dbSNP sites
-                if (dbSnpMask != null && dbSnpMask.isDbSnpSite(ref.getName(), refPos)) continue;
-
-                // skip the ends of the reference
-                final int contextStartIndex = refPos - CONTEXT_SIZE - 1;
-                if (contextStartIndex < 0 || contextStartIndex + contextFullLength > ref.length()) continue;
-
-                // skip contexts with N bases
-                final String context = getRefContext(ref, contextStartIndex, contextFullLength);
-                if (context.contains("N")) continue;
-
-                // count the base!
-                counter.countRecord(context, readBase, rec);
-            }
-        }
+    /**
+     * Each shard counts into ArtifactCounters of its own.  The interval mask assumes that it sees every read in
+     * coordinate order, so reads are only split between shards when no INTERVALS are given.
+     */
+    @Override
+    protected Shard makeShard() {
+        return intervalMask == null ? new ArtifactCounts() : null;
     }
 
-    private String getRefContext(final ReferenceSequence ref, final int contextStartIndex, final int contextFullLength) {
-        // cache the upper-cased string version of this reference so we don't need to create a string for every base in every read
-        if (currentRefIndex != ref.getContigIndex()) {
-            currentRefString = new String(ref.getBases()).toUpperCase();
-            currentRefIndex = ref.getContigIndex();
+    @Override
+    protected void mergeShard(final Shard shard) {
+        for (final Map.Entry<String, ArtifactCounter> entry : ((ArtifactCounts) shard).artifactCounters.entrySet()) {
+            counts.artifactCounters.get(entry.getKey()).merge(entry.getValue());
         }
-        return currentRefString.substring(contextStartIndex, contextStartIndex + contextFullLength);
     }
 
     @Override
@@ -314,7 +256,7 @@ static final String USAGE_DETAILS = "<p>This tool examines two sources of sequen
         final MetricsFile<BaitBiasSummaryMetrics, Integer> baitBiasSummaryMetricsFile = getMetricsFile();
         final MetricsFile<BaitBiasDetailMetrics, Integer> baitBiasDetailMetricsFile = getMetricsFile();
 
-        for (final ArtifactCounter counter : artifactCounters.values()) {
+        for (final ArtifactCounter counter : counts.artifactCounters.values()) {
             // build metrics
             counter.finish();
 
@@ -343,4 +285,91 @@ static final String USAGE_DETAILS = "<p>This tool examines two sources of sequen
 
     @Override
     protected boolean usesNoRefReads() { return false; }
+
+    /** The artifact counters of each library. */
+    private class ArtifactCounts implements Shard {
+        private final Map<String, ArtifactCounter> artifactCounters = new HashMap<String, ArtifactCounter>();
+
+        ArtifactCounts() {
+            for (final String library : libraries) {
+                artifactCounters.put(library, new ArtifactCounter(sampleAlias, library, CONTEXT_SIZE, TANDEM_READS));
+            }
+        }
+
+        @Override
+        public void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
+            // see if the whole read should be skipped
+            if (recordFilter.filterOut(rec)) return;
+
+            // check read group + library
+            final String library = (rec.getReadGroup() == null) ? UNKNOWN_LIBRARY : getOrElse(rec.getReadGroup().getLibrary(), UNKNOWN_LIBRARY);
+            if (!libraries.contains(library)) {
+                // should never happen if SAM is valid
+                throw new PicardException("Record contains library that is missing from header: " + library);
+            }
+
+            // set up some constants that don't change in the loop below
+            final int contextFullLength = 2 * CONTEXT_SIZE + 1;
+            final ArtifactCounter counter = artifactCounters.get(library);
+            final byte[] readBases = rec.getReadBases();
+            final byte[] readQuals;
+            if (USE_OQ) {
+                final byte[] tmp = rec.getOriginalBaseQualities();
+                readQuals = tmp == null ? rec.getBaseQualities() : tmp;
+            } else {
+                readQuals = rec.getBaseQualities();
+            }
+
+            // iterate over aligned positions
+            for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+                for (int offset = 0; offset < block.getLength(); offset++) {
+                    // remember, these are 1-based!
+                    final int readPos = block.getReadStart() + offset;
+                    final int refPos = block.getReferenceStart() + offset;
+
+                    // skip low BQ sites
+                    final byte qual = readQuals[readPos - 1];
+                    if (qual < MINIMUM_QUALITY_SCORE) continue;
+
+                    // skip N bases in read
+                    final char readBase = Character.toUpperCase((char)readBases[readPos - 1]);
+                    if (readBase == 'N') continue;
+
+                    /**
+                     * Skip regions outside of intervals.
+                     *
+                     * NB: IntervalListReferenceSequenceMask.get() has side-effects which assume
+                     * that successive ReferenceSequence's passed to this method will be in-order
+                     * (e.g. it will break if you call acceptRead() with chr1, then chr2, then chr1
+                     * again). So this only works if the underlying iteration is coordinate-sorted.
+                     */
+                    if (intervalMask != null && !intervalMask.get(ref.getContigIndex(), refPos)) continue;
+
+                    // skip dbSNP sites
+                    if (dbSnpMask != null && dbSnpMask.isDbSnpSite(ref.getName(), refPos)) continue;
+
+                    // skip the ends of the reference
+                    final int contextStartIndex = refPos - CONTEXT_SIZE - 1;
+                    if (contextStartIndex < 0 || contextStartIndex + contextFullLength > ref.length()) continue;
+
+                    // skip contexts with N bases
+                    final String context = getRefContext(ref, contextStartIndex, contextFullLength);
+                    if (context.contains("N")) continue;
+
+                    // count the base!
+                    counter.countRecord(context, readBase, rec);
+                }
+            }
+        }
+
+        private String getRefContext(final ReferenceSequence ref, final int contextStartIndex, final int contextFullLength) {
+            // upper-case only the context itself, so that the shards don't each keep an upper-cased copy of the contig
+            final byte[] refBases = ref.getBases();
+            final char[] context = new char[contextFullLength];
+            for (int i = 0; i < contextFullLength; ++i) {
+                context[i] = Character.toUpperCase((char) refBases[contextStartIndex + i]);
+            }
+            return new String(context);
+        }
+    }
 }
@@ -44,6 +44,18 @@ class ContextAccumulator {
         artifactMap.get(refContext)[Transition.baseIndexMap[calledBase]].countRecord(rec);
     }
 
+    /**
+     * Adds the counts of another accumulator over the same contexts to this one.
+     */
+    public void merge(final ContextAccumulator other) {
+        for (final Map.Entry<String, AlignmentAccumulator[]> entry : other.artifactMap.entrySet()) {
+            final AlignmentAccumulator[] accumulators = this.artifactMap.get(entry.getKey());
+            for (int i = 0; i < accumulators.length; i++) {
+                accumulators[i].merge(entry.getValue()[i]);
+            }
+        }
+    }
+
     /**
      * Core method to compute detailed (i.e. context-by-context) metrics from this accumulator.
      */
@@ -136,5 +148,12 @@ class ContextAccumulator {
                 else this.R1_POS++;
             }
         }
+
+        private void merge(final AlignmentAccumulator other) {
+            this.R1_POS += other.R1_POS;
+            this.R1_NEG += other.R1_NEG;
+            this.R2_POS += other.R2_POS;
+            this.R2_NEG += other.R2_NEG;
+        }
     }
 }
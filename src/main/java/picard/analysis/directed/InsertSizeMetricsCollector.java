@@ -10,6 +10,7 @@ import picard.analysis.InsertSizeMetrics;
 import picard.analysis.MetricAccumulationLevel;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
+import picard.util.LongArrayHistogram;
 
 import java.util.Collections;
 import java.util.EnumMap;
@@ -57,6 +58,12 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
         return new InsertSizeCollectorArgs(insertSize, orientation);
     }
 
+    @Override
+    protected InsertSizeCollectorArgs reuseArg(final InsertSizeCollectorArgs previous, final SAMRecord samRecord, final ReferenceSequence refSeq) {
+        previous.set(Math.abs(samRecord.getInferredInsertSize()), SamPairUtil.getPairOrientation(samRecord));
+        return previous;
+    }
+
     /** Make an InsertSizeCollector with the given arguments */
     @Override
     protected PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> makeChildCollector(final String sample, final String library, final String readGroup) {
@@ -80,10 +87,11 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
 
     /** A Collector for individual InsertSizeMetrics for a given SAMPLE or SAMPLE/LIBRARY or SAMPLE/LIBRARY/READ_GROUP (depending on aggregation levels) */
     public class PerUnitInsertSizeMetricsCollector implements PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> {
-        final EnumMap<SamPairUtil.PairOrientation, Histogram<Integer>> histograms = new EnumMap<SamPairUtil.PairOrientation, Histogram<Integer>>(SamPairUtil.PairOrientation.class);
+        final EnumMap<SamPairUtil.PairOrientation, LongArrayHistogram> histograms = new EnumMap<SamPairUtil.PairOrientation, LongArrayHistogram>(SamPairUtil.PairOrientation.class);
         final String sample;
         final String library;
         final String readGroup;
+        private final String histogramPrefix;
         private double totalInserts = 0;
 
         public PerUnitInsertSizeMetricsCollector(final String sample, final String library, final String readGroup) {
@@ -103,9 +111,10 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
             else {
                 prefix = "All_Reads.";
             }
-            histograms.put(SamPairUtil.PairOrientation.FR,     new Histogram<Integer>("insert_size", prefix + "fr_count"));
-            histograms.put(SamPairUtil.PairOrientation.TANDEM, new Histogram<Integer>("insert_size", prefix + "tandem_count"));
-            histograms.put(SamPairUtil.PairOrientation.RF,     new Histogram<Integer>("insert_size", prefix + "rf_count"));
+            this.histogramPrefix = prefix;
+            histograms.put(SamPairUtil.PairOrientation.FR,     new LongArrayHistogram());
+            histograms.put(SamPairUtil.PairOrientation.TANDEM, new LongArrayHistogram());
+            histograms.put(SamPairUtil.PairOrientation.RF,     new LongArrayHistogram());
         }
 
         public void acceptRecord(final InsertSizeCollectorArgs args) {
@@ -114,20 +123,29 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
 
         public void finish() { }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> other) {
+            final PerUnitInsertSizeMetricsCollector that = (PerUnitInsertSizeMetricsCollector) other;
+            for (final Map.Entry<SamPairUtil.PairOrientation, LongArrayHistogram> entry : histograms.entrySet()) {
+                entry.getValue().addHistogram(that.histograms.get(entry.getKey()));
+            }
+        }
+
         public double getTotalInserts() {
             return totalInserts;
         }
 
         public void addMetricsToFile(final MetricsFile<InsertSizeMetrics,Integer> file) {
             // get the number of inserts, and the maximum and minimum keys across, across all orientations
-            for (final Histogram<Integer> h : this.histograms.values()) {
+            for (final LongArrayHistogram h : this.histograms.values()) {
                 totalInserts += h.getCount();
             }
             if (0 == totalInserts) return; // nothing to store
 
-            for(final Map.Entry<SamPairUtil.PairOrientation, Histogram<Integer>> entry : histograms.entrySet()) {
+            for(final Map.Entry<SamPairUtil.PairOrientation, LongArrayHistogram> entry : histograms.entrySet()) {
                 final SamPairUtil.PairOrientation pairOrientation = entry.getKey();
-                final Histogram<Integer> histogram = entry.getValue();
+                final Histogram<Integer> histogram = entry.getValue().toHistogram("insert_size",
+                        histogramPrefix + pairOrientation.name().toLowerCase() + "_count");
                 final double total = histogram.getCount();
 
                 // Only include a category if it has a sufficient percentage of the data in it
@@ -207,8 +225,8 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
 // Arguments that need to be calculated once per SAMRecord that are then passed to each PerUnitMetricCollector
 // for the given record
 class InsertSizeCollectorArgs {
-    private final int insertSize;
-    private final SamPairUtil.PairOrientation po;
+    private int insertSize;
+    private SamPairUtil.PairOrientation po;
 
 
     public int getInsertSize() {
@@ -220,6 +238,10 @@ class InsertSizeCollectorArgs {
     }
 
     public InsertSizeCollectorArgs(final int insertSize, final SamPairUtil.PairOrientation po) {
+        set(insertSize, po);
+    }
+
+    void set(final int insertSize, final SamPairUtil.PairOrientation po) {
         this.insertSize = insertSize;
         this.po = po;
     }
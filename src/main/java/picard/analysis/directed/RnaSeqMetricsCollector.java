@@ -253,6 +253,37 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
 
         }
 
+        /**
+         * Adds the counts and transcript coverage of another collector for the same unit.  Derived classes that
+         * capture additional metrics should override this to merge those as well.
+         */
+        @Override
+        public void merge(final PerUnitMetricCollector<RnaSeqMetrics, Integer, SAMRecord> other) {
+            final PerUnitRnaSeqMetricsCollector that = (PerUnitRnaSeqMetricsCollector) other;
+            metrics.PF_BASES               += that.metrics.PF_BASES;
+            metrics.PF_ALIGNED_BASES       += that.metrics.PF_ALIGNED_BASES;
+            metrics.CODING_BASES           += that.metrics.CODING_BASES;
+            metrics.UTR_BASES              += that.metrics.UTR_BASES;
+            metrics.INTRONIC_BASES         += that.metrics.INTRONIC_BASES;
+            metrics.INTERGENIC_BASES       += that.metrics.INTERGENIC_BASES;
+            metrics.IGNORED_READS          += that.metrics.IGNORED_READS;
+            metrics.CORRECT_STRAND_READS   += that.metrics.CORRECT_STRAND_READS;
+            metrics.INCORRECT_STRAND_READS += that.metrics.INCORRECT_STRAND_READS;
+            if (metrics.RIBOSOMAL_BASES != null && that.metrics.RIBOSOMAL_BASES != null) {
+                metrics.RIBOSOMAL_BASES += that.metrics.RIBOSOMAL_BASES;
+            }
+
+            for (final Map.Entry<Gene.Transcript, int[]> entry : that.coverageByTranscript.entrySet()) {
+                final int[] coverage = this.coverageByTranscript.get(entry.getKey());
+                if (coverage == null) {
+                    this.coverageByTranscript.put(entry.getKey(), entry.getValue());
+                } else {
+                    final int[] otherCoverage = entry.getValue();
+                    for (int i = 0; i < coverage.length; ++i) coverage[i] += otherCoverage[i];
+                }
+            }
+        }
+
         protected int getNumAlignedBases(SAMRecord rec) {
             int numAlignedBases = 0;
             for (final AlignmentBlock alignmentBlock : rec.getAlignmentBlocks()) {
@@ -560,6 +560,43 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             }
         }
 
+        /** Adds the counts, base quality histogram and per-target coverage of another collector for the same unit. */
+        @Override
+        public void merge(final PerUnitMetricCollector<METRIC_TYPE, Integer, SAMRecord> other) {
+            final PerUnitTargetMetricCollector that = (PerUnitTargetMetricCollector) other;
+
+            metrics.TOTAL_READS               += that.metrics.TOTAL_READS;
+            metrics.PF_READS                  += that.metrics.PF_READS;
+            metrics.PF_BASES                  += that.metrics.PF_BASES;
+            metrics.PF_UNIQUE_READS           += that.metrics.PF_UNIQUE_READS;
+            metrics.PF_SELECTED_PAIRS         += that.metrics.PF_SELECTED_PAIRS;
+            metrics.PF_SELECTED_UNIQUE_PAIRS  += that.metrics.PF_SELECTED_UNIQUE_PAIRS;
+            metrics.PF_UQ_READS_ALIGNED       += that.metrics.PF_UQ_READS_ALIGNED;
+            metrics.PF_BASES_ALIGNED          += that.metrics.PF_BASES_ALIGNED;
+            metrics.PF_UQ_BASES_ALIGNED       += that.metrics.PF_UQ_BASES_ALIGNED;
+            metrics.ON_PROBE_BASES            += that.metrics.ON_PROBE_BASES;
+            metrics.NEAR_PROBE_BASES          += that.metrics.NEAR_PROBE_BASES;
+            metrics.OFF_PROBE_BASES           += that.metrics.OFF_PROBE_BASES;
+            metrics.ON_TARGET_BASES           += that.metrics.ON_TARGET_BASES;
+            metrics.ON_TARGET_FROM_PAIR_BASES += that.metrics.ON_TARGET_FROM_PAIR_BASES;
+
+            // Until finish() these hold base counts rather than fractions
+            metrics.PCT_EXC_DUPE              += that.metrics.PCT_EXC_DUPE;
+            metrics.PCT_EXC_BASEQ             += that.metrics.PCT_EXC_BASEQ;
+            metrics.PCT_EXC_OVERLAP           += that.metrics.PCT_EXC_OVERLAP;
+            metrics.PCT_EXC_OFF_TARGET        += that.metrics.PCT_EXC_OFF_TARGET;
+
+            mapQFilter.merge(that.mapQFilter);
+
+            for (int i = 0; i < baseQHistogramArray.length; ++i) {
+                baseQHistogramArray[i] += that.baseQHistogramArray[i];
+            }
+
+            for (final Map.Entry<Interval, Coverage> entry : that.coverageByTarget.entrySet()) {
+                coverageByTarget.get(entry.getKey()).merge(entry.getValue());
+            }
+        }
+
         @Override
         public void finish() {
             metrics.PCT_PF_READS            = metrics.PF_READS / (double) metrics.TOTAL_READS;
@@ -826,6 +863,14 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             this.readCount++;
         }
 
+        /** Adds the depths and read count of another Coverage of the same interval, saturating like addBase(). */
+        public void merge(final Coverage other) {
+            for (int i = 0; i < this.depths.length; ++i) {
+                this.depths[i] = (int) Math.min(Integer.MAX_VALUE, (long) this.depths[i] + other.depths[i]);
+            }
+            this.readCount += other.readCount;
+        }
+
         /** Returns true if any base in the range has coverage of > 0 */
         public boolean hasCoverage() {
             // NB: if this is expensive, we could easily pre-compute this as we go along in addBase
@@ -43,6 +43,17 @@ public abstract class CountingFilter implements SamRecordFilter {
     /** Gets the number of bases that have been filtered out thus far. */
     public long getFilteredBases() { return this.filteredBases; }
 
+    /** Adds the counts of another filter, e.g. one that saw a different part of the same input. */
+    public void merge(final CountingFilter other) {
+        addFiltered(other.filteredRecords, other.filteredBases);
+    }
+
+    /** Adds counts of records and bases filtered out elsewhere, e.g. by an earlier run over part of the same input. */
+    public void addFiltered(final long records, final long bases) {
+        this.filteredRecords += records;
+        this.filteredBases += bases;
+    }
+
     @Override
     public final boolean filterOut(final SAMRecord record) {
         final boolean filteredOut = reallyFilterOut(record);
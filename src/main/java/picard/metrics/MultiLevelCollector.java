@@ -26,6 +26,7 @@ package picard.metrics;
 
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTagUtil;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
@@ -33,6 +34,8 @@ import picard.PicardException;
 import picard.analysis.MetricAccumulationLevel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,10 +77,32 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
     //these will be listed in the order in which their children would be added to a metric file
     private List<Distributor> outputOrderedDistributors;
 
+    //The collectors of every Distributor that a record of each read group goes to, resolved once in setup() so that
+    //acceptRecord() needs no per-level lookups.  routes[readGroupIndices.get(id)] is null for read groups that some
+    //level has no key for, whose records are passed through the Distributors instead.
+    private Map<String, Integer> readGroupIndices;
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[][] routes;
+
+    //The route of the read group of the previous record, since records of the same read group tend to come together
+    private String lastReadGroupId = null;
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] lastRoute = null;
+
+    //The argument made for the previous record, which reuseArg() may fill in again for the next one; cleared by finish()
+    private ARGTYPE lastArg = null;
+
     //Convert the current SAMRecord and the ReferenceSequence for that record into an ARGTYPE object
     //see accept record for use
     protected abstract ARGTYPE makeArg(final SAMRecord samRec, final ReferenceSequence refSeq);
 
+    /**
+     * Lets a subclass fill in and return the argument made for the previous record instead of making a new one, to
+     * avoid an allocation per record.  Only a subclass whose PerUnitMetricCollectors never hold on to an argument after
+     * acceptRecord() returns may do so.  By default arguments are not reused: this returns null and makeArg is called.
+     */
+    protected ARGTYPE reuseArg(final ARGTYPE previous, final SAMRecord samRec, final ReferenceSequence refSeq) {
+        return null;
+    }
+
     /**
      * Construct a PerUnitMetricCollector with the given arguments.
      * @param sample If aggregating by ALL_READS this will be null, otherwise the sample that will be used to identify
@@ -143,6 +168,12 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             }
         }
 
+        /** Returns the collector for records of the given read group, or null if the read group has no key at this level */
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getCollector(final SAMReadGroupRecord rg) {
+            final String key = getKey(rg);
+            return key == null ? null : collectors.get(key);
+        }
+
         /** Call acceptRecord(args) on the record collector identified by getKey */
         public void acceptRecord(final ARGTYPE args, final SAMReadGroupRecord rg) {
 
@@ -164,6 +195,21 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             collector.acceptRecord(args);
         }
 
+        /**
+         * Merge each collector of another Distributor for the same accumulation level into the collector with the
+         * same key here.  Collectors for unknown keys that only the other Distributor has seen are adopted as they are.
+         */
+        public void merge(final Distributor other) {
+            for (final Map.Entry<String, PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>> entry : other.collectors.entrySet()) {
+                final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector = collectors.get(entry.getKey());
+                if (collector == null) {
+                    collectors.put(entry.getKey(), entry.getValue());
+                } else {
+                    collector.merge(entry.getValue());
+                }
+            }
+        }
+
         /** Add all records to the MetricsFile passed in, this will happen in the order they were
          * found in the input ReadGroup records */
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
@@ -192,6 +238,11 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             allReadCollector.acceptRecord(args);
         }
 
+        @Override
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getCollector(final SAMReadGroupRecord rg) {
+            return allReadCollector;
+        }
+
         @Override
         protected PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> makeCollector(final SAMReadGroupRecord rg) {
             allReadCollector = makeAllReadCollector();
@@ -208,6 +259,11 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             allReadCollector.finish();
         }
 
+        @Override
+        public void merge(final Distributor other) {
+            // allReadCollector is held by the enclosing MultiLevelCollector, which merges it directly
+        }
+
         @Override
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
             allReadCollector.addMetricsToFile(file);
@@ -302,6 +358,41 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
         if(accumulationLevels.contains(MetricAccumulationLevel.READ_GROUP)) {
             outputOrderedDistributors.add(new ReadGroupCollector(samRgRecords));
         }
+
+        readGroupIndices = new HashMap<String, Integer>();
+        routes = newRoutes(samRgRecords.size());
+        for (int i = 0; i < samRgRecords.size(); ++i) {
+            final SAMReadGroupRecord rg = samRgRecords.get(i);
+            final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] route = newRoute(outputOrderedDistributors.size());
+            for (int level = 0; level < route.length; ++level) {
+                route[level] = outputOrderedDistributors.get(level).getCollector(rg);
+            }
+            readGroupIndices.put(rg.getReadGroupId(), i);
+            routes[i] = Arrays.asList(route).contains(null) ? null : route;
+        }
+    }
+
+    /** Generic arrays can't be created directly, so create wildcard arrays and cast them; nothing else is ever stored in them. */
+    @SuppressWarnings("unchecked")
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[][] newRoutes(final int size) {
+        return (PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[][]) new PerUnitMetricCollector<?, ?, ?>[size][];
+    }
+
+    @SuppressWarnings("unchecked")
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] newRoute(final int size) {
+        return (PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[]) new PerUnitMetricCollector<?, ?, ?>[size];
+    }
+
+    /** Returns the precomputed collectors for the read group of the given record, or null if it has none. */
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] getRoute(final SAMRecord record) {
+        final Object readGroupId = record.getAttribute(SAMTagUtil.getSingleton().RG);
+        if (!(readGroupId instanceof String)) return null;
+        if (!readGroupId.equals(lastReadGroupId)) {
+            final Integer index = readGroupIndices.get(readGroupId);
+            lastReadGroupId = (String) readGroupId;
+            lastRoute = index == null ? null : routes[index];
+        }
+        return lastRoute;
     }
 
     /**
@@ -309,10 +400,20 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
      * this value to all collectors that should include this record
      */
     public void acceptRecord(final SAMRecord record, final ReferenceSequence refSeq) {
-        final ARGTYPE arg = makeArg(record, refSeq);
-
-        for(final Distributor collector : outputOrderedDistributors) {
-            collector.acceptRecord(arg, record.getReadGroup());
+        final ARGTYPE reused = lastArg == null ? null : reuseArg(lastArg, record, refSeq);
+        final ARGTYPE arg = reused == null ? makeArg(record, refSeq) : reused;
+        lastArg = arg;
+
+        final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] route = getRoute(record);
+        if (route != null) {
+            for (final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector : route) {
+                collector.acceptRecord(arg);
+            }
+        } else {
+            final SAMReadGroupRecord readGroup = record.getReadGroup();
+            for(final Distributor collector : outputOrderedDistributors) {
+                collector.acceptRecord(arg, readGroup);
+            }
         }
     }
 
@@ -320,11 +421,30 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
      * Call finish on all PerUnitMetricCollectors
      */
     public void finish() {
+        lastArg = null;
         for(final Distributor collector : outputOrderedDistributors) {
             collector.finish();
         }
     }
 
+    /**
+     * Merge the PerUnitMetricCollectors of another MultiLevelCollector, which must have been set up with the same
+     * accumulation levels and read groups, into the collectors of this one.  Both must not have been finished yet,
+     * and the other collector must not be used afterwards.  Merging the parts of a data set in the same order always
+     * gives the same result, whichever threads or regions the parts were collected on.
+     */
+    public void merge(final MultiLevelCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> other) {
+        if (other.outputOrderedDistributors.size() != outputOrderedDistributors.size()) {
+            throw new PicardException("Cannot merge collectors accumulating at different levels.");
+        }
+        if (allReadCollector != null) {
+            allReadCollector.merge(other.allReadCollector);
+        }
+        for (int i = 0; i < outputOrderedDistributors.size(); ++i) {
+            outputOrderedDistributors.get(i).merge(other.outputOrderedDistributors.get(i));
+        }
+    }
+
     /** Get the PerUnitMetricCollector that collects reads for all levels */
     public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getAllReadsCollector() {
         return allReadCollector;
@@ -35,6 +35,9 @@ import htsjdk.samtools.metrics.MetricsFile;
  *      2. Call collector.finish() - perform any final calculations necessary after ALL records have been accepted
  *      3. addMetricsToFile is then used to add any metric(s) or Histogram(s) to the given file
  *
+ *      Records may also be split between several collectors for the same unit (e.g. one per thread or per genomic
+ *      region) which are then combined with merge() before finish() is called.
+ *
  *      BEAN    - The Metric type we are generating
  *      HKEY    - The Key used in any Histograms, use a Wildcard(?) type if there are no Histograms
  *      ARGTYPE - Collectors are often used in groups of accumulation levels, in order to avoid recalculating
@@ -52,6 +55,16 @@ public interface PerUnitMetricCollector<BEAN extends MetricBase, HKEY extends Co
     /** When all records have been collected, compute any final values needed to finish constructing metrics/Histogram */
     public void finish();
 
+    /**
+     * Folds the records accepted by another collector for the same accumulation unit into this one, as if this
+     * collector had accepted them itself.  Called before finish() on either collector; the other collector must not
+     * be used afterwards.  Collectors that cannot be combined keep the default, which throws.
+     * @param other A collector created with the same parameters as this one
+     */
+    public default void merge(final PerUnitMetricCollector<BEAN, HKEY, ARGTYPE> other) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be merged.");
+    }
+
     /**
      * Any metrics collected will be added to the metric file provided.
      * @param file MetricsFile to which all metrics created by this collector should be added
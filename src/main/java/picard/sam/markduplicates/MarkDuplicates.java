@@ -35,11 +35,15 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.samtools.util.SortingCollection;
-import htsjdk.samtools.util.SortingLongCollection;
+import htsjdk.samtools.util.Histogram;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
 import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.DuplicateIndexBitmap;
+import picard.sam.markduplicates.util.FlaggedRecordBuffer;
+import picard.sam.markduplicates.util.HashedReadEndsForMarkDuplicatesMap;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.PackedReadEndsStore;
+import picard.sam.markduplicates.util.ReadEndsMemoryBudget;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
@@ -50,6 +54,12 @@ import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * A better duplication marking algorithm that handles all cases including clipped
@@ -152,8 +162,18 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     "This number can be found by executing the 'ulimit -n' command on a Unix system.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
+    @Option(doc = "If true, match up the two reads of each pair in a map keyed by a 128-bit hash of their read group and " +
+            "name, held in memory outside the heap and spilled to a single file by partitions of the hash, rather than in " +
+            "a map that spills to a file per reference sequence. This avoids running out of file handles on references of " +
+            "many thousands of sequences, and MAX_FILE_HANDLES_FOR_READ_ENDS_MAP is then ignored. The map shares the " +
+            "memory given by SORTING_COLLECTION_SIZE_RATIO with the read ends being sorted.")
+    public boolean USE_HASHED_READ_ENDS_MAP = false;
+
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
-            "some of the sorting collections.  If you are running out of memory, try reducing this number.")
+            "some of the sorting collections.  If you are running out of memory, try reducing this number. The read ends " +
+            "being sorted, and with USE_HASHED_READ_ENDS_MAP those waiting for their mates, share memory of this fraction " +
+            "of the maximum heap size, most of it allocated outside the heap, so the process may use that much more " +
+            "memory than -Xmx.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
 
     @Option(doc = "Barcode SAM tag (ex. BC for 10X Genomics)", optional = true)
@@ -173,10 +193,39 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
-    private SortingLongCollection duplicateIndexes;
-    private SortingLongCollection opticalDuplicateIndexes;
+    @Option(doc = "Number of threads resolving the groups of read ends at the same position once they are sorted. If more " +
+            "than 1, the sorted read ends are cut into batches of whole groups, which are resolved on this many threads, " +
+            "including optical duplicate detection, and the duplicates found are gathered in order. The output is the " +
+            "same whatever the number of threads.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If true, read the input only once, holding each record back until the duplicates at its position and " +
+            "at its mate's are known and then writing it out, rather than reading the input a second time to write it. " +
+            "Records beyond MAX_RECORDS_IN_RAM that are still waiting, e.g. for mates far away, are spilled to a single file in TMP_DIR. " +
+            "Requires coordinate sorted input.")
+    public boolean SINGLE_PASS = false;
+
+    @Option(doc = "With SINGLE_PASS, the minimum distance to buffer records to account for clipping on the 5' end of the records. " +
+            "A read clipped by more than this stops the program. Set this number to -1 to use twice the first read's read " +
+            "length (or 100, whichever is larger).", optional = true)
+    public int MINIMUM_DISTANCE = -1;
+
+    /** The number of read ends in groups of duplicates after which a batch is handed to a thread; package-visible for testing. */
+    int readEndsPerBatch = 100000;
+
+    private PackedReadEndsStore pairSort;
+    private PackedReadEndsStore fragSort;
+    private DuplicateIndexBitmap duplicateIndexes;
+    private DuplicateIndexBitmap opticalDuplicateIndexes;
+    private boolean indexOpticalDuplicates = false;
+
+    // With SINGLE_PASS, the records not yet written out, flagged once they are known to be duplicates
+    private FlaggedRecordBuffer singlePassBuffer = null;
+    // With SINGLE_PASS, MINIMUM_DISTANCE, or if that is -1 the distance computed from the first read's length
+    private int minimumDistance = -1;
+    private static final int EXAMINED = 1;
+    private static final int DUPLICATE = 2;
+    private static final int OPTICAL_DUPLICATE = 4;
 
     private int numDuplicateIndices = 0;
     static private final long NO_SUCH_INDEX = Long.MAX_VALUE; // needs to be large so that that >= test fails for query-sorted traversal
@@ -216,12 +265,18 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         IOUtil.assertFileIsWritable(METRICS_FILE);
 
         final boolean useBarcodes = (null != BARCODE_TAG || null != READ_ONE_BARCODE_TAG || null != READ_TWO_BARCODE_TAG);
+        this.indexOpticalDuplicates = this.REMOVE_SEQUENCING_DUPLICATES || this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag;
+
+        if (SINGLE_PASS) {
+            markDuplicatesInSinglePass(useBarcodes);
+            return 0;
+        }
 
         reportMemoryStats("Start of doWork");
         log.info("Reading input file and constructing read end information.");
         buildSortedReadEndLists(useBarcodes);
         reportMemoryStats("After buildSortedReadEndLists");
-        generateDuplicateIndexes(useBarcodes, this.REMOVE_SEQUENCING_DUPLICATES || this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag);
+        generateDuplicateIndexes(useBarcodes, this.indexOpticalDuplicates);
         reportMemoryStats("After generateDuplicateIndexes");
         log.info("Marking " + this.numDuplicateIndices + " records as duplicates.");
 
@@ -267,25 +322,6 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         while (iterator.hasNext()) {
             final SAMRecord rec = iterator.next();
 
-                final String library = LibraryIdGenerator.getLibraryName(header, rec);
-                DuplicationMetrics metrics = libraryIdGenerator.getMetricsByLibrary(library);
-                if (metrics == null) {
-                    metrics = new DuplicationMetrics();
-                    metrics.LIBRARY = library;
-                    libraryIdGenerator.addMetricsByLibrary(library, metrics);
-                }
-
-                // First bring the simple metrics up to date
-                if (rec.getReadUnmappedFlag()) {
-                    ++metrics.UNMAPPED_READS;
-                } else if(rec.isSecondaryOrSupplementary()) {
-                    ++metrics.SECONDARY_OR_SUPPLEMENTARY_RDS;
-                } else if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
-                    ++metrics.UNPAIRED_READS_EXAMINED;
-                } else {
-                    ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
-                }
-
             // Now try and figure out the next duplicate index (if going by coordinate. if going by query name, only do this
             // if the query name has changed.
             final boolean needNextDuplicateIndex = recordInFileIndex > nextDuplicateIndex &&
@@ -299,23 +335,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     (sortOrder == SAMFileHeader.SortOrder.queryname &&
                     recordInFileIndex > nextDuplicateIndex && rec.getReadName().equals(duplicateQueryName));
 
-
-                if (isDuplicate) {
-                    duplicateQueryName = rec.getReadName();
-                    rec.setDuplicateReadFlag(true);
-
-                    // only update duplicate counts for "decider" reads, not tag-a-long reads
-                    if (!rec.isSecondaryOrSupplementary() && !rec.getReadUnmappedFlag()) {
-                        // Update the duplication metrics
-                        if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
-                            ++metrics.UNPAIRED_READ_DUPLICATES;
-                        } else {
-                            ++metrics.READ_PAIR_DUPLICATES;// will need to be divided by 2 at the end
-                        }
-                    }
-                } else {
-                    rec.setDuplicateReadFlag(false);
-                }
+            if (isDuplicate) duplicateQueryName = rec.getReadName();
 
             // Manage the flagging of optical/sequencing duplicates
             final boolean needNextOpticalDuplicateIndex = recordInFileIndex > nextOpticalDuplicateIndex &&
@@ -332,31 +352,20 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     rec.getReadName().equals(opticalDuplicateQueryName) ||
                     recordInFileIndex == nextOpticalDuplicateIndex;
 
-            rec.setAttribute(DUPLICATE_TYPE_TAG, null);
-
-            if (this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag && rec.getDuplicateReadFlag()) {
-                if (isOpticalDuplicate) {
-                    opticalDuplicateQueryName = rec.getReadName();
-                    rec.setAttribute(DUPLICATE_TYPE_TAG, DuplicateType.SEQUENCING.code());
-                } else if (this.TAGGING_POLICY == DuplicateTaggingPolicy.All) {
-                    rec.setAttribute(DUPLICATE_TYPE_TAG, DuplicateType.LIBRARY.code());
-                }
+            if (this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag && isDuplicate && isOpticalDuplicate) {
+                opticalDuplicateQueryName = rec.getReadName();
             }
 
             // Output the record if desired and bump the record index
             recordInFileIndex++;
-            if (this.REMOVE_DUPLICATES            && rec.getDuplicateReadFlag()) continue;
-            if (this.REMOVE_SEQUENCING_DUPLICATES && isOpticalDuplicate)         continue;
-
-            if (PROGRAM_RECORD_ID != null)  rec.setAttribute(SAMTag.PG.name(), chainedPgIds.get(rec.getStringAttribute(SAMTag.PG.name())));
-            out.addAlignment(rec);
-            progress.record(rec);
+            markAndWrite(header, rec, isDuplicate, isOpticalDuplicate, out, chainedPgIds, progress);
         }
 
         // remember to close the inputs
         iterator.close();
 
         this.duplicateIndexes.cleanup();
+        if (this.opticalDuplicateIndexes != null) this.opticalDuplicateIndexes.cleanup();
 
         reportMemoryStats("Before output close");
         out.close();
@@ -368,6 +377,211 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return 0;
     }
 
+    /**
+     * Brings the metrics of the record's library up to date, sets its duplicate flag and duplicate type tag, and writes it
+     * out unless it is to be removed.
+     */
+    private void markAndWrite(final SAMFileHeader header, final SAMRecord rec, final boolean isDuplicate, final boolean isOpticalDuplicate,
+                              final SAMFileWriter out, final Map<String, String> chainedPgIds, final ProgressLogger progress) {
+        final String library = LibraryIdGenerator.getLibraryName(header, rec);
+        DuplicationMetrics metrics = libraryIdGenerator.getMetricsByLibrary(library);
+        if (metrics == null) {
+            metrics = new DuplicationMetrics();
+            metrics.LIBRARY = library;
+            libraryIdGenerator.addMetricsByLibrary(library, metrics);
+        }
+
+        // First bring the simple metrics up to date
+        if (rec.getReadUnmappedFlag()) {
+            ++metrics.UNMAPPED_READS;
+        } else if(rec.isSecondaryOrSupplementary()) {
+            ++metrics.SECONDARY_OR_SUPPLEMENTARY_RDS;
+        } else if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
+            ++metrics.UNPAIRED_READS_EXAMINED;
+        } else {
+            ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
+        }
+
+        if (isDuplicate) {
+            rec.setDuplicateReadFlag(true);
+
+            // only update duplicate counts for "decider" reads, not tag-a-long reads
+            if (!rec.isSecondaryOrSupplementary() && !rec.getReadUnmappedFlag()) {
+                // Update the duplication metrics
+                if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
+                    ++metrics.UNPAIRED_READ_DUPLICATES;
+                } else {
+                    ++metrics.READ_PAIR_DUPLICATES;// will need to be divided by 2 at the end
+                }
+            }
+        } else {
+            rec.setDuplicateReadFlag(false);
+        }
+
+        rec.setAttribute(DUPLICATE_TYPE_TAG, null);
+
+        if (this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag && rec.getDuplicateReadFlag()) {
+            if (isOpticalDuplicate) {
+                rec.setAttribute(DUPLICATE_TYPE_TAG, DuplicateType.SEQUENCING.code());
+            } else if (this.TAGGING_POLICY == DuplicateTaggingPolicy.All) {
+                rec.setAttribute(DUPLICATE_TYPE_TAG, DuplicateType.LIBRARY.code());
+            }
+        }
+
+        if (this.REMOVE_DUPLICATES            && rec.getDuplicateReadFlag()) return;
+        if (this.REMOVE_SEQUENCING_DUPLICATES && isOpticalDuplicate)         return;
+
+        // In a single pass, only the program records in the header are known to be chained
+        final String pgId = rec.getStringAttribute(SAMTag.PG.name());
+        if (PROGRAM_RECORD_ID != null && chainedPgIds.containsKey(pgId)) rec.setAttribute(SAMTag.PG.name(), chainedPgIds.get(pgId));
+        out.addAlignment(rec);
+        progress.record(rec);
+    }
+
+    /**
+     * Marks duplicates reading the coordinate sorted input only once.  Each record is held in a buffer while the read
+     * ends are built as in buildSortedReadEndLists, but kept in queues by the position at which their group of possible
+     * duplicates is complete: a fragment at its 5' end, and a pair at the 5' end of its later read.  No read ends can be
+     * added at a position once the reads start MINIMUM_DISTANCE past it, so the groups before there are resolved, flagging
+     * their records in the buffer, and the records at the head of the buffer whose fate is known are written out.
+     */
+    private void markDuplicatesInSinglePass(final boolean useBarcodes) {
+        final SamHeaderAndIterator headerAndIterator = openInputs();
+        final SAMFileHeader header = headerAndIterator.header;
+        if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+            throw new PicardException("SINGLE_PASS requires inputs in coordinate SortOrder. Found " + header.getSortOrder());
+        }
+        this.libraryIdGenerator = new LibraryIdGenerator(header);
+
+        final SAMFileHeader outputHeader = header.clone();
+        COMMENT.forEach(outputHeader::addComment);
+
+        // As in MarkDuplicatesWithMateCigar, the program groups on the records cannot be gathered before the header is
+        // written, so chain those in the header that no other program group follows, and one for records without any.
+        setPGIdsSeen(outputHeader);
+        pgIdsSeen.add(null);
+        // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
+        final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
+
+        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
+                true,
+                OUTPUT);
+
+        this.singlePassBuffer = new FlaggedRecordBuffer(MAX_RECORDS_IN_RAM, TMP_DIR, header);
+        this.minimumDistance = MINIMUM_DISTANCE;
+        final ReadEndsForMarkDuplicatesMap tmp = makeReadEndsMap(useBarcodes, makeReadEndsMemoryBudget());
+        final PriorityQueue<ReadEndsForMarkDuplicates> fragments = new PriorityQueue<>(1024, (lhs, rhs) -> {
+            final int compareDifference = compareInteger(lhs.read1ReferenceIndex, rhs.read1ReferenceIndex);
+            return compareDifference != 0 ? compareDifference : compareInteger(lhs.read1Coordinate, rhs.read1Coordinate);
+        });
+        final PriorityQueue<ReadEndsForMarkDuplicates> pairs = new PriorityQueue<>(1024, (lhs, rhs) -> {
+            final int compareDifference = compareInteger(lhs.read2ReferenceIndex, rhs.read2ReferenceIndex);
+            return compareDifference != 0 ? compareDifference : compareInteger(lhs.read2Coordinate, rhs.read2Coordinate);
+        });
+
+        final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
+        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
+            final long index = this.singlePassBuffer.add(rec);
+
+            if (rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                // No read ends can follow the unplaced reads, and a read whose mate has not been seen will never be matched
+                this.singlePassBuffer.setFlags(index, EXAMINED);
+                resolveCompleteGroups(fragments, pairs, Integer.MAX_VALUE, Integer.MAX_VALUE, useBarcodes);
+                writeOutBuffered(header, true, out, chainedPgIds, progress);
+                continue;
+            }
+
+            if (rec.getReadUnmappedFlag() || rec.isSecondaryOrSupplementary()) {
+                this.singlePassBuffer.setFlags(index, EXAMINED);
+            } else {
+                // If not already set, this sets the minimum distance to twice the read length, or 100, whichever is larger
+                if (this.minimumDistance == -1) this.minimumDistance = Math.max(2 * rec.getReadBases().length, 100);
+
+                final ReadEndsForMarkDuplicates fragmentEnd = addReadEnds(header, rec, index, useBarcodes, tmp, fragments::add, pairs::add);
+                if (fragmentEnd.read1Coordinate < rec.getAlignmentStart() - this.minimumDistance) {
+                    throw new PicardException("Found a record with 5' end " + fragmentEnd.read1Coordinate + " more than MINIMUM_DISTANCE ("
+                            + this.minimumDistance + ") before its alignment start " + rec.getAlignmentStart() + ": " + rec.getSAMString().trim()
+                            + "\nPlease increase MINIMUM_DISTANCE to at least " + (rec.getAlignmentStart() - fragmentEnd.read1Coordinate) + ".");
+                }
+            }
+
+            if (this.minimumDistance != -1) {
+                resolveCompleteGroups(fragments, pairs, rec.getReferenceIndex(), rec.getAlignmentStart() - this.minimumDistance, useBarcodes);
+            }
+            writeOutBuffered(header, false, out, chainedPgIds, progress);
+        }
+
+        iterator.close();
+        resolveCompleteGroups(fragments, pairs, Integer.MAX_VALUE, Integer.MAX_VALUE, useBarcodes);
+        writeOutBuffered(header, true, out, chainedPgIds, progress);
+        tmp.cleanup();
+        this.singlePassBuffer.close();
+        this.singlePassBuffer = null;
+
+        log.info("Marked " + this.numDuplicateIndices + " records as duplicates.");
+        if (this.READ_NAME_REGEX == null) {
+            log.warn("Skipped optical duplicate cluster discovery; library size estimation may be inaccurate!");
+        } else {
+            log.info("Found " + (this.libraryIdGenerator.getNumberOfOpticalDuplicateClusters()) + " optical duplicate clusters.");
+        }
+
+        reportMemoryStats("Before output close");
+        out.close();
+        reportMemoryStats("After output close");
+
+        // Write out the metrics
+        finalizeAndWriteMetrics(libraryIdGenerator);
+    }
+
+    /**
+     * Resolves the groups of read ends that are complete before the given position, i.e. the pairs whose later read and the
+     * fragments whose read start before it, flagging the records they decide as examined, and as duplicates if they are.
+     */
+    private void resolveCompleteGroups(final PriorityQueue<ReadEndsForMarkDuplicates> fragments, final PriorityQueue<ReadEndsForMarkDuplicates> pairs,
+                                       final int referenceIndex, final int coordinate, final boolean useBarcodes) {
+        final List<ReadEndsForMarkDuplicates> complete = new ArrayList<>();
+        while (!pairs.isEmpty() && isBefore(pairs.peek().read2ReferenceIndex, pairs.peek().read2Coordinate, referenceIndex, coordinate)) {
+            final ReadEndsForMarkDuplicates pair = pairs.poll();
+            this.singlePassBuffer.setFlags(pair.read1IndexInFile, EXAMINED);
+            this.singlePassBuffer.setFlags(pair.read2IndexInFile, EXAMINED);
+            complete.add(pair);
+        }
+        if (!complete.isEmpty()) {
+            complete.sort(new ReadEndsMDComparator(useBarcodes));
+            resolveGroups(complete, true, useBarcodes, null, null);
+            complete.clear();
+        }
+
+        // The reads of pairs are only examined as pairs, but their fragments decide whether other fragments are duplicates
+        while (!fragments.isEmpty() && isBefore(fragments.peek().read1ReferenceIndex, fragments.peek().read1Coordinate, referenceIndex, coordinate)) {
+            final ReadEndsForMarkDuplicates fragment = fragments.poll();
+            if (!fragment.isPaired()) this.singlePassBuffer.setFlags(fragment.read1IndexInFile, EXAMINED);
+            complete.add(fragment);
+        }
+        if (!complete.isEmpty()) {
+            complete.sort(new ReadEndsMDComparator(useBarcodes));
+            resolveGroups(complete, false, useBarcodes, null, null);
+        }
+    }
+
+    private static boolean isBefore(final int referenceIndex, final int coordinate, final int otherReferenceIndex, final int otherCoordinate) {
+        return referenceIndex < otherReferenceIndex || (referenceIndex == otherReferenceIndex && coordinate < otherCoordinate);
+    }
+
+    /** Writes out the records at the head of the buffer that have been examined, or all of them. */
+    private void writeOutBuffered(final SAMFileHeader header, final boolean all, final SAMFileWriter out,
+                                  final Map<String, String> chainedPgIds, final ProgressLogger progress) {
+        while (!this.singlePassBuffer.isEmpty()) {
+            final int flags = this.singlePassBuffer.getHeadFlags();
+            if (!all && (flags & EXAMINED) == 0) break;
+            final SAMRecord rec = this.singlePassBuffer.remove();
+            markAndWrite(header, rec, (flags & DUPLICATE) != 0, (flags & OPTICAL_DUPLICATE) != 0, out, chainedPgIds, progress);
+        }
+    }
+
     /**
      * package-visible for testing
      */
@@ -384,7 +598,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     /**
      * Goes through all the records in a file and generates a set of ReadEndsForMarkDuplicates objects that
      * hold the necessary information (reference sequence, 5' read coordinate) to do
-     * duplication, caching to disk as necessary to sort them.
+     * duplication, packing them into off-heap stores that spill to disk as necessary to sort them.
      */
     private void buildSortedReadEndLists(final boolean useBarcodes) {
         final int sizeInBytes;
@@ -394,36 +608,19 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
         }
         MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
-        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
+        final int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) /
+                PackedReadEndsStore.getSizeOf(useBarcodes), Integer.MAX_VALUE - 5);
         log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
 
-        final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec, diskCodec;
-        if (useBarcodes) {
-            fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-        } else {
-            fragCodec = new ReadEndsForMarkDuplicatesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesCodec();
-        }
-
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
-
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        final ReadEndsMemoryBudget memory = makeReadEndsMemoryBudget();
+        log.info("Read ends will take up to " + (memory.getMaxBytes() >> 20) + "MB of memory, most of it outside the heap.");
+        this.pairSort = new PackedReadEndsStore(useBarcodes, maxInMemory, TMP_DIR, memory);
+        this.fragSort = new PackedReadEndsStore(useBarcodes, maxInMemory, TMP_DIR, memory);
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader.SortOrder assumedSortOrder = headerAndIterator.header.getSortOrder();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        final ReadEndsForMarkDuplicatesMap tmp = makeReadEndsMap(useBarcodes, memory);
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
@@ -463,68 +660,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             } else if (!rec.isSecondaryOrSupplementary()) {
                 final long indexForRead = assumedSortOrder == SAMFileHeader.SortOrder.queryname ? duplicateIndex : index;
-                final ReadEndsForMarkDuplicates fragmentEnd = buildReadEnds(header, indexForRead, rec, useBarcodes);
-                this.fragSort.add(fragmentEnd);
-
-                if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
-                    final String key = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID) + ":" + rec.getReadName();
-                    ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), key);
-
-                    // See if we've already seen the first end or not
-                    if (pairedEnds == null) {
-                        // at this point pairedEnds and fragmentEnd are the same, but we need to make
-                        // a copy since pairedEnds will be modified when the mate comes along.
-                        pairedEnds = fragmentEnd.clone();
-                        tmp.put(pairedEnds.read2ReferenceIndex, key, pairedEnds);
-                    } else {
-                        final int matesRefIndex = fragmentEnd.read1ReferenceIndex;
-                        final int matesCoordinate = fragmentEnd.read1Coordinate;
-
-                        // Set orientationForOpticalDuplicates, which always goes by the first then the second end for the strands.  NB: must do this
-                        // before updating the orientation later.
-                        if (rec.getFirstOfPairFlag()) {
-                            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(), pairedEnds.orientation == ReadEnds.R);
-                            if (useBarcodes)
-                                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readOneBarcode = getReadOneBarcodeValue(rec);
-                        } else {
-                            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, rec.getReadNegativeStrandFlag());
-                            if (useBarcodes)
-                                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readTwoBarcode = getReadTwoBarcodeValue(rec);
-                        }
-
-                        // If the other read is actually later, simply add the other read's data as read2, else flip the reads
-                        if (matesRefIndex > pairedEnds.read1ReferenceIndex ||
-                                (matesRefIndex == pairedEnds.read1ReferenceIndex && matesCoordinate >= pairedEnds.read1Coordinate)) {
-                            pairedEnds.read2ReferenceIndex = matesRefIndex;
-                            pairedEnds.read2Coordinate = matesCoordinate;
-                            pairedEnds.read2IndexInFile = indexForRead;
-                            pairedEnds.orientation = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R,
-                                    rec.getReadNegativeStrandFlag());
-
-                            // if the two read ends are in the same position, pointing in opposite directions,
-                            // the orientation is undefined and the procedure above
-                            // will depend on the order of the reads in the file.
-                            // To avoid this, we set it explicitly (to FR):
-                            if (pairedEnds.read2ReferenceIndex == pairedEnds.read1ReferenceIndex &&
-                                    pairedEnds.read2Coordinate == pairedEnds.read1Coordinate &&
-                                    pairedEnds.orientation == ReadEnds.RF) {
-                                pairedEnds.orientation = ReadEnds.FR;
-                            }
-                        } else {
-                            pairedEnds.read2ReferenceIndex = pairedEnds.read1ReferenceIndex;
-                            pairedEnds.read2Coordinate = pairedEnds.read1Coordinate;
-                            pairedEnds.read2IndexInFile = pairedEnds.read1IndexInFile;
-                            pairedEnds.read1ReferenceIndex = matesRefIndex;
-                            pairedEnds.read1Coordinate = matesCoordinate;
-                            pairedEnds.read1IndexInFile = indexForRead;
-                            pairedEnds.orientation = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(),
-                                    pairedEnds.orientation == ReadEnds.R);
-                        }
-
-                        pairedEnds.score += DuplicateScoringStrategy.computeDuplicateScore(rec, this.DUPLICATE_SCORING_STRATEGY);
-                        this.pairSort.add(pairedEnds);
-                    }
-                }
+                addReadEnds(header, rec, indexForRead, useBarcodes, tmp, this.fragSort::add, this.pairSort::add);
             }
 
             // Print out some stats every 1m reads
@@ -536,12 +672,112 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
         iterator.close();
+        tmp.cleanup();
 
         // Tell these collections to free up memory if possible.
         this.pairSort.doneAdding();
         this.fragSort.doneAdding();
     }
 
+    /**
+     * Builds the read ends of a primary, mapped record and passes them on to the fragments, and, if its mate is mapped
+     * and was seen before it, the ends of the pair to the pairs; otherwise the record waits for its mate in the map.
+     *
+     * @return the read ends of the record as a fragment
+     */
+    private ReadEndsForMarkDuplicates addReadEnds(final SAMFileHeader header, final SAMRecord rec, final long indexForRead, final boolean useBarcodes,
+                                                  final ReadEndsForMarkDuplicatesMap tmp,
+                                                  final Consumer<ReadEndsForMarkDuplicates> fragments,
+                                                  final Consumer<ReadEndsForMarkDuplicates> pairs) {
+        final ReadEndsForMarkDuplicates fragmentEnd = buildReadEnds(header, indexForRead, rec, useBarcodes);
+        fragments.accept(fragmentEnd);
+
+        if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
+            final Object readGroup = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID);
+            ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), readGroup, rec.getReadName());
+
+            // See if we've already seen the first end or not
+            if (pairedEnds == null) {
+                // at this point pairedEnds and fragmentEnd are the same, but we need to make
+                // a copy since pairedEnds will be modified when the mate comes along.
+                pairedEnds = fragmentEnd.clone();
+                tmp.put(pairedEnds.read2ReferenceIndex, readGroup, rec.getReadName(), pairedEnds);
+            } else {
+                final int matesRefIndex = fragmentEnd.read1ReferenceIndex;
+                final int matesCoordinate = fragmentEnd.read1Coordinate;
+
+                // Set orientationForOpticalDuplicates, which always goes by the first then the second end for the strands.  NB: must do this
+                // before updating the orientation later.
+                if (rec.getFirstOfPairFlag()) {
+                    pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(), pairedEnds.orientation == ReadEnds.R);
+                    if (useBarcodes)
+                        ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readOneBarcode = getReadOneBarcodeValue(rec);
+                } else {
+                    pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, rec.getReadNegativeStrandFlag());
+                    if (useBarcodes)
+                        ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readTwoBarcode = getReadTwoBarcodeValue(rec);
+                }
+
+                // If the other read is actually later, simply add the other read's data as read2, else flip the reads
+                if (matesRefIndex > pairedEnds.read1ReferenceIndex ||
+                        (matesRefIndex == pairedEnds.read1ReferenceIndex && matesCoordinate >= pairedEnds.read1Coordinate)) {
+                    pairedEnds.read2ReferenceIndex = matesRefIndex;
+                    pairedEnds.read2Coordinate = matesCoordinate;
+                    pairedEnds.read2IndexInFile = indexForRead;
+                    pairedEnds.orientation = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R,
+                            rec.getReadNegativeStrandFlag());
+
+                    // if the two read ends are in the same position, pointing in opposite directions,
+                    // the orientation is undefined and the procedure above
+                    // will depend on the order of the reads in the file.
+                    // To avoid this, we set it explicitly (to FR):
+                    if (pairedEnds.read2ReferenceIndex == pairedEnds.read1ReferenceIndex &&
+                            pairedEnds.read2Coordinate == pairedEnds.read1Coordinate &&
+                            pairedEnds.orientation == ReadEnds.RF) {
+                        pairedEnds.orientation = ReadEnds.FR;
+                    }
+                } else {
+                    pairedEnds.read2ReferenceIndex = pairedEnds.read1ReferenceIndex;
+                    pairedEnds.read2Coordinate = pairedEnds.read1Coordinate;
+                    pairedEnds.read2IndexInFile = pairedEnds.read1IndexInFile;
+                    pairedEnds.read1ReferenceIndex = matesRefIndex;
+                    pairedEnds.read1Coordinate = matesCoordinate;
+                    pairedEnds.read1IndexInFile = indexForRead;
+                    pairedEnds.orientation = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(),
+                            pairedEnds.orientation == ReadEnds.R);
+                }
+
+                pairedEnds.score += DuplicateScoringStrategy.computeDuplicateScore(rec, this.DUPLICATE_SCORING_STRATEGY);
+                pairs.accept(pairedEnds);
+            }
+        }
+
+        return fragmentEnd;
+    }
+
+    /**
+     * Makes the budget shared by the off-heap stores of read ends and, with USE_HASHED_READ_ENDS_MAP, the map of those
+     * waiting for their mates, so that together they take no more than SORTING_COLLECTION_SIZE_RATIO of the heap size.
+     */
+    private ReadEndsMemoryBudget makeReadEndsMemoryBudget() {
+        final long maxBytes = (long) (Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO);
+        return new ReadEndsMemoryBudget(Math.max(1, maxBytes));
+    }
+
+    /** Makes the map in which the read ends of the first read of each pair wait for its mate. */
+    private ReadEndsForMarkDuplicatesMap makeReadEndsMap(final boolean useBarcodes, final ReadEndsMemoryBudget memory) {
+        if (USE_HASHED_READ_ENDS_MAP) {
+            return new HashedReadEndsForMarkDuplicatesMap(useBarcodes, memory, TMP_DIR);
+        }
+        final ReadEndsForMarkDuplicatesCodec diskCodec;
+        if (useBarcodes) {
+            diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
+        } else {
+            diskCodec = new ReadEndsForMarkDuplicatesCodec();
+        }
+        return new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+    }
+
     /** Builds a read ends object that represents a single read. */
     private ReadEndsForMarkDuplicates buildReadEnds(final SAMFileHeader header, final long index, final SAMRecord rec, final boolean useBarcodes) {
         final ReadEndsForMarkDuplicates ends;
@@ -600,52 +836,70 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * @return an array with an ordered list of indexes into the source file
      */
     private void generateDuplicateIndexes(final boolean useBarcodes, final boolean indexOpticalDuplicates) {
-        // Keep this number from getting too large even if there is a huge heap.
-        int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * 0.25) / SortingLongCollection.SIZEOF, (double) (Integer.MAX_VALUE - 5));
-        // If we're also tracking optical duplicates, cut maxInMemory in half, since we'll need two sorting collections
+        long maxBytesInMemory = (long) (Runtime.getRuntime().maxMemory() * 0.25);
+        // If we're also tracking optical duplicates, cut maxBytesInMemory in half, since we'll need two bitmaps
         if (indexOpticalDuplicates) {
-            maxInMemory /= 2;
-            this.opticalDuplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
+            maxBytesInMemory /= 2;
+            this.opticalDuplicateIndexes = new DuplicateIndexBitmap(maxBytesInMemory, TMP_DIR);
         }
-        log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
-        this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
+        log.info("Will retain up to " + maxBytesInMemory + " bytes of duplicate indices before spilling to disk.");
+        this.duplicateIndexes = new DuplicateIndexBitmap(maxBytesInMemory, TMP_DIR);
+
+        final AtomicInteger threadsCreated = new AtomicInteger();
+        final ExecutorService executor = NUM_THREADS <= 1 ? null : Executors.newFixedThreadPool(NUM_THREADS, r -> {
+            final Thread thread = new Thread(r, "MarkDuplicates-groups-" + threadsCreated.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Deque<Future<ResolvedDuplicates>> inFlight = new ArrayDeque<>();
+
+        try {
+            // First just do the pairs
+            log.info("Traversing read pair information and detecting duplicates.");
+            resolveGroups(this.pairSort, true, useBarcodes, executor, inFlight);
+            this.pairSort.cleanup();
+            this.pairSort = null;
+
+            // Now deal with the fragments
+            log.info("Traversing fragment information and detecting duplicates.");
+            resolveGroups(this.fragSort, false, useBarcodes, executor, inFlight);
+            this.fragSort.cleanup();
+            this.fragSort = null;
+
+            while (!inFlight.isEmpty()) addResolved(inFlight.poll());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        this.duplicateIndexes.doneAdding();
+        if (this.opticalDuplicateIndexes != null) this.opticalDuplicateIndexes.doneAdding();
+    }
 
+    /**
+     * Cuts the sorted read ends, all of pairs or all of fragments, into groups at the same position and resolves in
+     * batches those that may hold duplicates.
+     */
+    private void resolveGroups(final Iterable<ReadEndsForMarkDuplicates> sorted, final boolean pairs, final boolean useBarcodes,
+                               final ExecutorService executor, final Deque<Future<ResolvedDuplicates>> inFlight) {
         ReadEndsForMarkDuplicates firstOfNextChunk = null;
         final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
-
-        // First just do the pairs
-        log.info("Traversing read pair information and detecting duplicates.");
-        for (final ReadEndsForMarkDuplicates next : this.pairSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
-                nextChunk.add(next);
-            } else {
-                if (nextChunk.size() > 1) {
-                    markDuplicatePairs(nextChunk);
-                }
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
-            }
-        }
-        if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
-        this.pairSort.cleanup();
-        this.pairSort = null;
-
-        // Now deal with the fragments
-        log.info("Traversing fragment information and detecting duplicates.");
         boolean containsPairs = false;
         boolean containsFrags = false;
+        DuplicateGroupBatch batch = new DuplicateGroupBatch(pairs);
 
-        firstOfNextChunk = null;
-
-        for (final ReadEndsForMarkDuplicates next : this.fragSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
+        for (final ReadEndsForMarkDuplicates next : sorted) {
+            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, pairs, useBarcodes)) {
                 nextChunk.add(next);
                 containsPairs = containsPairs || next.isPaired();
                 containsFrags = containsFrags || !next.isPaired();
             } else {
-                if (nextChunk.size() > 1 && containsFrags) {
-                    markDuplicateFragments(nextChunk, containsPairs);
+                // Groups of fragments only hold duplicates to be marked if some of them are not from pairs
+                if (nextChunk.size() > 1 && (pairs || containsFrags)) {
+                    batch.add(nextChunk, containsPairs);
+                    if (batch.readEnds >= readEndsPerBatch) {
+                        resolve(batch, executor, inFlight);
+                        batch = new DuplicateGroupBatch(pairs);
+                    }
                 }
                 nextChunk.clear();
                 nextChunk.add(next);
@@ -654,13 +908,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 containsFrags = !next.isPaired();
             }
         }
-        markDuplicateFragments(nextChunk, containsPairs);
-        this.fragSort.cleanup();
-        this.fragSort = null;
-
-        log.info("Sorting list of duplicate records.");
-        this.duplicateIndexes.doneAddingStartIteration();
-        if (this.opticalDuplicateIndexes != null) this.opticalDuplicateIndexes.doneAddingStartIteration();
+        if (nextChunk.size() > 1 && (pairs || containsFrags)) batch.add(nextChunk, containsPairs);
+        resolve(batch, executor, inFlight);
     }
 
     private boolean areComparableForDuplicates(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs, final boolean compareRead2, final boolean useBarcodes) {
@@ -688,8 +937,94 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return areComparable;
     }
 
+    /** Groups of read ends to be resolved together, all of pairs or all from the fragment pass. */
+    private static final class DuplicateGroupBatch {
+        private final boolean pairs;
+        private final List<List<ReadEndsForMarkDuplicates>> groups = new ArrayList<>();
+        private final BitSet groupContainsPairs = new BitSet();
+        private int readEnds = 0;
+
+        private DuplicateGroupBatch(final boolean pairs) {
+            this.pairs = pairs;
+        }
+
+        /** Adds a copy of the group, which is cleared and reused by the caller. */
+        private void add(final List<ReadEndsForMarkDuplicates> group, final boolean containsPairs) {
+            groupContainsPairs.set(groups.size(), containsPairs);
+            groups.add(new ArrayList<>(group));
+            readEnds += group.size();
+        }
+    }
+
+    /** The duplicates found in a batch of groups, to be added to the duplicate indexes in the order of the batches. */
+    private static final class ResolvedDuplicates {
+        private long[] duplicates = new long[16];
+        private int numDuplicates = 0;
+        private long[] opticalDuplicates = new long[16];
+        private int numOpticalDuplicates = 0;
+        private final Histogram<Short> opticalDuplicatesByLibraryId = new Histogram<>();
+
+        private void addDuplicate(final long index) {
+            if (numDuplicates == duplicates.length) duplicates = Arrays.copyOf(duplicates, 2 * numDuplicates);
+            duplicates[numDuplicates++] = index;
+        }
+
+        private void addOpticalDuplicate(final long index) {
+            if (numOpticalDuplicates == opticalDuplicates.length) opticalDuplicates = Arrays.copyOf(opticalDuplicates, 2 * numOpticalDuplicates);
+            opticalDuplicates[numOpticalDuplicates++] = index;
+        }
+    }
+
+    /**
+     * Resolves the groups of the batch, on a thread of the executor if there is one, and adds the duplicates of the
+     * batches resolved so far to the duplicate indexes, waiting for the oldest batch if too many are in flight.
+     */
+    private void resolve(final DuplicateGroupBatch batch, final ExecutorService executor, final Deque<Future<ResolvedDuplicates>> inFlight) {
+        if (batch.groups.isEmpty()) return;
+        if (executor == null) {
+            addResolved(resolveBatch(batch));
+            return;
+        }
+
+        inFlight.add(executor.submit(() -> resolveBatch(batch)));
+        while (inFlight.size() > 2 * NUM_THREADS || (!inFlight.isEmpty() && inFlight.peek().isDone())) {
+            addResolved(inFlight.poll());
+        }
+    }
+
+    private ResolvedDuplicates resolveBatch(final DuplicateGroupBatch batch) {
+        final ResolvedDuplicates resolved = new ResolvedDuplicates();
+        for (int i = 0; i < batch.groups.size(); ++i) {
+            if (batch.pairs) markDuplicatePairs(batch.groups.get(i), resolved);
+            else markDuplicateFragments(batch.groups.get(i), batch.groupContainsPairs.get(i), resolved);
+        }
+        return resolved;
+    }
+
+    private void addResolved(final Future<ResolvedDuplicates> future) {
+        try {
+            addResolved(future.get());
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted waiting for a batch of duplicates to be resolved.", ie);
+        } catch (final ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+            throw new PicardException("Failed to resolve a batch of duplicates.", ee.getCause());
+        }
+    }
+
+    private void addResolved(final ResolvedDuplicates resolved) {
+        for (int i = 0; i < resolved.numDuplicates; ++i) addIndexAsDuplicate(resolved.duplicates[i]);
+        for (int i = 0; i < resolved.numOpticalDuplicates; ++i) {
+            if (this.singlePassBuffer != null) this.singlePassBuffer.setFlags(resolved.opticalDuplicates[i], OPTICAL_DUPLICATE);
+            else this.opticalDuplicateIndexes.add(resolved.opticalDuplicates[i]);
+        }
+        this.libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().addHistogram(resolved.opticalDuplicatesByLibraryId);
+    }
+
     private void addIndexAsDuplicate(final long bamIndex) {
-        this.duplicateIndexes.add(bamIndex);
+        if (this.singlePassBuffer != null) this.singlePassBuffer.setFlags(bamIndex, DUPLICATE);
+        else this.duplicateIndexes.add(bamIndex);
         ++this.numDuplicateIndices;
     }
 
@@ -698,8 +1033,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * not be marked as duplicates.  This assumes that the list contains objects representing pairs.
      *
      * @param list
+     * @param resolved the duplicates found so far in the batch, which are added to
      */
-    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list) {
+    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list, final ResolvedDuplicates resolved) {
         short maxScore = 0;
         ReadEndsForMarkDuplicates best = null;
 
@@ -712,20 +1048,20 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         if (this.READ_NAME_REGEX != null) {
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, libraryIdGenerator);
+            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, resolved.opticalDuplicatesByLibraryId);
         }
 
         for (final ReadEndsForMarkDuplicates end : list) {
             if (end != best) {
-                addIndexAsDuplicate(end.read1IndexInFile);
+                resolved.addDuplicate(end.read1IndexInFile);
 
                 // in query-sorted case, these will be the same.
                 // TODO: also in coordinate sorted, when one read is unmapped
-                if(end.read2IndexInFile != end.read1IndexInFile) addIndexAsDuplicate(end.read2IndexInFile);
+                if(end.read2IndexInFile != end.read1IndexInFile) resolved.addDuplicate(end.read2IndexInFile);
 
-                if (end.isOpticalDuplicate && this.opticalDuplicateIndexes != null) {
-                    this.opticalDuplicateIndexes.add(end.read1IndexInFile);
-                    this.opticalDuplicateIndexes.add(end.read2IndexInFile);
+                if (end.isOpticalDuplicate && this.indexOpticalDuplicates) {
+                    resolved.addOpticalDuplicate(end.read1IndexInFile);
+                    resolved.addOpticalDuplicate(end.read2IndexInFile);
                 }
             }
         }
@@ -737,11 +1073,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      *
      * @param list
      * @param containsPairs true if the list also contains objects containing pairs, false otherwise.
+     * @param resolved the duplicates found so far in the batch, which are added to
      */
-    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs, final ResolvedDuplicates resolved) {
         if (containsPairs) {
             for (final ReadEndsForMarkDuplicates end : list) {
-                if (!end.isPaired()) addIndexAsDuplicate(end.read1IndexInFile);
+                if (!end.isPaired()) resolved.addDuplicate(end.read1IndexInFile);
             }
         } else {
             short maxScore = 0;
@@ -755,7 +1092,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             for (final ReadEndsForMarkDuplicates end : list) {
                 if (end != best) {
-                    addIndexAsDuplicate(end.read1IndexInFile);
+                    resolved.addDuplicate(end.read1IndexInFile);
                 }
             }
         }
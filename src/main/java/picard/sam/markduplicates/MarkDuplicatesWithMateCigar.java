@@ -209,24 +209,4 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
             }
         }
     }
-
-    /**
-     * Generate the list of program records seen in the SAM file, approximating this with those in the header that were not
-     * themselves mentioned elsewhere.
-     */
-    private void setPGIdsSeen(final SAMFileHeader header) {
-        final Set<String> pgIdsSeenAsPrevious = new HashSet<String>();
-
-        // get all program record ids that are mentioned as previously seen
-        for (final SAMProgramRecord samProgramRecord : header.getProgramRecords()) {
-            final String previousProgramGroupID = samProgramRecord.getPreviousProgramGroupId();
-            if (null != previousProgramGroupID) pgIdsSeenAsPrevious.add(previousProgramGroupID);
-        }
-
-        // ignore those that were previously seen
-        for (final SAMProgramRecord samProgramRecord : header.getProgramRecords()) {
-            final String pgId = samProgramRecord.getId();
-            if (!pgIdsSeenAsPrevious.contains(pgId)) this.pgIdsSeen.add(pgId);
-        }
-    }
 }
\ No newline at end of file
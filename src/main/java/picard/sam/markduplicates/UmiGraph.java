@@ -45,6 +45,12 @@ import static java.util.stream.Collectors.counting;
  * are 1 Hamming distance so they are joined.  Because A and B are joined and because B and C are joined, this results
  * in A and C being joined even though they have a distance of 2.
  *
+ * With many UMIs, rather than comparing every pair, each UMI is only compared to those that are equal to it in one of
+ * maxEditDistanceToJoin + 1 segments, since two UMIs that differ in no more places than that must agree in at least one
+ * segment.  Large sets of UMIs are searched on the fork-join pool, and UMIs made up of A, C, G and T are compared packed
+ * two bits a base into longs.  The pairs found are joined in the same order as if every pair had been compared, so the
+ * duplicate sets are the same either way.
+ *
  * @author fleharty
  */
 public class UmiGraph {
@@ -56,6 +62,12 @@ public class UmiGraph {
     private final String umiTag;                // UMI tag used in the SAM/BAM/CRAM file ie. RX
     private final String assignedUmiTag;        // Assigned UMI tag used in the SAM/BAM/CRAM file ie. MI
     private final boolean allowMissingUmis;     // Allow for missing UMIs
+    private final long[] packedUmi;             // The UMIs two bits a base, or null if they do not all fit, the index is the UMI ID
+
+    /** The number of UMIs above which only those agreeing in a segment are compared; package-visible for testing. */
+    int minUmisForSegmentIndex = 64;
+    /** The number of UMIs above which they are searched for neighbours on the fork-join pool; package-visible for testing. */
+    int minUmisForParallelSearch = 4096;
 
     public UmiGraph(DuplicateSet set, String umiTag, String assignedUmiTag, boolean allowMissingUmis) {
         this.umiTag = umiTag;
@@ -88,6 +100,27 @@ public class UmiGraph {
             umi[i] = key;
             i++;
         }
+        packedUmi = packUmis(umi);
+    }
+
+    /** Packs the UMIs two bits a base, or returns null if any of them is longer than 32 bases or has other bases than A, C, G and T. */
+    private static long[] packUmis(final String[] umi) {
+        final long[] packed = new long[umi.length];
+        for (int i = 0; i < umi.length; i++) {
+            if (umi[i].length() > 32) return null;
+            for (int j = 0; j < umi[i].length(); j++) {
+                final long code;
+                switch (umi[i].charAt(j)) {
+                    case 'A': code = 0; break;
+                    case 'C': code = 1; break;
+                    case 'G': code = 2; break;
+                    case 'T': code = 3; break;
+                    default: return null;
+                }
+                packed[i] |= code << (2 * j);
+            }
+        }
+        return packed;
     }
 
     // Part of Union-Find with Path Compression to determine the duplicate set a particular UMI belongs to.
@@ -115,11 +148,10 @@ public class UmiGraph {
     List<DuplicateSet> joinUmisIntoDuplicateSets(final int maxEditDistanceToJoin) {
         // Compare all UMIs to each other.  If they are within maxEditDistanceToJoin
         // join them to the same duplicate set using the union-find algorithm.
+        final int[][] neighbours = findNeighbours(maxEditDistanceToJoin);
         for (int i = 0; i < numUmis; i++) {
-            for (int j = i + 1; j < numUmis; j++) {
-                if (isWithinEditDistance(umi[i], umi[j], maxEditDistanceToJoin)) {
-                    joinUmisIntoDuplicateSet(i, j);
-                }
+            for (final int j : neighbours[i]) {
+                joinUmisIntoDuplicateSet(i, j);
             }
         }
 
@@ -188,6 +220,123 @@ public class UmiGraph {
         return duplicateSetList;
     }
 
+    /**
+     * Finds, for each UMI, the UMIs after it that are within maxEditDistanceToJoin of it, in ascending order.  With
+     * enough UMIs, only those that agree with it in one of maxEditDistanceToJoin + 1 segments are compared.
+     */
+    private int[][] findNeighbours(final int maxEditDistanceToJoin) {
+        final int[][] neighbours = new int[numUmis][];
+        final int numSegments = maxEditDistanceToJoin + 1;
+        final int length = numUmis == 0 ? 0 : umi[0].length();
+
+        if (numUmis <= minUmisForSegmentIndex || maxEditDistanceToJoin < 0 || numSegments > length) {
+            final int[] found = new int[numUmis];
+            for (int i = 0; i < numUmis; i++) {
+                int numFound = 0;
+                for (int j = i + 1; j < numUmis; j++) {
+                    if (isWithinEditDistance(i, j, maxEditDistanceToJoin)) found[numFound++] = j;
+                }
+                neighbours[i] = Arrays.copyOf(found, numFound);
+            }
+            return neighbours;
+        }
+
+        // Every pair of UMIs would have been compared, so those of different lengths fail as they would have
+        for (int i = 1; i < numUmis; i++) {
+            if (umi[i].length() != length) {
+                throw new PicardException("Attempting to determine if two UMIs of different length were within a specified edit distance.");
+            }
+        }
+
+        final SegmentIndex index = new SegmentIndex(numSegments, length);
+        final IntStream ids = IntStream.range(0, numUmis);
+        (numUmis > minUmisForParallelSearch ? ids.parallel() : ids).forEach(i ->
+                neighbours[i] = index.findNeighboursAfter(i, maxEditDistanceToJoin));
+        return neighbours;
+    }
+
+    /** Whether the UMIs with the given IDs are within editDistance of each other. */
+    private boolean isWithinEditDistance(final int umi1ID, final int umi2ID, final int editDistance) {
+        if (packedUmi == null || umi[umi1ID].length() != umi[umi2ID].length()) {
+            return isWithinEditDistance(umi[umi1ID], umi[umi2ID], editDistance);
+        }
+        // A base differs if either of its two bits does
+        final long difference = packedUmi[umi1ID] ^ packedUmi[umi2ID];
+        return Long.bitCount((difference | (difference >>> 1)) & 0x5555555555555555L) <= editDistance;
+    }
+
+    /**
+     * The IDs of the UMIs by the content of each of their segments, in ascending order, so that the UMIs that agree with
+     * one in a segment can be found without looking at the others.
+     */
+    private final class SegmentIndex {
+        private final int[] segmentStart;
+        private final List<Map<Long, IdList>> idsBySegment = new ArrayList<>();
+
+        private SegmentIndex(final int numSegments, final int length) {
+            segmentStart = new int[numSegments + 1];
+            for (int s = 0; s <= numSegments; s++) segmentStart[s] = s * length / numSegments;
+
+            for (int s = 0; s < numSegments; s++) {
+                final Map<Long, IdList> ids = new HashMap<>();
+                for (int i = 0; i < numUmis; i++) {
+                    ids.computeIfAbsent(segmentKey(i, s), k -> new IdList()).add(i);
+                }
+                idsBySegment.add(ids);
+            }
+        }
+
+        /**
+         * The content of a segment of a UMI: its bases if the UMIs are packed, else a hash of them, since UMIs that merely
+         * share a hash are compared and found not to be neighbours.
+         */
+        private long segmentKey(final int umiID, final int segment) {
+            final int start = segmentStart[segment];
+            final int end = segmentStart[segment + 1];
+            if (packedUmi != null) {
+                final int bits = 2 * (end - start);
+                return bits == 64 ? packedUmi[umiID] : (packedUmi[umiID] >>> (2 * start)) & ((1L << bits) - 1);
+            }
+            long key = 0;
+            for (int k = start; k < end; k++) key = 31 * key + umi[umiID].charAt(k);
+            return key;
+        }
+
+        private int[] findNeighboursAfter(final int umiID, final int maxEditDistanceToJoin) {
+            int[] candidates = new int[16];
+            int numCandidates = 0;
+            for (int s = 0; s < idsBySegment.size(); s++) {
+                final IdList ids = idsBySegment.get(s).get(segmentKey(umiID, s));
+                int from = Arrays.binarySearch(ids.ids, 0, ids.size, umiID) + 1;
+                if (numCandidates + ids.size - from > candidates.length) {
+                    candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length, numCandidates + ids.size - from));
+                }
+                System.arraycopy(ids.ids, from, candidates, numCandidates, ids.size - from);
+                numCandidates += ids.size - from;
+            }
+            Arrays.sort(candidates, 0, numCandidates);
+
+            int numFound = 0;
+            for (int c = 0; c < numCandidates; c++) {
+                final int j = candidates[c];
+                if (c > 0 && j == candidates[c - 1]) continue; // agrees in more than one segment
+                if (isWithinEditDistance(umiID, j, maxEditDistanceToJoin)) candidates[numFound++] = j;
+            }
+            return Arrays.copyOf(candidates, numFound);
+        }
+    }
+
+    /** The IDs of UMIs, in the order they were added. */
+    private static final class IdList {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        private void add(final int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, 2 * size);
+            ids[size++] = id;
+        }
+    }
+
     // Determine if the two strings s1 and s2 are within edit distance of editDistance.
     // TODO: use HTSJDK version when this become available
     private boolean isWithinEditDistance(final String s1, final String s2, final int editDistance) {
@@ -117,6 +117,26 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
     protected final Set<String> pgIdsSeen = new HashSet<>();
 
 
+    /**
+     * Generate the list of program records seen in the SAM file, approximating this with those in the header that were not
+     * themselves mentioned elsewhere.
+     */
+    protected void setPGIdsSeen(final SAMFileHeader header) {
+        final Set<String> pgIdsSeenAsPrevious = new HashSet<String>();
+
+        // get all program record ids that are mentioned as previously seen
+        for (final SAMProgramRecord samProgramRecord : header.getProgramRecords()) {
+            final String previousProgramGroupID = samProgramRecord.getPreviousProgramGroupId();
+            if (null != previousProgramGroupID) pgIdsSeenAsPrevious.add(previousProgramGroupID);
+        }
+
+        // ignore those that were previously seen
+        for (final SAMProgramRecord samProgramRecord : header.getProgramRecords()) {
+            final String pgId = samProgramRecord.getId();
+            if (!pgIdsSeenAsPrevious.contains(pgId)) this.pgIdsSeen.add(pgId);
+        }
+    }
+
     /**
      * We have to re-chain the program groups based on this algorithm.  This returns the map from existing program group ID
      * to new program group ID.
@@ -244,6 +264,17 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
                                               final ReadEnds keeper,
                                               final OpticalDuplicateFinder opticalDuplicateFinder,
                                               final LibraryIdGenerator libraryIdGenerator) {
+        trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+    }
+
+    /**
+     * As above, but counts the optical duplicates in the given histogram, e.g. one kept by a single thread and added
+     * to the LibraryIdGenerator's afterwards.
+     */
+    public static void trackOpticalDuplicates(List<? extends ReadEnds> ends,
+                                              final ReadEnds keeper,
+                                              final OpticalDuplicateFinder opticalDuplicateFinder,
+                                              final Histogram<Short> opticalDuplicatesByLibraryId) {
         boolean hasFR = false, hasRF = false;
 
         // Check to see if we have a mixture of FR/RF
@@ -273,10 +304,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
             }
 
             // track the duplicates
-            trackOpticalDuplicates(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
-            trackOpticalDuplicates(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesWithOneOrientation(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
+            trackOpticalDuplicatesWithOneOrientation(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         } else { // No need to partition
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesWithOneOrientation(ends, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         }
     }
 
@@ -290,10 +321,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
      * optical duplicate detection, we do not consider them duplicates if one read as FR and the other RF when we order orientation by the
      * first mate sequenced (read #1 of the pair).
      */
-    private static void trackOpticalDuplicates(final List<? extends ReadEnds> list,
-                                               final ReadEnds keeper,
-                                               final OpticalDuplicateFinder opticalDuplicateFinder,
-                                               final Histogram<Short> opticalDuplicatesByLibraryId) {
+    private static void trackOpticalDuplicatesWithOneOrientation(final List<? extends ReadEnds> list,
+                                                                 final ReadEnds keeper,
+                                                                 final OpticalDuplicateFinder opticalDuplicateFinder,
+                                                                 final Histogram<Short> opticalDuplicatesByLibraryId) {
         final boolean[] opticalDuplicateFlags = opticalDuplicateFinder.findOpticalDuplicates(list, keeper);
 
         int opticalDuplicates = 0;
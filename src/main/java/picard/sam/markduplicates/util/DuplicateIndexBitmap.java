@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds the indexes in the file of the records to be marked as duplicates, as a drop-in replacement for the
+ * SortingLongCollection MarkDuplicates used to keep them in.  Record indexes are dense and start at 0, so rather than
+ * keep each one as a long and sort them, they are kept as a compressed bitmap in the manner of a roaring bitmap: the
+ * indexes are split into chunks of 2^16 by their high bits, and the low 16 bits of the indexes in each chunk are kept
+ * either as a sorted array of chars, while there are at most 4096 of them, or as a bitmap of 1024 longs.  A chunk
+ * therefore never takes more than 8KB, i.e. one bit per record in the file, and sparse chunks take two bytes per
+ * duplicate, against the eight of a long; adding an index is a binary search or a single bit, and nothing needs to
+ * be sorted before iterating.
+ *
+ * Should the chunks ever take more than maxBytesInRam, e.g. for inputs of tens of billions of records, they are
+ * written in order to a temporary file and the bitmap starts over, and iteration ORs each chunk of those files with
+ * the chunk in memory.
+ *
+ * Like SortingLongCollection, the indexes are added, then doneAdding() is called, after which they are read in
+ * ascending order, once each however many times they were added, through hasNext() and next().  cleanup() deletes
+ * the temporary files.
+ */
+public class DuplicateIndexBitmap {
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    /** The number of longs in the bitmap of a chunk. */
+    private static final int BITMAP_LONGS = 1 << (CHUNK_SHIFT - 6);
+
+    /** The most indexes a chunk keeps in an array, past which the array would be larger than a bitmap. */
+    private static final int MAX_ARRAY_SIZE = BITMAP_LONGS * 8 / 2;
+
+    private static final int INITIAL_ARRAY_SIZE = 4;
+
+    /** A rough count of the bytes an object and its reference take, besides its fields. */
+    private static final int OBJECT_OVERHEAD = 32;
+
+    private final long maxBytesInRam;
+    private final File[] tmpDirs;
+
+    // The chunks in memory by the high bits of their indexes, and the bytes of memory they take
+    private Chunk[] chunks = new Chunk[16];
+    private long bytesInRam = 0;
+
+    private final List<File> files = new ArrayList<>();
+    private boolean doneAdding = false;
+
+    // While iterating, the temporary files being read, the bits of the current chunk, and the next index to return
+    private final List<ChunkReader> readers = new ArrayList<>();
+    private final long[] bits = new long[BITMAP_LONGS];
+    private int nextChunk = 0;
+    private long currentChunk = -1;
+    private long next = -1;
+
+    /**
+     * @param maxBytesInRam the memory the chunks may take before they are written to a temporary file
+     * @param tmpDirs the directories to write the files to
+     */
+    public DuplicateIndexBitmap(final long maxBytesInRam, final List<File> tmpDirs) {
+        if (maxBytesInRam < 1) throw new IllegalArgumentException("maxBytesInRam must be at least 1 but was " + maxBytesInRam);
+        this.maxBytesInRam = maxBytesInRam;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+    }
+
+    /** Adds the index of a record in the file, which may already have been added. */
+    public void add(final long index) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (index < 0) throw new IllegalArgumentException("Indexes cannot be negative but got " + index);
+
+        final long high = index >>> CHUNK_SHIFT;
+        if (high > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Index too large: " + index);
+        final int chunkIndex = (int) high;
+        if (chunkIndex >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(chunkIndex + 1, (int) Math.min(2L * chunks.length, Integer.MAX_VALUE - 8)));
+        }
+
+        Chunk chunk = chunks[chunkIndex];
+        if (chunk == null) {
+            chunk = chunks[chunkIndex] = new Chunk();
+            bytesInRam += OBJECT_OVERHEAD + chunk.getSizeInBytes();
+        }
+        final long before = chunk.getSizeInBytes();
+        chunk.add((int) index & CHUNK_MASK);
+        bytesInRam += chunk.getSizeInBytes() - before;
+
+        if (bytesInRam > maxBytesInRam) spill();
+    }
+
+    /** Whether the index was added; only answered while adding, and as long as no chunks were written to a file. */
+    public boolean contains(final long index) {
+        if (doneAdding) throw new IllegalStateException("Cannot look up indexes after calling doneAdding()");
+        if (!files.isEmpty()) throw new IllegalStateException("Cannot look up indexes once they have been written to a file");
+        final long high = index >>> CHUNK_SHIFT;
+        if (index < 0 || high >= chunks.length) return false;
+        final Chunk chunk = chunks[(int) high];
+        return chunk != null && chunk.contains((int) index & CHUNK_MASK);
+    }
+
+    /** The memory taken by the chunks held in memory, roughly. */
+    public long getBytesInRam() {
+        return bytesInRam;
+    }
+
+    /** Stops adding indexes and starts reading them back in order. */
+    public void doneAdding() {
+        if (doneAdding) return;
+        doneAdding = true;
+        for (final File file : files) readers.add(new ChunkReader(file));
+        advance();
+    }
+
+    public boolean hasNext() {
+        if (!doneAdding) throw new IllegalStateException("Cannot read before calling doneAdding()");
+        return next != -1;
+    }
+
+    /** Returns the next index in ascending order. */
+    public long next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final long result = next;
+        advance();
+        return result;
+    }
+
+    /** Deletes the temporary files and lets go of the memory. */
+    public void cleanup() {
+        for (final ChunkReader reader : readers) reader.close();
+        readers.clear();
+        for (final File file : files) IOUtil.deleteFiles(file);
+        files.clear();
+        chunks = new Chunk[0];
+        bytesInRam = 0;
+        next = -1;
+    }
+
+    /** Writes the chunks in memory, in order, to a new temporary file and empties the bitmap. */
+    private void spill() {
+        try {
+            final File file = IOUtil.newTempFile("duplicateIndexes.", ".tmp", tmpDirs, IOUtil.FIVE_GBS);
+            file.deleteOnExit();
+            files.add(file);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (int i = 0; i < chunks.length; ++i) {
+                    if (chunks[i] != null) chunks[i].write(i, out);
+                }
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not write duplicate indexes to a temporary file", ioe);
+        }
+        chunks = new Chunk[16];
+        bytesInRam = 0;
+    }
+
+    /** Moves next to the first index after it, going on to the next chunk, from memory or the files, if need be. */
+    private void advance() {
+        final long fromBit = next == -1 ? 0 : (next & CHUNK_MASK) + 1;
+        if (currentChunk != -1) {
+            final int bit = nextSetBit((int) fromBit);
+            if (bit != -1) {
+                next = (currentChunk << CHUNK_SHIFT) | bit;
+                return;
+            }
+        }
+
+        // The next chunk is the lowest one in memory or at the head of a file
+        while (nextChunk < chunks.length && chunks[nextChunk] == null) ++nextChunk;
+        long chunkIndex = nextChunk < chunks.length ? nextChunk : Long.MAX_VALUE;
+        for (final ChunkReader reader : readers) {
+            if (reader.chunkIndex != -1) chunkIndex = Math.min(chunkIndex, reader.chunkIndex);
+        }
+        if (chunkIndex == Long.MAX_VALUE) {
+            currentChunk = -1;
+            next = -1;
+            return;
+        }
+
+        Arrays.fill(bits, 0);
+        if (chunkIndex == nextChunk) {
+            chunks[nextChunk].orInto(bits);
+            chunks[nextChunk++] = null;
+        }
+        for (final ChunkReader reader : readers) {
+            if (reader.chunkIndex == chunkIndex) reader.orInto(bits);
+        }
+        currentChunk = chunkIndex;
+        next = (currentChunk << CHUNK_SHIFT) | nextSetBit(0);
+    }
+
+    /** Returns the first bit of the current chunk at or after the given one that is set, or -1 if there is none. */
+    private int nextSetBit(final int fromBit) {
+        int word = fromBit >>> 6;
+        if (word >= BITMAP_LONGS) return -1;
+        long remaining = bits[word] & (-1L << fromBit);
+        while (true) {
+            if (remaining != 0) return (word << 6) + Long.numberOfTrailingZeros(remaining);
+            if (++word == BITMAP_LONGS) return -1;
+            remaining = bits[word];
+        }
+    }
+
+    /** The low bits of the indexes in a chunk, as a sorted array or, once there are too many, as a bitmap. */
+    private static final class Chunk {
+        private char[] array = new char[INITIAL_ARRAY_SIZE];
+        private int size = 0;
+        private long[] bitmap = null;
+
+        void add(final int low) {
+            if (bitmap != null) {
+                bitmap[low >>> 6] |= 1L << low;
+                return;
+            }
+
+            final int position = Arrays.binarySearch(array, 0, size, (char) low);
+            if (position >= 0) return;
+            if (size == MAX_ARRAY_SIZE) {
+                final long[] bits = new long[BITMAP_LONGS];
+                orInto(bits);
+                bitmap = bits;
+                array = null;
+                bitmap[low >>> 6] |= 1L << low;
+                return;
+            }
+
+            final int insertAt = -position - 1;
+            if (size == array.length) array = Arrays.copyOf(array, Math.min(2 * size, MAX_ARRAY_SIZE));
+            System.arraycopy(array, insertAt, array, insertAt + 1, size - insertAt);
+            array[insertAt] = (char) low;
+            ++size;
+        }
+
+        boolean contains(final int low) {
+            if (bitmap != null) return (bitmap[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(array, 0, size, (char) low) >= 0;
+        }
+
+        void orInto(final long[] bits) {
+            if (bitmap != null) {
+                for (int i = 0; i < BITMAP_LONGS; ++i) bits[i] |= bitmap[i];
+            } else {
+                for (int i = 0; i < size; ++i) bits[array[i] >>> 6] |= 1L << array[i];
+            }
+        }
+
+        long getSizeInBytes() {
+            return bitmap != null ? 8L * BITMAP_LONGS : 2L * array.length;
+        }
+
+        /** Writes the chunk index, then either the number of indexes and their low bits, or -1 and the bitmap. */
+        void write(final int chunkIndex, final DataOutputStream out) throws IOException {
+            out.writeInt(chunkIndex);
+            if (bitmap != null) {
+                out.writeInt(-1);
+                for (final long word : bitmap) out.writeLong(word);
+            } else {
+                out.writeInt(size);
+                for (int i = 0; i < size; ++i) out.writeChar(array[i]);
+            }
+        }
+    }
+
+    /** Reads the chunks written to a temporary file by spill(), one at a time. */
+    private static final class ChunkReader {
+        private final DataInputStream in;
+        // The index of the chunk at the head of the file, whose contents are yet to be read, or -1 at the end
+        private long chunkIndex;
+
+        ChunkReader(final File file) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not open temporary file " + file.getAbsolutePath(), ioe);
+            }
+            readChunkIndex();
+        }
+
+        /** ORs the chunk at the head of the file into the bits and moves on to the next one. */
+        void orInto(final long[] bits) {
+            try {
+                final int size = in.readInt();
+                if (size == -1) {
+                    for (int i = 0; i < BITMAP_LONGS; ++i) bits[i] |= in.readLong();
+                } else {
+                    for (int i = 0; i < size; ++i) {
+                        final int low = in.readChar();
+                        bits[low >>> 6] |= 1L << low;
+                    }
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not read duplicate indexes from a temporary file", ioe);
+            }
+            readChunkIndex();
+        }
+
+        private void readChunkIndex() {
+            try {
+                chunkIndex = in.readInt();
+            } catch (final EOFException eof) {
+                chunkIndex = -1;
+                close();
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not read duplicate indexes from a temporary file", ioe);
+            }
+        }
+
+        void close() {
+            CloserUtil.close(in);
+        }
+    }
+}
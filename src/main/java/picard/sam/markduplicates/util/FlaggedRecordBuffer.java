@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A first-in first-out buffer of records, each with a few bits of flags that can be set, by its ordinal, at any time
+ * until it is taken out.  It is for holding records back until something about them is known, e.g. whether they are
+ * duplicates, when that may take a long way through the input to learn and the records must still come out in order.
+ *
+ * Up to maxRecordsInRam records are held in memory.  Once they are, the records added after them are appended to a
+ * single temporary file, with one writer, and read back from it in order, with one reader, as the records before them
+ * are taken out; records are only held in memory again once the file has been read to its end, when it is deleted.
+ * However far back the head of the buffer is held, each record is thus written and read at most once, sequentially,
+ * and no more than one file is open.  The flags, four bits a record, are always held in memory.
+ */
+public class FlaggedRecordBuffer {
+    /** The most flags a record can have: they must fit in the bits of this mask. */
+    public static final int FLAGS_MASK = 0xF;
+
+    private static final int FLAGS_PER_LONG = 16;
+
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+    private final BAMRecordCodec writeCodec;
+    private final BAMRecordCodec readCodec;
+
+    // The records at the head of the buffer, before any in the file
+    private final Deque<SAMRecord> recordsInRam = new ArrayDeque<>();
+
+    // The file the records after those in memory are spilled to, and the records written to it, flushed and read back
+    private File file = null;
+    private OutputStream fileOut = null;
+    private InputStream fileIn = null;
+    private long recordsWritten = 0;
+    private long recordsFlushed = 0;
+    private long recordsRead = 0;
+
+    // The ordinals of the first record in the buffer and of the next record to be added
+    private long headOrdinal = 0;
+    private long tailOrdinal = 0;
+
+    // The flags of the records in the buffer, in a ring indexed by ordinal
+    private long[] flags = new long[64];
+
+    /**
+     * @param maxRecordsInRam the number of records that may be held in memory, after which they are written to disk
+     * @param tmpDirs the directories to write the temporary file to
+     * @param header the header of the records, for encoding them
+     */
+    public FlaggedRecordBuffer(final int maxRecordsInRam, final List<File> tmpDirs, final SAMFileHeader header) {
+        if (maxRecordsInRam < 0) throw new IllegalArgumentException("maxRecordsInRam must not be negative but was " + maxRecordsInRam);
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.writeCodec = new BAMRecordCodec(header);
+        this.readCodec = new BAMRecordCodec(header);
+    }
+
+    /** Adds a record to the end of the buffer, with no flags set, and returns its ordinal. */
+    public long add(final SAMRecord record) {
+        if (file == null && recordsInRam.size() < maxRecordsInRam) {
+            recordsInRam.addLast(record);
+        } else {
+            writeToFile(record);
+        }
+
+        if (tailOrdinal - headOrdinal == (long) flags.length * FLAGS_PER_LONG) growFlags();
+        return tailOrdinal++;
+    }
+
+    /** Sets the given flags of the record with the given ordinal, which must still be in the buffer, leaving the others. */
+    public void setFlags(final long ordinal, final int flagsToSet) {
+        if (ordinal < headOrdinal || ordinal >= tailOrdinal) {
+            throw new IllegalArgumentException("Record " + ordinal + " is not in the buffer, which holds records " + headOrdinal + " to " + (tailOrdinal - 1));
+        }
+        final int cell = cellOf(ordinal);
+        flags[cell / FLAGS_PER_LONG] |= (long) (flagsToSet & FLAGS_MASK) << (4 * (cell % FLAGS_PER_LONG));
+    }
+
+    /** The flags of the first record in the buffer. */
+    public int getHeadFlags() {
+        if (isEmpty()) throw new NoSuchElementException();
+        final int cell = cellOf(headOrdinal);
+        return (int) (flags[cell / FLAGS_PER_LONG] >>> (4 * (cell % FLAGS_PER_LONG))) & FLAGS_MASK;
+    }
+
+    /** Takes the first record out of the buffer. */
+    public SAMRecord remove() {
+        if (isEmpty()) throw new NoSuchElementException();
+        final SAMRecord record = recordsInRam.isEmpty() ? readFromFile() : recordsInRam.removeFirst();
+
+        final int cell = cellOf(headOrdinal);
+        flags[cell / FLAGS_PER_LONG] &= ~((long) FLAGS_MASK << (4 * (cell % FLAGS_PER_LONG)));
+        ++headOrdinal;
+        return record;
+    }
+
+    public boolean isEmpty() {
+        return headOrdinal == tailOrdinal;
+    }
+
+    /** The number of records in the buffer. */
+    public long size() {
+        return tailOrdinal - headOrdinal;
+    }
+
+    /** Empties the buffer, deleting the temporary file if there is one. */
+    public void close() {
+        recordsInRam.clear();
+        deleteFile();
+        headOrdinal = tailOrdinal;
+    }
+
+    private void writeToFile(final SAMRecord record) {
+        try {
+            if (file == null) {
+                file = IOUtil.newTempFile("records.", ".tmp", tmpDirs, IOUtil.FIVE_GBS);
+                file.deleteOnExit();
+                fileOut = new BufferedOutputStream(new FileOutputStream(file), Defaults.NON_ZERO_BUFFER_SIZE);
+                fileIn = new BufferedInputStream(new FileInputStream(file), Defaults.NON_ZERO_BUFFER_SIZE);
+                writeCodec.setOutputStream(fileOut, file.getAbsolutePath());
+                readCodec.setInputStream(fileIn, file.getAbsolutePath());
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not create a temporary file for records", ioe);
+        }
+        writeCodec.encode(record);
+        ++recordsWritten;
+    }
+
+    private SAMRecord readFromFile() {
+        // The reader only sees what the writer has flushed, so flush once it has read all of that
+        if (recordsRead == recordsFlushed) {
+            try {
+                fileOut.flush();
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not write records to temporary file " + file.getAbsolutePath(), ioe);
+            }
+            recordsFlushed = recordsWritten;
+        }
+        final SAMRecord record = readCodec.decode();
+        if (record == null) throw new PicardException("Unexpected end of temporary file " + file.getAbsolutePath());
+        if (++recordsRead == recordsWritten) deleteFile();
+        return record;
+    }
+
+    /** Closes and deletes the temporary file, all of whose records have been read or are no longer wanted. */
+    private void deleteFile() {
+        if (file == null) return;
+        try {
+            fileOut.close();
+            fileIn.close();
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not close temporary file " + file.getAbsolutePath(), ioe);
+        } finally {
+            IOUtil.deleteFiles(file);
+            file = null;
+            fileOut = null;
+            fileIn = null;
+            recordsWritten = 0;
+            recordsFlushed = 0;
+            recordsRead = 0;
+        }
+    }
+
+    private int cellOf(final long ordinal) {
+        return (int) (ordinal & ((long) flags.length * FLAGS_PER_LONG - 1));
+    }
+
+    /** Doubles the ring of flags, which is full, keeping the flags of the records in the buffer. */
+    private void growFlags() {
+        final long[] oldFlags = flags;
+        final int oldCells = oldFlags.length * FLAGS_PER_LONG;
+        flags = new long[2 * oldFlags.length];
+        for (long ordinal = headOrdinal; ordinal < tailOrdinal; ++ordinal) {
+            final int oldCell = (int) (ordinal & (oldCells - 1));
+            final long value = (oldFlags[oldCell / FLAGS_PER_LONG] >>> (4 * (oldCell % FLAGS_PER_LONG))) & FLAGS_MASK;
+            final int cell = cellOf(ordinal);
+            flags[cell / FLAGS_PER_LONG] |= value << (4 * (cell % FLAGS_PER_LONG));
+        }
+    }
+}
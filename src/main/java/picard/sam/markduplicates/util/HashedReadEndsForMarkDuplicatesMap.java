@@ -0,0 +1,447 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * ReadEndsForMarkDuplicatesMap keyed by a 128-bit hash (MurmurHash3 x64_128) of the read group and read name, rather
+ * than by their concatenation, and holding the read ends in open-addressing hash tables in direct (off-heap) memory,
+ * in the packed layout of PackedReadEndsStore.  The hash is computed over the characters of the key the other maps
+ * are given, so the two kinds of put() and remove() can be mixed, but looking reads up by read group and name builds
+ * no string.  Two keys are taken to be the same if their hashes are; at 128 bits, the chance of any two reads of even
+ * billions colliding is negligible.
+ *
+ * The keys are split by the top bits of their hash into partitions, each with its own table.  The tables, and the
+ * hashes kept for reads already written out, are reserved from a ReadEndsMemoryBudget, which the map may share with
+ * PackedReadEndsStores.  When the map takes more than its part of the budget, the largest partition is written to a
+ * single temporary file and only the hashes of its reads and their offsets in the file are kept, in a smaller table
+ * on the heap; later reads of that partition go to a new table in memory, and a lookup that misses in memory checks
+ * the offsets before reading the read ends back from the file.  A partition whose table has grown as large as a
+ * direct buffer can be is written out the same way when it fills up.  Unlike DiskBasedReadEndsForMarkDuplicatesMap,
+ * which keeps a file per reference sequence, the map never has more than one file open, however many sequences there
+ * are, and what is written depends on the reads rather than on where their mates are.
+ *
+ * The mate sequence index is not needed and is ignored.  cleanup() deletes the temporary file.
+ */
+public class HashedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap {
+    private static final int PARTITION_BITS = 6;
+    private static final int NUM_PARTITIONS = 1 << PARTITION_BITS;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Slots are empty, hold a read, or held one that was removed and must still be probed past. */
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte REMOVED = 2;
+
+    /** A slot holds its state, the two halves of the hash, then the read ends. */
+    private static final int KEY_OFFSET = 1;
+    private static final int RECORD_OFFSET = KEY_OFFSET + 2 * 8;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5af49597f29bdL;
+
+    private final boolean useBarcodes;
+    private final int recordLength;
+    private final int slotSize;
+    private final int maxCapacity;
+    private final ReadEndsMemoryBudget.Client memory;
+    private final File[] tmpDirs;
+
+    private final Partition[] partitions = new Partition[NUM_PARTITIONS];
+    private int size = 0;
+    private int sizeInRam = 0;
+
+    // The file partitions are written to, and a buffer for reading or writing read ends
+    private File file = null;
+    private FileChannel channel = null;
+    private long fileLength = 0;
+    private final ByteBuffer ioBuffer;
+
+    // The hash of the last key, and the state of the hash while it is computed
+    private long hash1;
+    private long hash2;
+    private long block1;
+    private long block2;
+    private int hashedChars;
+
+    /**
+     * @param useBarcodes whether the read ends are ReadEndsForMarkDuplicatesWithBarcodes
+     * @param maxBytesInRam the memory the tables of read ends and the hashes of those written out may take before a
+     *                      partition is written to a file
+     * @param tmpDirs the directories to write the file to
+     */
+    public HashedReadEndsForMarkDuplicatesMap(final boolean useBarcodes, final long maxBytesInRam, final List<File> tmpDirs) {
+        this(useBarcodes, new ReadEndsMemoryBudget(maxBytesInRam), tmpDirs);
+    }
+
+    /**
+     * @param useBarcodes whether the read ends are ReadEndsForMarkDuplicatesWithBarcodes
+     * @param budget the memory budget the tables of read ends and the hashes of those written out are taken from
+     * @param tmpDirs the directories to write the file to
+     */
+    public HashedReadEndsForMarkDuplicatesMap(final boolean useBarcodes, final ReadEndsMemoryBudget budget, final List<File> tmpDirs) {
+        this.useBarcodes = useBarcodes;
+        this.recordLength = PackedReadEndsStore.getRecordLength(useBarcodes);
+        this.slotSize = RECORD_OFFSET + recordLength;
+        this.maxCapacity = Integer.highestOneBit(Integer.MAX_VALUE / slotSize);
+        this.memory = budget.newClient();
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.ioBuffer = ByteBuffer.allocateDirect(recordLength);
+        for (int i = 0; i < NUM_PARTITIONS; ++i) partitions[i] = new Partition();
+    }
+
+    @Override
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final String key) {
+        startHash();
+        addToHash(key);
+        finishHash();
+        return remove();
+    }
+
+    @Override
+    public void put(final int mateSequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        startHash();
+        addToHash(key);
+        finishHash();
+        put(readEnds);
+    }
+
+    @Override
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final Object readGroup, final String readName) {
+        hash(readGroup, readName);
+        return remove();
+    }
+
+    @Override
+    public void put(final int mateSequenceIndex, final Object readGroup, final String readName, final ReadEndsForMarkDuplicates readEnds) {
+        hash(readGroup, readName);
+        put(readEnds);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int sizeInRam() {
+        return sizeInRam;
+    }
+
+    @Override
+    public void cleanup() {
+        for (int i = 0; i < NUM_PARTITIONS; ++i) partitions[i] = new Partition();
+        memory.close();
+        size = 0;
+        sizeInRam = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not close temporary file " + file.getAbsolutePath(), ioe);
+            } finally {
+                IOUtil.deleteFiles(file);
+                channel = null;
+                file = null;
+            }
+        }
+    }
+
+    /** Removes the read ends whose key hashed to hash1 and hash2. */
+    private ReadEndsForMarkDuplicates remove() {
+        final Partition partition = partitions[(int) (hash1 >>> (64 - PARTITION_BITS))];
+        ReadEndsForMarkDuplicates ends = partition.removeFromTable();
+        if (ends != null) {
+            --sizeInRam;
+        } else {
+            ends = partition.removeFromFile();
+            if (ends == null) return null;
+        }
+        --size;
+        return ends;
+    }
+
+    /** Adds the read ends under the key that hashed to hash1 and hash2, which must not be in the map already. */
+    private void put(final ReadEndsForMarkDuplicates readEnds) {
+        partitions[(int) (hash1 >>> (64 - PARTITION_BITS))].put(readEnds);
+        ++size;
+        ++sizeInRam;
+
+        while (memory.isOverBudget()) {
+            Partition largest = partitions[0];
+            for (final Partition partition : partitions) {
+                if (partition.live > largest.live) largest = partition;
+            }
+            if (largest.live == 0) break;
+            largest.spill();
+        }
+    }
+
+    /** A partition of the keys, with a table of read ends in memory and the offsets of those written to the file. */
+    private final class Partition {
+        private ByteBuffer table = null;
+        private int capacity = 0;
+        // The slots holding reads, and those holding reads or marked as removed
+        private int live = 0;
+        private int used = 0;
+
+        // The hashes of the reads written to the file, and their offsets plus one, 0 being empty and -1 removed
+        private long[] spilled = null;
+        private int spilledUsed = 0;
+
+        void put(final ReadEndsForMarkDuplicates readEnds) {
+            if (2 * (used + 1) > capacity) {
+                // Grow the table, unless it is mostly reads that were removed, in which case rehashing makes room,
+                // or it can grow no further, in which case it is written out and a new one started
+                final boolean grow = 4 * (live + 1) > capacity;
+                if (grow && capacity == maxCapacity) spill();
+                resize(grow ? Math.min(maxCapacity, Math.max(INITIAL_CAPACITY, 2 * capacity)) : capacity);
+            }
+            int slot = slotFor(capacity);
+            while (table.get(slot * slotSize) == FULL) slot = (slot + 1) & (capacity - 1);
+            final int offset = slot * slotSize;
+            if (table.get(offset) == EMPTY) ++used;
+            table.put(offset, FULL);
+            table.putLong(offset + KEY_OFFSET, hash1);
+            table.putLong(offset + KEY_OFFSET + 8, hash2);
+            PackedReadEndsStore.encode(readEnds, table, offset + RECORD_OFFSET, useBarcodes);
+            ++live;
+        }
+
+        ReadEndsForMarkDuplicates removeFromTable() {
+            if (live == 0) return null;
+            for (int slot = slotFor(capacity); ; slot = (slot + 1) & (capacity - 1)) {
+                final int offset = slot * slotSize;
+                final byte state = table.get(offset);
+                if (state == EMPTY) return null;
+                if (state == FULL && table.getLong(offset + KEY_OFFSET) == hash1 && table.getLong(offset + KEY_OFFSET + 8) == hash2) {
+                    table.put(offset, REMOVED);
+                    --live;
+                    return PackedReadEndsStore.decode(table, offset + RECORD_OFFSET, useBarcodes);
+                }
+            }
+        }
+
+        ReadEndsForMarkDuplicates removeFromFile() {
+            if (spilled == null) return null;
+            final int spilledCapacity = spilled.length / 3;
+            for (int slot = slotFor(spilledCapacity); ; slot = (slot + 1) & (spilledCapacity - 1)) {
+                final long offsetPlusOne = spilled[3 * slot + 2];
+                if (offsetPlusOne == 0) return null;
+                if (offsetPlusOne > 0 && spilled[3 * slot] == hash1 && spilled[3 * slot + 1] == hash2) {
+                    spilled[3 * slot + 2] = -1;
+                    return readFromFile(offsetPlusOne - 1);
+                }
+            }
+        }
+
+        /** Appends the reads in the table to the file, keeping only their hashes and offsets, and empties the table. */
+        void spill() {
+            ensureSpilledCapacity(spilledUsed + live);
+            final ByteBuffer record = table.duplicate();
+            for (int slot = 0; slot < capacity; ++slot) {
+                final int offset = slot * slotSize;
+                if (table.get(offset) != FULL) continue;
+
+                final long hashOne = table.getLong(offset + KEY_OFFSET);
+                final long hashTwo = table.getLong(offset + KEY_OFFSET + 8);
+                final int spilledCapacity = spilled.length / 3;
+                int spilledSlot = (int) hashTwo & (spilledCapacity - 1);
+                while (spilled[3 * spilledSlot + 2] != 0) spilledSlot = (spilledSlot + 1) & (spilledCapacity - 1);
+                spilled[3 * spilledSlot] = hashOne;
+                spilled[3 * spilledSlot + 1] = hashTwo;
+                spilled[3 * spilledSlot + 2] = fileLength + 1;
+                ++spilledUsed;
+
+                record.clear();
+                record.position(offset + RECORD_OFFSET).limit(offset + slotSize);
+                writeToFile(record);
+            }
+            sizeInRam -= live;
+            memory.release((long) capacity * slotSize);
+            table = null;
+            capacity = 0;
+            live = 0;
+            used = 0;
+        }
+
+        /** Moves the reads into a table of the given number of slots, dropping those that were removed. */
+        private void resize(final int newCapacity) {
+            final ByteBuffer newTable = ByteBuffer.allocateDirect(Math.toIntExact((long) newCapacity * slotSize));
+            final ByteBuffer from = table == null ? null : table.duplicate();
+            final ByteBuffer to = newTable.duplicate();
+            for (int slot = 0; slot < capacity; ++slot) {
+                final int offset = slot * slotSize;
+                if (table.get(offset) != FULL) continue;
+                int newSlot = (int) table.getLong(offset + KEY_OFFSET + 8) & (newCapacity - 1);
+                while (newTable.get(newSlot * slotSize) == FULL) newSlot = (newSlot + 1) & (newCapacity - 1);
+                from.clear();
+                from.position(offset).limit(offset + slotSize);
+                to.position(newSlot * slotSize);
+                to.put(from);
+            }
+            memory.reserve((long) (newCapacity - capacity) * slotSize);
+            table = newTable;
+            capacity = newCapacity;
+            used = live;
+        }
+
+        /** Makes room for the given number of hashes in the table of offsets, dropping those that were removed. */
+        private void ensureSpilledCapacity(final int needed) {
+            final int oldCapacity = spilled == null ? 0 : spilled.length / 3;
+            if (2 * needed <= oldCapacity) return;
+
+            int newCapacity = INITIAL_CAPACITY;
+            while (newCapacity < 2L * needed) newCapacity = Math.multiplyExact(newCapacity, 2);
+            final long[] newSpilled = new long[Math.multiplyExact(3, newCapacity)];
+            spilledUsed = 0;
+            for (int slot = 0; slot < oldCapacity; ++slot) {
+                if (spilled[3 * slot + 2] <= 0) continue;
+                int newSlot = (int) spilled[3 * slot + 1] & (newCapacity - 1);
+                while (newSpilled[3 * newSlot + 2] != 0) newSlot = (newSlot + 1) & (newCapacity - 1);
+                System.arraycopy(spilled, 3 * slot, newSpilled, 3 * newSlot, 3);
+                ++spilledUsed;
+            }
+            memory.reserve(8L * (newSpilled.length - (spilled == null ? 0 : spilled.length)));
+            spilled = newSpilled;
+        }
+
+        private int slotFor(final int tableCapacity) {
+            return (int) hash2 & (tableCapacity - 1);
+        }
+    }
+
+    private void writeToFile(final ByteBuffer record) {
+        try {
+            if (channel == null) {
+                file = IOUtil.newTempFile("readEndsMap.", ".tmp", tmpDirs, IOUtil.FIVE_GBS);
+                file.deleteOnExit();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            while (record.hasRemaining()) fileLength += channel.write(record, fileLength);
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not write read ends to a temporary file", ioe);
+        }
+    }
+
+    private ReadEndsForMarkDuplicates readFromFile(final long offset) {
+        ioBuffer.clear();
+        try {
+            while (ioBuffer.hasRemaining()) {
+                if (channel.read(ioBuffer, offset + ioBuffer.position()) < 0) {
+                    throw new PicardException("Unexpected end of temporary file " + file.getAbsolutePath());
+                }
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not read read ends from a temporary file", ioe);
+        }
+        return PackedReadEndsStore.decode(ioBuffer, 0, useBarcodes);
+    }
+
+    /** Hashes the characters of the read group, a colon and the read name, as if they were one string. */
+    private void hash(final Object readGroup, final String readName) {
+        startHash();
+        addToHash(String.valueOf(readGroup));
+        addToHash(':');
+        addToHash(readName);
+        finishHash();
+    }
+
+    private void startHash() {
+        hash1 = 0;
+        hash2 = 0;
+        block1 = 0;
+        block2 = 0;
+        hashedChars = 0;
+    }
+
+    private void addToHash(final String s) {
+        for (int i = 0; i < s.length(); ++i) addToHash(s.charAt(i));
+    }
+
+    /** Adds a character to the block of eight being filled, mixing the block into the hash once it is full. */
+    private void addToHash(final char c) {
+        final int inBlock = hashedChars++ & 7;
+        if (inBlock < 4) block1 |= (long) c << (16 * inBlock);
+        else block2 |= (long) c << (16 * (inBlock - 4));
+        if (inBlock < 7) return;
+
+        hash1 ^= mixBlock1(block1);
+        hash1 = Long.rotateLeft(hash1, 27) + hash2;
+        hash1 = hash1 * 5 + 0x52dce729;
+        hash2 ^= mixBlock2(block2);
+        hash2 = Long.rotateLeft(hash2, 31) + hash1;
+        hash2 = hash2 * 5 + 0x38495ab5;
+        block1 = 0;
+        block2 = 0;
+    }
+
+    private void finishHash() {
+        if ((hashedChars & 7) != 0) {
+            hash2 ^= mixBlock2(block2);
+            hash1 ^= mixBlock1(block1);
+        }
+        final long length = 2L * hashedChars;
+        hash1 ^= length;
+        hash2 ^= length;
+        hash1 += hash2;
+        hash2 += hash1;
+        hash1 = finalMix(hash1);
+        hash2 = finalMix(hash2);
+        hash1 += hash2;
+        hash2 += hash1;
+    }
+
+    private static long mixBlock1(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    private static long mixBlock2(long k) {
+        k *= C2;
+        k = Long.rotateLeft(k, 33);
+        return k * C1;
+    }
+
+    private static long finalMix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
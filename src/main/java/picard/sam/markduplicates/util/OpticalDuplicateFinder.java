@@ -29,7 +29,10 @@ import htsjdk.samtools.util.ProgressLogger;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.ReadNameParser;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Contains methods for finding optical/co-localized/sequencing duplicates.
@@ -56,6 +59,12 @@ public class OpticalDuplicateFinder extends ReadNameParser {
 
     private int bigDuplicateSetSize = DEFAULT_BIG_DUPLICATE_SET_SIZE;
 
+    /**
+     * The size of a set above which reads are only compared to those near them, found in a grid of their locations, rather
+     * than to every other read; package-visible for testing.
+     */
+    int minSizeForLocationGrid = 64;
+
     /**
      * Uses the default duplicate distance {@value OpticalDuplicateFinder#DEFAULT_OPTICAL_DUPLICATE_DISTANCE} and the default read name regex
      * {@link ReadNameParser#DEFAULT_READ_NAME_REGEX}.
@@ -134,6 +143,10 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         }
         if (logProgress) log.debug("Done with comparing to keeper, now the rest.");
 
+        // In a big set, only the reads in the same and neighbouring cells of the grid can be close enough.  Since only those
+        // pairs that are close enough mark anything, comparing them in the same order as all pairs gives the same result.
+        final LocationGrid grid = length > minSizeForLocationGrid ? new LocationGrid(list, actualKeeper, distance) : null;
+
         // Now go through and do each pairwise comparison not involving the actualKeeper
         for (int i = 0; i < length; ++i) {
             final PhysicalLocation lhs = list.get(i);
@@ -142,17 +155,15 @@ public class OpticalDuplicateFinder extends ReadNameParser {
             // logging here for same reason as above
             if (logProgress) progressLoggerForRest.record(String.format("%d", lhs.getReadGroup()), lhs.getX());
 
-            for (int j = i + 1; j < length; ++j) {
-                final PhysicalLocation rhs = list.get(j);
-                if (rhs == actualKeeper) continue; // no comparisons to actualKeeper since those are all handled above
-                if (opticalDuplicateFlags[i] && opticalDuplicateFlags[j]) continue; // both already marked, no need to check
-
-                if (closeEnough(lhs, rhs, distance)) {
-                    // At this point we want to mark either lhs or rhs as duplicate. Either could have been marked
-                    // as a duplicate of the keeper (but not both - that's checked above), so be careful about which
-                    // one to now mark as a duplicate.
-                    final int index = opticalDuplicateFlags[j] ? i : j;
-                    opticalDuplicateFlags[index] = true;
+            if (grid == null) {
+                for (int j = i + 1; j < length; ++j) {
+                    if (list.get(j) == actualKeeper) continue; // no comparisons to actualKeeper since those are all handled above
+                    markIfCloseEnough(list, opticalDuplicateFlags, i, j, distance);
+                }
+            } else if (lhs.hasLocation()) {
+                final int numNeighbours = grid.findNeighboursAfter(lhs, i);
+                for (int n = 0; n < numNeighbours; ++n) {
+                    markIfCloseEnough(list, opticalDuplicateFlags, i, grid.neighbours[n], distance);
                 }
             }
         }
@@ -160,6 +171,20 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         return opticalDuplicateFlags;
     }
 
+    /** Marks one of the two reads as an optical duplicate if they are close enough and not both marked already. */
+    private void markIfCloseEnough(final List<? extends PhysicalLocation> list, final boolean[] opticalDuplicateFlags,
+                                   final int i, final int j, final int distance) {
+        if (opticalDuplicateFlags[i] && opticalDuplicateFlags[j]) return; // both already marked, no need to check
+
+        if (closeEnough(list.get(i), list.get(j), distance)) {
+            // At this point we want to mark either lhs or rhs as duplicate. Either could have been marked
+            // as a duplicate of the keeper (but not both - that's checked above), so be careful about which
+            // one to now mark as a duplicate.
+            final int index = opticalDuplicateFlags[j] ? i : j;
+            opticalDuplicateFlags[index] = true;
+        }
+    }
+
     /** Returns the keeper if it is contained within the list and has location information, otherwise null. */
     private PhysicalLocation keeperOrNull(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
         if (keeper != null && keeper.hasLocation()) {
@@ -179,4 +204,102 @@ public class OpticalDuplicateFinder extends ReadNameParser {
                Math.abs(lhs.getX() - rhs.getX()) <= distance &&
                Math.abs(lhs.getY() - rhs.getY()) <= distance;
     }
+
+    /**
+     * The indexes of the reads of a set that have a location, other than the keeper, by read group, tile and square cell of
+     * the tile of side the optical duplicate distance, so that a read can only be close enough to those in its own cell
+     * and the eight around it.
+     */
+    private static final class LocationGrid {
+        private final Map<Cell, Cell> cells = new HashMap<>();
+        private final int cellSize;
+
+        /** The indexes found by the last call to findNeighboursAfter. */
+        private int[] neighbours = new int[16];
+
+        private LocationGrid(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper, final int distance) {
+            this.cellSize = Math.max(distance, 1);
+            for (int i = 0; i < list.size(); ++i) {
+                final PhysicalLocation loc = list.get(i);
+                if (loc == keeper || !loc.hasLocation()) continue;
+                final Cell key = new Cell(loc.getReadGroup(), loc.getTile(), Math.floorDiv(loc.getX(), cellSize), Math.floorDiv(loc.getY(), cellSize));
+                Cell cell = cells.get(key);
+                if (cell == null) {
+                    cell = key;
+                    cells.put(key, cell);
+                }
+                cell.add(i);
+            }
+        }
+
+        /**
+         * Finds the indexes after the given one of the reads in the same and neighbouring cells as its location, putting
+         * them in ascending order at the start of neighbours.
+         *
+         * @return the number of indexes found
+         */
+        private int findNeighboursAfter(final PhysicalLocation loc, final int index) {
+            final int cellX = Math.floorDiv(loc.getX(), cellSize);
+            final int cellY = Math.floorDiv(loc.getY(), cellSize);
+            int numNeighbours = 0;
+            for (int x = cellX - 1; x <= cellX + 1; ++x) {
+                for (int y = cellY - 1; y <= cellY + 1; ++y) {
+                    final Cell cell = cells.get(new Cell(loc.getReadGroup(), loc.getTile(), x, y));
+                    if (cell == null) continue;
+
+                    // The indexes of a cell are in ascending order
+                    int from = Arrays.binarySearch(cell.indexes, 0, cell.size, index);
+                    from = from >= 0 ? from + 1 : -from - 1;
+                    final int count = cell.size - from;
+                    if (numNeighbours + count > neighbours.length) {
+                        neighbours = Arrays.copyOf(neighbours, Math.max(2 * neighbours.length, numNeighbours + count));
+                    }
+                    System.arraycopy(cell.indexes, from, neighbours, numNeighbours, count);
+                    numNeighbours += count;
+                }
+            }
+            Arrays.sort(neighbours, 0, numNeighbours);
+            return numNeighbours;
+        }
+    }
+
+    /** A cell of the grid, which is its own key in the map, and the indexes of the reads in it. */
+    private static final class Cell {
+        private final short readGroup;
+        private final short tile;
+        private final int x;
+        private final int y;
+        private int[] indexes = null;
+        private int size = 0;
+
+        private Cell(final short readGroup, final short tile, final int x, final int y) {
+            this.readGroup = readGroup;
+            this.tile = tile;
+            this.x = x;
+            this.y = y;
+        }
+
+        private void add(final int index) {
+            if (indexes == null) indexes = new int[4];
+            else if (size == indexes.length) indexes = Arrays.copyOf(indexes, 2 * size);
+            indexes[size++] = index;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Cell)) return false;
+            final Cell other = (Cell) o;
+            return readGroup == other.readGroup && tile == other.tile && x == other.x && y == other.y;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = readGroup;
+            result = 31 * result + tile;
+            result = 31 * result + x;
+            result = 31 * result + y;
+            return result;
+        }
+    }
 }
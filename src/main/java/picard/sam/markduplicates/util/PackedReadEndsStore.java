@@ -0,0 +1,417 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts ReadEndsForMarkDuplicates the way MarkDuplicates' ReadEndsMDComparator does, holding them as fixed-width
+ * records in pages of direct (off-heap) memory rather than as objects on the heap.  Each record starts with its sort
+ * key, encoded so that comparing the keys of two records byte by byte, unsigned, orders them as the comparator does:
+ * library, then barcodes if there are any, then read1 reference and coordinate, orientation, read2 reference and
+ * coordinate, and finally the indexes in the file.  The records are sorted with an LSD radix sort on those bytes,
+ * skipping the bytes that are the same in every record, e.g. the high bytes of the reference indexes.
+ *
+ * Once maxRecordsInRam records have been added, or the ReadEndsMemoryBudget the store shares with others has no room
+ * for another page, they are sorted and written, in the same packed layout, to a temporary file, and iteration merges
+ * those files with the records still in memory.  A store always keeps at least one page, whatever the budget.  A
+ * record takes 46 bytes, or 58 with barcodes, plus 8 bytes of sort index while sorting, so many more of them fit in a
+ * given amount of memory than objects do and far fewer files are written.
+ *
+ * Unlike ReadEndsMDComparator, which subtracts the indexes in the file and truncates the difference to an int, the
+ * indexes are compared as longs; the two only order read ends differently in files of more than 2^31 records.
+ *
+ * Like SortingCollection, add() must not be called after doneAdding(), and cleanup() deletes the temporary files.
+ */
+public class PackedReadEndsStore implements Iterable<ReadEndsForMarkDuplicates> {
+    /** The number of records in a page of memory. */
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_RECORDS = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_RECORDS - 1;
+
+    /** The number of records read from or written to a temporary file at a time. */
+    private static final int IO_RECORDS = 4096;
+
+    private static final int KEY_LENGTH = 2 + 4 + 4 + 1 + 4 + 4 + 8 + 8;
+    private static final int BARCODES_LENGTH = 3 * 4;
+    private static final int PAYLOAD_LENGTH = 2 + 2 + 2 + 2 + 2 + 1;
+
+    private final boolean useBarcodes;
+    private final int keyLength;
+    private final int recordSize;
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+    private final ReadEndsMemoryBudget.Client memory;
+    private final int pageRecords;
+    private final long pageBytes;
+
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private int numRecordsInRam = 0;
+    private final List<File> files = new ArrayList<>();
+    private boolean doneAdding = false;
+    private boolean cleanedUp = false;
+
+    // The order of the records in memory once they are sorted
+    private int[] order = null;
+
+    /**
+     * @param useBarcodes whether the read ends are ReadEndsForMarkDuplicatesWithBarcodes, to be sorted on their
+     *                    barcodes after their library
+     * @param maxRecordsInRam the number of records to hold in memory before sorting them and writing them to a file
+     * @param tmpDirs the directories to write the files to
+     */
+    public PackedReadEndsStore(final boolean useBarcodes, final int maxRecordsInRam, final List<File> tmpDirs) {
+        this(useBarcodes, maxRecordsInRam, tmpDirs, new ReadEndsMemoryBudget(Long.MAX_VALUE));
+    }
+
+    /**
+     * @param useBarcodes whether the read ends are ReadEndsForMarkDuplicatesWithBarcodes, to be sorted on their
+     *                    barcodes after their library
+     * @param maxRecordsInRam the number of records to hold in memory before sorting them and writing them to a file
+     * @param tmpDirs the directories to write the files to
+     * @param budget the memory budget the store takes its pages from, sizing each page by getSizeOf()
+     */
+    public PackedReadEndsStore(final boolean useBarcodes, final int maxRecordsInRam, final List<File> tmpDirs,
+                               final ReadEndsMemoryBudget budget) {
+        if (maxRecordsInRam < 1) throw new IllegalArgumentException("maxRecordsInRam must be at least 1 but was " + maxRecordsInRam);
+        this.useBarcodes = useBarcodes;
+        this.keyLength = KEY_LENGTH + (useBarcodes ? BARCODES_LENGTH : 0);
+        this.recordSize = keyLength + PAYLOAD_LENGTH;
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.memory = budget.newClient();
+        this.pageRecords = Math.min(PAGE_RECORDS, maxRecordsInRam);
+        this.pageBytes = (long) pageRecords * getSizeOf(useBarcodes);
+    }
+
+    /** The number of bytes of memory each record takes while the records are sorted. */
+    public static int getSizeOf(final boolean useBarcodes) {
+        return getRecordLength(useBarcodes) + 2 * 4;
+    }
+
+    /** The number of bytes encode() writes for each read ends. */
+    static int getRecordLength(final boolean useBarcodes) {
+        return KEY_LENGTH + (useBarcodes ? BARCODES_LENGTH : 0) + PAYLOAD_LENGTH;
+    }
+
+    /** Adds a copy of the read ends. */
+    public void add(final ReadEndsForMarkDuplicates ends) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (numRecordsInRam == maxRecordsInRam) spill();
+
+        int page = numRecordsInRam >>> PAGE_SHIFT;
+        if (page == pages.size()) {
+            if (pages.isEmpty()) {
+                memory.reserve(pageBytes);
+                pages.add(ByteBuffer.allocateDirect(pageRecords * recordSize));
+            } else if (memory.tryReserve(pageBytes)) {
+                pages.add(ByteBuffer.allocateDirect(pageRecords * recordSize));
+            } else {
+                // The budget is used up, so write out the records held so far and reuse their pages
+                spill();
+                page = 0;
+            }
+        }
+        encode(ends, pages.get(page), (numRecordsInRam & PAGE_MASK) * recordSize, useBarcodes);
+        ++numRecordsInRam;
+    }
+
+    /** Sorts the records held in memory, after which they can be iterated over. */
+    public void doneAdding() {
+        if (doneAdding) return;
+        doneAdding = true;
+        order = sort();
+    }
+
+    /** Deletes the temporary files and lets go of the memory. */
+    public void cleanup() {
+        cleanedUp = true;
+        pages.clear();
+        memory.close();
+        order = null;
+        numRecordsInRam = 0;
+        for (final File file : files) IOUtil.deleteFiles(file);
+        files.clear();
+    }
+
+    /** Iterates over all the records in order, as new objects. */
+    @Override
+    public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+        if (cleanedUp) throw new IllegalStateException("Cannot iterate after calling cleanup()");
+        doneAdding();
+        return new MergingIterator();
+    }
+
+    /** Sorts the records in memory and writes them to a new temporary file. */
+    private void spill() {
+        final int[] sorted = sort();
+        try {
+            final File file = IOUtil.newTempFile("readends.", ".tmp", tmpDirs, IOUtil.FIVE_GBS);
+            file.deleteOnExit();
+            files.add(file);
+            try (final FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+                final ByteBuffer out = ByteBuffer.allocateDirect(IO_RECORDS * recordSize);
+                final ByteBuffer[] sources = new ByteBuffer[pages.size()];
+                for (int i = 0; i < sources.length; ++i) sources[i] = pages.get(i).duplicate();
+                for (final int record : sorted) {
+                    final ByteBuffer source = sources[record >>> PAGE_SHIFT];
+                    final int offset = (record & PAGE_MASK) * recordSize;
+                    source.limit(offset + recordSize).position(offset);
+                    out.put(source);
+                    if (!out.hasRemaining()) write(channel, out);
+                }
+                write(channel, out);
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not write read ends to a temporary file", ioe);
+        }
+        numRecordsInRam = 0;
+
+        // Give back the pages beyond this store's share if another structure is waiting for the memory
+        while (pages.size() > 1 && memory.isOverBudget()) {
+            pages.remove(pages.size() - 1);
+            memory.release(pageBytes);
+        }
+    }
+
+    private static void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /** Returns the indexes of the records in memory in sorted order, by LSD radix sort on the bytes of their keys. */
+    private int[] sort() {
+        final int n = numRecordsInRam;
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; ++i) sorted[i] = i;
+        if (n < 2) return sorted;
+
+        // Count the values of every key byte in a single pass over the records
+        final int[][] counts = new int[keyLength][256];
+        for (int i = 0; i < n; ++i) {
+            final ByteBuffer page = pages.get(i >>> PAGE_SHIFT);
+            final int offset = (i & PAGE_MASK) * recordSize;
+            for (int b = 0; b < keyLength; ++b) ++counts[b][page.get(offset + b) & 0xff];
+        }
+
+        int[] scratch = new int[n];
+        for (int b = keyLength - 1; b >= 0; --b) {
+            final int[] count = counts[b];
+            // A byte that is the same in every record leaves the order as it is
+            int first = 0;
+            while (count[first] == 0) ++first;
+            if (count[first] == n) continue;
+
+            final int[] next = new int[256];
+            for (int v = 1; v < 256; ++v) next[v] = next[v - 1] + count[v - 1];
+            for (final int record : sorted) {
+                final int value = pages.get(record >>> PAGE_SHIFT).get((record & PAGE_MASK) * recordSize + b) & 0xff;
+                scratch[next[value]++] = record;
+            }
+            final int[] swap = sorted;
+            sorted = scratch;
+            scratch = swap;
+        }
+        return sorted;
+    }
+
+    /** Writes all the fields of the read ends, with the sort key first, to the buffer at the offset. */
+    static void encode(final ReadEndsForMarkDuplicates ends, final ByteBuffer buffer, final int offset, final boolean useBarcodes) {
+        int p = offset;
+        buffer.putShort(p, (short) (ends.libraryId ^ Short.MIN_VALUE)); p += 2;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) ends;
+            buffer.putInt(p, withBarcodes.barcode ^ Integer.MIN_VALUE); p += 4;
+            buffer.putInt(p, withBarcodes.readOneBarcode ^ Integer.MIN_VALUE); p += 4;
+            buffer.putInt(p, withBarcodes.readTwoBarcode ^ Integer.MIN_VALUE); p += 4;
+        }
+        buffer.putInt(p, ends.read1ReferenceIndex ^ Integer.MIN_VALUE); p += 4;
+        buffer.putInt(p, ends.read1Coordinate ^ Integer.MIN_VALUE); p += 4;
+        buffer.put(p, (byte) (ends.orientation ^ Byte.MIN_VALUE)); p += 1;
+        buffer.putInt(p, ends.read2ReferenceIndex ^ Integer.MIN_VALUE); p += 4;
+        buffer.putInt(p, ends.read2Coordinate ^ Integer.MIN_VALUE); p += 4;
+        buffer.putLong(p, ends.read1IndexInFile ^ Long.MIN_VALUE); p += 8;
+        buffer.putLong(p, ends.read2IndexInFile ^ Long.MIN_VALUE); p += 8;
+
+        buffer.putShort(p, ends.score); p += 2;
+        buffer.putShort(p, ends.readGroup); p += 2;
+        buffer.putShort(p, ends.tile); p += 2;
+        buffer.putShort(p, (short) ends.x); p += 2;
+        buffer.putShort(p, (short) ends.y); p += 2;
+        buffer.put(p, ends.orientationForOpticalDuplicates);
+    }
+
+    /** Reads back read ends written by encode() as a new object. */
+    static ReadEndsForMarkDuplicates decode(final ByteBuffer buffer, final int offset, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates ends;
+        int p = offset;
+        final short libraryId = (short) (buffer.getShort(p) ^ Short.MIN_VALUE); p += 2;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+            withBarcodes.readOneBarcode = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+            withBarcodes.readTwoBarcode = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+            ends = withBarcodes;
+        } else {
+            ends = new ReadEndsForMarkDuplicates();
+        }
+        ends.libraryId = libraryId;
+        ends.read1ReferenceIndex = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+        ends.read1Coordinate = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+        ends.orientation = (byte) (buffer.get(p) ^ Byte.MIN_VALUE); p += 1;
+        ends.read2ReferenceIndex = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+        ends.read2Coordinate = buffer.getInt(p) ^ Integer.MIN_VALUE; p += 4;
+        ends.read1IndexInFile = buffer.getLong(p) ^ Long.MIN_VALUE; p += 8;
+        ends.read2IndexInFile = buffer.getLong(p) ^ Long.MIN_VALUE; p += 8;
+
+        ends.score = buffer.getShort(p); p += 2;
+        ends.readGroup = buffer.getShort(p); p += 2;
+        ends.tile = buffer.getShort(p); p += 2;
+        ends.x = buffer.getShort(p); p += 2;
+        ends.y = buffer.getShort(p); p += 2;
+        ends.orientationForOpticalDuplicates = buffer.get(p);
+        return ends;
+    }
+
+    /** A sorted run of records, either those in memory or those in a temporary file, positioned on its next record. */
+    private abstract class Run implements Comparable<Run> {
+        ByteBuffer buffer;
+        int offset;
+
+        /** Moves to the next record, returning false if there is none. */
+        abstract boolean advance();
+
+        void close() {}
+
+        @Override
+        public int compareTo(final Run other) {
+            for (int b = 0; b < keyLength; ++b) {
+                final int diff = (buffer.get(offset + b) & 0xff) - (other.buffer.get(other.offset + b) & 0xff);
+                if (diff != 0) return diff;
+            }
+            return 0;
+        }
+    }
+
+    private class MemoryRun extends Run {
+        private int next = 0;
+
+        @Override
+        boolean advance() {
+            if (next == numRecordsInRam) return false;
+            final int record = order[next++];
+            buffer = pages.get(record >>> PAGE_SHIFT);
+            offset = (record & PAGE_MASK) * recordSize;
+            return true;
+        }
+    }
+
+    private class FileRun extends Run {
+        private final FileChannel channel;
+
+        FileRun(final File file) {
+            try {
+                channel = new RandomAccessFile(file, "r").getChannel();
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not open temporary file " + file.getAbsolutePath(), ioe);
+            }
+            buffer = ByteBuffer.allocateDirect(IO_RECORDS * recordSize);
+            buffer.limit(0);
+            offset = -recordSize;
+        }
+
+        @Override
+        boolean advance() {
+            offset += recordSize;
+            if (offset < buffer.limit()) return true;
+            try {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+                buffer.flip();
+            } catch (final IOException ioe) {
+                throw new PicardException("Could not read read ends from a temporary file", ioe);
+            }
+            offset = 0;
+            return buffer.limit() >= recordSize;
+        }
+
+        @Override
+        void close() {
+            CloserUtil.close(channel);
+        }
+    }
+
+    /** Merges the runs, taking the smallest next record of any of them each time; ties go to the earlier run. */
+    private class MergingIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<Run> queue;
+        private final List<Run> runs = new ArrayList<>();
+
+        MergingIterator() {
+            for (final File file : files) runs.add(new FileRun(file));
+            runs.add(new MemoryRun());
+            // Runs with equal keys hold read ends with equal fields, so the order among them does not matter
+            queue = new PriorityQueue<>(Math.max(1, runs.size()));
+            for (final Run run : runs) {
+                if (run.advance()) queue.add(run);
+                else run.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (queue.isEmpty()) throw new NoSuchElementException();
+            final Run run = queue.poll();
+            final ReadEndsForMarkDuplicates ends = decode(run.buffer, run.offset, useBarcodes);
+            if (run.advance()) queue.add(run);
+            else run.close();
+            return ends;
+        }
+
+        @Override
+        public void close() {
+            for (final Run run : runs) run.close();
+            queue.clear();
+        }
+    }
+}
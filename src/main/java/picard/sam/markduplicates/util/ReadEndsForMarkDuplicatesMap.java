@@ -49,6 +49,32 @@ public interface ReadEndsForMarkDuplicatesMap {
      */
     void put(int mateSequenceIndex, String key, ReadEndsForMarkDuplicates readEnds);
 
+    /**
+     * Remove the element for the read with the given read group and name, whose key is the concatenation of the two
+     * with a colon.  An implementation may look the read up without building the key.
+     *
+     * @param mateSequenceIndex must agree with the value used when the object was put into the map
+     * @param readGroup         the value of the read's RG tag, or null
+     * @param readName          the name of the read
+     * @return null if the read is not found, otherwise the object removed.
+     */
+    default ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final Object readGroup, final String readName) {
+        return remove(mateSequenceIndex, readGroup + ":" + readName);
+    }
+
+    /**
+     * Store the element in the map for the read with the given read group and name, whose key is the concatenation of
+     * the two with a colon.  An implementation may store the read without building the key.
+     *
+     * @param mateSequenceIndex see put(int, String, ReadEndsForMarkDuplicates)
+     * @param readGroup         the value of the read's RG tag, or null
+     * @param readName          the name of the read
+     * @param readEnds          the object to be stored
+     */
+    default void put(final int mateSequenceIndex, final Object readGroup, final String readName, final ReadEndsForMarkDuplicates readEnds) {
+        put(mateSequenceIndex, readGroup + ":" + readName, readEnds);
+    }
+
     /**
      * @return number of elements stored in map
      */
@@ -58,4 +84,10 @@ public interface ReadEndsForMarkDuplicatesMap {
      * @return number of elements stored in RAM.  Always <= size()
      */
     int sizeInRam();
+
+    /**
+     * Release any memory and temporary files held by the map, after which it may no longer be used.
+     */
+    default void cleanup() {
+    }
 }
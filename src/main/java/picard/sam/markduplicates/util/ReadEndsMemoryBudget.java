@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The memory that the PackedReadEndsStores and HashedReadEndsForMarkDuplicatesMap of one MarkDuplicates run may take
+ * between them.  Most of it is direct memory, which is allocated outside the heap and so is not limited by -Xmx.
+ *
+ * Each structure takes memory as a Client of the budget, reserving it before it allocates it and releasing it when it
+ * lets go of it.  A client may always reserve up to an equal share of the budget, and more while the others leave some
+ * of theirs unused.  Once the budget is used up, a client over its share can reserve no more, and should write what it
+ * holds to disk and release it; that is how memory one structure borrowed goes back to another that has since grown.
+ */
+public class ReadEndsMemoryBudget {
+    private final long maxBytes;
+    private final List<Client> clients = new ArrayList<>();
+    private long usedBytes = 0;
+
+    /** @param maxBytes the memory the clients may take between them */
+    public ReadEndsMemoryBudget(final long maxBytes) {
+        if (maxBytes < 1) throw new IllegalArgumentException("maxBytes must be at least 1 but was " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /** Adds a client, which shares the budget equally with the others until it is closed. */
+    public synchronized Client newClient() {
+        final Client client = new Client();
+        clients.add(client);
+        return client;
+    }
+
+    private long getShare() {
+        return maxBytes / Math.max(1, clients.size());
+    }
+
+    /** The memory taken by one structure. */
+    public final class Client {
+        private long usedBytes = 0;
+
+        private Client() {}
+
+        public long getUsedBytes() {
+            synchronized (ReadEndsMemoryBudget.this) {
+                return usedBytes;
+            }
+        }
+
+        /** Reserves the bytes if they are within the client's share or free in the budget, and returns whether it did. */
+        public boolean tryReserve(final long bytes) {
+            synchronized (ReadEndsMemoryBudget.this) {
+                if (usedBytes + bytes > getShare() && ReadEndsMemoryBudget.this.usedBytes + bytes > maxBytes) return false;
+                reserve(bytes);
+                return true;
+            }
+        }
+
+        /** Reserves the bytes whether or not there is room for them, for memory that the client cannot do without. */
+        public void reserve(final long bytes) {
+            synchronized (ReadEndsMemoryBudget.this) {
+                usedBytes += bytes;
+                ReadEndsMemoryBudget.this.usedBytes += bytes;
+            }
+        }
+
+        public void release(final long bytes) {
+            reserve(-bytes);
+        }
+
+        /** Returns true if the budget is used up and this client holds more than its share, so should release some. */
+        public boolean isOverBudget() {
+            synchronized (ReadEndsMemoryBudget.this) {
+                return usedBytes > getShare() && ReadEndsMemoryBudget.this.usedBytes > maxBytes;
+            }
+        }
+
+        /** Releases everything the client holds and leaves the budget to the other clients. */
+        public void close() {
+            synchronized (ReadEndsMemoryBudget.this) {
+                release(usedBytes);
+                clients.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+import picard.util.ParallelBlockCompressedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Iterates over the records of a BAM file using several threads to inflate and decode it, while still returning the
+ * records in file order.  The BGZF blocks are inflated by a ParallelBlockCompressedInputStream; the calling thread
+ * then only splits the inflated bytes into chunks of whole records, and each chunk is decoded, validated and fully
+ * unpacked on the same thread pool.
+ *
+ * Because the records are fully decoded before they are returned, none of their lazily decoded fields are filled in
+ * later on, so the records may safely be read by several threads at once.
+ */
+public class ParallelBamRecordIterator implements CloseableIterator<SAMRecord> {
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+    /** The number of records decoded together by one task. */
+    public static final int RECORDS_PER_CHUNK = 1000;
+
+    private final SAMFileHeader header;
+    private final String fileName;
+    private final ValidationStringency validationStringency;
+    private final ExecutorService executor;
+    private final InputStream in;
+    private final int maxPendingChunks;
+    private final Deque<Future<List<SAMRecord>>> pending = new ArrayDeque<>();
+    private final byte[] lengthBytes = new byte[4];
+
+    private boolean endOfInput = false;
+    private long recordsRead = 0;
+    private Iterator<SAMRecord> current = Collections.emptyIterator();
+
+    /**
+     * @param bam the BAM file to read
+     * @param header the header of the BAM file, as returned by a SamReader
+     * @param threads the number of threads used to inflate and decode the file
+     * @param validationStringency how to treat records that fail validation
+     */
+    public ParallelBamRecordIterator(final File bam, final SAMFileHeader header, final int threads,
+                                     final ValidationStringency validationStringency) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1 but was " + threads);
+        IOUtil.assertFileIsReadable(bam);
+
+        this.header = header;
+        this.fileName = bam.getName();
+        this.validationStringency = validationStringency;
+        this.maxPendingChunks = 2 * threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int threadsCreated = 0;
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "ParallelBamRecordIterator-" + threadsCreated++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            this.in = new ParallelBlockCompressedInputStream(
+                    new BufferedInputStream(new FileInputStream(bam), Defaults.BUFFER_SIZE), executor, 4 * threads);
+            skipHeader();
+        } catch (final IOException ioe) {
+            executor.shutdownNow();
+            throw new PicardException("Could not read BAM header from " + bam.getAbsolutePath(), ioe);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            fill();
+            if (pending.isEmpty()) return false;
+
+            try {
+                current = pending.removeFirst().get().iterator();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for records to be decoded.", ie);
+            } catch (final ExecutionException ee) {
+                if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                throw new PicardException("Could not decode records from " + fileName, ee.getCause());
+            }
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public SAMRecord next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        for (final Future<List<SAMRecord>> future : pending) future.cancel(false);
+        pending.clear();
+        CloserUtil.close(in);
+        executor.shutdownNow();
+    }
+
+    /** Skips the magic number, text header and reference sequence list, which are already known from the header. */
+    private void skipHeader() throws IOException {
+        final byte[] magic = new byte[BAM_MAGIC.length];
+        readFully(magic, magic.length);
+        if (!Arrays.equals(magic, BAM_MAGIC)) throw new PicardException(fileName + " is not a BAM file.");
+
+        skipFully(readInt());
+        final int sequenceCount = readInt();
+        for (int i = 0; i < sequenceCount; ++i) {
+            skipFully(readInt()); // name, including the terminating null
+            skipFully(4);         // sequence length
+        }
+    }
+
+    /** Splits the inflated input into chunks of whole records and queues them for decoding. */
+    private void fill() {
+        try {
+            while (!endOfInput && pending.size() < maxPendingChunks) {
+                byte[] chunk = new byte[64 * 1024];
+                int length = 0;
+                int records = 0;
+
+                while (records < RECORDS_PER_CHUNK) {
+                    final int read = readFully(lengthBytes, 4);
+                    if (read == 0) {
+                        endOfInput = true;
+                        break;
+                    }
+                    if (read < 4) throw new PicardException("Premature end of file in " + fileName);
+
+                    final int recordLength = toInt(lengthBytes);
+                    if (length + 4 + recordLength > chunk.length) {
+                        chunk = Arrays.copyOf(chunk, Math.max(2 * chunk.length, length + 4 + recordLength));
+                    }
+                    System.arraycopy(lengthBytes, 0, chunk, length, 4);
+                    if (readFully(chunk, length + 4, recordLength) < recordLength) {
+                        throw new PicardException("Premature end of file in " + fileName);
+                    }
+                    length += 4 + recordLength;
+                    ++records;
+                }
+
+                if (records > 0) {
+                    final byte[] bytes = chunk;
+                    final int byteCount = length;
+                    final long firstRecordIndex = recordsRead;
+                    pending.addLast(executor.submit(() -> decode(bytes, byteCount, firstRecordIndex)));
+                    recordsRead += records;
+                }
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error reading " + fileName, ioe);
+        }
+    }
+
+    /** Decodes a chunk of records, validating and unpacking every one of them. */
+    private List<SAMRecord> decode(final byte[] bytes, final int byteCount, final long firstRecordIndex) {
+        final BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setInputStream(new ByteArrayInputStream(bytes, 0, byteCount), fileName);
+
+        final List<SAMRecord> records = new ArrayList<>(RECORDS_PER_CHUNK);
+        long recordIndex = firstRecordIndex;
+        for (SAMRecord rec = codec.decode(); rec != null; rec = codec.decode()) {
+            rec.setValidationStringency(validationStringency);
+            if (validationStringency != ValidationStringency.SILENT) {
+                SAMUtils.processValidationErrors(rec.isValid(validationStringency == ValidationStringency.STRICT),
+                        recordIndex, validationStringency);
+            }
+            decodeFully(rec);
+            records.add(rec);
+            ++recordIndex;
+        }
+        return records;
+    }
+
+    /**
+     * Touches every lazily decoded field of the record so that it is unpacked on this thread, after which other threads
+     * may read the record at the same time.
+     */
+    public static void decodeFully(final SAMRecord rec) {
+        rec.getReadName();
+        rec.getCigar();
+        rec.getReadBases();
+        rec.getBaseQualities();
+        rec.getAttributes();
+    }
+
+    private int readInt() throws IOException {
+        if (readFully(lengthBytes, 4) < 4) throw new PicardException("Premature end of file in " + fileName);
+        return toInt(lengthBytes);
+    }
+
+    private static int toInt(final byte[] bytes) {
+        return (bytes[0] & 0xff) | ((bytes[1] & 0xff) << 8) | ((bytes[2] & 0xff) << 16) | ((bytes[3] & 0xff) << 24);
+    }
+
+    private int readFully(final byte[] buffer, final int len) throws IOException {
+        return readFully(buffer, 0, len);
+    }
+
+    private int readFully(final byte[] buffer, final int off, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int n = in.read(buffer, off + total, len - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private void skipFully(final int len) throws IOException {
+        int remaining = len;
+        byte[] buffer = null;
+        while (remaining > 0) {
+            // InputStream.skip() may skip less than asked for, so fall back on reading what is left
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (buffer == null) buffer = new byte[Math.min(remaining, 64 * 1024)];
+                skipped = in.read(buffer, 0, Math.min(remaining, buffer.length));
+                if (skipped < 0) throw new PicardException("Premature end of file in " + fileName);
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -32,6 +32,10 @@ public class ReadNameParser {
 
     private Pattern readNamePattern;
 
+    // Matches the regex without allocating anything if it is simple enough, see ReadNameTokenizer; else the matcher is reused
+    private ReadNameTokenizer readNameTokenizer;
+    private Matcher readNameMatcher;
+
     private boolean warnedAboutRegexNotMatching = false;
 
     private final Log log;
@@ -95,13 +99,28 @@ public class ReadNameParser {
                 return false;
             } else {
                 // Standard version that will use the regex
-                if (this.readNamePattern == null) this.readNamePattern = Pattern.compile(this.readNameRegex);
+                if (this.readNamePattern == null) {
+                    this.readNamePattern = Pattern.compile(this.readNameRegex);
+                    this.readNameTokenizer = ReadNameTokenizer.compile(this.readNameRegex);
+                    if (this.readNameTokenizer == null) this.readNameMatcher = this.readNamePattern.matcher("");
+                }
 
-                final Matcher m = this.readNamePattern.matcher(readName);
-                if (m.matches()) {
-                    loc.setTile((short) Integer.parseInt(m.group(1)));
-                    loc.setX(Integer.parseInt(m.group(2)));
-                    loc.setY(Integer.parseInt(m.group(3)));
+                final boolean matches;
+                if (this.readNameTokenizer != null) {
+                    matches = this.readNameTokenizer.parse(readName, tmpLocationFields);
+                } else {
+                    final Matcher m = this.readNameMatcher.reset(readName);
+                    matches = m.matches();
+                    if (matches) {
+                        tmpLocationFields[0] = Integer.parseInt(m.group(1));
+                        tmpLocationFields[1] = Integer.parseInt(m.group(2));
+                        tmpLocationFields[2] = Integer.parseInt(m.group(3));
+                    }
+                }
+                if (matches) {
+                    loc.setTile((short) tmpLocationFields[0]);
+                    loc.setX(tmpLocationFields[1]);
+                    loc.setY(tmpLocationFields[2]);
                     return true;
                 } else {
                     if (null != log && !this.warnedAboutRegexNotMatching) {
@@ -139,7 +158,7 @@ public class ReadNameParser {
         for (i = readName.length() - 1; 0 <= i && 0 <= tokensIdx; i--) {
             if (readName.charAt(i) == delim || 0 == i) {
                 numFields++;
-                tokens[tokensIdx] = rapidParseInt(readName.substring((0 == i) ? 0 : (i+1), endIdx));
+                tokens[tokensIdx] = rapidParseInt(readName, (0 == i) ? 0 : (i+1), endIdx);
                 tokensIdx--;
                 endIdx = i;
             }
@@ -165,18 +184,25 @@ public class ReadNameParser {
      * @throws NumberFormatException if the String does not start with an optional - followed by at least on digit
      */
     public static int rapidParseInt(final String input) throws NumberFormatException {
-        final int len = input.length();
+        return rapidParseInt(input, 0, input.length());
+    }
+
+    /**
+     * As {@link #rapidParseInt(String)}, but parses the characters of the input between start and end, so that a field can
+     * be parsed without taking a substring of it.
+     */
+    public static int rapidParseInt(final String input, final int start, final int end) throws NumberFormatException {
         int val = 0;
-        int i = 0;
+        int i = start;
         boolean isNegative = false;
 
-        if (0 < len && '-' == input.charAt(0)) {
-            i = 1;
+        if (start < end && '-' == input.charAt(start)) {
+            i = start + 1;
             isNegative = true;
         }
 
         boolean hasDigits = false;
-        for (; i < len; ++i) {
+        for (; i < end; ++i) {
             final char ch = input.charAt(i);
             if (Character.isDigit(ch)) {
                 val = (val * 10) + (ch - 48);
@@ -186,7 +212,7 @@ public class ReadNameParser {
             }
         }
 
-        if (!hasDigits) throw new NumberFormatException("String '" + input + "' did not start with a parsable number.");
+        if (!hasDigits) throw new NumberFormatException("String '" + input.substring(start, end) + "' did not start with a parsable number.");
         if (isNegative) val = -val;
         return val;
     }
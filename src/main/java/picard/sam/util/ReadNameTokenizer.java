@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the tile, x and y out of read names the way a READ_NAME_REGEX does, for the simple regexes that read name
+ * layouts such as Illumina's and MGI/BGI's are usually described with, but without a Matcher or any substrings, i.e.
+ * without allocating anything.
+ *
+ * A regex is compiled into a sequence of elements, each a single character, character class, '.', \d or \w with an
+ * optional quantifier, three of them captured on their own in groups of digits, and optionally led by ".*" or "(?:.*)?"
+ * ending in a single character, as in:
+ *  (?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$
+ *  [a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*
+ *  V[0-9]+L[0-9]C([0-9]{3})R([0-9]{3})([0-9]+).*
+ * Each element takes as many characters as it can, which gives the same match as the regex only when giving some back
+ * could not help the rest to match; regexes for which that is not so, or that use anything else, are not compiled, and
+ * must be matched with java.util.regex.  The leading ".*" is matched as the regex would, by trying the rest of the
+ * elements after each occurrence of its character, from the last.
+ */
+final class ReadNameTokenizer {
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final Element[] elements;
+    /** The character that ends the leading ".*", or -1 if there is none. */
+    private final int prefixEnd;
+    private final boolean prefixOptional;
+
+    private ReadNameTokenizer(final Element[] elements, final int prefixEnd, final boolean prefixOptional) {
+        this.elements = elements;
+        this.prefixEnd = prefixEnd;
+        this.prefixOptional = prefixOptional;
+    }
+
+    /**
+     * Matches the read name, putting the three captured values into fields.
+     *
+     * @return whether the read name matched
+     * @throws NumberFormatException if a captured value is empty or does not fit in an int, as Integer.parseInt would
+     */
+    boolean parse(final String readName, final int[] fields) throws NumberFormatException {
+        if (prefixEnd == -1) return matchFrom(readName, 0, fields);
+
+        // The leading ".*" cannot take a line terminator, so only the occurrences before the first one can end it
+        int limit = 0;
+        while (limit < readName.length() && !isLineTerminator(readName.charAt(limit))) ++limit;
+        if (limit == readName.length()) limit = readName.length() - 1;
+        for (int i = limit; i >= 0; --i) {
+            if (readName.charAt(i) == prefixEnd && matchFrom(readName, i + 1, fields)) return true;
+        }
+        return prefixOptional && matchFrom(readName, 0, fields);
+    }
+
+    private boolean matchFrom(final String readName, int pos, final int[] fields) {
+        final int length = readName.length();
+        // The start and end of each capture, which are only parsed once the whole read name has matched
+        long capture0 = 0, capture1 = 0, capture2 = 0;
+        for (final Element element : elements) {
+            final int start = pos;
+            final int end = (int) Math.min(length, (long) start + element.max);
+            while (pos < end && element.matches(readName.charAt(pos))) ++pos;
+            if (pos - start < element.min) return false;
+            if (element.capture == 0) capture0 = span(start, pos);
+            else if (element.capture == 1) capture1 = span(start, pos);
+            else if (element.capture == 2) capture2 = span(start, pos);
+        }
+        if (pos != length) return false;
+
+        fields[0] = parseInt(readName, capture0);
+        fields[1] = parseInt(readName, capture1);
+        fields[2] = parseInt(readName, capture2);
+        return true;
+    }
+
+    private static long span(final int start, final int end) {
+        return ((long) start << 32) | end;
+    }
+
+    /** Parses the digits of the span, which match [0-9], as Integer.parseInt would. */
+    private static int parseInt(final String s, final long span) throws NumberFormatException {
+        final int start = (int) (span >>> 32);
+        final int end = (int) span;
+
+        if (start == end) throw new NumberFormatException("For input string: \"\"");
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            value = value * 10 + (s.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+        }
+        return (int) value;
+    }
+
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Compiles the regex, which must already be known to be a valid one.
+     *
+     * @return the tokenizer, or null if the regex is not one that can be matched element by element
+     */
+    static ReadNameTokenizer compile(final String regex) {
+        final Compiler compiler = new Compiler(regex);
+        try {
+            return compiler.compile();
+        } catch (final UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /** Reads a regex, throwing UnsupportedOperationException at anything it does not support. */
+    private static final class Compiler {
+        private final String regex;
+        private int pos = 0;
+
+        private Compiler(final String regex) {
+            this.regex = regex;
+        }
+
+        private ReadNameTokenizer compile() {
+            if (regex.startsWith("^")) ++pos;
+
+            int prefixEnd = -1;
+            boolean prefixOptional = false;
+            if (regex.startsWith("(?:.*", pos)) {
+                pos += 5;
+                prefixEnd = literal();
+                if (!regex.startsWith(")?", pos)) unsupported();
+                pos += 2;
+                prefixOptional = true;
+            } else if (regex.startsWith(".*", pos) && pos + 2 < regex.length()) {
+                pos += 2;
+                prefixEnd = literal();
+            }
+            if (prefixEnd != -1 && pos < regex.length() && "?*+{".indexOf(regex.charAt(pos)) != -1) unsupported();
+
+            final List<Element> elements = new ArrayList<>();
+            int captures = 0;
+            while (pos < regex.length()) {
+                if (regex.charAt(pos) == '$' && pos == regex.length() - 1) {
+                    ++pos;
+                    break;
+                }
+                final Element element;
+                if (regex.charAt(pos) == '(') {
+                    ++pos;
+                    if (pos < regex.length() && regex.charAt(pos) == '?') unsupported();
+                    element = element();
+                    if (pos >= regex.length() || regex.charAt(pos) != ')') unsupported();
+                    ++pos;
+                    if (captures == 3 || !element.isDigits()) unsupported();
+                    element.capture = captures++;
+                } else {
+                    element = element();
+                }
+                elements.add(element);
+            }
+            if (captures != 3) unsupported();
+
+            // Each element of variable length takes all it can, which must leave the rest the same chances to match
+            for (int i = 0; i < elements.size() - 1; ++i) {
+                final Element element = elements.get(i);
+                final Element next = elements.get(i + 1);
+                if (element.min == element.max) continue;
+                if (next.min >= 1 && element.isDisjointFrom(next)) continue;
+                if (next.min == 0 && next.max == UNBOUNDED && element.isSubsetOf(next)) continue;
+                unsupported();
+            }
+            return new ReadNameTokenizer(elements.toArray(new Element[elements.size()]), prefixEnd, prefixOptional);
+        }
+
+        private Element element() {
+            final Element element = atom();
+            final int quantifierStart = pos;
+            if (pos < regex.length()) {
+                final char c = regex.charAt(pos);
+                if (c == '*') {
+                    element.min = 0;
+                    element.max = UNBOUNDED;
+                    ++pos;
+                } else if (c == '+') {
+                    element.min = 1;
+                    element.max = UNBOUNDED;
+                    ++pos;
+                } else if (c == '?') {
+                    element.min = 0;
+                    element.max = 1;
+                    ++pos;
+                } else if (c == '{') {
+                    ++pos;
+                    element.min = number();
+                    element.max = element.min;
+                    if (pos < regex.length() && regex.charAt(pos) == ',') {
+                        ++pos;
+                        element.max = pos < regex.length() && regex.charAt(pos) == '}' ? UNBOUNDED : number();
+                    }
+                    if (pos >= regex.length() || regex.charAt(pos) != '}' || element.max < element.min) unsupported();
+                    ++pos;
+                }
+                // Lazy and possessive quantifiers
+                if (pos > quantifierStart && pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) unsupported();
+            }
+            return element;
+        }
+
+        private Element atom() {
+            if (pos >= regex.length()) unsupported();
+            final char c = regex.charAt(pos);
+            final Element element = new Element();
+            if (c == '.') {
+                ++pos;
+                element.addRange(0, 127);
+                element.nonAscii = true;
+                element.dot = true;
+                element.remove('\n');
+                element.remove('\r');
+            } else if (c == '[') {
+                ++pos;
+                characterClass(element);
+            } else if (c == '\\' && pos + 1 < regex.length() && (regex.charAt(pos + 1) == 'd' || regex.charAt(pos + 1) == 'w')) {
+                pos += 2;
+                if (regex.charAt(pos - 1) == 'w') {
+                    element.addRange('a', 'z');
+                    element.addRange('A', 'Z');
+                    element.add('_');
+                }
+                element.addRange('0', '9');
+            } else {
+                element.add(literal());
+            }
+            return element;
+        }
+
+        /** Reads a class such as [a-zA-Z0-9] or [^:], without nested classes or intersections. */
+        private void characterClass(final Element element) {
+            final boolean negated = pos < regex.length() && regex.charAt(pos) == '^';
+            if (negated) ++pos;
+            if (pos < regex.length() && regex.charAt(pos) == ']') unsupported();
+            while (pos < regex.length() && regex.charAt(pos) != ']') {
+                if (regex.charAt(pos) == '[' || regex.startsWith("&&", pos)) unsupported();
+                if (regex.startsWith("\\d", pos)) {
+                    pos += 2;
+                    element.addRange('0', '9');
+                    continue;
+                }
+                final int from = classCharacter();
+                if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                    ++pos;
+                    final int to = classCharacter();
+                    if (to < from) unsupported();
+                    element.addRange(from, to);
+                } else {
+                    element.add(from);
+                }
+            }
+            if (pos >= regex.length()) unsupported();
+            ++pos;
+            if (negated) element.negate();
+        }
+
+        private int classCharacter() {
+            final char c = regex.charAt(pos++);
+            if (c != '\\') return ascii(c);
+            if (pos >= regex.length() || Character.isLetterOrDigit(regex.charAt(pos))) unsupported();
+            return ascii(regex.charAt(pos++));
+        }
+
+        /** Reads a single literal character, escaped or not. */
+        private int literal() {
+            if (pos >= regex.length()) unsupported();
+            final char c = regex.charAt(pos++);
+            if (c == '\\') {
+                if (pos >= regex.length() || Character.isLetterOrDigit(regex.charAt(pos))) unsupported();
+                return ascii(regex.charAt(pos++));
+            }
+            if (METACHARACTERS.indexOf(c) != -1) unsupported();
+            return ascii(c);
+        }
+
+        private int number() {
+            final int start = pos;
+            while (pos < regex.length() && pos - start < 9 && regex.charAt(pos) >= '0' && regex.charAt(pos) <= '9') ++pos;
+            if (pos == start) unsupported();
+            return Integer.parseInt(regex.substring(start, pos));
+        }
+
+        /** Only ASCII characters are supported, since the classes are held as a bitmap of them. */
+        private static int ascii(final char c) {
+            if (c > 127) unsupported();
+            return c;
+        }
+
+        private static void unsupported() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** A class of characters, held as a bitmap of the ASCII ones, that must occur between min and max times. */
+    private static final class Element {
+        private final long[] ascii = new long[2];
+        /** Whether the class includes the characters above ASCII, except the line terminators if it is '.'. */
+        private boolean nonAscii = false;
+        private boolean dot = false;
+        private int min = 1;
+        private int max = 1;
+        /** Which of the fields the element is captured into, or -1. */
+        private int capture = -1;
+
+        private boolean matches(final char c) {
+            if (c < 128) return (ascii[c >> 6] & (1L << c)) != 0;
+            return nonAscii && !(dot && isLineTerminator(c));
+        }
+
+        private void add(final int c) {
+            ascii[c >> 6] |= 1L << c;
+        }
+
+        private void addRange(final int from, final int to) {
+            for (int c = from; c <= to; ++c) add(c);
+        }
+
+        private void remove(final int c) {
+            ascii[c >> 6] &= ~(1L << c);
+        }
+
+        private void negate() {
+            ascii[0] = ~ascii[0];
+            ascii[1] = ~ascii[1];
+            nonAscii = !nonAscii;
+        }
+
+        private boolean isDigits() {
+            return !nonAscii && ascii[1] == 0 && (ascii[0] & ~(0x3FFL << '0')) == 0;
+        }
+
+        private boolean isDisjointFrom(final Element other) {
+            return (ascii[0] & other.ascii[0]) == 0 && (ascii[1] & other.ascii[1]) == 0 && !(nonAscii && other.nonAscii);
+        }
+
+        private boolean isSubsetOf(final Element other) {
+            return (ascii[0] & ~other.ascii[0]) == 0 && (ascii[1] & ~other.ascii[1]) == 0 &&
+                    (!nonAscii || (other.nonAscii && (dot || !other.dot)));
+        }
+    }
+}
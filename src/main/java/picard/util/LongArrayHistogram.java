@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.util.Histogram;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts occurrences of int keys without boxing them, for collectors that increment a histogram once per read or
+ * per base.  Non-negative keys below maxDenseSize are counted in a long[] that grows as larger keys are seen; any
+ * other key is counted in a map, which is slower but keeps a stray outlier from allocating a huge array.
+ *
+ * Only the bins that have been counted are present in the Histogram returned by toHistogram(), so it is the same
+ * Histogram that calling Histogram.increment() for every key would have built.  Not thread safe.
+ */
+public class LongArrayHistogram {
+    /** The number of keys that are counted densely before the first increment that needs more. */
+    public static final int DEFAULT_INITIAL_SIZE = 64;
+
+    /** Keys at or above this are counted sparsely, which bounds the dense array at 512KB. */
+    public static final int DEFAULT_MAX_DENSE_SIZE = 1 << 16;
+
+    private final int maxDenseSize;
+    private long[] dense;
+    private Map<Integer, long[]> sparse = null;
+
+    public LongArrayHistogram() {
+        this(DEFAULT_INITIAL_SIZE, DEFAULT_MAX_DENSE_SIZE);
+    }
+
+    /**
+     * @param initialSize the number of keys, starting at zero, that are counted densely from the start
+     * @param maxDenseSize the size beyond which the dense array does not grow
+     */
+    public LongArrayHistogram(final int initialSize, final int maxDenseSize) {
+        if (initialSize < 0 || initialSize > maxDenseSize) {
+            throw new IllegalArgumentException("initialSize must be between 0 and maxDenseSize (" + maxDenseSize + ") but was " + initialSize);
+        }
+        this.maxDenseSize = maxDenseSize;
+        this.dense = new long[initialSize];
+    }
+
+    public void increment(final int key) {
+        if (key >= 0 && key < dense.length) dense[key]++;
+        else incrementOutsideDense(key, 1);
+    }
+
+    public void increment(final int key, final long count) {
+        if (key >= 0 && key < dense.length) dense[key] += count;
+        else incrementOutsideDense(key, count);
+    }
+
+    private void incrementOutsideDense(final int key, final long count) {
+        if (key >= 0 && key < maxDenseSize) {
+            dense = Arrays.copyOf(dense, Math.min(maxDenseSize, Math.max(key + 1, 2 * dense.length)));
+            dense[key] += count;
+        } else {
+            if (sparse == null) sparse = new HashMap<>();
+            final long[] value = sparse.get(key);
+            if (value == null) sparse.put(key, new long[] {count});
+            else value[0] += count;
+        }
+    }
+
+    /** Returns the count for the given key, which is zero for keys that were never incremented. */
+    public long get(final int key) {
+        if (key >= 0 && key < dense.length) return dense[key];
+        if (sparse == null) return 0;
+        final long[] value = sparse.get(key);
+        return value == null ? 0 : value[0];
+    }
+
+    /** Returns the sum of the counts of all keys. */
+    public long getCount() {
+        long total = 0;
+        for (final long count : dense) total += count;
+        if (sparse != null) {
+            for (final long[] value : sparse.values()) total += value[0];
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        for (final long count : dense) {
+            if (count != 0) return false;
+        }
+        if (sparse != null) {
+            for (final long[] value : sparse.values()) {
+                if (value[0] != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds the counts of another histogram to this one. */
+    public void addHistogram(final LongArrayHistogram other) {
+        for (int key = other.dense.length - 1; key >= 0; --key) {
+            if (other.dense[key] != 0) increment(key, other.dense[key]);
+        }
+        if (other.sparse != null) {
+            for (final Map.Entry<Integer, long[]> entry : other.sparse.entrySet()) {
+                increment(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+    }
+
+    public Histogram<Integer> toHistogram() {
+        return fill(new Histogram<Integer>());
+    }
+
+    public Histogram<Integer> toHistogram(final String binLabel, final String valueLabel) {
+        return fill(new Histogram<Integer>(binLabel, valueLabel));
+    }
+
+    private Histogram<Integer> fill(final Histogram<Integer> histogram) {
+        for (int key = 0; key < dense.length; ++key) {
+            if (dense[key] != 0) histogram.increment(key, dense[key]);
+        }
+        if (sparse != null) {
+            for (final Map.Entry<Integer, long[]> entry : sparse.entrySet()) {
+                if (entry.getValue()[0] != 0) histogram.increment(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+        return histogram;
+    }
+}
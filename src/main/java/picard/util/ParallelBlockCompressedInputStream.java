@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.BlockGunzipper;
+import picard.PicardException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sequential InputStream over a BGZF compressed stream that inflates the blocks ahead of the reader on an
+ * ExecutorService.  The compressed blocks are read and split on the calling thread, which is cheap, while up to
+ * readAhead of them are inflated concurrently; the inflated blocks are always returned in file order.
+ *
+ * The executor is not owned by the stream and is not shut down by close().
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private static final ThreadLocal<BlockGunzipper> gunzippers = new ThreadLocal<BlockGunzipper>() {
+        @Override
+        protected BlockGunzipper initialValue() {
+            return new BlockGunzipper();
+        }
+    };
+
+    private final InputStream compressed;
+    private final ExecutorService executor;
+    private final int readAhead;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+
+    private boolean endOfCompressedInput = false;
+    private byte[] current = NO_BYTES;
+    private int offset = 0;
+
+    /**
+     * @param compressed the BGZF stream to read; should be buffered for efficiency
+     * @param executor the executor on which blocks will be inflated
+     * @param readAhead the maximum number of blocks being inflated at any time
+     */
+    public ParallelBlockCompressedInputStream(final InputStream compressed, final ExecutorService executor, final int readAhead) {
+        if (readAhead < 1) throw new IllegalArgumentException("readAhead must be at least 1 but was " + readAhead);
+        this.compressed = compressed;
+        this.executor = executor;
+        this.readAhead = readAhead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (offset >= current.length && !nextBlock()) return -1;
+        return current[offset++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int off, final int len) throws IOException {
+        if (len == 0) return 0;
+        if (offset >= current.length && !nextBlock()) return -1;
+
+        final int n = Math.min(len, current.length - offset);
+        System.arraycopy(current, offset, buffer, off, n);
+        offset += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.length - offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Future<byte[]> future : pending) future.cancel(false);
+        pending.clear();
+        compressed.close();
+    }
+
+    /** Moves on to the next non-empty inflated block, returning false at the end of the input. */
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            fill();
+            if (pending.isEmpty()) return false;
+
+            final byte[] block;
+            try {
+                block = pending.removeFirst().get();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for a BGZF block to be inflated.", ie);
+            } catch (final ExecutionException ee) {
+                if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                throw new PicardException("Could not inflate BGZF block.", ee.getCause());
+            }
+
+            // Refill before handing the block out so that the workers stay busy while it is being consumed
+            fill();
+            if (block.length > 0) {
+                current = block;
+                offset = 0;
+                return true;
+            }
+        }
+    }
+
+    /** Reads compressed blocks and queues them for inflation until readAhead blocks are pending. */
+    private void fill() throws IOException {
+        while (!endOfCompressedInput && pending.size() < readAhead) {
+            final byte[] block = readCompressedBlock();
+            if (block == null) {
+                endOfCompressedInput = true;
+            } else {
+                pending.addLast(executor.submit(() -> inflate(block)));
+            }
+        }
+    }
+
+    /** Returns the next complete compressed block, header and footer included, or null at the end of the input. */
+    private byte[] readCompressedBlock() throws IOException {
+        final int headerRead = readFully(header, 0, header.length);
+        if (headerRead == 0) return null;
+        if (headerRead < header.length) throw new PicardException("Premature end of file in BGZF block header.");
+
+        if (header[0] != BlockCompressedStreamConstants.GZIP_ID1 ||
+                (header[1] & 0xff) != BlockCompressedStreamConstants.GZIP_ID2 ||
+                header[12] != BlockCompressedStreamConstants.BGZF_ID1 ||
+                header[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+            throw new PicardException("Input is not a valid BGZF stream.");
+        }
+
+        final int lengthOffset = BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET;
+        final int blockLength = ((header[lengthOffset] & 0xff) | ((header[lengthOffset + 1] & 0xff) << 8)) + 1;
+        final byte[] block = new byte[blockLength];
+        System.arraycopy(header, 0, block, 0, header.length);
+        if (readFully(block, header.length, blockLength - header.length) < blockLength - header.length) {
+            throw new PicardException("Premature end of file in BGZF block.");
+        }
+        return block;
+    }
+
+    private int readFully(final byte[] buffer, final int off, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int n = compressed.read(buffer, off + total, len - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    /** Inflates a complete block; the uncompressed size is the little-endian ISIZE field in the last four bytes. */
+    private static byte[] inflate(final byte[] block) {
+        final int n = block.length;
+        final int uncompressedLength = (block[n - 4] & 0xff) | ((block[n - 3] & 0xff) << 8) |
+                ((block[n - 2] & 0xff) << 16) | ((block[n - 1] & 0xff) << 24);
+        if (uncompressedLength == 0) return NO_BYTES;
+
+        final byte[] uncompressed = new byte[uncompressedLength];
+        gunzippers.get().unzipBlock(uncompressed, block, block.length);
+        return uncompressed;
+    }
+}
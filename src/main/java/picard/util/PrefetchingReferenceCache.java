@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread safe replacement for ReferenceSequenceFileWalker that keeps the most recently used contigs in memory and
+ * loads the contig after the one asked for in the background, so that a reader crossing into the next contig
+ * usually finds it already loaded.  Contigs may be asked for in any order and by any number of threads, which all
+ * share the loaded sequences; the ReferenceSequences returned must therefore not be modified.
+ *
+ * Contigs are loaded one at a time by a single background thread.  If the reference is indexed and has a sequence
+ * dictionary, each contig is read directly; otherwise the file is read sequentially, and asking for a contig that
+ * comes before the last one read starts again from the beginning of the file.
+ */
+public class PrefetchingReferenceCache implements Closeable {
+    private final ReferenceSequenceFile referenceFile;
+    private final SAMSequenceDictionary dictionary;
+    private final boolean randomAccess;
+    private final ExecutorService loader;
+    private final Map<Integer, Future<ReferenceSequence>> contigs;
+
+    // Only used on the loader thread: the index of the last sequence read when reading sequentially
+    private int lastSequentialIndex = -1;
+
+    /**
+     * @param reference the reference FASTA
+     * @param maxCachedContigs how many contigs are kept in memory, counting the one being prefetched; should be at
+     *                         least one more than the number of threads that use the cache
+     */
+    public PrefetchingReferenceCache(final File reference, final int maxCachedContigs) {
+        if (maxCachedContigs < 2) throw new IllegalArgumentException("maxCachedContigs must be at least 2 but was " + maxCachedContigs);
+        IOUtil.assertFileIsReadable(reference);
+
+        this.referenceFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference, true);
+        this.dictionary = referenceFile.getSequenceDictionary();
+        this.randomAccess = referenceFile.isIndexed() && dictionary != null;
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "PrefetchingReferenceCache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.contigs = new LinkedHashMap<Integer, Future<ReferenceSequence>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Future<ReferenceSequence>> eldest) {
+                return size() > maxCachedContigs;
+            }
+        };
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Returns the contig with the given index in the reference, waiting for it to be loaded if need be, and starts
+     * loading the contig after it.
+     */
+    public ReferenceSequence get(final int contigIndex) {
+        final Future<ReferenceSequence> contig;
+        synchronized (contigs) {
+            contig = request(contigIndex);
+            if (dictionary == null || contigIndex + 1 < dictionary.size()) request(contigIndex + 1);
+        }
+
+        try {
+            return contig.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted waiting for reference sequence " + contigIndex + " to be loaded.", ie);
+        } catch (final ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            throw new PicardException("Could not load reference sequence " + contigIndex + " from " + referenceFile, ee.getCause());
+        }
+    }
+
+    private Future<ReferenceSequence> request(final int contigIndex) {
+        Future<ReferenceSequence> contig = contigs.get(contigIndex);
+        if (contig == null) {
+            contig = loader.submit(() -> load(contigIndex));
+            contigs.put(contigIndex, contig);
+        }
+        return contig;
+    }
+
+    private ReferenceSequence load(final int contigIndex) {
+        if (randomAccess) {
+            final String name = dictionary.getSequence(contigIndex).getSequenceName();
+            return new ReferenceSequence(name, contigIndex, referenceFile.getSequence(name).getBases());
+        }
+
+        if (contigIndex <= lastSequentialIndex) {
+            referenceFile.reset();
+            lastSequentialIndex = -1;
+        }
+        while (true) {
+            final ReferenceSequence sequence = referenceFile.nextSequence();
+            if (sequence == null) {
+                throw new PicardException("Reference sequence " + contigIndex + " not found in " + referenceFile);
+            }
+            lastSequentialIndex = sequence.getContigIndex();
+            if (sequence.getContigIndex() == contigIndex) return sequence;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (contigs) {
+            for (final Future<ReferenceSequence> contig : contigs.values()) contig.cancel(false);
+            contigs.clear();
+        }
+        loader.shutdown();
+        try {
+            loader.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        CloserUtil.close(referenceFile);
+    }
+}
@@ -6,9 +6,12 @@ import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
@@ -20,6 +23,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -303,6 +309,204 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    /** Runs the given programs over an indexed BAM with and without SHARD_BY_REGION and checks the outputs agree. */
+    private void runRegionShardingTest(final String[] extensions, final CollectMultipleMetrics.Program... programs) throws IOException {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; ++i) {
+            final int contig = random.nextInt(4);
+            final int start = 1 + random.nextInt(100000);
+            if (i % 50 == 0) {
+                // mapped read with an unmapped mate placed at the same position
+                builder.addPair("pair" + i, contig, start, start, false, true, "36M", null, false, false, 20);
+            } else {
+                builder.addPair("pair" + i, contig, start, start + random.nextInt(500));
+            }
+        }
+        for (int i = 0; i < 20; ++i) builder.addUnmappedPair("unmapped" + i);
+
+        final File input = File.createTempFile("CollectMultipleMetricsTest.", ".bam");
+        input.deleteOnExit();
+        new File(input.getPath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(builder.getHeader(), false, input);
+        for (final SAMRecord record : builder) writer.addAlignment(record);
+        writer.close();
+
+        final File streamed = File.createTempFile("streamed", "");
+        final File sharded = File.createTempFile("sharded", "");
+        for (final File outfile : new File[] {streamed, sharded}) {
+            outfile.deleteOnExit();
+            final List<String> args = new ArrayList<String>();
+            args.add("INPUT=" + input.getAbsolutePath());
+            args.add("OUTPUT=" + outfile.getAbsolutePath());
+            args.add("NUM_THREADS=3");
+            args.add("SHARD_BY_REGION=" + (outfile == sharded));
+            args.add("PROGRAM=null");
+            for (final CollectMultipleMetrics.Program program : programs) args.add("PROGRAM=" + program.name());
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        for (final String extension : extensions) {
+            final MetricsFile<MetricBase, Comparable<?>> expected = new MetricsFile<>();
+            expected.read(new FileReader(streamed + extension));
+            final MetricsFile<MetricBase, Comparable<?>> actual = new MetricsFile<>();
+            actual.read(new FileReader(sharded + extension));
+            new File(streamed + extension).deleteOnExit();
+            new File(sharded + extension).deleteOnExit();
+
+            Assert.assertTrue(actual.areMetricsEqual(expected), extension);
+            Assert.assertTrue(actual.areHistogramsEqual(expected), extension);
+        }
+    }
+
+    @Test
+    public void testShardByRegion() throws IOException {
+        runRegionShardingTest(
+                new String[] {".quality_distribution_metrics", ".quality_by_cycle_metrics", ".base_distribution_by_cycle_metrics"},
+                CollectMultipleMetrics.Program.QualityScoreDistribution,
+                CollectMultipleMetrics.Program.MeanQualityByCycle,
+                CollectMultipleMetrics.Program.CollectBaseDistributionByCycle,
+                CollectMultipleMetrics.Program.CollectInsertSizeMetrics);
+    }
+
+    @Test
+    public void testTimingOutput() throws IOException {
+        final File outfile = File.createTempFile("timing", "");
+        final File timing = File.createTempFile("timing", ".program_timing_metrics");
+        outfile.deleteOnExit();
+        timing.deleteOnExit();
+        final String[] args = new String[] {
+                "INPUT=" + tempSamFile.getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "NUM_THREADS=2",
+                "TIMING_OUTPUT=" + timing.getAbsolutePath(),
+                "PROGRAM=null",
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.QualityScoreDistribution.name()
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        new File(outfile + ".alignment_summary_metrics").deleteOnExit();
+        new File(outfile + ".quality_distribution_metrics").deleteOnExit();
+        new File(outfile + ".quality_distribution.pdf").deleteOnExit();
+
+        final MetricsFile<ProgramTimingMetrics, Comparable<?>> output = new MetricsFile<ProgramTimingMetrics, Comparable<?>>();
+        output.read(new FileReader(timing));
+        final List<ProgramTimingMetrics> metrics = output.getMetrics();
+        Assert.assertEquals(metrics.size(), 3);
+        Assert.assertEquals(metrics.get(0).PROGRAM, CollectAlignmentSummaryMetrics.class.getSimpleName());
+        Assert.assertEquals(metrics.get(1).PROGRAM, QualityScoreDistribution.class.getSimpleName());
+        Assert.assertEquals(metrics.get(2).THREAD_TYPE, ProgramTimingMetrics.ThreadType.READER);
+
+        final long records = metrics.get(2).RECORDS;
+        Assert.assertTrue(records > 0);
+        double pctTime = 0;
+        for (final ProgramTimingMetrics row : metrics) {
+            Assert.assertEquals(row.RECORDS, records, row.PROGRAM);
+            Assert.assertTrue(row.SAMPLED_RECORDS > 0 && row.SAMPLED_RECORDS <= records, row.PROGRAM);
+            pctTime += row.PCT_TIME;
+        }
+        Assert.assertEquals(metrics.get(0).THREAD_TYPE, ProgramTimingMetrics.ThreadType.SHARD_WORKER);
+        Assert.assertEquals(metrics.get(0).THREADS, 2);
+        Assert.assertEquals(pctTime, 1.0, 1e-4);
+    }
+
+    @Test
+    public void testRegionWorkerTiming() throws IOException {
+        // Reads all along every contig, so that every region, and with it every worker thread, has some to time
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final List<SAMSequenceRecord> sequences = builder.getHeader().getSequenceDictionary().getSequences();
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; ++i) {
+            final SAMSequenceRecord sequence = sequences.get(i % sequences.size());
+            final int start = 1 + random.nextInt(sequence.getSequenceLength() - 1000);
+            builder.addPair("pair" + i, sequence.getSequenceIndex(), start, start + random.nextInt(500));
+        }
+
+        final File input = File.createTempFile("CollectMultipleMetricsTest.", ".bam");
+        input.deleteOnExit();
+        new File(input.getPath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(builder.getHeader(), false, input);
+        for (final SAMRecord record : builder) writer.addAlignment(record);
+        writer.close();
+
+        final File outfile = File.createTempFile("timing", "");
+        final File timing = File.createTempFile("timing", ".program_timing_metrics");
+        outfile.deleteOnExit();
+        timing.deleteOnExit();
+        final String[] args = new String[] {
+                "INPUT=" + input.getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "NUM_THREADS=3",
+                "SHARD_BY_REGION=true",
+                "TIMING_OUTPUT=" + timing.getAbsolutePath(),
+                "PROGRAM=null",
+                "PROGRAM=" + CollectMultipleMetrics.Program.QualityScoreDistribution.name()
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        new File(outfile + ".quality_distribution_metrics").deleteOnExit();
+        new File(outfile + ".quality_distribution.pdf").deleteOnExit();
+
+        final MetricsFile<ProgramTimingMetrics, Comparable<?>> output = new MetricsFile<ProgramTimingMetrics, Comparable<?>>();
+        output.read(new FileReader(timing));
+        final ProgramTimingMetrics metrics = output.getMetrics().get(0);
+        Assert.assertEquals(metrics.PROGRAM, QualityScoreDistribution.class.getSimpleName());
+        Assert.assertEquals(metrics.THREAD_TYPE, ProgramTimingMetrics.ThreadType.REGION_WORKER);
+        Assert.assertEquals(metrics.RECORDS, 4000);
+        Assert.assertEquals(metrics.THREADS, 3);
+    }
+
+    /**
+     * Runs the collectors that merge per-thread shards over every accumulation level, single threaded, with four
+     * worker threads and sharded by region, and checks that all three write the same metrics.  The files are compared
+     * line by line, ignoring the header lines that record the command line.
+     */
+    @Test
+    public void testMergedCollectorsMatchSingleThreaded() throws IOException {
+        final String[] extensions = {".alignment_summary_metrics", ".insert_size_metrics", ".gc_bias.detail_metrics",
+                ".gc_bias.summary_metrics", ".pre_adapter_summary_metrics", ".pre_adapter_detail_metrics",
+                ".bait_bias_summary_metrics", ".bait_bias_detail_metrics"};
+
+        // Region sharding needs an index
+        final File input = File.createTempFile("CollectMultipleMetricsTest.", ".bam");
+        input.deleteOnExit();
+        new File(input.getPath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+        Assert.assertEquals(new SortSam().instanceMain(new String[] {"INPUT=" + tempSamFile.getAbsolutePath(),
+                "OUTPUT=" + input.getAbsolutePath(), "SORT_ORDER=coordinate", "CREATE_INDEX=true"}), 0);
+
+        final List<List<String>> results = new ArrayList<List<String>>();
+        for (final String threadingArgs : new String[] {"NUM_THREADS=1", "NUM_THREADS=4", "NUM_THREADS=4 SHARD_BY_REGION=true"}) {
+            final File outfile = File.createTempFile("merged", "");
+            outfile.deleteOnExit();
+            final List<String> args = new ArrayList<String>();
+            args.add("INPUT=" + input.getAbsolutePath());
+            args.add("OUTPUT=" + outfile.getAbsolutePath());
+            args.add("REFERENCE_SEQUENCE=testdata/picard/quality/chrM.reference.fasta");
+            for (final MetricAccumulationLevel level : MetricAccumulationLevel.values()) {
+                args.add("METRIC_ACCUMULATION_LEVEL=" + level.name());
+            }
+            args.addAll(Arrays.asList(threadingArgs.split(" ")));
+            args.add("PROGRAM=null");
+            args.add("PROGRAM=" + CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name());
+            args.add("PROGRAM=" + CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name());
+            args.add("PROGRAM=" + CollectMultipleMetrics.Program.CollectGcBiasMetrics.name());
+            args.add("PROGRAM=" + CollectMultipleMetrics.Program.CollectSequencingArtifactMetrics.name());
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+
+            final List<String> lines = new ArrayList<String>();
+            for (final String extension : extensions) {
+                final File metrics = new File(outfile + extension);
+                metrics.deleteOnExit();
+                for (final String line : IOUtil.slurpLines(metrics)) {
+                    if (!line.startsWith("#")) lines.add(extension + "\t" + line);
+                }
+            }
+            results.add(lines);
+        }
+
+        Assert.assertEquals(results.get(1), results.get(0));
+        Assert.assertEquals(results.get(2), results.get(0));
+    }
+
     //gcBias multi level collector test creates a sam file from chrM for testing purposes
     //more variables needed for gcbias test to create temp sam file
     private final static String sample1 = "TestSample1";
@@ -26,6 +26,7 @@ package picard.analysis;
 
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 
@@ -43,14 +44,23 @@ public class CollectQualityYieldMetricsTest extends CommandLineProgramTest {
         return CollectQualityYieldMetrics.class.getSimpleName();
     }
 
-    @Test
-    public void test() throws IOException {
+    @DataProvider(name = "threadCounts")
+    public Object[][] threadCounts() {
+        return new Object[][] {{1}, {4}};
+    }
+
+    @Test(dataProvider = "threadCounts")
+    public void test(final int numThreads) throws IOException {
         final File input = new File(TEST_DATA_DIR, "insert_size_metrics_test.sam");
         final File outfile   = File.createTempFile("test", ".quality_yield_metrics");
         outfile.deleteOnExit();
         final String[] args = new String[] {
                 "INPUT="  + input.getAbsolutePath(),
                 "OUTPUT=" + outfile.getAbsolutePath(),
+                "NUM_THREADS=" + numThreads,
+                // Use small batches and queues so that every shard sees some of the reads and the reader has to wait
+                "BATCH_SIZE=5",
+                "QUEUE_DEPTH=1"
         };
 
         Assert.assertEquals(runPicardCommandLine(args), 0);
@@ -1,5 +1,10 @@
 package picard.analysis;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -9,6 +14,7 @@ import java.io.*;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Tests for methods in CollectWgsMetricsFromQuerySorted
@@ -59,6 +65,44 @@ public class CollectWgsMetricsFromQuerySortedTest extends CommandLineProgramTest
         validateMetrics(output.getMetrics(), 1000L);
     }
 
+    @Test
+    public void testThreadsMatchSingleThread() throws IOException {
+        // Enough pairs for several batches per worker, some of them duplicates, unmapped or with low mapping quality
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.queryname);
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; ++i) {
+            final int start = 1 + random.nextInt(100000);
+            final List<SAMRecord> pair = builder.addPair("pair" + i, random.nextInt(3), start, start + random.nextInt(400),
+                    random.nextInt(20) == 0, random.nextInt(20) == 0, "36M", "36M", false, true, random.nextInt(60));
+            if (random.nextInt(10) == 0) for (final SAMRecord rec : pair) rec.setDuplicateReadFlag(true);
+        }
+        final File input = File.createTempFile("CollectWgsMetricsFromQuerySorted", ".bam");
+        input.deleteOnExit();
+        try (final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), true, input)) {
+            for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        }
+
+        final MetricsFile<CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics, Comparable<?>> serial = runAndReadMetrics(input, 1);
+        final MetricsFile<CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics, Comparable<?>> parallel = runAndReadMetrics(input, 4);
+        Assert.assertTrue(serial.getMetrics().get(0).PF_READ_PAIRS > 0);
+        Assert.assertTrue(serial.areMetricsEqual(parallel));
+    }
+
+    private MetricsFile<CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics, Comparable<?>> runAndReadMetrics(final File input, final int threads) throws IOException {
+        final File outfile = File.createTempFile("metrics", ".txt");
+        outfile.deleteOnExit();
+        final String[] args = new String[] {
+                "INPUT="  + input.getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "NUM_THREADS=" + threads
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+
+        final MetricsFile<CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics, Comparable<?>> output = new MetricsFile<CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics, Comparable<?>>();
+        output.read(new FileReader(outfile));
+        return output;
+    }
+
     private void validateMetrics(final List<CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics> metrics, final long genomeSize) {
         for (final CollectWgsMetricsFromQuerySorted.QuerySortedSeqMetrics row : metrics) {
             final boolean isRaw = row.TYPE == CollectWgsMetricsFromQuerySorted.FILTERING_STRINGENCY.RAW;
@@ -24,10 +24,13 @@
 package picard.analysis;
 
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.cmdline.PicardCommandLine;
+import picard.sam.SortSam;
 
 import java.io.File;
 import java.io.FileReader;
@@ -157,4 +160,50 @@ public class CollectWgsMetricsFromSampledSitesTest extends CommandLineProgramTes
             }
         }
     }
+
+    @DataProvider(name = "sites")
+    public Object[][] sites() {
+        return new Object[][] {
+                {"onePos.interval_list"},
+                {"contiguous.interval_list"},
+                {"largeIntervals.interval_list"}
+        };
+    }
+
+    /** Checks that the fast algorithm, reading only the reads at the sites of an indexed input, gives the same output. */
+    @Test(dataProvider = "sites")
+    public void testFastAlgorithmOnIndexedInput(final String intervals) throws IOException {
+        final File ref = new File(TEST_DATA_DIR, "merger.fasta");
+        final File indexed = File.createTempFile("forMetrics", ".bam");
+        indexed.deleteOnExit();
+        new File(indexed.getParentFile(), indexed.getName().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+        Assert.assertEquals(new SortSam().instanceMain(new String[] {
+                "INPUT=" + new File(TEST_DATA_DIR, "forMetrics.sam").getAbsolutePath(),
+                "OUTPUT=" + indexed.getAbsolutePath(),
+                "SORT_ORDER=coordinate",
+                "CREATE_INDEX=true"
+        }), 0);
+
+        final List<List<String>> results = new ArrayList<>();
+        for (final boolean fast : new boolean[] {false, true}) {
+            final File outfile = File.createTempFile("test", ".wgs_metrics");
+            outfile.deleteOnExit();
+            Assert.assertEquals(runPicardCommandLine(new String[] {
+                    "INPUT=" + indexed.getAbsolutePath(),
+                    "OUTPUT=" + outfile.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + ref.getAbsolutePath(),
+                    "INTERVALS=" + new File(TEST_DATA_DIR, intervals).getAbsolutePath(),
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "SAMPLE_SIZE=1000",
+                    "USE_FAST_ALGORITHM=" + fast
+            }), 0);
+
+            final List<String> lines = new ArrayList<>();
+            for (final String line : IOUtil.slurpLines(outfile)) {
+                if (!line.startsWith("#")) lines.add(line);
+            }
+            results.add(lines);
+        }
+        Assert.assertEquals(results.get(1), results.get(0));
+    }
 }
@@ -9,6 +9,9 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.Histogram;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
@@ -18,6 +21,9 @@ import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -201,8 +207,285 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    @DataProvider(name = "fastAlgorithmDataProvider")
+    public Object[][] fastAlgorithmDataProvider() {
+        final String chrM = "testdata/picard/quality/chrM.reference.fasta";
+        final String merger = new File(TEST_DIR, "merger.fasta").getAbsolutePath();
+        final String forMetrics = new File(TEST_DIR, "forMetrics.sam").getAbsolutePath();
+        final String largeIntervals = new File(TEST_DIR, "largeIntervals.interval_list").getAbsolutePath();
+
+        return new Object[][] {
+                {tempSamFile.getAbsolutePath(), chrM, new String[0]},
+                {tempSamFile.getAbsolutePath(), chrM, new String[] {"COVERAGE_CAP=3", "LOCUS_ACCUMULATION_CAP=4"}},
+                {tempSamFile.getAbsolutePath(), chrM, new String[] {"MINIMUM_BASE_QUALITY=0", "MINIMUM_MAPPING_QUALITY=0"}},
+                {forMetrics, merger, new String[0]},
+                {forMetrics, merger, new String[] {"COUNT_UNPAIRED=true", "MINIMUM_BASE_QUALITY=10"}},
+                {forMetrics, merger, new String[] {"INTERVALS=" + largeIntervals}},
+        };
+    }
+
+    /** Checks that USE_FAST_ALGORITHM writes exactly the metrics and histograms that the pileup based algorithm does. */
+    @Test(dataProvider = "fastAlgorithmDataProvider")
+    public void testFastAlgorithmMatchesPileups(final String input, final String reference, final String[] extraArgs) throws IOException {
+        final List<List<String>> results = new ArrayList<>();
+        for (final boolean fast : new boolean[] {false, true}) {
+            final File outfile = File.createTempFile("testWgsMetrics", ".txt");
+            outfile.deleteOnExit();
+            final List<String> args = new ArrayList<>(Arrays.asList(
+                    "INPUT=" + input,
+                    "OUTPUT=" + outfile.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference,
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "SAMPLE_SIZE=1000",
+                    "USE_FAST_ALGORITHM=" + fast));
+            args.addAll(Arrays.asList(extraArgs));
+            results.add(runAndReadMetrics(args, outfile));
+        }
+        Assert.assertEquals(results.get(1), results.get(0));
+    }
+
+    /** Runs the program and returns the lines of its output, without the header lines that hold the command line and date. */
+    private List<String> runAndReadMetrics(final List<String> args, final File outfile) throws IOException {
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        final List<String> lines = new ArrayList<>();
+        for (final String line : IOUtil.slurpLines(outfile)) {
+            if (!line.startsWith("#")) lines.add(line);
+        }
+        return lines;
+    }
+
+    /** Checks that the coverage track adds up to the depth histogram and is the same for both algorithms. */
     @Test
-    public void testExclusions() throws IOException {
+    public void testCoverageTrack() throws IOException {
+        final File input = new File(TEST_DIR, "forMetrics.sam");
+        final File reference = new File(TEST_DIR, "merger.fasta");
+
+        final List<List<String>> tracks = new ArrayList<>();
+        for (final boolean fast : new boolean[] {false, true}) {
+            final File outfile = File.createTempFile("testWgsMetrics", ".txt");
+            final File track = File.createTempFile("testWgsMetrics", ".bedGraph");
+            outfile.deleteOnExit();
+            track.deleteOnExit();
+            final String[] args = new String[] {
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + outfile.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "COVERAGE_TRACK=" + track.getAbsolutePath(),
+                    "USE_FAST_ALGORITHM=" + fast
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+
+            final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> output = new MetricsFile<>();
+            output.read(new FileReader(outfile));
+            final CollectWgsMetrics.WgsMetrics metrics = output.getMetrics().get(0);
+
+            final List<String> lines = IOUtil.slurpLines(track);
+            Assert.assertEquals(lines.get(0), "track type=bedGraph");
+            long territory = 0;
+            long depth = 0;
+            String[] previous = null;
+            for (final String line : lines.subList(1, lines.size())) {
+                final String[] fields = line.split("\t");
+                final long length = Long.parseLong(fields[2]) - Long.parseLong(fields[1]);
+                territory += length;
+                depth += length * Long.parseLong(fields[3]);
+                // Adjacent loci with the same depth must have been run length encoded
+                if (previous != null && previous[0].equals(fields[0]) && previous[2].equals(fields[1])) {
+                    Assert.assertNotEquals(previous[3], fields[3], line);
+                }
+                previous = fields;
+            }
+            Assert.assertEquals(territory, metrics.GENOME_TERRITORY);
+            Assert.assertEquals(depth / (double) territory, metrics.MEAN_COVERAGE, 1e-6);
+            Assert.assertTrue(lines.size() < territory / 10, "Track not run length encoded: " + lines.size() + " lines");
+            tracks.add(lines);
+        }
+        Assert.assertEquals(tracks.get(1), tracks.get(0));
+    }
+
+    @Test
+    public void testBinnedCoverageTrack() throws IOException {
+        final File outfile = File.createTempFile("testWgsMetrics", ".txt");
+        final File track = File.createTempFile("testWgsMetrics", ".bedGraph");
+        outfile.deleteOnExit();
+        track.deleteOnExit();
+        final String[] args = new String[] {
+                "INPUT=" + new File(TEST_DIR, "forMetrics.sam").getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + new File(TEST_DIR, "merger.fasta").getAbsolutePath(),
+                "INTERVALS=" + new File(TEST_DIR, "largeIntervals.interval_list").getAbsolutePath(),
+                "COVERAGE_TRACK=" + track.getAbsolutePath(),
+                "COVERAGE_TRACK_BIN_SIZE=100"
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+
+        final List<String> lines = IOUtil.slurpLines(track);
+        Assert.assertEquals(lines.get(0), "track type=bedGraph");
+        int expectedStart = 0;
+        for (final String line : lines.subList(1, lines.size())) {
+            final String[] fields = line.split("\t");
+            Assert.assertEquals(fields[0], "chr7");
+            Assert.assertEquals(Integer.parseInt(fields[1]), expectedStart);
+            Assert.assertEquals(Integer.parseInt(fields[1]) % 100, 0);
+            Assert.assertTrue(Integer.parseInt(fields[2]) % 100 == 0 || Integer.parseInt(fields[2]) == 404, line);
+            expectedStart = Integer.parseInt(fields[2]);
+        }
+        Assert.assertEquals(expectedStart, 404);
+    }
+
+    @DataProvider(name = "threadsDataProvider")
+    public Object[][] threadsDataProvider() {
+        return new Object[][] {
+                {new String[0]},
+                {new String[] {"USE_FAST_ALGORITHM=true"}},
+                {new String[] {"COVERAGE_CAP=3", "INCLUDE_BQ_HISTOGRAM=true"}},
+                {new String[] {"INTERVALS=" + new File(TEST_DIR, "largeIntervals.interval_list").getAbsolutePath()}},
+        };
+    }
+
+    /** Checks that splitting the contigs between threads gives exactly the metrics of a single thread. */
+    @Test(dataProvider = "threadsDataProvider")
+    public void testThreadsMatchSingleThread(final String[] extraArgs) throws IOException {
+        final File reference = new File(TEST_DIR, "merger.fasta");
+        final File input = makeIndexedPairs(reference);
+
+        final List<List<String>> results = new ArrayList<>();
+        for (final int threads : new int[] {1, 3}) {
+            final File outfile = File.createTempFile("testWgsMetrics", ".txt");
+            outfile.deleteOnExit();
+            final List<String> args = new ArrayList<>(Arrays.asList(
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + outfile.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "SAMPLE_SIZE=1000",
+                    "NUM_THREADS=" + threads));
+            args.addAll(Arrays.asList(extraArgs));
+            results.add(runAndReadMetrics(args, outfile));
+        }
+        Assert.assertEquals(results.get(1), results.get(0));
+    }
+
+    @DataProvider(name = "checkpointDataProvider")
+    public Object[][] checkpointDataProvider() {
+        return new Object[][] {
+                {new String[0], false},
+                {new String[] {"USE_FAST_ALGORITHM=true"}, false},
+                {new String[] {"COVERAGE_CAP=3", "INCLUDE_BQ_HISTOGRAM=true"}, false},
+                {new String[0], true},
+                {new String[] {"USE_FAST_ALGORITHM=true"}, true},
+        };
+    }
+
+    /** Checks that a run stopped part of the way through and resumed from its checkpoint gives the metrics of a single pass. */
+    @Test(dataProvider = "checkpointDataProvider")
+    public void testResumeFromCheckpoint(final String[] extraArgs, final boolean restrictToIntervals) throws IOException {
+        final File reference = new File(TEST_DIR, "merger.fasta");
+        final File input = makeIndexedPairs(reference);
+        final File checkpoint = File.createTempFile("CollectWgsMetrics", ".checkpoint");
+        Assert.assertTrue(checkpoint.delete());
+        checkpoint.deleteOnExit();
+
+        final File outfile = File.createTempFile("testWgsMetrics", ".txt");
+        outfile.deleteOnExit();
+        final List<String> args = new ArrayList<>(Arrays.asList(
+                "INPUT=" + input.getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                "SAMPLE_SIZE=1000"));
+        args.addAll(Arrays.asList(extraArgs));
+        if (restrictToIntervals) {
+            final SAMFileHeader header = new SAMFileHeader();
+            header.setSequenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(reference));
+            final IntervalList intervals = new IntervalList(header);
+            intervals.add(new Interval("chr2", 1, 50));
+            intervals.add(new Interval("chr4", 20, 80));
+            intervals.add(new Interval("chr7", 100, 300));
+            final File intervalsFile = File.createTempFile("CollectWgsMetrics", ".interval_list");
+            intervalsFile.deleteOnExit();
+            intervals.write(intervalsFile);
+            args.add("INTERVALS=" + intervalsFile.getAbsolutePath());
+        }
+        final List<String> expected = runAndReadMetrics(args, outfile);
+
+        args.add("CHECKPOINT=" + checkpoint.getAbsolutePath());
+        args.add("CHECKPOINT_INTERVAL=0");
+
+        // A run that dies on the second contig it examines, after saving the first
+        final CollectWgsMetrics stopped = new CollectWgsMetrics() {
+            @Override
+            protected WgsMetricsCollector getCollector(final int coverageCap, final IntervalList intervals) {
+                return new WgsMetricsCollector(coverageCap, intervals) {
+                    private int firstContig = -1;
+
+                    @Override
+                    public void addLocus(final int sequenceIndex, final int position, final int pileupSize) {
+                        if (firstContig == -1) firstContig = sequenceIndex;
+                        if (sequenceIndex != firstContig) throw new IllegalStateException("Stopped on purpose");
+                        super.addLocus(sequenceIndex, position, pileupSize);
+                    }
+                };
+            }
+        };
+        try {
+            stopped.instanceMain(args.toArray(new String[args.size()]));
+            Assert.fail("The run should have stopped");
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Stopped on purpose");
+        }
+        Assert.assertTrue(checkpoint.exists());
+
+        Assert.assertEquals(runAndReadMetrics(args, outfile), expected);
+        Assert.assertFalse(checkpoint.exists());
+    }
+
+    /** Writes an indexed BAM of pairs all over the given reference, some of them overlapping and some of them duplicates. */
+    private File makeIndexedPairs(final File reference) throws IOException {
+        final File input = File.createTempFile("CollectWgsMetrics", ".bam", TEST_DIR);
+        input.deleteOnExit();
+        new File(input.getParentFile(), input.getName().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(reference));
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final SAMReadGroupRecord readGroupRecord = new SAMReadGroupRecord(READ_GROUP_ID);
+        readGroupRecord.setSample(SAMPLE);
+        header.addReadGroup(readGroupRecord);
+
+        final SAMRecordSetBuilder setBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        setBuilder.setReadGroup(readGroupRecord);
+        setBuilder.setHeader(header);
+        setBuilder.setReadLength(20);
+
+        // Pairs all over the genome, some of them overlapping and some of them duplicates
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; ++i) {
+            final int contig = random.nextInt(header.getSequenceDictionary().size());
+            final int length = header.getSequence(contig).getSequenceLength();
+            final int start1 = 1 + random.nextInt(length - 40);
+            final int start2 = start1 + random.nextInt(20);
+            setBuilder.addPair("pair" + i, contig, start1, start2, false, false, "20M", "20M", false, true, 30);
+            if (i % 10 == 0) {
+                for (final SAMRecord rec : setBuilder.getRecords()) {
+                    if (rec.getReadName().equals("pair" + i)) rec.setDuplicateReadFlag(true);
+                }
+            }
+        }
+
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, input);
+        for (final SAMRecord record : setBuilder) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        return input;
+    }
+
+    @DataProvider(name = "useFastAlgorithm")
+    public Object[][] useFastAlgorithm() {
+        return new Object[][] {{false}, {true}};
+    }
+
+    @Test(dataProvider = "useFastAlgorithm")
+    public void testExclusions(final boolean useFastAlgorithm) throws IOException {
         final File reference = new File("testdata/picard/sam/merger.fasta");
         final File tempSamFile = File.createTempFile("CollectWgsMetrics", ".bam", TEST_DIR);
         tempSamFile.deleteOnExit();
@@ -270,7 +553,8 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
                 "OUTPUT=" + outfile.getAbsolutePath(),
                 "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
                 "INCLUDE_BQ_HISTOGRAM=true",
-                "COVERAGE_CAP=3"
+                "COVERAGE_CAP=3",
+                "USE_FAST_ALGORITHM=" + useFastAlgorithm
         };
         Assert.assertEquals(runPicardCommandLine(args), 0);
 
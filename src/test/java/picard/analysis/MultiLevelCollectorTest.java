@@ -102,6 +102,10 @@ public class MultiLevelCollectorTest {
             public void acceptRecord(final TestArg args) {
                 numProcessed += 1;
                 metric.TALLY += 1;
+                if (MultiLevelCollector.UNKNOWN.equals(metric.SAMPLE)) {
+                    Assert.assertNull(args.samRecord.getReadGroup());
+                    return;
+                }
                 if(metric.SAMPLE != null) {
                     Assert.assertEquals(metric.SAMPLE, args.samRecord.getReadGroup().getSample());
                 }
@@ -192,4 +196,36 @@ public class MultiLevelCollectorTest {
         Assert.assertEquals(totalProcessed, collector.getNumProcessed());
         CloserUtil.close(in);
     }
+
+    /** Records without a read group, or with one that is not in the header, go to the "unknown" collectors. */
+    @Test
+    public void testRecordsWithUnknownReadGroups() {
+        final SamReader in = SamReaderFactory.makeDefault().open(TESTFILE);
+        final Set<MetricAccumulationLevel> accumulationLevels = makeSet(MetricAccumulationLevel.ALL_READS,
+                MetricAccumulationLevel.SAMPLE, MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP);
+        final RecordCountMultiLevelCollector collector = new RecordCountMultiLevelCollector(accumulationLevels, in.getFileHeader().getReadGroups());
+
+        int records = 0;
+        int unknown = 0;
+        for (final SAMRecord rec : in) {
+            if (records % 3 == 1) {
+                rec.setAttribute("RG", null);
+                ++unknown;
+            } else if (records % 3 == 2) {
+                rec.setAttribute("RG", "notInTheHeader");
+                ++unknown;
+            }
+            collector.acceptRecord(rec, null);
+            ++records;
+        }
+        collector.finish();
+
+        final Map<String, TotalNumberMetric> metrics = collector.getUnitsToMetrics();
+        Assert.assertEquals(metrics.get("__").TALLY.intValue(), records);
+        Assert.assertEquals(metrics.get("unknown__").TALLY.intValue(), unknown);
+        Assert.assertEquals(metrics.get("unknown_unknown_").TALLY.intValue(), unknown);
+        Assert.assertEquals(metrics.get("unknown_unknown_unknown").TALLY.intValue(), unknown);
+        Assert.assertEquals(collector.getNumProcessed(), 4 * records);
+        CloserUtil.close(in);
+    }
 }
@@ -24,6 +24,7 @@
 
 package picard.analysis;
 
+import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.Histogram;
 import org.testng.Assert;
@@ -194,6 +195,30 @@ public class TheoreticalSensitivityTest {
         Assert.assertEquals(result, expectedResult, tolerance);
     }
 
+    //the sampling is done on several threads but must give exactly the same result every time
+    @Test
+    public void testHetSensReproducible() throws Exception {
+        final MetricsFile<MetricBase, Integer> metrics = new MetricsFile<>();
+        metrics.read(new FileReader(new File(TEST_DIR, "test_Solexa-332667.wgs_metrics")));
+        final List<Histogram<Integer>> histograms = metrics.getAllHistograms();
+        final double[] depthDistribution = TheoreticalSensitivity.normalizeHistogram(histograms.get(0));
+        final double[] qualityDistribution = TheoreticalSensitivity.normalizeHistogram(histograms.get(1));
+
+        final double first = TheoreticalSensitivity.hetSNPSensitivity(depthDistribution, qualityDistribution, 1234, 3.0, false);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(TheoreticalSensitivity.hetSNPSensitivity(depthDistribution, qualityDistribution, 1234, 3.0, false), first);
+        }
+    }
+
+    @Test
+    public void testHetAltDepthTableIsShared() throws Exception {
+        final double[][] small = TheoreticalSensitivity.getHetAltDepthTable(10);
+        final double[][] large = TheoreticalSensitivity.getHetAltDepthTable(20);
+        Assert.assertTrue(large.length >= 20);
+        for (int n = 0; n < 10; n++) Assert.assertSame(large[n], small[n]);
+        Assert.assertSame(TheoreticalSensitivity.getHetAltDepthTable(15), large);
+    }
+
     @DataProvider(name = "hetSensDataProvider")
     public Object[][] hetSensDataProvider() {
         final File wgsMetricsFile = new File(TEST_DIR, "test_Solexa-332667.wgs_metrics");
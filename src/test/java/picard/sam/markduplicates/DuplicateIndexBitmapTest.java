@@ -0,0 +1,76 @@
+package picard.sam.markduplicates;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.DuplicateIndexBitmap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Tests that DuplicateIndexBitmap returns the indexes added, each once and in ascending order, with chunks held as
+ * arrays or bitmaps and whether they stay in memory or are spilled to disk.
+ */
+public class DuplicateIndexBitmapTest {
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][] {
+                // count, range of the indexes, maxBytesInRam
+                {0, 10, 1000000L},
+                {1, 10, 1000000L},
+                {1000, 1000, 1000000L},
+                {20000, 1000000, 1000000L},
+                {20000, 1000000, 1000L},
+                {300000, 400000, 1000000L},
+                {300000, 400000, 10000L},
+                {100, 1L << 40, 100L},
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testAscendingAndDistinct(final int count, final long range, final long maxBytesInRam) {
+        final Random random = new Random(count + range);
+        final TreeSet<Long> expected = new TreeSet<>();
+        final DuplicateIndexBitmap bitmap = new DuplicateIndexBitmap(maxBytesInRam,
+                Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+        for (int i = 0; i < count; ++i) {
+            final long index = (long) (random.nextDouble() * range);
+            expected.add(index);
+            bitmap.add(index);
+        }
+        bitmap.doneAdding();
+
+        final List<Long> actual = new ArrayList<>();
+        while (bitmap.hasNext()) actual.add(bitmap.next());
+        Assert.assertEquals(actual, new ArrayList<>(expected));
+        bitmap.cleanup();
+    }
+
+    @Test
+    public void testContains() {
+        final DuplicateIndexBitmap bitmap = new DuplicateIndexBitmap(1000000L, Collections.emptyList());
+        // Sparse in the first chunk, dense enough in the second to be a bitmap
+        for (long i = 0; i < 65536; i += 1000) bitmap.add(i);
+        for (long i = 65536; i < 2 * 65536; i += 3) bitmap.add(i);
+
+        for (long i = 0; i < 3 * 65536; ++i) {
+            final boolean expected = i < 65536 ? i % 1000 == 0 : i < 2 * 65536 && (i - 65536) % 3 == 0;
+            Assert.assertEquals(bitmap.contains(i), expected, "index " + i);
+        }
+        Assert.assertFalse(bitmap.contains(-1));
+        Assert.assertTrue(bitmap.getBytesInRam() <= 1000000L);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoAddAfterDoneAdding() {
+        final DuplicateIndexBitmap bitmap = new DuplicateIndexBitmap(1000000L, Collections.emptyList());
+        bitmap.doneAdding();
+        bitmap.add(1);
+    }
+}
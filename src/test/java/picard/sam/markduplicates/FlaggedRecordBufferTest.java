@@ -0,0 +1,56 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.FlaggedRecordBuffer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that FlaggedRecordBuffer returns records in the order they were added, with their flags, when the head of the
+ * buffer is held back long enough that most of the records are spilled to disk.
+ */
+public class FlaggedRecordBufferTest {
+
+    @Test
+    public void testHeldBackHeadSpillsToOneFile() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 5000; ++i) builder.addFrag("read" + i, 0, 1 + i, false);
+        final List<SAMRecord> records = new ArrayList<>();
+        builder.forEach(records::add);
+
+        final File tmpDir = IOUtil.createTempDir("FlaggedRecordBufferTest", null);
+        try {
+            final FlaggedRecordBuffer buffer = new FlaggedRecordBuffer(4, Collections.singletonList(tmpDir), builder.getHeader());
+            int next = 0;
+            for (int i = 0; i < records.size(); ++i) {
+                Assert.assertEquals(buffer.add(records.get(i)), i);
+                if (i % 3 == 0) buffer.setFlags(i, 2);
+                // The first record is only examined once half of the records have been added, like a pair whose mate
+                // is far away; after that, records are taken out as soon as they are examined
+                if (i >= records.size() / 2) buffer.setFlags(i - records.size() / 2, 1);
+                while (!buffer.isEmpty() && (buffer.getHeadFlags() & 1) != 0) {
+                    Assert.assertEquals(buffer.getHeadFlags(), next % 3 == 0 ? 3 : 1);
+                    Assert.assertEquals(buffer.remove().getReadName(), records.get(next++).getReadName());
+                }
+                Assert.assertTrue(tmpDir.list().length <= 1);
+            }
+            Assert.assertEquals(buffer.size(), records.size() - next);
+            while (!buffer.isEmpty()) {
+                Assert.assertEquals(buffer.remove().getReadName(), records.get(next++).getReadName());
+            }
+            Assert.assertEquals(next, records.size());
+            Assert.assertEquals(tmpDir.list().length, 0);
+            buffer.close();
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+}
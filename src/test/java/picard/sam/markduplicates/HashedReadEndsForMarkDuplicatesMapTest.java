@@ -0,0 +1,77 @@
+package picard.sam.markduplicates;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.HashedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that HashedReadEndsForMarkDuplicatesMap gives back the read ends put into it, whether they stay in memory or
+ * are spilled to disk, and that keys given as strings and as read group and name are the same.
+ */
+public class HashedReadEndsForMarkDuplicatesMapTest {
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][] {
+                // number of reads, maxBytesInRam, useBarcodes
+                {10, 1000000L, false},
+                {20000, 100000000L, false},
+                {20000, 50000L, false},
+                {20000, 50000L, true},
+                {20000, 1L, false},
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testPutAndRemove(final int count, final long maxBytesInRam, final boolean useBarcodes) {
+        final Random random = new Random(count + maxBytesInRam);
+        final HashedReadEndsForMarkDuplicatesMap map = new HashedReadEndsForMarkDuplicatesMap(useBarcodes, maxBytesInRam,
+                Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+        final Map<String, ReadEndsForMarkDuplicates> expected = new HashMap<>();
+        final List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < count; ++i) {
+            // Add a read, then remove a random one of those still in the map about half the time
+            final String readGroup = random.nextBoolean() ? null : "RG" + random.nextInt(3);
+            final String name = "read" + i + ":" + random.nextInt(100);
+            final ReadEndsForMarkDuplicates ends = PackedReadEndsStoreTest.randomReadEnds(random, useBarcodes);
+            if (random.nextBoolean()) map.put(0, readGroup, name, ends);
+            else map.put(0, readGroup + ":" + name, ends);
+            expected.put(readGroup + ":" + name, ends);
+            names.add(readGroup + ":" + name);
+
+            if (random.nextBoolean()) {
+                final String key = names.remove(random.nextInt(names.size()));
+                assertRemoved(map.remove(1, key), expected.remove(key), useBarcodes);
+            }
+            Assert.assertEquals(map.size(), expected.size());
+            Assert.assertTrue(map.sizeInRam() <= map.size());
+        }
+
+        Assert.assertNull(map.remove(0, "RG0", "not a read"));
+        for (final String key : names) {
+            final int colon = key.indexOf(':');
+            final String readGroup = key.substring(0, colon);
+            final ReadEndsForMarkDuplicates actual = map.remove(0, readGroup.equals("null") ? null : readGroup, key.substring(colon + 1));
+            assertRemoved(actual, expected.remove(key), useBarcodes);
+            Assert.assertNull(map.remove(0, key));
+        }
+        Assert.assertEquals(map.size(), 0);
+        map.cleanup();
+    }
+
+    private static void assertRemoved(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        Assert.assertNotNull(actual);
+        PackedReadEndsStoreTest.assertSameReadEnds(actual, expected, useBarcodes);
+    }
+}
@@ -0,0 +1,154 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.PackedReadEndsStore;
+import picard.sam.markduplicates.util.ReadEnds;
+import picard.sam.markduplicates.util.ReadEndsMemoryBudget;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that PackedReadEndsStore returns read ends in the order of MarkDuplicates' comparator, with all their fields,
+ * whether they stay in memory or are spilled to disk.
+ */
+public class PackedReadEndsStoreTest {
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][] {
+                {0, 10, false},
+                {1, 10, false},
+                {5000, 100000, false},
+                {5000, 50, false},
+                {5000, 50, true},
+                {200000, 70000, false},
+                {200000, 70000, true},
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testSortedLikeComparator(final int count, final int maxRecordsInRam, final boolean useBarcodes) {
+        final Random random = new Random(count + maxRecordsInRam);
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<>(count);
+        final PackedReadEndsStore store = new PackedReadEndsStore(useBarcodes, maxRecordsInRam,
+                Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+        for (int i = 0; i < count; ++i) {
+            final ReadEndsForMarkDuplicates ends = randomReadEnds(random, useBarcodes);
+            expected.add(ends);
+            store.add(ends);
+        }
+        store.doneAdding();
+        Collections.sort(expected, new MarkDuplicates.ReadEndsMDComparator(useBarcodes));
+
+        int i = 0;
+        try (final CloseableIterator<ReadEndsForMarkDuplicates> iterator = store.iterator()) {
+            while (iterator.hasNext()) {
+                Assert.assertTrue(i < count);
+                assertSameReadEnds(iterator.next(), expected.get(i++), useBarcodes);
+            }
+        }
+        Assert.assertEquals(i, count);
+        store.cleanup();
+    }
+
+    /** Two stores filled side by side from a budget of a few pages, so that they take pages from each other. */
+    @Test
+    public void testStoresSharingBudget() {
+        final Random random = new Random(7);
+        final long pageBytes = 65536L * PackedReadEndsStore.getSizeOf(false);
+        final ReadEndsMemoryBudget memory = new ReadEndsMemoryBudget(3 * pageBytes);
+        final List<File> tmpDirs = Collections.singletonList(new File(System.getProperty("java.io.tmpdir")));
+        final List<PackedReadEndsStore> stores = new ArrayList<>();
+        final List<List<ReadEndsForMarkDuplicates>> expected = new ArrayList<>();
+        for (int s = 0; s < 2; ++s) {
+            stores.add(new PackedReadEndsStore(false, 1000000, tmpDirs, memory));
+            expected.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < 400000; ++i) {
+            // The first store gets most of the records early on, and the second most of them later
+            final int s = random.nextInt(400000) < i ? 1 : 0;
+            final ReadEndsForMarkDuplicates ends = randomReadEnds(random, false);
+            ends.read1IndexInFile = i;  // so that no two keys are the same, and the order is fully determined
+            expected.get(s).add(ends);
+            stores.get(s).add(ends);
+            Assert.assertTrue(memory.getUsedBytes() <= 4 * pageBytes);
+        }
+
+        for (int s = 0; s < 2; ++s) {
+            Collections.sort(expected.get(s), new MarkDuplicates.ReadEndsMDComparator(false));
+            int i = 0;
+            try (final CloseableIterator<ReadEndsForMarkDuplicates> iterator = stores.get(s).iterator()) {
+                while (iterator.hasNext()) assertSameReadEnds(iterator.next(), expected.get(s).get(i++), false);
+            }
+            Assert.assertEquals(i, expected.get(s).size());
+            stores.get(s).cleanup();
+        }
+        Assert.assertEquals(memory.getUsedBytes(), 0);
+    }
+
+    static ReadEndsForMarkDuplicates randomReadEnds(final Random random, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates ends;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = random.nextInt(3) - 1;
+            withBarcodes.readOneBarcode = random.nextInt();
+            withBarcodes.readTwoBarcode = random.nextInt(2);
+            ends = withBarcodes;
+        } else {
+            ends = new ReadEndsForMarkDuplicates();
+        }
+        ends.libraryId = (short) random.nextInt(3);
+        ends.read1ReferenceIndex = random.nextInt(4);
+        ends.read1Coordinate = random.nextInt(300) - 20;
+        ends.read1IndexInFile = random.nextInt(1000000);
+        if (random.nextBoolean()) {
+            ends.orientation = (byte) (ReadEnds.FF + random.nextInt(4));
+            ends.read2ReferenceIndex = random.nextInt(4);
+            ends.read2Coordinate = random.nextInt(300) - 20;
+            ends.read2IndexInFile = random.nextInt(1000000);
+        } else {
+            ends.orientation = random.nextBoolean() ? ReadEnds.F : ReadEnds.R;
+        }
+        ends.score = (short) random.nextInt(Short.MAX_VALUE);
+        ends.readGroup = (short) (random.nextInt(5) - 1);
+        ends.tile = (short) random.nextInt(2000);
+        ends.x = (short) random.nextInt(Short.MAX_VALUE);
+        ends.y = (short) random.nextInt(Short.MAX_VALUE);
+        ends.orientationForOpticalDuplicates = (byte) (random.nextInt(5) - 1);
+        return ends;
+    }
+
+    static void assertSameReadEnds(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes actualWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) actual;
+            final ReadEndsForMarkDuplicatesWithBarcodes expectedWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package picard.sam.markduplicates;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.ReadEndsMemoryBudget;
+
+/**
+ * Tests that the clients of a ReadEndsMemoryBudget may borrow memory the others leave unused, and must give it back
+ * once the others need it.
+ */
+public class ReadEndsMemoryBudgetTest {
+
+    @Test
+    public void testSharesAndBorrowing() {
+        final ReadEndsMemoryBudget memory = new ReadEndsMemoryBudget(100);
+        final ReadEndsMemoryBudget.Client first = memory.newClient();
+        final ReadEndsMemoryBudget.Client second = memory.newClient();
+
+        // The first client borrows most of the second's share while the second uses none of it
+        Assert.assertTrue(first.tryReserve(90));
+        Assert.assertFalse(first.tryReserve(20));
+        Assert.assertFalse(first.isOverBudget());
+
+        // The second may still take its own share, after which the first has to give back what it borrowed
+        Assert.assertTrue(second.tryReserve(50));
+        Assert.assertFalse(second.tryReserve(1));
+        Assert.assertFalse(second.isOverBudget());
+        Assert.assertTrue(first.isOverBudget());
+        first.release(40);
+        Assert.assertFalse(first.isOverBudget());
+        Assert.assertEquals(memory.getUsedBytes(), 100);
+
+        // Closing a client releases its memory and leaves the budget to the others
+        second.close();
+        Assert.assertEquals(memory.getUsedBytes(), 50);
+        Assert.assertTrue(first.tryReserve(50));
+        Assert.assertFalse(first.tryReserve(1));
+        first.reserve(1);
+        Assert.assertEquals(first.getUsedBytes(), 101);
+        Assert.assertTrue(first.isOverBudget());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates;
+
+import org.testng.annotations.Test;
+
+/**
+ * Runs the MarkDuplicates tests reading the input only once, with few enough records held in memory that those waiting
+ * to be written out are spilled to disk, to show that the results are the same as with two passes.
+ */
+public class SinglePassMarkDuplicatesTest extends MarkDuplicatesTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.addArg("SINGLE_PASS=true");
+        tester.addArg("MAX_RECORDS_IN_RAM=4");
+        return tester;
+    }
+
+    @Test
+    public void testMateOnLaterContigHoldsBackManyRecords() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
+        // Until their mates on the second contig are read, these pairs hold back every record after them on the first
+        tester.addMatePair("FAR_PAIR:1", 0, 1, 1, 1, false, false, false, false, "50M", "50M", false, true, false, false, false, DEFAULT_BASE_QUALITY + 10);
+        tester.addMatePair("FAR_PAIR:2", 0, 1, 1, 1, false, false, true, true, "50M", "50M", false, true, false, false, false, DEFAULT_BASE_QUALITY);
+        for (int i = 0; i < 1000; ++i) {
+            tester.addMappedPair(0, 1000 + 200 * i, 1100 + 200 * i, false, false, DEFAULT_BASE_QUALITY);
+            tester.addMappedPair(0, 1000 + 200 * i, 1100 + 200 * i, true, true, DEFAULT_BASE_QUALITY); // duplicate!!!
+        }
+        tester.runTest();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.DuplicateSet;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that UmiGraph joins the same UMIs whether it compares every pair of them or only those agreeing in a segment,
+ * searching for them in parallel or not.
+ */
+public class UmiGraphTest {
+
+    @DataProvider(name = "testSegmentIndexDataProvider")
+    public Object[][] testSegmentIndexDataProvider() {
+        return new Object[][]{
+                {"ACGT", 8, 1},
+                {"ACGT", 12, 2},
+                {"ACGT", 16, 3},
+                {"ACGT", 32, 2},
+                {"ACGTN", 8, 1},    // not packed, for the N
+                {"ACGT-", 12, 2},   // not packed, for the -
+                {"ACGT", 40, 3}     // not packed, for being too long
+        };
+    }
+
+    @Test(dataProvider = "testSegmentIndexDataProvider")
+    public void testSegmentIndex(final String bases, final int umiLength, final int maxEditDistanceToJoin) {
+        final List<String> allPairs = joinUmis(bases, umiLength, maxEditDistanceToJoin, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Assert.assertEquals(joinUmis(bases, umiLength, maxEditDistanceToJoin, 0, Integer.MAX_VALUE), allPairs);
+        Assert.assertEquals(joinUmis(bases, umiLength, maxEditDistanceToJoin, 0, 0), allPairs);
+    }
+
+    @Test(expectedExceptions = picard.PicardException.class)
+    public void testSegmentIndexWithUmisOfDifferentLengths() {
+        final UmiGraph graph = new UmiGraph(duplicateSet(new String[]{"AAAA", "AAAT", "AAA"}), "RX", "MI", false);
+        graph.minUmisForSegmentIndex = 0;
+        graph.joinUmisIntoDuplicateSets(1);
+    }
+
+    /** Joins random UMIs, mutated from a few original ones, and describes the duplicate sets by their reads and assigned UMIs. */
+    private List<String> joinUmis(final String bases, final int umiLength, final int maxEditDistanceToJoin,
+                                  final int minUmisForSegmentIndex, final int minUmisForParallelSearch) {
+        final Random random = new Random(umiLength * 10 + maxEditDistanceToJoin);
+        final String[] originals = new String[200];
+        for (int i = 0; i < originals.length; ++i) {
+            final StringBuilder umi = new StringBuilder();
+            for (int j = 0; j < umiLength; ++j) umi.append(bases.charAt(random.nextInt(bases.length())));
+            originals[i] = umi.toString();
+        }
+        final String[] umis = new String[3000];
+        for (int i = 0; i < umis.length; ++i) {
+            final char[] umi = originals[random.nextInt(originals.length)].toCharArray();
+            for (int j = random.nextInt(maxEditDistanceToJoin + 2); j > 0; --j) {
+                umi[random.nextInt(umiLength)] = bases.charAt(random.nextInt(bases.length()));
+            }
+            umis[i] = new String(umi);
+        }
+
+        final UmiGraph graph = new UmiGraph(duplicateSet(umis), "RX", "MI", false);
+        graph.minUmisForSegmentIndex = minUmisForSegmentIndex;
+        graph.minUmisForParallelSearch = minUmisForParallelSearch;
+
+        final List<String> sets = new ArrayList<>();
+        for (final DuplicateSet set : graph.joinUmisIntoDuplicateSets(maxEditDistanceToJoin)) {
+            final StringBuilder description = new StringBuilder();
+            for (final SAMRecord rec : set.getRecords()) {
+                description.append(rec.getReadName()).append('=').append(rec.getStringAttribute("MI")).append(' ');
+            }
+            sets.add(description.toString());
+        }
+        Assert.assertTrue(sets.size() > 1 && sets.size() < umis.length);
+        return sets;
+    }
+
+    private static DuplicateSet duplicateSet(final String[] umis) {
+        final SAMFileHeader header = new SAMFileHeader();
+        final DuplicateSet set = new DuplicateSet();
+        for (int i = 0; i < umis.length; ++i) {
+            final SAMRecord rec = new SAMRecord(header);
+            rec.setReadName("read" + i);
+            rec.setReadUnmappedFlag(true);
+            rec.setAttribute("RX", umis[i]);
+            set.add(rec);
+        }
+        return set;
+    }
+}
@@ -125,6 +125,37 @@ public class OpticalDuplicateFinderTest {
         assertEquals(finder.findOpticalDuplicates(locs, locs.get(2)), new boolean[] {true, true, false});
     }
 
+    /**
+     * Tests that big sets, whose reads are only compared to those near them in a grid of their locations, give the same
+     * result as comparing every pair of reads.
+     */
+    @Test
+    public void testLocationGridMatchesAllPairs() {
+        final Log log = Log.getInstance(OpticalDuplicateFinderTest.class);
+        for (int i = 0; i < 20; ++i) {
+            final Random random = new Random(i);
+            final int distance = i % 2 == 0 ? 100 : 2500;
+            final List<PhysicalLocation> locs = new ArrayList<>();
+            for (int j = 0; j < 2000; ++j) {
+                // Clusters of reads around a few points on a few tiles, some of them at negative coordinates
+                final int x = random.nextInt(5) * 1000 - 1000 + random.nextInt(300);
+                final int y = random.nextInt(5) * 1000 - 1000 + random.nextInt(300);
+                final PhysicalLocation loc = loc(1 + random.nextInt(3), x, y);
+                if (random.nextInt(50) == 0) loc.setTile((short) PhysicalLocation.NO_VALUE);
+                locs.add(loc);
+            }
+            locs.add(locs.get(7)); // the same read twice is never a duplicate of itself
+            final PhysicalLocation keeper = i % 3 == 0 ? null : locs.get(random.nextInt(locs.size()));
+
+            final OpticalDuplicateFinder allPairs = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, log);
+            allPairs.minSizeForLocationGrid = Integer.MAX_VALUE;
+            final OpticalDuplicateFinder grid = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, log);
+            grid.minSizeForLocationGrid = 0;
+
+            assertEquals(grid.findOpticalDuplicates(locs, keeper), allPairs.findOpticalDuplicates(locs, keeper));
+        }
+    }
+
     /** Helper method to create a physical location. */
     private PhysicalLocation loc(final int tile, final int x, final int y) {
         final PhysicalLocation l = new PhysicalLocationInt() {
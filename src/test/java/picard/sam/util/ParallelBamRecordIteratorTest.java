@@ -0,0 +1,62 @@
+package picard.sam.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Tests that ParallelBamRecordIterator returns the same records, in the same order, as a SamReader.
+ */
+public class ParallelBamRecordIteratorTest {
+
+    @DataProvider(name = "threadCounts")
+    public Object[][] threadCounts() {
+        return new Object[][] {{1}, {2}, {8}};
+    }
+
+    @Test(dataProvider = "threadCounts")
+    public void testSameRecordsAsSamReader(final int threads) throws IOException {
+        // Enough records to span many BGZF blocks and several decoding chunks
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 2500; ++i) {
+            builder.addPair("pair" + i, i % 3, 1 + i * 7, 100 + i * 7);
+        }
+        builder.addUnmappedFragment("unmapped");
+
+        final File bam = File.createTempFile("ParallelBamRecordIteratorTest.", ".bam");
+        bam.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), false, bam);
+        for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        writer.close();
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(bam);
+        final ParallelBamRecordIterator parallel =
+                new ParallelBamRecordIterator(bam, reader.getFileHeader(), threads, ValidationStringency.STRICT);
+
+        int count = 0;
+        final Iterator<SAMRecord> expected = reader.iterator();
+        while (expected.hasNext()) {
+            Assert.assertTrue(parallel.hasNext());
+            Assert.assertEquals(parallel.next().getSAMString(), expected.next().getSAMString());
+            ++count;
+        }
+        Assert.assertFalse(parallel.hasNext());
+        Assert.assertEquals(count, 5001);
+
+        parallel.close();
+        CloserUtil.close(reader);
+    }
+}
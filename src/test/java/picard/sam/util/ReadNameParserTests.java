@@ -5,7 +5,10 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Tests for the ReadNameParser class.
@@ -120,6 +123,77 @@ public class ReadNameParserTests {
         };
     }
 
+    @DataProvider(name = "testReadNameTokenizer")
+    public Object[][] testReadNameTokenizerDataProvider() {
+        final String[] readNames = {
+                "RUNID:123:000000000-ZZZZZ:1:1105:17981:23325",
+                "RUNID:7:1203:2886:82292",
+                "RUNID:7:1203:2886:82292/1",
+                "RUNID:7:1203:2886:82292 1:N:0:ATCACG",
+                "1109:22981:17995",
+                "1109ABC:22981DEF:17995GHI",
+                "1109:22981",
+                "RUNID:7:1203:2886:99999999999",
+                "RUNID:7:1203:2886:",
+                "RUNID:7:1203:2886:82292\n",
+                "V300003413L1C001R0010000002",
+                "V300003413L1C001R0010000002/1",
+                "V300003413L1C001R001",
+                "E100001234L1C012R03400567891",
+                ""
+        };
+        final Object[][] regexes = {
+                {"(?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$", true},
+                {"[a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*", true},
+                {".*:([0-9]+):([0-9]+):([0-9]+)", true},
+                {"^\\w+:\\d+:(\\d+):(\\d+):(\\d+)$", true},
+                {"V[0-9]+L[0-9]C([0-9]{3})R([0-9]{3})([0-9]+).*", true},
+                {"[A-Z][0-9]+L[0-9]C([0-9]{3})R([0-9]{3})([0-9]{7,})(?:/[12])?", false},
+                {"[A-Z][0-9]+L[0-9]C([0-9]{3})R([0-9]{3})([0-9]{7,}).?.?", false},
+                {".*L[0-9]C([0-9]{3})R([0-9]{3})([0-9]+).*", true},
+                // These need backtracking, or are not simple enough, so they are left to java.util.regex
+                {"[a-zA-Z0-9]+L[0-9]C([0-9]+)R([0-9]{3})([0-9]+)", false},
+                {"([0-9]+)[^:]+:([0-9]+):([0-9]+)", false},
+                {"(?:.*:)?([0-9]+):([0-9]+):([0-9]+)|x", false},
+                {"(?i)RUNID:[0-9]:([0-9]+):([0-9]+):([0-9]+).*", false},
+                {".*:([0-9]+):([0-9]+)", false}
+        };
+        final List<Object[]> tests = new ArrayList<>();
+        for (final Object[] regex : regexes) {
+            for (final String readName : readNames) tests.add(new Object[]{regex[0], regex[1], readName});
+        }
+        return tests.toArray(new Object[tests.size()][]);
+    }
+
+    /** Tests that the regexes the tokenizer compiles parse read names exactly as java.util.regex does. */
+    @Test(dataProvider = "testReadNameTokenizer")
+    public void testReadNameTokenizer(final String readNameRegex, final boolean compiles, final String readName) {
+        final ReadNameTokenizer tokenizer = ReadNameTokenizer.compile(readNameRegex);
+        Assert.assertEquals(tokenizer != null, compiles);
+        if (tokenizer == null) return;
+
+        final Matcher m = Pattern.compile(readNameRegex).matcher(readName);
+        final int[] fields = new int[3];
+        if (!m.matches()) {
+            Assert.assertFalse(tokenizer.parse(readName, fields));
+            return;
+        }
+        final int[] expected = new int[3];
+        boolean expectedNumberFormatException = false;
+        try {
+            for (int i = 0; i < 3; ++i) expected[i] = Integer.parseInt(m.group(i + 1));
+        } catch (final NumberFormatException e) {
+            expectedNumberFormatException = true;
+        }
+        try {
+            Assert.assertTrue(tokenizer.parse(readName, fields));
+            Assert.assertFalse(expectedNumberFormatException);
+            Assert.assertEquals(fields, expected);
+        } catch (final NumberFormatException e) {
+            Assert.assertTrue(expectedNumberFormatException);
+        }
+    }
+
     @Test(dataProvider = "testReadNameParsing")
     public void testReadNameParsing(final String readNameRegex, final String readName, final int tile, final int x, final int y, final boolean addLocationInformationSucceeds) {
         final ReadNameParser parser = new ReadNameParser(readNameRegex);
@@ -0,0 +1,79 @@
+package picard.util;
+
+import htsjdk.samtools.util.Histogram;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+/**
+ * Tests that LongArrayHistogram builds the same Histogram as incrementing it directly.
+ */
+public class LongArrayHistogramTest {
+
+    /** Keys that cover the dense array, its growth, the sparse keys above maxDenseSize and negative keys. */
+    private static int[] randomKeys(final int n, final long seed) {
+        final Random random = new Random(seed);
+        final int[] keys = new int[n];
+        for (int i = 0; i < n; ++i) {
+            switch (random.nextInt(4)) {
+                case 0:  keys[i] = random.nextInt(10); break;
+                case 1:  keys[i] = random.nextInt(500); break;
+                case 2:  keys[i] = 1000 + random.nextInt(100000); break;
+                default: keys[i] = -random.nextInt(50); break;
+            }
+        }
+        return keys;
+    }
+
+    private static void assertSameHistogram(final Histogram<Integer> actual, final Histogram<Integer> expected) {
+        Assert.assertEquals(actual.keySet(), expected.keySet());
+        for (final Integer key : expected.keySet()) {
+            Assert.assertEquals(actual.get(key).getValue(), expected.get(key).getValue(), "key " + key);
+        }
+        Assert.assertEquals(actual.getBinLabel(), expected.getBinLabel());
+        Assert.assertEquals(actual.getValueLabel(), expected.getValueLabel());
+    }
+
+    @Test
+    public void testSameAsHistogram() {
+        final Histogram<Integer> expected = new Histogram<Integer>("key", "count");
+        final LongArrayHistogram actual = new LongArrayHistogram(4, 1024);
+        for (final int key : randomKeys(10000, 1)) {
+            expected.increment(key);
+            actual.increment(key);
+        }
+        actual.increment(7, 5);
+        expected.increment(7, 5);
+
+        assertSameHistogram(actual.toHistogram("key", "count"), expected);
+        Assert.assertEquals(actual.getCount(), (long) expected.getCount());
+        Assert.assertEquals(actual.get(7), (long) expected.get(7).getValue());
+        Assert.assertEquals(actual.get(123456789), 0);
+        Assert.assertFalse(actual.isEmpty());
+    }
+
+    @Test
+    public void testEmpty() {
+        final LongArrayHistogram histogram = new LongArrayHistogram();
+        Assert.assertTrue(histogram.isEmpty());
+        Assert.assertEquals(histogram.getCount(), 0);
+        Assert.assertTrue(histogram.toHistogram().isEmpty());
+        Assert.assertEquals(histogram.toHistogram().getMedian(), new Histogram<Integer>().getMedian());
+    }
+
+    @Test
+    public void testAddHistogram() {
+        final LongArrayHistogram first = new LongArrayHistogram(0, 256);
+        final LongArrayHistogram second = new LongArrayHistogram(16, 2048);
+        final Histogram<Integer> expected = new Histogram<Integer>();
+        final int[] keys = randomKeys(5000, 2);
+        for (int i = 0; i < keys.length; ++i) {
+            (i % 2 == 0 ? first : second).increment(keys[i]);
+            expected.increment(keys[i]);
+        }
+
+        first.addHistogram(second);
+        assertSameHistogram(first.toHistogram(), expected);
+    }
+}
@@ -0,0 +1,84 @@
+package picard.util;
+
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests that PrefetchingReferenceCache returns the same contigs as reading the reference from start to end, whatever
+ * the order they are asked for in and however many threads ask for them.
+ */
+public class PrefetchingReferenceCacheTest {
+    private static final File INDEXED_REFERENCE = new File("testdata/picard/reference/test.fasta");
+    private static final File UNINDEXED_REFERENCE = new File("testdata/picard/sam/summary_alignment_stats_test.fasta");
+
+    @DataProvider(name = "references")
+    public Object[][] references() {
+        return new Object[][] {{INDEXED_REFERENCE}, {UNINDEXED_REFERENCE}};
+    }
+
+    private static List<ReferenceSequence> readSequentially(final File reference) {
+        final List<ReferenceSequence> contigs = new ArrayList<>();
+        final ReferenceSequenceFile referenceFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+        for (ReferenceSequence contig; (contig = referenceFile.nextSequence()) != null; ) contigs.add(contig);
+        CloserUtil.close(referenceFile);
+        return contigs;
+    }
+
+    private static void assertSameContig(final ReferenceSequence actual, final ReferenceSequence expected) {
+        Assert.assertEquals(actual.getName(), expected.getName());
+        Assert.assertEquals(actual.getContigIndex(), expected.getContigIndex());
+        Assert.assertEquals(actual.getBases(), expected.getBases(), actual.getName());
+    }
+
+    @Test(dataProvider = "references")
+    public void testInOrderAndBackwards(final File reference) {
+        final List<ReferenceSequence> expected = readSequentially(reference);
+        try (final PrefetchingReferenceCache cache = new PrefetchingReferenceCache(reference, 2)) {
+            for (int i = 0; i < expected.size(); ++i) assertSameContig(cache.get(i), expected.get(i));
+            for (int i = expected.size() - 1; i >= 0; --i) assertSameContig(cache.get(i), expected.get(i));
+        }
+    }
+
+    @Test(dataProvider = "references")
+    public void testRandomOrderFromManyThreads(final File reference) throws Exception {
+        final List<ReferenceSequence> expected = readSequentially(reference);
+        final int threads = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final PrefetchingReferenceCache cache = new PrefetchingReferenceCache(reference, threads + 1)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                final Random random = new Random(t);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; ++i) {
+                        final int contig = random.nextInt(expected.size());
+                        assertSameContig(cache.get(contig), expected.get(contig));
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testMissingContig() {
+        try (final PrefetchingReferenceCache cache = new PrefetchingReferenceCache(UNINDEXED_REFERENCE, 2)) {
+            cache.get(100);
+        }
+    }
+}